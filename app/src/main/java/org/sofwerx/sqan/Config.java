@@ -39,6 +39,10 @@ public class Config {
     public final static String PREFS_VPN_EDIT_FORWARDS = "vpnfwdsettings";
     public final static String PREFS_IGNORE_0_0_0_0 = "no0000";
     public final static String PREFS_LARGE_DATA_WIFI_ONLY = "bigpipesonly";
+    public final static String PREFS_REDUNDANT_SEND = "redundant";
+    public final static String PREFS_MULTIPATH = "multipath";
+    public final static String PREFS_VPN_HEADER_COMPRESSION = "vpnhdrcomp";
+    public final static String PREFS_PAYLOAD_COMPRESSION = "compress";
     private final static String PREFS_VPN_LANDING_PAGE = "vpn404";
     public final static String PREFS_VPN_MTU = "mtu";
     public final static String PREFS_VPN_FORWARD = "vpnfwd";
@@ -62,6 +66,10 @@ public class Config {
     private static boolean warnIncomplete = true;
     private static boolean ignore0000 = true;
     private static boolean largeDataWiFiOnly = true;
+    private static boolean redundantSend = false;
+    private static boolean multipath = false;
+    private static boolean vpnHeaderCompression = true;
+    private static boolean payloadCompression = true;
     private static boolean silent = false;
     private static int mtuSize = 1500;
     private static SqAnDevice thisDevice = null;
@@ -87,6 +95,7 @@ public class Config {
         SqAnDevice.remove(thisDevice); //dont list this device in the list of other devices
         thisDevice.setUuidExtended(uuidExtended);
         thisDevice.setCallsign(callsign);
+        thisDevice.setCapabilities(SqAnDevice.CAPABILITIES_THIS_BUILD);
         loadVpnForwardingIps(context);
         String rawTeam = prefs.getString(PREFS_SAVED_TEAM,null);
         if (rawTeam != null) {
@@ -216,6 +225,10 @@ public class Config {
         ignore0000 = prefs.getBoolean(PREFS_IGNORE_0_0_0_0,true);
         silent = prefs.getBoolean(PREFS_SDR_LISTEN_ONLY,false);
         largeDataWiFiOnly = prefs.getBoolean(PREFS_LARGE_DATA_WIFI_ONLY,true);
+        redundantSend = prefs.getBoolean(PREFS_REDUNDANT_SEND,false);
+        multipath = prefs.getBoolean(PREFS_MULTIPATH,false);
+        vpnHeaderCompression = prefs.getBoolean(PREFS_VPN_HEADER_COMPRESSION,true);
+        payloadCompression = prefs.getBoolean(PREFS_PAYLOAD_COMPRESSION,true);
         try {
             mtuSize = Integer.parseInt(prefs.getString(PREFS_VPN_MTU, "1500"));
         } catch (NumberFormatException e) {
@@ -512,6 +525,10 @@ public class Config {
     }
     public static boolean isIgnoringPacketsTo0000() { return ignore0000; }
     public static boolean isLargeDataWiFiOnly() { return largeDataWiFiOnly; }
+    public static boolean isRedundantSendEnabled() { return redundantSend; }
+    public static boolean isMultipathEnabled() { return multipath; }
+    public static boolean isVpnHeaderCompression() { return vpnHeaderCompression; }
+    public static boolean isPayloadCompressionEnabled() { return payloadCompression; }
     public static boolean isMulticastEnabled() { return multicast; }
     public static int getMtuSize() { return mtuSize; }
     public static boolean isListenOnyMode() { return silent; }
@@ -10,7 +10,6 @@ import org.sofwerx.sqan.ipc.IpcSaBroadcastTransmitter;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
 import org.sofwerx.sqan.manet.bt.BtManetV2;
-import org.sofwerx.sqan.manet.bt.helper.BTSocket;
 import org.sofwerx.sqan.manet.common.AbstractManet;
 import org.sofwerx.sqan.manet.common.ManetException;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
@@ -21,6 +20,10 @@ import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
+import org.sofwerx.sqan.manet.common.scheduler.ExpectedDeliveryScheduler;
+import org.sofwerx.sqan.manet.common.scheduler.LinkQuality;
+import org.sofwerx.sqan.manet.common.scheduler.ReorderBuffer;
+import org.sofwerx.sqan.manet.common.scheduler.TransportScheduler;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.manet.nearbycon.NearbyConnectionsManet;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
@@ -29,6 +32,10 @@ import org.sofwerx.sqan.manet.wifiaware.WiFiAwareManetV2;
 import org.sofwerx.sqan.manet.wifidirect.WiFiDirectManet;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.StringUtil;
+import org.sofwerx.sqan.vpn.HeaderCompressor;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static androidx.constraintlayout.widget.Constraints.TAG;
 
@@ -42,13 +49,14 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
     private AbstractManet wifiManet;
     private BtManetV2 btManet;
     private SdrManet sdrManet;
-    private static long transmittedByteTally = 0l;
-    private static long nextLoggerTransmittedBytes = 0l;
+    private final static AtomicLong transmittedByteTally = new AtomicLong(0l);
+    private final static AtomicLong nextLoggerTransmittedBytes = new AtomicLong(0l);
     private final static long BYTES_TO_TX_BETWEEN_LOGGING = 1024l * 1024l;
     private HandlerThread manetThread; //the MANET itself runs on this thread where possible
     private Handler handler;
     private boolean shouldBeActive = true;
     private long nextEligibleSaIpcBroadcast = Long.MIN_VALUE;
+    private volatile TransportScheduler transportScheduler = new ExpectedDeliveryScheduler();
 
     //for capturing overall up time analytics
     private static SqAnDevice.FullMeshCapability meshStatus = SqAnDevice.FullMeshCapability.DOWN;
@@ -305,6 +313,7 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                 Log.e(Config.TAG, "ManetOps is unable to shutdown MANET: " + e.getMessage());
             }
         }
+        ReorderBuffer.getInstance().shutdown();
         sqAnService = null;
         manetThread = null;
     }
@@ -419,7 +428,6 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                     return;
                 if (sqAnService.listener != null)
                     sqAnService.listener.onDataTransmitted();
-                sqAnService.onPositiveComms();
             });
     }
 
@@ -430,7 +438,6 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                 if (sqAnService != null) {
                     if (sqAnService.listener != null)
                         sqAnService.listener.onDataTransmitted();
-                    sqAnService.onPositiveComms();
                 }
             });
     }
@@ -458,18 +465,17 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
      * @param bytes
      */
     public static void addBytesToTransmittedTally(int bytes) {
-        transmittedByteTally += bytes;
-        if (transmittedByteTally > nextLoggerTransmittedBytes) {
-            nextLoggerTransmittedBytes = transmittedByteTally + BYTES_TO_TX_BETWEEN_LOGGING;
-            CommsLog.log(CommsLog.Entry.Category.CONNECTION,StringUtil.toDataSize(transmittedByteTally)+" transmitted");
-        }
+        long tally = transmittedByteTally.addAndGet(bytes);
+        long next = nextLoggerTransmittedBytes.get();
+        if ((tally > next) && nextLoggerTransmittedBytes.compareAndSet(next,tally + BYTES_TO_TX_BETWEEN_LOGGING))
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION,StringUtil.toDataSize(tally)+" transmitted");
     }
 
     /**
      * Gets the total tally of bytes transmitted
      * @return
      */
-    public static long getTransmittedByteTally() { return transmittedByteTally; }
+    public static long getTransmittedByteTally() { return transmittedByteTally.get(); }
 
     @Override
     public void onDevicesChanged(final SqAnDevice device) {
@@ -550,87 +556,60 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                 handler.post(() -> {
                     try {
                         if ((preferredTransport == null) || (preferredTransport == TransportPreference.AGNOSTIC)) {
-                            boolean btGood = (btManet != null) && (btManet.getStatus() == Status.CONNECTED);
-                            boolean wifiGood = (wifiManet != null) && (wifiManet.getStatus() == Status.CONNECTED);
-                            boolean sdrGood = (sdrManet != null) && (sdrManet.getStatus() == Status.CONNECTED);
-                            if (btGood && wifiGood) {
-                                if (packet.isHighPerformanceNeeded())
-                                    wifiManet.burst(packet);
-                                else {
-                                    if (PacketHeader.BROADCAST_ADDRESS == packet.getSqAnDestination()) {
-                                        wifiManet.burst(packet);
-                                        if (!BTSocket.isCongested() && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                            btManet.burst(packet);
-                                    } else {
-                                        SqAnDevice device = SqAnDevice.findByUUID(packet.getSqAnDestination());
-                                        if (device == null) {
-                                            wifiManet.burst(packet);
-                                            if (!BTSocket.isCongested())
-                                                btManet.burst(packet);
-                                        } else {
-                                            if (BTSocket.isCongested())
-                                                wifiManet.burst(packet);
-                                            else {
-                                                switch (device.getPreferredTransport()) {
-                                                    case WIFI:
-                                                        wifiManet.burst(packet);
-                                                        break;
-
-                                                    case BLUETOOTH:
-                                                        btManet.burst(packet);
-                                                        break;
-
-                                                    default:
-                                                        wifiManet.burst(packet);
-                                                        btManet.burst(packet);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            } else {
-                                //at least one mesh isn't completely healthy so send over both
+                            ArrayList<AbstractManet> available = new ArrayList<>(3);
+                            if ((wifiManet != null) && (wifiManet.getStatus() == Status.CONNECTED))
+                                available.add(wifiManet);
+                            if ((btManet != null) && (btManet.getStatus() == Status.CONNECTED))
+                                available.add(btManet);
+                            if ((sdrManet != null) && (sdrManet.getStatus() == Status.CONNECTED))
+                                available.add(sdrManet);
+                            if (available.isEmpty()) {
+                                //no mesh is completely healthy so send over everything that might get through
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    send(wifiManet, packet);
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
-                                if (sdrGood)
-                                    sdrManet.burst(packet);
+                                    send(btManet, packet);
+                                if (sdrManet != null)
+                                    send(sdrManet, packet);
+                            } else {
+                                for (AbstractManet manet : transportScheduler.schedule(packet, available)) {
+                                    send(manet, packet);
+                                }
                             }
                         } else {
                             if ((preferredTransport == null) || (preferredTransport == TransportPreference.ALL)) {
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    send(wifiManet, packet);
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
+                                    send(btManet, packet);
                                 if ((sdrManet != null))
-                                    sdrManet.burst(packet);
+                                    send(sdrManet, packet);
                             } else if (preferredTransport == TransportPreference.WIFI) {
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    send(wifiManet, packet);
                                 else {
                                     if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                        btManet.burst(packet);
+                                        send(btManet, packet);
                                     else if (sdrManet != null)
-                                        sdrManet.burst(packet);
+                                        send(sdrManet, packet);
                                 }
                             } else if (preferredTransport == TransportPreference.BLUETOOTH) {
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
+                                    send(btManet, packet);
                                 else {
                                     if (wifiManet != null)
-                                        wifiManet.burst(packet);
+                                        send(wifiManet, packet);
                                     else if (sdrManet != null)
-                                        sdrManet.burst(packet);
+                                        send(sdrManet, packet);
                                 }
                             } else if (preferredTransport == TransportPreference.SDR) {
                                 if (sdrManet != null)
-                                    sdrManet.burst(packet);
+                                    send(sdrManet, packet);
                                 else {
                                     if (wifiManet != null)
-                                        wifiManet.burst(packet);
+                                        send(wifiManet, packet);
                                     else if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                        btManet.burst(packet);
+                                        send(btManet, packet);
                                 }
                             }
                         }
@@ -642,6 +621,27 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
         }
     }
 
+    /**
+     * Sends the packet over a MANET and records it for the link quality estimates
+     * @param manet
+     * @param packet
+     * @throws ManetException
+     */
+    private void send(AbstractManet manet, AbstractPacket packet) throws ManetException {
+        manet.burst(packet);
+        LinkQuality.getInstance().onSent(manet.getTransport(), packet.getSize());
+    }
+
+    /**
+     * Sets the scheduler used to pick which MANETs a packet is sent over when the caller
+     * has no preference
+     * @param scheduler
+     */
+    public void setTransportScheduler(TransportScheduler scheduler) {
+        if (scheduler != null)
+            transportScheduler = scheduler;
+    }
+
     private void evaluateMeshStatus() {
         SqAnDevice.FullMeshCapability currentStatus = SqAnDevice.getFullMeshStatus();
         if (currentStatus != meshStatus) {
@@ -678,9 +678,24 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                 if (sdrManet != null)
                     sdrManet.executePeriodicTasks();
                 SqAnDevice.updateDeviceRoutePreferences();
+                sampleLinkQuality();
+                HeaderCompressor.getInstance().evictIdle();
             });
     }
 
+    /**
+     * Updates the link quality estimates with how much each MANET has waiting to be sent
+     */
+    private void sampleLinkQuality() {
+        LinkQuality quality = LinkQuality.getInstance();
+        if (wifiManet != null)
+            quality.sample(wifiManet.getTransport(), wifiManet.getQueuedBytes());
+        if (btManet != null)
+            quality.sample(btManet.getTransport(), btManet.getQueuedBytes());
+        if (sdrManet != null)
+            quality.sample(sdrManet.getTransport(), sdrManet.getQueuedBytes());
+    }
+
     /**
      * Request received over IPC to transmit data
      * @param packet
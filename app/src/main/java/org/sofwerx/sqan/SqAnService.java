@@ -30,7 +30,7 @@ import org.sofwerx.sqan.manet.common.issues.AbstractManetIssue;
 import org.sofwerx.sqan.manet.common.issues.SqAnAppIssue;
 import org.sofwerx.sqan.manet.common.issues.WiFiInUseIssue;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
-import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatEncoder;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
 import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
@@ -39,6 +39,7 @@ import org.sofwerx.sqan.receivers.ConnectivityReceiver;
 import org.sofwerx.sqan.receivers.PowerReceiver;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.vpn.HeaderCompressor;
 import org.sofwerx.sqan.vpn.SqAnVpnService;
 import org.sofwerx.sqandr.util.ContinuityGapSAR;
 
@@ -51,11 +52,10 @@ import java.util.ArrayList;
 public class SqAnService extends Service implements LocationService.LocationUpdateListener {
     public static final int REQUEST_ENABLE_VPN = 421;
     private final static long CLEANUP_DELAY = 1000l * 1l; //time to wait before completing shutdown
-    private final static long MAX_INTERVAL_BETWEEN_COMMS = 1000l * 7l;
     private final static long INTERVAL_BETWEEN_DEVICES_CLEANUP = 1000l * 15l;
     private final static long INTERVAL_BETWEEN_HEALTH_CHECK = 1000l * 60l;
     private final static long MIN_TIME_BETWEEN_HEARTBEATS = 1000l * 1l;
-    private final static long MAX_TIME_BETWEEN_HEARTBEATS = 1000l * 7l;
+    private final static long MAX_TIME_BETWEEN_HEARTBEATS = 1000l * 15l; //interval once the mesh has been stable for a while; keeps two heartbeats inside SqAnDevice.TIME_TO_STALE/2
     public final static String ACTION_STOP = "STOP";
     public final static String EXTRA_KEEP_ACTIVITY = "keepActivity";
     private final static int SQAN_NOTIFICATION_ID = 60;
@@ -77,11 +77,10 @@ public class SqAnService extends Service implements LocationService.LocationUpda
     private ManetOps manetOps;
     private Status lastNotifiedStatus = Status.OFF; //the last status provided in a notification (used to prevent the notifications from firing multiple times when there is no meaningful status change)
     private int numDevicesInLastNotification = 0;
-    private long lastPositiveOutgoingComms = Long.MIN_VALUE;
-    private int lastHeartbeatLevel = 0;
     private long nextDevicesCleanup = Long.MIN_VALUE;
     private long nextAvailableHeartbeat = Long.MIN_VALUE; //prevent multiple heartbeats from firing in close succession
     private long nextMandatoryHeartbeat = Long.MIN_VALUE;
+    private final HeartbeatEncoder heartbeats = new HeartbeatEncoder(MIN_TIME_BETWEEN_HEARTBEATS,MAX_TIME_BETWEEN_HEARTBEATS);
     private long nextHealthCheck = Long.MIN_VALUE;
     private LocationService locationService;
     private SqAnVpnService vpnService;
@@ -235,42 +234,28 @@ public class SqAnService extends Service implements LocationService.LocationUpda
         //TODO make any adjustments to the meshes based on health
     }
 
-    public void onPositiveComms() {
-        lastPositiveOutgoingComms = System.currentTimeMillis();
-    }
-
     public void requestHeartbeat() { requestHeartbeat(false); }
 
+    /**
+     * Sends a heartbeat if one is due; heartbeats come more often right after this device's
+     * links change and less often while they are stable (see HeartbeatEncoder)
+     * @param force true == send a full heartbeat now
+     */
     public void requestHeartbeat(boolean force) {
         if (force) {
-            burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
+            heartbeats.requestKeyframe();
+            burst(heartbeats.next(Config.getThisDevice()));
+            nextMandatoryHeartbeat = System.currentTimeMillis() + heartbeats.getInterval();
             return;
         }
-        if ((System.currentTimeMillis() > lastPositiveOutgoingComms + MAX_INTERVAL_BETWEEN_COMMS) || (System.currentTimeMillis() > nextMandatoryHeartbeat)) {
+        if ((System.currentTimeMillis() > nextMandatoryHeartbeat) || heartbeats.isTopologyChanged()) {
             if (System.currentTimeMillis() < nextAvailableHeartbeat) {
                 Log.d(Config.TAG,"A heartbeat was just requested so this heartbeat request is being skipped.");
                 return;
             }
             nextAvailableHeartbeat = System.currentTimeMillis() + MIN_TIME_BETWEEN_HEARTBEATS;
-            nextMandatoryHeartbeat = System.currentTimeMillis() + MAX_TIME_BETWEEN_HEARTBEATS;
-            //if (lastHeartbeatLevel == 0)
-                burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
-            /*if (lastHeartbeatLevel == 1) {
-                //FIXME PingPackets arent working
-                //ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
-                //if ((devices != null) && !devices.isEmpty()) {
-                //    //randomly distribute ping requests
-                //    int index = random.nextInt(devices.size());
-                //    SqAnDevice device = devices.get(index);
-                //    if (device.isActive())
-                //        burst(new PingPacket(Config.getThisDevice().getUUID(),device.getUUID()));
-                //}
-            } */
-            //else
-            //    burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.BASIC));
-            lastHeartbeatLevel++;
-            if (lastHeartbeatLevel > 2)
-                lastHeartbeatLevel = 0;
+            burst(heartbeats.next(Config.getThisDevice()));
+            nextMandatoryHeartbeat = System.currentTimeMillis() + heartbeats.getInterval();
         } else
             Log.d(Config.TAG,"SqAnService.requestHeartbeat(), but no heartbeat needed right now");
     }
@@ -673,8 +658,20 @@ public class SqAnService extends Service implements LocationService.LocationUpda
 
     public void onRxVpnPacket(VpnPacket packet) {
         if (packet != null) {
-            if (vpnService != null)
-                vpnService.onReceived(packet.getData());
+            if (vpnService != null) {
+                ArrayList<byte[]> ipPackets = packet.getIpPackets();
+                for (int i=0;i<ipPackets.size();i++) {
+                    byte[] ipPacket = ipPackets.get(i);
+                    if (packet.isCompressed(i)) {
+                        ipPacket = HeaderCompressor.getInstance().decompress(packet.getOrigin(),ipPacket);
+                        if (ipPacket == null) {
+                            Log.d(Config.TAG,"Compressed VPN packet from "+packet.getOrigin()+" dropped as its header context is not known yet");
+                            continue;
+                        }
+                    }
+                    vpnService.onReceived(ipPacket);
+                }
+            }
             else {
                 missedVpnPacketCount++;
                 if (missedVpnPacketCount == 2)
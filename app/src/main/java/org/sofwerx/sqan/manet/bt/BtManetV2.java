@@ -28,6 +28,7 @@ import org.sofwerx.sqan.manet.common.Status;
 import org.sofwerx.sqan.manet.common.TeammateConnectionPlanner;
 import org.sofwerx.sqan.manet.common.issues.WiFiIssue;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.scheduler.LinkQuality;
 import org.sofwerx.sqan.util.CommsLog;
 
 import java.io.IOException;
@@ -100,10 +101,12 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
 
     @Override
     public boolean isCongested() {
-        //FIXME
-        return false;
+        return BTSocket.isCongested();
     }
 
+    @Override
+    public long getQueuedBytes() { return BTSocket.getQueuedBytes(); }
+
     @Override
     public void setNewNodesAllowed(boolean newNodesAllowed) {
         //TODO
@@ -194,7 +197,7 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
             }
         }
         Log.d(TAG,"Bursting "+packet.getClass().getSimpleName());
-        burst(packet.toByteArray(), packet.getSqAnDestination(), packet.getOrigin());
+        burst(Core.getLinkFeatures().encode(packet,packet.getSqAnDestination()), packet.getSqAnDestination(), packet.getOrigin());
         if (listener != null)
             listener.onTx(packet);
     }
@@ -229,6 +232,8 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
 
     @Override
     protected void onDeviceLost(SqAnDevice device, boolean directConnection) {
+        if (device != null)
+            Core.getLinkFeatures().forget(device.getUUID());
         //TODO
     }
 
@@ -314,6 +319,7 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
             //TODO
             return;
         }
+        Core.getLinkFeatures().onReceived(packet);
         onReceived(packet);
     }
 
@@ -325,5 +331,6 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
     @Override
     public void onPacketDropped() {
         CommsLog.log(CommsLog.Entry.Category.PROBLEM,"Error parsing data, packet dropped");
+        LinkQuality.getInstance().onDropped(getTransport());
     }
 }
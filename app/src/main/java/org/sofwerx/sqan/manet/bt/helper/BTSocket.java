@@ -10,6 +10,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
@@ -20,11 +21,14 @@ import org.sofwerx.sqan.SavedTeammate;
 import org.sofwerx.sqan.manet.common.MacAddress;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.issues.PacketDropIssue;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketDropException;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.NetUtil;
 
@@ -52,6 +56,8 @@ public class BTSocket {
     private long lastConnectInbound = Long.MIN_VALUE;
     private long lastConnectOutbound = Long.MIN_VALUE;
     private static AtomicInteger poolCount = new AtomicInteger(0);
+    private static AtomicLong queuedBytes = new AtomicLong(0l);
+    private final AtomicInteger pending = new AtomicInteger(0); //packets waiting to be written to this socket
 
     public SqAnDevice setDeviceIfNull(SqAnDevice device) {
         if (this.device == null) {
@@ -133,6 +139,12 @@ public class BTSocket {
         return poolCount.get() > POOL_WARNING_SIZE;
     }
 
+    /**
+     * Gets the number of bytes waiting to be written across all BT sockets
+     * @return
+     */
+    public static long getQueuedBytes() { return queuedBytes.get(); }
+
     public void startConnections() {
         try {
             try {
@@ -205,6 +217,17 @@ public class BTSocket {
         return false;
     }
 
+    /**
+     * Gets the SqAN ID of the device on the other end for metrics
+     * @return
+     */
+    private int getNeighbor() {
+        SqAnDevice other = device;
+        if (other == null)
+            return PacketMetrics.UNKNOWN_NEIGHBOR;
+        return other.getUUID();
+    }
+
     public SqAnDevice getDevice() {
         return device;
     }
@@ -243,8 +266,10 @@ public class BTSocket {
                             else {
                                 Log.d(TAG, getLogHeader() + " readPacketData returned " + data.length + "b");
                                 lastConnectInbound = System.currentTimeMillis();
-                                final AbstractPacket packet = AbstractPacket.newFromBytes(data);
+                                PacketMetrics.getInstance().onReceived(TransportPreference.BLUETOOTH,getNeighbor(),data.length);
+                                final AbstractPacket packet = AbstractPacket.readFrom(ByteBuffer.wrap(data));
                                 if (packet == null) {
+                                    PacketMetrics.getInstance().onDropped(TransportPreference.BLUETOOTH,getNeighbor(),PacketMetrics.DropReason.UNDECODABLE);
                                     if (readListener != null)
                                         readListener.onError(new IOException("Unable to processPacketAndNotifyManet Packet"));
                                 } else {
@@ -257,7 +282,7 @@ public class BTSocket {
                                         mReadListener.onSuccess(packet);
                                     final int hopCount = packet.getCurrentHopCount()+1;
                                     PacketHeader.setHopCount(hopCount,data);
-                                    if ((hopCount <= SqAnDevice.getActiveConnections())) {
+                                    if ((hopCount <= SqAnDevice.getActiveConnections()) && !Core.getRelayFilter().isDuplicate(packet)) {
 
                                         //relay logic
 
@@ -277,10 +302,15 @@ public class BTSocket {
                                             }
                                             ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
                                             if (devices != null) {
+                                                //only follow the routing table when its next hop is a BT neighbor; otherwise the route leaves BT somewhere else so fall back to the hop counts
+                                                final int nextHop = RoutingTable.getInstance().getNextHop(packet.getSqAnDestination());
+                                                final boolean routed = (nextHop != RoutingTable.NO_ROUTE) && Core.isDeviceConnected(nextHop);
                                                 for (SqAnDevice tgt : devices) {
                                                     if (tgt.getUUID() != packet.getOrigin()) { //avoid circular reporting
                                                         if (tgt.getHopsAway() == 0) { //for directly connected devices
-                                                            if ((hopCount <= tgt.getHopsToDevice(packet.getOrigin())) //when our hop count is same or better
+                                                            if (routed && !RoutingTable.getInstance().isOnPath(packet.getSqAnDestination(),tgt.getUUID()))
+                                                                CommsLog.log(CommsLog.Entry.Category.COMMS, getLogHeader() + " is not relaying (as client) " + packet.getClass().getSimpleName() +"(origin " + packet.getOrigin()+", " + hopCount + " hops) to "+tgt.getCallsign()+" ("+tgt.getUUID()+") [not on the route to "+packet.getSqAnDestination()+"]");
+                                                            else if ((hopCount <= tgt.getHopsToDevice(packet.getOrigin())) //when our hop count is same or better
                                                                     || (tgt.getActiveRelays() < 2)) { //or when this is the target's only connection
                                                                 CommsLog.log(CommsLog.Entry.Category.COMMS, getLogHeader() + " relaying (as client) " + packet.getClass().getSimpleName() +"(origin " + packet.getOrigin()+", " + hopCount + " hops) to "+tgt.getCallsign()+" ("+tgt.getUUID()+")");
                                                                 tgt.setLastForward();
@@ -297,6 +327,7 @@ public class BTSocket {
                                 }
                             }
                         } catch (PacketDropException e) {
+                            PacketMetrics.getInstance().onDropped(TransportPreference.BLUETOOTH,getNeighbor(),PacketMetrics.DropReason.CORRUPT);
                             if (device != null)
                                 device.addIssue(new PacketDropIssue());
                             Log.e(TAG, getLogHeader()+" read error: " + e.getMessage());
@@ -428,6 +459,10 @@ public class BTSocket {
             }
         }
         poolCount.incrementAndGet();
+        final int size = (data == null)?0:data.length;
+        final long queued = System.nanoTime();
+        queuedBytes.addAndGet(size);
+        PacketMetrics.getInstance().setQueueDepth(TransportPreference.BLUETOOTH,getNeighbor(),pending.incrementAndGet());
         writeThread.execute(() -> {
             try {
                 if (data == null)
@@ -444,7 +479,9 @@ public class BTSocket {
                 byte checksum = NetUtil.getChecksum(data);
                 outStream.write(checksum);
                 lastConnectOutbound = System.currentTimeMillis();
+                PacketMetrics.getInstance().onSent(TransportPreference.BLUETOOTH,getNeighbor(),size,queued);
             } catch (IOException e) {
+                PacketMetrics.getInstance().onDropped(TransportPreference.BLUETOOTH,getNeighbor(),PacketMetrics.DropReason.WRITE_ERROR);
                 Log.d(TAG, getLogHeader()+" writeThread error: "+e.getMessage());
                 if (e != null) {
                     String message = e.getMessage();
@@ -454,6 +491,8 @@ public class BTSocket {
                     }
                 }
             } finally {
+                queuedBytes.addAndGet(-size);
+                PacketMetrics.getInstance().setQueueDepth(TransportPreference.BLUETOOTH,getNeighbor(),pending.decrementAndGet());
                 if (poolCount.decrementAndGet() > POOL_WARNING_SIZE)
                     CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Warning, BTSocket write queue is "+poolCount.get());
             }
@@ -18,10 +18,13 @@ import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.manet.bt.Discovery;
+import org.sofwerx.sqan.manet.common.DuplicateFilter;
+import org.sofwerx.sqan.manet.common.LinkFeatures;
 import org.sofwerx.sqan.manet.common.MacAddress;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.PayloadCodec;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.CommsLog;
 
@@ -40,6 +43,20 @@ public class Core {
     private static volatile boolean listeningIsOn;
     private static volatile boolean connectingNow;
     private static volatile ReadListener readListener;
+    private static final DuplicateFilter relayFilter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY,DuplicateFilter.DEFAULT_EXPIRY);
+    private static final LinkFeatures linkFeatures = new LinkFeatures("Bluetooth",true,true,PayloadCodec.LEVEL_STRONG);
+
+    /**
+     * Gets the filter that keeps the same packet from being relayed over BT more than once
+     * @return
+     */
+    public static DuplicateFilter getRelayFilter() { return relayFilter; }
+
+    /**
+     * Gets the optional header features negotiated with each BT neighbor
+     * @return
+     */
+    public static LinkFeatures getLinkFeatures() { return linkFeatures; }
 
     /**
      * Create a secure BT socket and connect to a remote BT device (server).
@@ -196,8 +213,13 @@ public class Core {
                                     } else
                                         CommsLog.log(CommsLog.Entry.Category.COMMS,"BT socket #"+socket.getBtSocketIdNum()+" sending "+data.length+"b to "+socket.getDevice().getUUID());
                                     if (useThisManet) {
-                                        socket.write(data);
-                                        sent = true;
+                                        byte[] adapted = linkFeatures.adapt(data,socket.getDevice().getUUID());
+                                        if (adapted == null)
+                                            Log.w(TAG, "Unable to re-encode " + data.length + "b for BT socket #" + socket.getBtSocketIdNum() + "; skipped");
+                                        else {
+                                            socket.write(adapted);
+                                            sent = true;
+                                        }
                                     }
                                 } else
                                     Log.d(TAG, "Skipping " + data.length + "b burst over BT socket #" + socket.getBtSocketIdNum() + " (packet destined for spokes only)");
@@ -525,6 +547,21 @@ public class Core {
         }
     }
 
+    /**
+     * Is this device directly connected over an active BT socket
+     * @param uuid
+     * @return
+     */
+    public static boolean isDeviceConnected(int uuid) {
+        synchronized (allSockets) {
+            for (BTSocket socket : allSockets) {
+                if (socket.isActive() && (socket.getDevice() != null) && (socket.getDevice().getUUID() == uuid))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Is this MAC address already connected
      * @param mac
@@ -12,11 +12,15 @@ import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
 import org.sofwerx.sqan.manet.bt.BtManetV2;
 import org.sofwerx.sqan.manet.common.issues.WiFiIssue;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.DisconnectingPacket;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.PingPacket;
+import org.sofwerx.sqan.manet.common.scheduler.LinkQuality;
+import org.sofwerx.sqan.manet.common.scheduler.ReorderBuffer;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.manet.nearbycon.NearbyConnectionsManet;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.SegmentTool;
@@ -213,11 +217,13 @@ public abstract class AbstractManet {
             Log.d(Config.TAG, "Empty packet received over " + getClass().getSimpleName());
             return;
         }
+        LinkQuality.getInstance().onReceived(getTransport());
         if ((packet.getOrigin() == Config.getThisDevice().getUUID()) && !(packet instanceof PingPacket)) {
             Log.d(Config.TAG,"Circular reporting detected - dropping packet");
             return;
         }
         if ((packet instanceof HeartbeatPacket) && !packet.isValid()) {
+            PacketMetrics.getInstance().onDropped(getTransport(),PacketMetrics.getNeighbor(packet),PacketMetrics.DropReason.CORRUPT);
             Log.d(Config.TAG,"Invalid heartbeat packet dropped from onReceived");
             return;
         }
@@ -242,6 +248,7 @@ public abstract class AbstractManet {
                     }
                 } else {
                     device.addLatencyMeasurement(pingPacket.getLatency());
+                    LinkQuality.getInstance().onRoundTrip(device.getUUID(),getTransport(),pingPacket.getLatency());
                     CommsLog.log(CommsLog.Entry.Category.COMMS, "Received ping (round trip latency " + Long.toString(pingPacket.getLatency()) + "ms) from " + device.getUUID());
                 }
                 device.setLastEntry(new CommsLog.Entry(CommsLog.Entry.Category.STATUS, "Operating normally"));
@@ -292,8 +299,20 @@ public abstract class AbstractManet {
                 teammate.update(device.getCallsign(), System.currentTimeMillis());
             if (listener != null)
                 listener.updateDeviceUi(device);
-            if (listener != null)
-                listener.onRx(packet);
+            if (DuplicateFilter.getDeliveryFilter().isDuplicate(packet)) {
+                PacketMetrics.getInstance().onDropped(getTransport(),PacketMetrics.getNeighbor(packet),PacketMetrics.DropReason.DUPLICATE);
+                Log.d(Config.TAG,packet.getClass().getSimpleName()+" from "+packet.getOrigin()+" already received; not passing it on again");
+            } else if (listener != null) {
+                if (packet.isAdminPacket()) {
+                    PacketMetrics.getInstance().onDelivered(getTransport(),packet);
+                    listener.onRx(packet);
+                } else //data may have been striped across transports so put it back in order first
+                    ReorderBuffer.getInstance().deliver(packet,getTransport(),inOrder -> {
+                        PacketMetrics.getInstance().onDelivered(getTransport(),inOrder);
+                        if (listener != null)
+                            listener.onRx(inOrder);
+                    });
+            }
             if (packet instanceof DisconnectingPacket)
                 onDeviceLost(device, packet.isDirectFromOrigin());
         }
@@ -302,6 +321,24 @@ public abstract class AbstractManet {
     protected abstract boolean isBluetoothBased();
     protected abstract boolean isWiFiBased();
 
+    /**
+     * Gets the kind of transport this MANET uses
+     * @return WIFI, BLUETOOTH or SDR
+     */
+    public TransportPreference getTransport() {
+        if (isWiFiBased())
+            return TransportPreference.WIFI;
+        if (isBluetoothBased())
+            return TransportPreference.BLUETOOTH;
+        return TransportPreference.SDR;
+    }
+
+    /**
+     * Gets the number of bytes waiting to be sent by this MANET
+     * @return
+     */
+    public long getQueuedBytes() { return 0l; }
+
     /**
      * This device's hub (if this MANET is in a spoke/hub architecture) has become disconnected
      */
@@ -0,0 +1,210 @@
+package org.sofwerx.sqan.manet.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the devices known to SqAN along with indexes on each of the IDs a device can be found
+ * by (UUID, VPN IPv4 address, network ID, BT MAC, WiFi Direct MAC and WiFi Aware ID) so that
+ * the per-packet lookups do not have to scan the whole list.
+ *
+ * Lookups and the device list are lock-free; the list is copy-on-write so anyone iterating it
+ * (like the UI) always sees a consistent snapshot. Changes are serialized on the registry and
+ * are expected to be far less frequent than lookups.
+ */
+class DeviceRegistry {
+    private final Object lock = new Object();
+    private volatile ArrayList<SqAnDevice> snapshot = null; //never changed once published
+    private final Map<Integer, SqAnDevice> byUuid = new ConcurrentHashMap<>();
+    private final Map<Integer, SqAnDevice> byIpv4 = new ConcurrentHashMap<>();
+    private final Map<Integer, SqAnDevice> byAwareId = new ConcurrentHashMap<>();
+    private final Map<String, SqAnDevice> byNetworkId = new ConcurrentHashMap<>();
+    private final Map<String, SqAnDevice> byBtMac = new ConcurrentHashMap<>();
+    private final Map<String, SqAnDevice> byDirectMac = new ConcurrentHashMap<>();
+    private final IdentityHashMap<SqAnDevice, Keys> keys = new IdentityHashMap<>();
+    private final ArrayDeque<SqAnDevice[]> suspectedDuplicates = new ArrayDeque<>();
+
+    /**
+     * The keys a device is currently indexed under, so the old keys can be dropped when the
+     * device's IDs change
+     */
+    private static class Keys {
+        private Integer uuid;
+        private Integer ipv4;
+        private Integer awareId;
+        private String networkId;
+        private String btMac;
+        private String directMac;
+    }
+
+    /**
+     * Gets the current list of devices. The list must not be changed by the caller.
+     * @return the devices (or null if there are none)
+     */
+    ArrayList<SqAnDevice> getSnapshot() { return snapshot; }
+
+    /**
+     * Adds a device to the registry
+     * @param device
+     */
+    void add(SqAnDevice device) {
+        synchronized (lock) {
+            if (keys.containsKey(device))
+                return;
+            ArrayList<SqAnDevice> next = (snapshot == null)?new ArrayList<>():new ArrayList<>(snapshot);
+            next.add(device);
+            keys.put(device,new Keys());
+            index(device);
+            snapshot = next;
+        }
+    }
+
+    /**
+     * Removes a device from the registry
+     * @param device
+     */
+    void remove(SqAnDevice device) {
+        if (device == null)
+            return;
+        synchronized (lock) {
+            Keys old = keys.remove(device);
+            if (old == null)
+                return;
+            unindex(device,old);
+            ArrayList<SqAnDevice> next = new ArrayList<>(snapshot);
+            next.remove(device);
+            snapshot = next.isEmpty()?null:next;
+        }
+    }
+
+    /**
+     * Removes every device
+     */
+    void clear() {
+        synchronized (lock) {
+            keys.clear();
+            byUuid.clear();
+            byIpv4.clear();
+            byAwareId.clear();
+            byNetworkId.clear();
+            byBtMac.clear();
+            byDirectMac.clear();
+            suspectedDuplicates.clear();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Replaces the device list (with the same devices) in a new order
+     * @param ordered
+     */
+    void reorder(ArrayList<SqAnDevice> ordered) {
+        synchronized (lock) {
+            ArrayList<SqAnDevice> next = new ArrayList<>(ordered.size());
+            for (SqAnDevice device:ordered) {
+                if (keys.containsKey(device))
+                    next.add(device);
+            }
+            snapshot = next.isEmpty()?null:next;
+        }
+    }
+
+    /**
+     * Updates the indexes after one of the device's IDs has changed
+     * @param device
+     */
+    void reindex(SqAnDevice device) {
+        if (device == null)
+            return;
+        synchronized (lock) {
+            Keys old = keys.get(device);
+            if (old == null)
+                return; //not in the registry
+            unindex(device,old);
+            index(device);
+        }
+    }
+
+    private void index(SqAnDevice device) {
+        Keys k = keys.get(device);
+        k.uuid = put(byUuid,device.getUUID(),device);
+        k.ipv4 = put(byIpv4,device.getVpnIpv4AddressInt(),device);
+        int awareId = device.getTransientAwareId();
+        k.awareId = (awareId == SqAnDevice.UNASSIGNED_UUID)?null:put(byAwareId,awareId,device);
+        String networkId = device.getNetworkId();
+        k.networkId = ((networkId == null) || (networkId.length() < 2))?null:put(byNetworkId,networkId.toLowerCase(),device);
+        k.btMac = put(byBtMac,toKey(device.getBluetoothMac()),device);
+        k.directMac = put(byDirectMac,toKey(device.getWiFiDirectMac()),device);
+    }
+
+    private void unindex(SqAnDevice device, Keys k) {
+        removeIfMapped(byUuid,k.uuid,device);
+        removeIfMapped(byIpv4,k.ipv4,device);
+        removeIfMapped(byAwareId,k.awareId,device);
+        removeIfMapped(byNetworkId,k.networkId,device);
+        removeIfMapped(byBtMac,k.btMac,device);
+        removeIfMapped(byDirectMac,k.directMac,device);
+    }
+
+    /**
+     * Indexes the device under the key; if another device already has that key and looks to
+     * be the same device, the pair is queued up for dedup()
+     */
+    private <K> K put(Map<K, SqAnDevice> index, K key, SqAnDevice device) {
+        if (key == null)
+            return null;
+        SqAnDevice previous = index.put(key,device);
+        if ((previous != null) && (previous != device) && device.isSame(previous))
+            suspectedDuplicates.add(new SqAnDevice[] {previous,device});
+        return key;
+    }
+
+    private static <K> void removeIfMapped(Map<K, SqAnDevice> index, K key, SqAnDevice device) {
+        if (key != null)
+            index.remove(key,device);
+    }
+
+    private static String toKey(MacAddress mac) {
+        if ((mac == null) || !mac.isValid())
+            return null;
+        return mac.toString();
+    }
+
+    /**
+     * Gets the next pair of devices that were found to share an ID since the last call
+     * @return the pair (or null if there are no more suspected duplicates)
+     */
+    SqAnDevice[] pollSuspectedDuplicate() {
+        synchronized (lock) {
+            while (!suspectedDuplicates.isEmpty()) {
+                SqAnDevice[] pair = suspectedDuplicates.poll();
+                if (keys.containsKey(pair[0]) && keys.containsKey(pair[1]) && pair[0].isSame(pair[1]))
+                    return pair;
+            }
+        }
+        return null;
+    }
+
+    SqAnDevice findByUuid(int uuid) { return byUuid.get(uuid); }
+    SqAnDevice findByIpv4(int ip) { return byIpv4.get(ip); }
+    SqAnDevice findByAwareId(int id) { return byAwareId.get(id); }
+
+    SqAnDevice findByNetworkId(String networkId) {
+        if (networkId == null)
+            return null;
+        return byNetworkId.get(networkId.toLowerCase());
+    }
+
+    SqAnDevice findByBtMac(MacAddress mac) {
+        String key = toKey(mac);
+        return (key == null)?null:byBtMac.get(key);
+    }
+
+    SqAnDevice findByDirectMac(MacAddress mac) {
+        String key = toKey(mac);
+        return (key == null)?null:byDirectMac.get(key);
+    }
+}
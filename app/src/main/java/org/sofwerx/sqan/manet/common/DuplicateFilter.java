@@ -0,0 +1,150 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock-free set of recently seen message IDs (see AbstractPacket.getMessageId())
+ * used to catch the same packet arriving more than once, either over several transports or
+ * over several paths through the mesh. Entries expire after a set time so a slot can be
+ * reused; when every slot a message ID could use is still fresh, the oldest of them is replaced.
+ *
+ * Message IDs are only unique for origins that advertise SqAnDevice.CAPABILITY_UNIQUE_TIME;
+ * older builds can stamp different packets with the same timestamp, so their packets are never
+ * treated as duplicates.
+ *
+ * Concurrent updates are not serialized, so two threads racing on the same slot may lose one of
+ * the entries. That only costs an occasional duplicate getting through, never a dropped packet.
+ */
+public class DuplicateFilter {
+    public final static int DEFAULT_CAPACITY = 4096;
+    public final static long DEFAULT_EXPIRY = 1000l * 15l;
+    private final static int PROBES = 4;
+    private final static DuplicateFilter deliveryFilter = new DuplicateFilter(DEFAULT_CAPACITY,DEFAULT_EXPIRY);
+    private final AtomicLongArray ids;
+    private final AtomicLongArray seen;
+    private final int mask;
+    private final long expiry;
+    private final AtomicLong checks = new AtomicLong(0l);
+    private final AtomicLong hits = new AtomicLong(0l);
+
+    /**
+     * @param capacity number of message IDs to track (rounded up to a power of two)
+     * @param expiry how long (in ms) a message ID is remembered
+     */
+    public DuplicateFilter(int capacity, long expiry) {
+        int size = Integer.highestOneBit(Math.max(PROBES,capacity-1)) << 1;
+        ids = new AtomicLongArray(size);
+        seen = new AtomicLongArray(size);
+        mask = size - 1;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Gets the filter shared by all of the MANETs for packets delivered to this device, so that
+     * a packet that arrives over several transports is only passed on once
+     * @return
+     */
+    public static DuplicateFilter getDeliveryFilter() { return deliveryFilter; }
+
+    /**
+     * Checks if this origin gives each of its packets a unique message ID
+     * @param origin
+     * @return true == packets from this origin can be checked for duplicates
+     */
+    public static boolean isTracked(int origin) {
+        SqAnDevice thisDevice = Config.getThisDevice();
+        if ((thisDevice != null) && (thisDevice.getUUID() == origin))
+            return true;
+        SqAnDevice device = SqAnDevice.findByUUID(origin);
+        return (device != null) && device.hasCapability(SqAnDevice.CAPABILITY_UNIQUE_TIME);
+    }
+
+    /**
+     * Checks if this packet has been seen recently and marks it as seen
+     * @param packet
+     * @return true == this packet is a duplicate
+     */
+    public boolean isDuplicate(AbstractPacket packet) {
+        if ((packet == null) || !isTracked(packet.getOrigin()))
+            return false;
+        return isDuplicate(packet.getMessageId());
+    }
+
+    /**
+     * Checks if the packet in this buffer (with its encoded header starting at the buffer's
+     * current position) has been seen recently and marks it as seen, without moving the
+     * buffer's position
+     * @param data
+     * @return true == this packet is a duplicate
+     */
+    public boolean isDuplicate(ByteBuffer data) {
+        if ((data == null) || !isTracked(PacketHeader.peekOriginUUID(data)))
+            return false;
+        return isDuplicate(PacketHeader.peekMessageId(data));
+    }
+
+    /**
+     * Checks if this message ID has been seen recently and marks it as seen
+     * @param messageId
+     * @return true == this message ID is a duplicate
+     */
+    public boolean isDuplicate(long messageId) {
+        checks.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long stale = now - expiry;
+        int start = hash(messageId);
+        int oldest = start;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i=0;i<PROBES;i++) {
+            int slot = (start + i) & mask;
+            long time = seen.get(slot);
+            if ((time > stale) && (ids.get(slot) == messageId)) {
+                seen.set(slot,now);
+                hits.incrementAndGet();
+                return true;
+            }
+            if (time < oldestTime) {
+                oldestTime = time;
+                oldest = slot;
+            }
+        }
+        ids.set(oldest,messageId); //ID first so a reader never pairs a fresh time with an evicted ID
+        seen.set(oldest,now);
+        return false;
+    }
+
+    private int hash(long messageId) {
+        long h = messageId * 0x9E3779B97F4A7C15l;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Gets the number of message IDs checked
+     * @return
+     */
+    public long getCheckCount() { return checks.get(); }
+
+    /**
+     * Gets the number of duplicates found
+     * @return
+     */
+    public long getHitCount() { return hits.get(); }
+
+    /**
+     * Gets the fraction of checked message IDs that were duplicates
+     * @return 0 to 1
+     */
+    public float getHitRate() {
+        long count = checks.get();
+        if (count == 0l)
+            return 0f;
+        return (float)hits.get()/(float)count;
+    }
+}
@@ -0,0 +1,190 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketEncoding;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.PayloadCodec;
+import org.sofwerx.sqan.util.CommsLog;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Negotiates optional packet header features (the CRC32C extension and the compact v2 header)
+ * with each neighbor on a link. Every feature starts off for a neighbor and is only turned on
+ * once that neighbor has shown it understands it, either by advertising it in its heartbeat
+ * (see SqAnDevice.CAPABILITY_CRC and CAPABILITY_COMPACT) or by sending a packet directly that
+ * uses it. A heartbeat without the feature (i.e. from an older build) turns it back off.
+ *
+ * A packet for a single neighbor is encoded with whatever that neighbor understands; anything
+ * else only uses the features that every neighbor heard from recently understands. The features
+ * are handed to the encoder (see PacketEncoding) rather than set on the packet, so the same
+ * packet can go out over other links unchanged.
+ *
+ * Payload compression rides on the v2 header (which carries its flag), at a level chosen per
+ * link: fast where bandwidth is plentiful, strong on slow links like Bluetooth and SDR.
+ */
+public class LinkFeatures {
+    private final static long NEIGHBOR_TIMEOUT = SqAnDevice.TIME_TO_STALE;
+    private final String name;
+    private final boolean crcOffered;
+    private final boolean compactOffered;
+    private final int compressionLevel;
+    private final ConcurrentHashMap<Integer,Neighbor> neighbors = new ConcurrentHashMap<>();
+
+    private static class Neighbor {
+        private volatile boolean crc = false;
+        private volatile boolean compact = false;
+        private volatile long lastHeard = 0l;
+    }
+
+    /**
+     * @param name name of the link used for logging
+     * @param crcOffered true == this side will use the CRC extension with neighbors that understand it
+     * @param compactOffered true == this side will use the v2 header with neighbors that understand it
+     */
+    public LinkFeatures(String name, boolean crcOffered, boolean compactOffered) {
+        this(name,crcOffered,compactOffered,PayloadCodec.LEVEL_NONE);
+    }
+
+    /**
+     * @param name name of the link used for logging
+     * @param crcOffered true == this side will use the CRC extension with neighbors that understand it
+     * @param compactOffered true == this side will use the v2 header with neighbors that understand it
+     * @param compressionLevel how hard to compress packet bodies while the v2 header is in use
+     *                         (PayloadCodec.LEVEL_NONE, LEVEL_FAST or LEVEL_STRONG)
+     */
+    public LinkFeatures(String name, boolean crcOffered, boolean compactOffered, int compressionLevel) {
+        this.name = name;
+        this.crcOffered = crcOffered;
+        this.compactOffered = compactOffered;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Updates what is known about the neighbor that sent a packet over this link. Only packets
+     * that came directly from the origin are considered since relayed packets reflect
+     * some other link.
+     * @param packet
+     */
+    public void onReceived(AbstractPacket packet) {
+        if ((packet == null) || !packet.isDirectFromOrigin())
+            return;
+        final int uuid = packet.getOrigin();
+        Neighbor neighbor = neighbors.get(uuid);
+        if (neighbor == null) {
+            Neighbor added = new Neighbor();
+            neighbor = neighbors.putIfAbsent(uuid,added);
+            if (neighbor == null)
+                neighbor = added;
+        }
+        neighbor.lastHeard = System.currentTimeMillis();
+        boolean crc = neighbor.crc || packet.isCrcEnabled();
+        boolean compact = neighbor.compact || packet.isCompact();
+        if ((packet instanceof HeartbeatPacket) && !((HeartbeatPacket)packet).isDelta()) {
+            SqAnDevice device = ((HeartbeatPacket)packet).getDevice();
+            if (device != null) {
+                crc = device.hasCapability(SqAnDevice.CAPABILITY_CRC);
+                compact = device.hasCapability(SqAnDevice.CAPABILITY_COMPACT);
+            }
+        }
+        if (crc != neighbor.crc) {
+            neighbor.crc = crc;
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION, name+" packet CRC "+(crc?"understood":"not understood")+" by "+uuid);
+        }
+        if (compact != neighbor.compact) {
+            neighbor.compact = compact;
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION, name+" compact headers "+(compact?"understood":"not understood")+" by "+uuid);
+        }
+    }
+
+    /**
+     * Forgets a neighbor (i.e. once it is no longer reachable over this link)
+     * @param uuid
+     */
+    public void forget(int uuid) {
+        neighbors.remove(uuid);
+    }
+
+    /**
+     * Gets the features to encode a packet with
+     * @param destination the one neighbor the packet is for (or PacketHeader.BROADCAST_ADDRESS if
+     *                    every neighbor on this link will get it)
+     * @return
+     */
+    public PacketEncoding getEncoding(int destination) {
+        boolean crc = crcOffered;
+        boolean compact = compactOffered;
+        if (!crc && !compact)
+            return PacketEncoding.PLAIN;
+        final long staleTime = System.currentTimeMillis() - NEIGHBOR_TIMEOUT;
+        Neighbor neighbor = (destination == PacketHeader.BROADCAST_ADDRESS)?null:neighbors.get(destination);
+        if ((neighbor != null) && (neighbor.lastHeard > staleTime)) {
+            crc = crc && neighbor.crc;
+            compact = compact && neighbor.compact;
+        } else {
+            boolean any = false;
+            Iterator<Map.Entry<Integer,Neighbor>> iterator = neighbors.entrySet().iterator();
+            while (iterator.hasNext() && (crc || compact)) {
+                Neighbor next = iterator.next().getValue();
+                if (next.lastHeard < staleTime) {
+                    iterator.remove();
+                    continue;
+                }
+                any = true;
+                crc = crc && next.crc;
+                compact = compact && next.compact;
+            }
+            if (!any)
+                return PacketEncoding.PLAIN;
+        }
+        return getEncoding(crc,compact);
+    }
+
+    private PacketEncoding getEncoding(boolean crc, boolean compact) {
+        if (!crc && !compact)
+            return PacketEncoding.PLAIN;
+        return new PacketEncoding(crc,compact,(compact && Config.isPayloadCompressionEnabled())?compressionLevel:PayloadCodec.LEVEL_NONE);
+    }
+
+    /**
+     * Encodes the packet for the neighbors that will get it
+     * @param packet
+     * @param destination the one neighbor the packet is for (or PacketHeader.BROADCAST_ADDRESS if
+     *                    every neighbor on this link will get it)
+     * @return
+     */
+    public byte[] encode(AbstractPacket packet, int destination) {
+        if (packet == null)
+            return null;
+        return packet.toByteArray(getEncoding(destination));
+    }
+
+    /**
+     * Checks that an already encoded packet (i.e. one being relayed as is) only uses features
+     * the neighbor understands, re-encoding it if it does not
+     * @param data the encoded packet
+     * @param uuid the neighbor it is being sent to
+     * @return data, a re-encoded copy, or null if data needed to be re-encoded but could not be decoded
+     */
+    public byte[] adapt(byte[] data, int uuid) {
+        if ((data == null) || (data.length < PacketHeader.MIN_SIZE))
+            return data;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        boolean crc = PacketHeader.peekCrcEnabled(buf);
+        boolean compact = PacketHeader.peekCompact(buf);
+        if (!crc && !compact)
+            return data;
+        PacketEncoding encoding = getEncoding(uuid);
+        if ((!crc || encoding.isCrcEnabled()) && (!compact || encoding.isCompact()))
+            return data;
+        AbstractPacket packet = AbstractPacket.newFromBytes(data);
+        if (packet == null)
+            return null;
+        return packet.toByteArray(encoding);
+    }
+}
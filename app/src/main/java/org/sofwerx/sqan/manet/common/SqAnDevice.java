@@ -14,6 +14,8 @@ import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
 import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
 import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
+import org.sofwerx.sqan.manet.common.scheduler.ReorderBuffer;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.ui.DeviceSummary;
@@ -41,7 +43,7 @@ public class SqAnDevice {
     private final static int MAX_RELAY_CONNECTIONS_TO_SAVE = 20;
     public final static byte[] NO_IPV6_ADDRESS = {(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0};
     private static AtomicInteger nextUnassignedUUID = new AtomicInteger(-1);
-    private static ArrayList<SqAnDevice> devices;
+    private final static DeviceRegistry registry = new DeviceRegistry();
     private int uuid; //this is the persistent SqAN ID for this device
     private String callsign; //this is the callsign which also acts as the domain name for this device
     private String uuidExtended; //this is the persistent ID for this device used solely to look for conflicts
@@ -58,6 +60,7 @@ public class SqAnDevice {
     private CommsLog.Entry lastEntry = null;
     private SpaceTime lastLocation = null;
     private boolean backhaulConnection = false;
+    private volatile byte capabilities = 0; //optional protocol features this device has advertised (see CAPABILITY_CRC)
     private DeviceSummary uiSummary = null;
     private NodeRole roleWiFi = NodeRole.OFF;
     private NodeRole roleBT = NodeRole.OFF;
@@ -197,6 +200,7 @@ public class SqAnDevice {
     public SqAnDevice(int uuid, String networkId) {
         this(uuid);
         this.networkId = networkId;
+        registry.reindex(this); //init() already indexed this device without its network ID
     }
 
     public SqAnDevice(SavedTeammate teammate) {
@@ -205,6 +209,7 @@ public class SqAnDevice {
             networkId = teammate.getNetID();
             callsign = teammate.getCallsign();
             bluetoothMac = teammate.getBluetoothMac();
+            registry.reindex(this); //init() already indexed this device without its network ID or MAC
         }
     }
 
@@ -214,15 +219,9 @@ public class SqAnDevice {
      * @return null == not found
      */
     public static SqAnDevice findByTransientAwareID(int id) {
-        if ((id != UNASSIGNED_UUID) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device:devices) {
-                    if ((device != null) && (device.transientAwareId == id))
-                        return device;
-                }
-            }
-        }
-        return null;
+        if (id == UNASSIGNED_UUID)
+            return null;
+        return registry.findByAwareId(id);
     }
 
     /*public Inet6Address getIpv6() { return ipv6; }
@@ -251,6 +250,7 @@ public class SqAnDevice {
     }
 
     public static boolean hasAtLeastOneActiveConnection() {
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
         if (devices != null) {
             for (SqAnDevice device:devices) {
                 if ((device != null) && device.isActive())
@@ -274,16 +274,7 @@ public class SqAnDevice {
      * @return null == no device is in conflict
      */
     public SqAnDevice getConflictingDevice() {
-        int thisIpv4Address = getVpnIpv4AddressInt();
-        if ((devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if (device.getVpnIpv4AddressInt() == thisIpv4Address)
-                        return device;
-                }
-            }
-        }
-        return null;
+        return registry.findByIpv4(getVpnIpv4AddressInt());
     }
 
     /**
@@ -292,15 +283,14 @@ public class SqAnDevice {
      */
     public static ArrayList<SqAnDevice> getWiFiAwareDevices() {
         ArrayList<SqAnDevice> awareDevices = null;
-        if ((devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if (device != null) {
-                        if (((device.awareMac != null) && device.awareMac.isValid()) || (device.awareServerIp != null)) {
-                            if (awareDevices == null)
-                                awareDevices = new ArrayList<>();
-                            awareDevices.add(device);
-                        }
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices != null) {
+            for (SqAnDevice device : devices) {
+                if (device != null) {
+                    if (((device.awareMac != null) && device.awareMac.isValid()) || (device.awareServerIp != null)) {
+                        if (awareDevices == null)
+                            awareDevices = new ArrayList<>();
+                        awareDevices.add(device);
                     }
                 }
             }
@@ -324,9 +314,9 @@ public class SqAnDevice {
         if ((mac == null) || !BluetoothAdapter.checkBluetoothAddress(mac)) {
             Log.e(Config.TAG,"MAC address "+mac+" is not a valid Bluetooth mac address");
             bluetoothMac = null;
-            return;
-        }
-        bluetoothMac = new MacAddress(mac);
+        } else
+            bluetoothMac = new MacAddress(mac);
+        registry.reindex(this);
     }
 
     /**
@@ -341,6 +331,8 @@ public class SqAnDevice {
 
     public void setHopsAway(int hops, boolean directBt, boolean directWiFi) { setHopsAway(hops, directBt, directWiFi,directWiFiHiPerf); }
     public void setHopsAway(int hops, boolean directBt, boolean directWiFi, boolean directWiFiHiPerf) {
+        if ((hops == 0) != (hopsAway == 0))
+            RoutingTable.getInstance().invalidate();
         hopsAway = hops;
         if (hopsAway == 0) {
             this.directBt = directBt;
@@ -349,8 +341,20 @@ public class SqAnDevice {
         }
     }
 
+    /**
+     * Is this device directly connected via SDR
+     * @return
+     */
+    public boolean isDirectSDR() {
+        if (hopsAway == 0)
+            return directSDR;
+        return false;
+    }
+
     public void setDirectSDR(boolean directSDR) {
         this.directSDR = directSDR;
+        if (hopsAway != 0)
+            RoutingTable.getInstance().invalidate();
         hopsAway = 0;
     }
 
@@ -472,6 +476,7 @@ public class SqAnDevice {
      */
     public void setTransientAwareId(int id) {
         transientAwareId = id;
+        registry.reindex(this);
     }
     public int getTransientAwareId() { return transientAwareId; }
 
@@ -484,11 +489,7 @@ public class SqAnDevice {
             return;
         CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Device "+other.getLabel()+" is being merged into "+getLabel());
         update(other);
-        if ((devices == null) || devices.isEmpty())
-            return; //this should not happen
-        synchronized (devices) {
-            devices.remove(other);
-        }
+        registry.remove(other);
     }
 
     public void addIssue(AbstractCommsIssue issue) {
@@ -509,6 +510,24 @@ public class SqAnDevice {
         return packetsDropped;
     }
 
+    /**
+     * Gets the number of packets from this device that were dropped since a given time
+     * @param time
+     * @return
+     */
+    public int getPacketsDroppedSince(long time) {
+        if (issues == null)
+            return 0;
+        int count = 0;
+        synchronized (issues) {
+            for (AbstractCommsIssue issue:issues) {
+                if ((issue instanceof PacketDropIssue) && (issue.getTime() >= time))
+                    count++;
+            }
+        }
+        return count;
+    }
+
     public MacAddress getAwareMac() {
         return awareMac;
     }
@@ -569,7 +588,11 @@ public class SqAnDevice {
 
     public void clearAwareServerIp() { awareServerIp = null; }
 
-    public void setWiFiDirectMac(MacAddress mac) { directMac = mac; }
+    public void setWiFiDirectMac(MacAddress mac) {
+        directMac = mac;
+        registry.reindex(this);
+    }
+    public MacAddress getWiFiDirectMac() { return directMac; }
 
     public VpnForwardValue getIpForwardAddress(final byte index) {
         if (forwarding != null) {
@@ -684,35 +707,24 @@ public class SqAnDevice {
      * @return the device that absorbed a duplicate device
      */
     public static SqAnDevice dedup() {
-        if ((devices == null) || (devices.size() < 2))
+        SqAnDevice[] pair = registry.pollSuspectedDuplicate();
+        if (pair == null)
             return null;
-
-        boolean scanNeeded = true;
-        int inspectingIndex = 0;
-        while ((inspectingIndex < devices.size()) && scanNeeded) {
-            SqAnDevice inspecting = devices.get(inspectingIndex);
-            for (int i=0;i<devices.size();i++) {
-                if (i != inspectingIndex) {
-                    SqAnDevice other = devices.get(i);
-                    if (inspecting.isSame(other)) {
-                        if (inspecting.lastConnect > other.lastConnect) {
-                            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + other.uuid + " merged into " + inspecting.uuid);
-                            devices.remove(i);
-                            inspecting.update(other);
-                            return inspecting;
-                        } else {
-                            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + inspecting.uuid + " merged into " + other.uuid);
-                            devices.remove(inspectingIndex);
-                            other.update(inspecting);
-                            return other;
-                        }
-                    }
-                }
-            }
-            inspectingIndex++;
+        SqAnDevice inspecting = pair[0];
+        SqAnDevice other = pair[1];
+        if (inspecting.lastConnect > other.lastConnect) {
+            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + other.uuid + " merged into " + inspecting.uuid);
+            registry.remove(other);
+            inspecting.update(other);
+            registry.reindex(inspecting);
+            return inspecting;
+        } else {
+            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + inspecting.uuid + " merged into " + other.uuid);
+            registry.remove(inspecting);
+            other.update(inspecting);
+            registry.reindex(other);
+            return other;
         }
-
-        return null;
     }
 
     private void cullOldRelayConnections() {
@@ -749,7 +761,8 @@ public class SqAnDevice {
      * logic will probably need a bit of tweaking
      */
     public static void updateDeviceRoutePreferences() {
-        if ((devices == null) || devices.isEmpty())
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices == null)
             return;
         for (SqAnDevice device:devices) {
             if (device.isActive()) {
@@ -853,58 +866,35 @@ public class SqAnDevice {
      * @return
      */
     public static boolean cullOldDevices() {
-        if ((devices == null) || devices.isEmpty())
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices == null)
             return false;
 
         boolean culled = false;
-        synchronized (devices) {
-            int i = 0;
-            while (i < devices.size()) {
-                SqAnDevice device = devices.get(i);
-                if (device == null)
-                    devices.remove(i);
-                else {
-                    if (!device.isActive()) {
-                        SavedTeammate teammate = Config.getTeammate(device.getUUID());
-                        if ((teammate != null) && !teammate.isEnabled()) {
-                            devices.remove(i);
-                            CommsLog.log(CommsLog.Entry.Category.STATUS, "Removed disabled device " + device.getLabel());
-                            continue;
-                        }
-                    }
-                    if ((device.lastConnect > 0l) && (System.currentTimeMillis() > device.lastConnect + TIME_TO_STALE))
-                        device.setStatus(Status.STALE);
-                    device.cullOldRelayConnections();
-                    i++;
-                }
-            }
-
-            //move inactive devices to the bottom
-            boolean passed = false;
-            while (!passed) {
-                passed = true;
-                for (int a=devices.size()-1;a>0;a--) {
-                    final SqAnDevice devA = devices.get(a);
-                    final SqAnDevice devA1 = devices.get(a-1);
-                    if (devA == null) {
-                        devices.remove(a);
-                        passed = false;
-                        break;
-                    }
-                    if (devA1 == null) {
-                        devices.remove(a-1);
-                        passed = false;
-                        break;
-                    }
-                    if (!devA1.isActive() && devA.isActive()) {
-                        devices.set(a-1,devA);
-                        devices.set(a,devA1);
-                        passed = false;
-                    }
+        ArrayList<SqAnDevice> active = new ArrayList<>(devices.size());
+        ArrayList<SqAnDevice> inactive = new ArrayList<>();
+        for (SqAnDevice device:devices) {
+            if (!device.isActive()) {
+                SavedTeammate teammate = Config.getTeammate(device.getUUID());
+                if ((teammate != null) && !teammate.isEnabled()) {
+                    registry.remove(device);
+                    CommsLog.log(CommsLog.Entry.Category.STATUS, "Removed disabled device " + device.getLabel());
+                    continue;
                 }
             }
+            if ((device.lastConnect > 0l) && (System.currentTimeMillis() > device.lastConnect + TIME_TO_STALE))
+                device.setStatus(Status.STALE);
+            device.cullOldRelayConnections();
+            if (device.isActive())
+                active.add(device);
+            else
+                inactive.add(device);
         }
 
+        //move inactive devices to the bottom
+        active.addAll(inactive);
+        registry.reorder(active);
+
         return culled;
     }
 
@@ -925,7 +915,11 @@ public class SqAnDevice {
      * very rare exception of a collision with another device
      * @param uuid
      */
-    public void setUUID(int uuid) { this.uuid = uuid; }
+    public void setUUID(int uuid) {
+        this.uuid = uuid;
+        ipV4Address = Integer.MIN_VALUE; //derived from the UUID
+        registry.reindex(this);
+    }
 
     /**
      * Gets the device specific UUID; this is (almost always) immutable and singularly
@@ -994,6 +988,24 @@ public class SqAnDevice {
      */
     public void setBackhaulConnection(boolean backhaulConnection) { this.backhaulConnection = backhaulConnection; }
 
+    /**
+     * Sets the optional protocol features this device understands; these are advertised in the
+     * flags byte of its heartbeat
+     * @param capabilities CAPABILITY_CRC, CAPABILITY_COMPACT, CAPABILITY_VPN_BUNDLE,
+     *                     CAPABILITY_VPN_HEADER_COMPRESSION, CAPABILITY_UNIQUE_TIME,
+     *                     CAPABILITY_HEARTBEAT_DELTA or a combination of them
+     */
+    public void setCapabilities(byte capabilities) { this.capabilities = (byte)(capabilities & MASK_CAPABILITIES); }
+
+    /**
+     * Has this device advertised that it understands an optional protocol feature
+     * @param capability CAPABILITY_CRC, CAPABILITY_COMPACT, CAPABILITY_VPN_BUNDLE,
+     *                   CAPABILITY_VPN_HEADER_COMPRESSION, CAPABILITY_UNIQUE_TIME or
+     *                   CAPABILITY_HEARTBEAT_DELTA
+     * @return
+     */
+    public boolean hasCapability(byte capability) { return (capabilities & capability) == capability; }
+
     public void setUiSummary(DeviceSummary deviceSummary) { this.uiSummary = deviceSummary; }
     public DeviceSummary getUiSummary() { return uiSummary; }
 
@@ -1147,7 +1159,8 @@ public class SqAnDevice {
      * @return
      */
     public static List<String> getActiveDevicesNetworkIds() {
-        if ((devices == null) || devices.isEmpty())
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices == null)
             return null;
         ArrayList<String> active = new ArrayList<>();
         for (SqAnDevice device:devices) {
@@ -1174,8 +1187,9 @@ public class SqAnDevice {
             return;
         if ((uuid < 0) && (other.uuid > 0)) {
             uuid = other.uuid;
+            ipV4Address = Integer.MIN_VALUE; //derived from the UUID
             SqAnDevice existingDevice = findByUUID(other.getUUID());
-            if (existingDevice != null) {
+            if ((existingDevice != null) && (existingDevice != this)) {
                 CommsLog.log(CommsLog.Entry.Category.STATUS,existingDevice.networkId+" was a duplicate; information merged into "+uuid);
                 remove(existingDevice);
             }
@@ -1198,6 +1212,7 @@ public class SqAnDevice {
             relays = other.relays;
         else
             cullOldRelayConnections();
+        registry.reindex(this);
         if (uuid > 0) {
             if (other.uuid < 0) {
                 CommsLog.log(CommsLog.Entry.Category.STATUS,other.networkId+" was a duplicate; information merged into "+uuid);
@@ -1207,19 +1222,35 @@ public class SqAnDevice {
     }
 
     public static int getActiveConnections() {
-        if ((devices == null) || devices.isEmpty())
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices == null)
             return 0;
         int sum = 0;
-        synchronized (devices) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && (device.status == Status.CONNECTED))
-                    sum++;
-            }
+        for (SqAnDevice device : devices) {
+            if ((device != null) && (device.status == Status.CONNECTED))
+                sum++;
         }
 
         return sum;
     }
 
+    /**
+     * Have all of the known devices advertised that they understand an optional protocol
+     * feature (i.e. so that it can be used in a broadcast)
+     * @param capability
+     * @return
+     */
+    public static boolean isCapabilityShared(byte capability) {
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
+        if (devices == null)
+            return true;
+        for (SqAnDevice device : devices) {
+            if ((device != null) && !device.hasCapability(capability))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Are these two SqAnDevices actually the same device (can have different settings, but resolve to the same unique device)
      * @param other
@@ -1252,12 +1283,13 @@ public class SqAnDevice {
         return this.uuid == uuid;
     }
 
+    /**
+     * Gets a snapshot of the current devices. The snapshot does not change, so callers can
+     * iterate it without locking, but it must not be modified.
+     * @return the devices (or null if there are none)
+     */
     public static ArrayList<SqAnDevice> getDevices() {
-        if (devices == null)
-            return null;
-        if (devices.isEmpty())
-            devices = null;
-        return devices;
+        return registry.getSnapshot();
     }
 
     /**
@@ -1299,18 +1331,10 @@ public class SqAnDevice {
             return false;
         if ((Config.getThisDevice() != null) && (device.getUUID() == Config.getThisDevice().getUUID())) //dont add our own device
             return false;
-        if (devices == null) {
-            devices = new ArrayList<>();
-            devices.add(device);
-            CommsLog.log(CommsLog.Entry.Category.CONNECTION,device.getLabel()+" was added to the list of devices.");
-            return true;
-        }
         SqAnDevice existing = find(device);
         if (existing == null) {
-            synchronized (devices) {
-                devices.add(device);
-                CommsLog.log(CommsLog.Entry.Category.CONNECTION,device.getLabel()+" was added to the list of devices.");
-            }
+            registry.add(device);
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION,device.getLabel()+" was added to the list of devices.");
             return true;
         } else {
             existing.update(device);
@@ -1340,16 +1364,14 @@ public class SqAnDevice {
     }
 
     public static void remove(final SqAnDevice device) {
-        if (devices != null) {
-            devices.remove(device);
-            if (devices.isEmpty())
-                devices = null;
-        }
+        registry.remove(device);
     }
 
     public static void clearAllDevices(ManetType type) {
         //TODO ignoring the type for now
-        devices = null;
+        registry.clear();
+        RoutingTable.getInstance().clear();
+        ReorderBuffer.getInstance().clear();
     }
 
     /**
@@ -1358,14 +1380,21 @@ public class SqAnDevice {
      * @return the device (or null if the device is not found)
      */
     public static SqAnDevice find(final SqAnDevice other) {
-        if ((other != null) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if ((device != null) && device.isSame(other))
-                        return device;
-                }
-            }
-        }
+        if (other == null)
+            return null;
+        SqAnDevice device = findByUUID(other.uuid);
+        if (device != null)
+            return device;
+        //otherwise the only other ways to match are the ones used by isSame()
+        device = findByNetworkID(other.networkId);
+        if ((device != null) && device.isSame(other))
+            return device;
+        device = findByBtMac(other.bluetoothMac);
+        if ((device != null) && device.isSame(other))
+            return device;
+        device = findByTransientAwareID(other.transientAwareId);
+        if ((device != null) && device.isSame(other))
+            return device;
         return null;
     }
 
@@ -1375,13 +1404,9 @@ public class SqAnDevice {
      * @return the device (or null if UUID is not found)
      */
     public static SqAnDevice findByUUID(int uuid) {
-        if ((devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && device.isSame(uuid))
-                    return device;
-            }
-        }
-        return null;
+        if (uuid == UNASSIGNED_UUID)
+            return null;
+        return registry.findByUuid(uuid);
     }
 
     /**
@@ -1390,13 +1415,7 @@ public class SqAnDevice {
      * @return the device (or null if UUID is not found)
      */
     public static SqAnDevice findByIpv4IP(int ip) {
-        if ((devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && (ip == device.getVpnIpv4AddressInt()))
-                    return device;
-            }
-        }
-        return null;
+        return registry.findByIpv4(ip);
     }
 
     /**
@@ -1405,13 +1424,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByNetworkID(String networkId) {
-        if ((networkId != null) && (devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && (device.networkId != null) && device.networkId.equalsIgnoreCase(networkId))
-                    return device;
-            }
-        }
-        return null;
+        return registry.findByNetworkId(networkId);
     }
 
     /**
@@ -1430,15 +1443,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByBtMac(MacAddress mac) {
-        if ((mac != null) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if ((device != null) && (mac.isEqual(device.bluetoothMac)))
-                        return device;
-                }
-            }
-        }
-        return null;
+        return registry.findByBtMac(mac);
     }
 
     /**
@@ -1454,15 +1459,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByWiFiDirectMac(MacAddress mac) {
-        if ((mac != null) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if ((device != null) && (mac.isEqual(device.directMac)))
-                        return device;
-                }
-            }
-        }
-        return null;
+        return registry.findByDirectMac(mac);
     }
 
     /**
@@ -1494,26 +1491,25 @@ public class SqAnDevice {
      * @return overall mesh status
      */
     public static FullMeshCapability getFullMeshStatus() {
+        ArrayList<SqAnDevice> devices = registry.getSnapshot();
         if (devices != null) {
-            synchronized (devices) {
-                boolean anyActive = false;
-                boolean allActive = true;
-                for (SqAnDevice device : devices) {
-                    if (device != null) {
-                        if (device.status == Status.CONNECTED)
-                            anyActive = true;
-                        else
-                            allActive = false;
-                    }
-                }
-
-                if (anyActive) {
-                    if (allActive)
-                        return FullMeshCapability.UP;
+            boolean anyActive = false;
+            boolean allActive = true;
+            for (SqAnDevice device : devices) {
+                if (device != null) {
+                    if (device.status == Status.CONNECTED)
+                        anyActive = true;
                     else
-                        return FullMeshCapability.DEGRADED;
+                        allActive = false;
                 }
             }
+
+            if (anyActive) {
+                if (allActive)
+                    return FullMeshCapability.UP;
+                else
+                    return FullMeshCapability.DEGRADED;
+            }
         }
         return FullMeshCapability.DOWN;
     }
@@ -1556,7 +1552,10 @@ public class SqAnDevice {
     public String getNetworkId() {
         return networkId;
     }
-    public void setNetworkId(String networkId) { this.networkId = networkId; }
+    public void setNetworkId(String networkId) {
+        this.networkId = networkId;
+        registry.reindex(this);
+    }
     public void setDirectWiFiHiPerf(boolean isWifiInHighPerformanceMode) { this.directWiFiHiPerf = isWifiInHighPerformanceMode; }
     public void setConnected(int hopsAway, boolean directBt, boolean directWiFi) { setConnected(hopsAway, directBt, directWiFi,directWiFiHiPerf); }
     public void setConnected(int hopsAway, boolean directBt, boolean directWiFi, boolean directWiFiHiPerf) {
@@ -1736,21 +1735,25 @@ public class SqAnDevice {
 
     private final static byte MASK_NONE =         (byte)0b00000000;
     private final static byte MASK_BACKHAUL =     (byte)0b10000000;
-    private final static byte MASK_RESERVED_2 =   (byte)0b01000000;
-    private final static byte MASK_RESERVED_3 =   (byte)0b00100000;
-    private final static byte MASK_RESERVED_4 =   (byte)0b00010000;
-    private final static byte MASK_RESERVED_5 =   (byte)0b00001000;
-    private final static byte MASK_RESERVED_6 =   (byte)0b00000100;
-    private final static byte MASK_RESERVED_7 =   (byte)0b00000010;
+    public final static byte CAPABILITY_CRC =     (byte)0b01000000; //understands the CRC32C header extension
+    public final static byte CAPABILITY_COMPACT = (byte)0b00100000; //understands the compact v2 header (and compressed bodies)
+    public final static byte CAPABILITY_VPN_BUNDLE = (byte)0b00010000; //understands VpnPackets carrying several IP packets
+    public final static byte CAPABILITY_VPN_HEADER_COMPRESSION = (byte)0b00001000; //understands the compressed flag on bundled IP packet lengths
+    public final static byte CAPABILITY_UNIQUE_TIME = (byte)0b00000100; //stamps each packet with a timestamp no other packet from it shares
+    public final static byte CAPABILITY_HEARTBEAT_DELTA = (byte)0b00000010; //understands delta heartbeats (see HeartbeatEncoder)
     private final static byte MASK_RESERVED_8 =   (byte)0b00000001;
+    private final static byte MASK_CAPABILITIES = (byte)(CAPABILITY_CRC | CAPABILITY_COMPACT | CAPABILITY_VPN_BUNDLE | CAPABILITY_VPN_HEADER_COMPRESSION | CAPABILITY_UNIQUE_TIME | CAPABILITY_HEARTBEAT_DELTA);
+    public final static byte CAPABILITIES_THIS_BUILD = MASK_CAPABILITIES;
 
     public byte getFlags() {
         byte flags = backhaulConnection?MASK_BACKHAUL:MASK_NONE;
+        flags = (byte)(flags | capabilities);
 
         return flags;
     }
 
     public void parseFlags(byte data) {
         backhaulConnection = (MASK_BACKHAUL & data) == MASK_BACKHAUL;
+        capabilities = (byte)(data & MASK_CAPABILITIES);
     }
 }
@@ -5,6 +5,7 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.SavedTeammate;
 import org.sofwerx.sqan.manet.bt.helper.Core;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
 import org.sofwerx.sqan.util.CommsLog;
 
 import java.io.StringWriter;
@@ -115,38 +116,9 @@ public class TeammateConnectionPlanner {
             restructureTimes--;
         }
 
-        ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
-        if ((devices == null) || devices.isEmpty())
-            return prioritized;
-
-        boolean sorted = false;
-        int i;
-        while (!sorted) {
-            sorted = true;
-            i=1;
-            while (i < prioritized.size()) {
-                int idI = prioritized.get(i).getSqAnAddress();
-                int idI1 = prioritized.get(i-1).getSqAnAddress();
-                int minHopsI1 = Integer.MAX_VALUE;
-                int minHopsI = Integer.MAX_VALUE;
-                for (SqAnDevice device:devices) {
-                    int hopsI = device.getHopsToDevice(idI);
-                    int hopsI1 = device.getHopsToDevice(idI1);
-                    if (hopsI < minHopsI)
-                        minHopsI = hopsI;
-                    if (hopsI1 < minHopsI1)
-                        minHopsI1 = hopsI1;
-                }
-                if (minHopsI1<minHopsI) {
-                    SavedTeammate tmp = prioritized.get(i);
-                    prioritized.set(i,prioritized.get(i-1));
-                    prioritized.set(i-1,tmp);
-                    sorted = false;
-                    break;
-                }
-                i++;
-            }
-        }
+        //teammates that are furthest away (or unreachable) over the current mesh benefit most from a direct connection
+        final RoutingTable routing = RoutingTable.getInstance();
+        prioritized.sort((a, b) -> Integer.compare(routing.getHops(b.getSqAnAddress()),routing.getHops(a.getSqAnAddress())));
 
         StringWriter out = new StringWriter();
         if ((prioritized == null) || prioritized.isEmpty())
@@ -5,6 +5,12 @@ import org.sofwerx.sqan.util.StringUtil;
 public abstract class AbstractCommsIssue {
     protected long time = System.currentTimeMillis();
 
+    /**
+     * Gets when this issue occurred
+     * @return
+     */
+    public long getTime() { return time; }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
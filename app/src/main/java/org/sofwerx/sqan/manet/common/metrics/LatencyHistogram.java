@@ -0,0 +1,126 @@
+package org.sofwerx.sqan.manet.common.metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with buckets laid out like an HDR histogram: exact below 16us
+ * and then 8 buckets per power of two above that, so every value is recorded to within 12.5%
+ * across the whole range (up to about 19 hours) in a fixed 272 counters.
+ */
+public class LatencyHistogram {
+    private final static int LINEAR_BUCKETS = 16; //values below this are counted exactly
+    private final static int SUB_BUCKET_BITS = 3; //8 buckets per power of two
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAX_EXPONENT = 35;
+    private final static int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0l);
+    private final AtomicLong total = new AtomicLong(0l);
+    private final AtomicLong max = new AtomicLong(0l);
+
+    static int getBucket(long micros) {
+        if (micros < LINEAR_BUCKETS)
+            return (int)Math.max(0l,micros);
+        int exponent = Math.min(MAX_EXPONENT,63 - Long.numberOfLeadingZeros(micros));
+        if (exponent == MAX_EXPONENT)
+            micros = Math.min(micros,(2l << MAX_EXPONENT) - 1l);
+        int sub = (int)((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value that falls in a bucket
+     * @param bucket
+     * @return value in microseconds
+     */
+    static long getUpperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1l << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1l;
+    }
+
+    /**
+     * Records a latency
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0l)
+            micros = 0l;
+        counts.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while ((micros > current) && !max.compareAndSet(current,micros)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() { return count.get(); }
+
+    /**
+     * @return the largest latency recorded in microseconds
+     */
+    public long getMax() { return max.get(); }
+
+    /**
+     * @return the average latency in microseconds
+     */
+    public long getMean() {
+        long n = count.get();
+        if (n == 0l)
+            return 0l;
+        return total.get() / n;
+    }
+
+    /**
+     * Gets the latency that this fraction of the recorded values are at or below
+     * @param fraction 0 to 1 (i.e. 0.99 for the 99th percentile)
+     * @return latency in microseconds (the upper end of the bucket the percentile falls in)
+     */
+    public long getPercentile(double fraction) {
+        long n = 0l;
+        long[] snapshot = new long[BUCKETS];
+        for (int i=0;i<BUCKETS;i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0l)
+            return 0l;
+        long target = Math.max(1l,(long)Math.ceil(fraction * n));
+        long seen = 0l;
+        for (int i=0;i<BUCKETS;i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(getUpperBound(i),getMax());
+        }
+        return getMax();
+    }
+
+    public void clear() {
+        for (int i=0;i<BUCKETS;i++) {
+            counts.set(i,0l);
+        }
+        count.set(0l);
+        total.set(0l);
+        max.set(0l);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("count",getCount());
+        obj.put("meanUs",getMean());
+        obj.put("p50Us",getPercentile(0.5d));
+        obj.put("p90Us",getPercentile(0.9d));
+        obj.put("p99Us",getPercentile(0.99d));
+        obj.put("p999Us",getPercentile(0.999d));
+        obj.put("maxUs",getMax());
+        return obj;
+    }
+}
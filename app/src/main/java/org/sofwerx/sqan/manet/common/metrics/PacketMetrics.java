@@ -0,0 +1,205 @@
+package org.sofwerx.sqan.manet.common.metrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counters and latency histograms that every transport reports into, kept per
+ * transport and per neighbor: packets and bytes sent and received, drops by reason, the
+ * current queue depth, how long packets wait between being queued and going out on the wire
+ * (enqueue-to-wire) and how long received packets take between coming off the wire and being
+ * handed to the app (wire-to-delivery). A snapshot can be exported as JSON.
+ */
+public class PacketMetrics {
+    public final static int UNKNOWN_NEIGHBOR = 0; //used when the transport does not know which device is on the other end
+    private final static PacketMetrics instance = new PacketMetrics();
+    private final Map<Long, Link> links = new ConcurrentHashMap<>();
+    private volatile long since = System.currentTimeMillis();
+
+    public enum DropReason {
+        QUEUE_FULL, //the transport's write queue was full
+        CORRUPT, //failed a checksum or CRC check
+        UNDECODABLE, //the bytes could not be turned into a packet
+        DUPLICATE, //already received over another path
+        WRITE_ERROR, //the transport failed while sending
+        CLOSED, //still queued when the transport was shut down
+        TOO_LARGE //too big for the transport to send
+    }
+
+    private static class Link {
+        private final TransportPreference transport;
+        private final int neighbor;
+        private final AtomicLong txPackets = new AtomicLong(0l);
+        private final AtomicLong txBytes = new AtomicLong(0l);
+        private final AtomicLong rxPackets = new AtomicLong(0l);
+        private final AtomicLong rxBytes = new AtomicLong(0l);
+        private final EnumMap<DropReason, AtomicLong> drops = new EnumMap<>(DropReason.class);
+        private volatile int queueDepth = 0;
+        private final LatencyHistogram enqueueToWire = new LatencyHistogram();
+        private final LatencyHistogram wireToDelivery = new LatencyHistogram();
+
+        private Link(TransportPreference transport, int neighbor) {
+            this.transport = transport;
+            this.neighbor = neighbor;
+            for (DropReason reason:DropReason.values()) {
+                drops.put(reason,new AtomicLong(0l));
+            }
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("transport",transport.name());
+            obj.put("neighbor",neighbor);
+            obj.put("txPackets",txPackets.get());
+            obj.put("txBytes",txBytes.get());
+            obj.put("rxPackets",rxPackets.get());
+            obj.put("rxBytes",rxBytes.get());
+            JSONObject dropped = new JSONObject();
+            for (Map.Entry<DropReason, AtomicLong> entry:drops.entrySet()) {
+                dropped.put(entry.getKey().name(),entry.getValue().get());
+            }
+            obj.put("drops",dropped);
+            obj.put("queueDepth",queueDepth);
+            obj.put("enqueueToWire",enqueueToWire.toJson());
+            obj.put("wireToDelivery",wireToDelivery.toJson());
+            return obj;
+        }
+    }
+
+    public static PacketMetrics getInstance() { return instance; }
+
+    private Link get(TransportPreference transport, int neighbor) {
+        long key = ((long)neighbor << 8) | transport.ordinal();
+        Link link = links.get(key);
+        if (link == null) {
+            link = new Link(transport,neighbor);
+            Link existing = ((ConcurrentHashMap<Long, Link>)links).putIfAbsent(key,link);
+            if (existing != null)
+                link = existing;
+        }
+        return link;
+    }
+
+    private static long toMicros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000l;
+    }
+
+    /**
+     * Records a packet written to the wire
+     * @param transport
+     * @param neighbor
+     * @param bytes
+     * @param queuedNanos System.nanoTime() when the packet was queued (or 0 if not known)
+     */
+    public void onSent(TransportPreference transport, int neighbor, int bytes, long queuedNanos) {
+        if (transport == null)
+            return;
+        Link link = get(transport,neighbor);
+        link.txPackets.incrementAndGet();
+        link.txBytes.addAndGet(bytes);
+        if (queuedNanos != 0l)
+            link.enqueueToWire.record(toMicros(queuedNanos));
+    }
+
+    /**
+     * Records a packet read off the wire
+     * @param transport
+     * @param neighbor
+     * @param bytes
+     */
+    public void onReceived(TransportPreference transport, int neighbor, int bytes) {
+        if (transport == null)
+            return;
+        Link link = get(transport,neighbor);
+        link.rxPackets.incrementAndGet();
+        link.rxBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records a received packet being handed to the app
+     * @param transport
+     * @param packet
+     */
+    public void onDelivered(TransportPreference transport, AbstractPacket packet) {
+        if ((transport == null) || (packet == null) || (packet.getReceivedNanos() == 0l))
+            return;
+        get(transport,getNeighbor(packet)).wireToDelivery.record(toMicros(packet.getReceivedNanos()));
+    }
+
+    /**
+     * Records a packet that was dropped
+     * @param transport
+     * @param neighbor
+     * @param reason
+     */
+    public void onDropped(TransportPreference transport, int neighbor, DropReason reason) {
+        onDropped(transport,neighbor,reason,1l);
+    }
+
+    /**
+     * Records packets that were dropped
+     * @param transport
+     * @param neighbor
+     * @param reason
+     * @param packets
+     */
+    public void onDropped(TransportPreference transport, int neighbor, DropReason reason, long packets) {
+        if ((transport == null) || (reason == null) || (packets <= 0l))
+            return;
+        get(transport,neighbor).drops.get(reason).addAndGet(packets);
+    }
+
+    /**
+     * Records how many packets are currently waiting to be sent to a neighbor
+     * @param transport
+     * @param neighbor
+     * @param packets
+     */
+    public void setQueueDepth(TransportPreference transport, int neighbor, int packets) {
+        if (transport != null)
+            get(transport,neighbor).queueDepth = packets;
+    }
+
+    /**
+     * Gets the neighbor a received packet came directly from, if that can be told from the packet
+     * @param packet
+     * @return the origin if the packet was not relayed, otherwise UNKNOWN_NEIGHBOR
+     */
+    public static int getNeighbor(AbstractPacket packet) {
+        if ((packet != null) && packet.isDirectFromOrigin() && (packet.getOrigin() > 0))
+            return packet.getOrigin();
+        return UNKNOWN_NEIGHBOR;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void clear() {
+        links.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets a snapshot of everything recorded as JSON
+     * @return
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("since",since);
+        obj.put("time",System.currentTimeMillis());
+        JSONArray array = new JSONArray();
+        for (Link link:links.values()) {
+            array.put(link.toJson());
+        }
+        obj.put("links",array);
+        return obj;
+    }
+}
@@ -12,6 +12,9 @@ public abstract class AbstractPacket {
     //public final static int LARGE_PACKET_SIZE = BTSocket.MAX_PACKET_SIZE;
     protected PacketHeader packetHeader;
     protected boolean highPerformanceNeeded = false;
+    private int encodedLevel = -1; //compression level encodedBody was prepared for (-1 == not prepared yet)
+    private byte[] encodedBody; //compressed body (null if the body is sent as is)
+    private long receivedNanos = 0l; //System.nanoTime() when this packet was decoded off the wire (0 if it was created locally)
 
     public AbstractPacket(PacketHeader packetHeader) {
         if (packetHeader != null) {
@@ -26,15 +29,40 @@ public abstract class AbstractPacket {
         return packetHeader.getTime();
     }
 
+    /**
+     * Gets the sequence number of this packet: the low 32 bits of its header timestamp, which
+     * is unique per origin (so not a counter that increments by one)
+     * @return
+     */
+    public int getSequence() {
+        if (packetHeader == null)
+            return 0;
+        return packetHeader.getSequence();
+    }
+
+    /**
+     * Gets an ID for this message that is unique across the network (the origin combined with
+     * the packet's sequence number), useful for spotting duplicates. Only origins that advertise
+     * SqAnDevice.CAPABILITY_UNIQUE_TIME guarantee the ID is unique (see DuplicateFilter).
+     * @return
+     */
+    public long getMessageId() {
+        return ((long)getOrigin() << 32) | (getSequence() & 0xFFFFFFFFl);
+    }
+
     /**
      * Checks if the packet contains valid information (ie do the reported and calculated checksums
-     * match)
+     * match). Packets carrying the CRC32C extension are checked when they are decoded and are
+     * dropped there if the CRC does not match.
      * @return
      */
     public boolean isValid() {
         byte reportedChecksum = 0;
-        if (packetHeader != null)
+        if (packetHeader != null) {
+            if (packetHeader.isCrcEnabled())
+                return true;
             reportedChecksum = packetHeader.getChecksum();
+        }
         return ((reportedChecksum == 0) || ((byte)(PacketHeader.MASK_CHECKSUM & getChecksum()) == reportedChecksum));
     }
 
@@ -61,6 +89,21 @@ public abstract class AbstractPacket {
      */
     public boolean isHighPerformanceNeeded() { return highPerformanceNeeded; }
 
+    /**
+     * Marks this packet as part of a flow striped across several transports (see ReorderBuffer)
+     * @param striped
+     */
+    public void setStriped(boolean striped) {
+        if (packetHeader != null)
+            packetHeader.setStriped(striped);
+    }
+
+    /**
+     * Did the sender mark this packet as part of a flow striped across several transports
+     * @return
+     */
+    public boolean isStriped() { return (packetHeader != null) && packetHeader.isStriped(); }
+
     public int getCurrentHopCount() {
         if (packetHeader == null)
             return 0;
@@ -80,35 +123,57 @@ public abstract class AbstractPacket {
 
     //creates a new packet from the byte array
     public static AbstractPacket newFromBytes(byte[] bytes) {
-        try {
-            if ((bytes == null) || (bytes.length < PacketHeader.getSize())) {
-                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the byte array; byte array was not big enough to hold a header");
-            }
-            AbstractPacket packet = null;
-            ByteBuffer reader = ByteBuffer.wrap(bytes);
+        if ((bytes == null) || (bytes.length < PacketHeader.MIN_SIZE)) {
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the byte array; byte array was not big enough to hold a header");
+            return null;
+        }
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
 
-            byte[] headerBytes = new byte[PacketHeader.getSize()];
-            reader.get(headerBytes);
-            PacketHeader header = PacketHeader.newFromBytes(headerBytes);
+    /**
+     * Creates a new packet from the buffer, starting at the buffer's current position and
+     * consuming everything up to the buffer's limit. The packet does not keep a reference
+     * to the buffer, so the buffer can be reused as soon as this returns.
+     * @param in
+     * @return the packet (or null if the packet could not be decoded)
+     */
+    public static AbstractPacket readFrom(ByteBuffer in) {
+        return readFrom(in,false);
+    }
 
+    /**
+     * Creates a new packet from the buffer, starting at the buffer's current position and
+     * consuming everything up to the buffer's limit
+     * @param in
+     * @param verified true == the transport has already checked the packet's CRC (i.e. the
+     *                 FrameDecoder) so it is not checked again
+     * @return the packet (or null if the packet could not be decoded)
+     */
+    public static AbstractPacket readFrom(ByteBuffer in, boolean verified) {
+        try {
+            if (!verified && !PacketIntegrity.verify(in)) {
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Packet dropped as it failed its CRC check");
+                return null;
+            }
+            PacketHeader header = PacketHeader.readFrom(in);
             if (header == null) {
-                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet header from the byte array");
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet header from the buffer");
                 return null;
             }
 
-            packet = AbstractPacket.newFromHeader(header);
+            AbstractPacket packet = AbstractPacket.newFromHeader(header);
             if (packet == null) {
                 CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the packet header");
                 return null;
             }
 
-            int len = reader.remaining();
-            if (len > 0) {
-                byte[] packetBytes = new byte[len];
-                reader.get(packetBytes);
-                packet.parse(packetBytes);
+            if (in.hasRemaining()) {
+                if (header.isCompressed())
+                    packet.readBody(PayloadCodec.getInstance().decompress(in));
+                else
+                    packet.readBody(in);
             }
-            reader.clear();
+            packet.receivedNanos = System.nanoTime();
             return packet;
         } catch (Exception e) {
             return null;
@@ -117,11 +182,166 @@ public abstract class AbstractPacket {
 
     protected abstract byte getChecksum();
 
-    public byte[] toByteArray() {
-        if (packetHeader == null)
+    /**
+     * Was this packet received with the CRC32C header extension
+     * @return
+     */
+    public boolean isCrcEnabled() { return (packetHeader != null) && packetHeader.isCrcEnabled(); }
+
+    /**
+     * Was this packet received with the compact v2 header
+     * @return
+     */
+    public boolean isCompact() { return (packetHeader != null) && packetHeader.isCompact(); }
+
+    /**
+     * Is this a type of packet whose body is worth compressing
+     * @return
+     */
+    protected boolean isPayloadCompressible() { return false; }
+
+    /**
+     * Identifies the flow this packet belongs to so that flows that do not compress well can
+     * be skipped
+     * @return
+     */
+    protected long getFlowKey() {
+        return ((long)getType() << 32) | (getSqAnDestination() & 0xFFFFFFFFl);
+    }
+
+    /**
+     * Should be called whenever the body changes so that any compressed copy is discarded
+     */
+    protected void onBodyChanged() {
+        synchronized (this) {
+            encodedLevel = -1;
+            encodedBody = null;
+        }
+    }
+
+    /**
+     * Gets the body compressed for the encoding, compressing it if that has not already been
+     * done for the same level
+     * @param encoding
+     * @return the compressed body (or null if the body is sent as is)
+     */
+    private byte[] getEncodedBody(PacketEncoding encoding) {
+        int level = PayloadCodec.LEVEL_NONE;
+        if (encoding.isCompact() && isPayloadCompressible())
+            level = encoding.getCompressionLevel();
+        if (level == PayloadCodec.LEVEL_NONE)
             return null;
+        synchronized (this) {
+            if (level != encodedLevel) {
+                encodedLevel = level;
+                encodedBody = null;
+                int size = getBodySize();
+                if (size >= PayloadCodec.MIN_SIZE) {
+                    ByteBuffer body = ByteBuffer.allocate(size);
+                    writeBody(body);
+                    encodedBody = PayloadCodec.getInstance().compress(getFlowKey(),body.array(),level);
+                }
+            }
+            return encodedBody;
+        }
+    }
+
+    /**
+     * Gets the total size of this packet (header and body) in bytes when encoded without any of
+     * the optional features; this never compresses the body
+     * @return
+     */
+    public int getSize() {
+        if (packetHeader == null)
+            return 0;
+        return packetHeader.getEncodedSize() + getBodySize();
+    }
+
+    /**
+     * Gets the total size of this packet (header and body) in bytes when encoded with the
+     * features in encoding
+     * @param encoding
+     * @return
+     */
+    public int getSize(PacketEncoding encoding) {
+        if (packetHeader == null)
+            return 0;
+        byte[] body = getEncodedBody(encoding);
+        return packetHeader.getEncodedSize(encoding.isCrcEnabled(),encoding.isCompact()) + ((body == null)?getBodySize():body.length);
+    }
+
+    /**
+     * Gets the size of the body (everything after the header) in bytes
+     * @return
+     */
+    protected int getBodySize() { return 0; }
+
+    /**
+     * Writes the body (everything after the header) to the buffer
+     * @param out buffer with at least getBodySize() bytes remaining
+     */
+    protected void writeBody(ByteBuffer out) {}
+
+    /**
+     * Reads the body (everything after the header) from the buffer, from its current position
+     * up to its limit
+     * @param in
+     */
+    protected abstract void readBody(ByteBuffer in);
+
+    public void parse(byte[] bytes) {
+        if (bytes != null)
+            readBody(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Encodes this packet into the buffer at its current position without any of the optional
+     * features (i.e. for links that have not negotiated them)
+     * @param out buffer with at least getSize() bytes remaining
+     * @return the number of bytes written
+     */
+    public int writeTo(ByteBuffer out) { return writeTo(out,PacketEncoding.PLAIN); }
+
+    /**
+     * Encodes this packet into the buffer at its current position. The packet itself is not
+     * changed, so it can be encoded differently for each link it is sent over.
+     * @param out buffer with at least getSize(encoding) bytes remaining
+     * @param encoding the optional features negotiated for the link (see LinkFeatures)
+     * @return the number of bytes written
+     */
+    public int writeTo(ByteBuffer out, PacketEncoding encoding) {
+        if (packetHeader == null)
+            return 0;
+        int start = out.position();
+        byte[] body = getEncodedBody(encoding);
         packetHeader.setChecksum(getChecksum());
-        return packetHeader.toByteArray();
+        packetHeader.writeTo(out,encoding.isCrcEnabled(),encoding.isCompact(),body != null);
+        if (body == null)
+            writeBody(out);
+        else
+            out.put(body);
+        if (encoding.isCrcEnabled()) {
+            ByteBuffer written = out.duplicate();
+            written.position(start);
+            written.limit(out.position());
+            PacketIntegrity.sign(written);
+        }
+        return out.position() - start;
+    }
+
+    public byte[] toByteArray() { return toByteArray(PacketEncoding.PLAIN); }
+
+    /**
+     * Encodes this packet with the features negotiated for a link
+     * @param encoding
+     * @return
+     */
+    public byte[] toByteArray(PacketEncoding encoding) {
+        if (packetHeader == null)
+            return null;
+        ByteBuffer out = ByteBuffer.allocate(getSize(encoding));
+        writeTo(out,encoding);
+        return out.array();
     }
 
     public static AbstractPacket newFromHeader(PacketHeader packetHeader) {
@@ -141,6 +361,10 @@ public abstract class AbstractPacket {
                 packet = new HeartbeatPacket(packetHeader);
                 break;
 
+            case PacketHeader.PACKET_TYPE_HEARTBEAT_DELTA:
+                packet = new HeartbeatPacket(packetHeader,true);
+                break;
+
             case PacketHeader.PACKET_TYPE_PING:
                 packet = new PingPacket(packetHeader);
                 break;
@@ -169,9 +393,14 @@ public abstract class AbstractPacket {
      * @return true == this is an admin packet
      */
     public abstract boolean isAdminPacket();
-    public abstract void parse(byte[] bytes);
     protected abstract byte getType();
 
+    /**
+     * Gets when this packet was decoded off the wire
+     * @return System.nanoTime() at decoding (or 0 if this packet was created on this device)
+     */
+    public long getReceivedNanos() { return receivedNanos; }
+
     /**
      * Did this packet come directly from the origin (i.e. no hops in between)
      * @return
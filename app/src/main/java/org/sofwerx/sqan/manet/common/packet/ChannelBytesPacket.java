@@ -25,23 +25,27 @@ public class ChannelBytesPacket extends AbstractPacket {
     protected byte getChecksum() { return PacketHeader.calcChecksum(data); }
 
     @Override
-    public void parse(byte[] bytes) {
-        if (bytes == null) {
+    protected void readBody(ByteBuffer buf) {
+        if (buf.remaining() < 4) {
             channel = null;
             data = null;
         } else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
             int channelBytesLen = buf.getInt();
-            if (buf.remaining() < channelBytesLen) {
+            if ((channelBytesLen < 0) || (buf.remaining() < channelBytesLen)) {
                 Log.e(Config.TAG,"Could not processPacketAndNotifyManet incoming channel bytes buffer; incomplete data");
                 channel = null;
                 data = null;
                 return;
             }
             try {
-                byte[] channelBytes = new byte[channelBytesLen];
-                buf.get(channelBytes);
-                channel = new String(channelBytes,"UTF-8");
+                if (buf.hasArray()) {
+                    channel = new String(buf.array(),buf.arrayOffset()+buf.position(),channelBytesLen,"UTF-8");
+                    buf.position(buf.position()+channelBytesLen);
+                } else {
+                    byte[] channelBytes = new byte[channelBytesLen];
+                    buf.get(channelBytes);
+                    channel = new String(channelBytes,"UTF-8");
+                }
                 int remaining = buf.remaining();
                 if (remaining > 0) {
                     data = new byte[remaining];
@@ -56,24 +60,31 @@ public class ChannelBytesPacket extends AbstractPacket {
         }
     }
 
-    @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len = 4; //minimum is the int that provides the length of the channel name
-        byte[] channelBytes = null;
+    private byte[] getChannelBytes() {
         if (channel != null) {
             try {
-                channelBytes = channel.getBytes("UTF-8");
+                return channel.getBytes("UTF-8");
             } catch (UnsupportedEncodingException e) {
                 e.printStackTrace();
             }
         }
+        return null;
+    }
+
+    @Override
+    protected int getBodySize() {
+        int len = 4; //minimum is the int that provides the length of the channel name
+        byte[] channelBytes = getChannelBytes();
         if (channelBytes != null)
             len += channelBytes.length;
         if (data != null)
             len += data.length;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
+        return len;
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        byte[] channelBytes = getChannelBytes();
         if (channelBytes == null)
             out.putInt(0);
         else {
@@ -82,7 +93,6 @@ public class ChannelBytesPacket extends AbstractPacket {
         }
         if (data != null)
             out.put(data);
-        return out.array();
     }
 
     @Override
@@ -94,7 +104,10 @@ public class ChannelBytesPacket extends AbstractPacket {
     }
 
     public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    public void setData(byte[] data) {
+        this.data = data;
+        onBodyChanged();
+    }
 
     /**
      * Gets the channel that this data belongs to
@@ -108,5 +121,16 @@ public class ChannelBytesPacket extends AbstractPacket {
      * packet size.
      * @param channel channel name (null is legal, but it would make more sense to use the RawBytesPacket)
      */
-    public void setChannel(String channel) { this.channel = channel; }
+    public void setChannel(String channel) {
+        this.channel = channel;
+        onBodyChanged();
+    }
+
+    @Override
+    protected boolean isPayloadCompressible() { return true; }
+
+    @Override
+    protected long getFlowKey() {
+        return super.getFlowKey() * 31l + ((channel == null)?0:channel.hashCode());
+    }
 }
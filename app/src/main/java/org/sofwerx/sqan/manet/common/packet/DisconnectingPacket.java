@@ -19,14 +19,10 @@ public class DisconnectingPacket extends AbstractPacket {
     }
 
     @Override
-    public void parse(byte[] bytes) {
+    protected void readBody(ByteBuffer in) {
         //ignore
     }
 
-    public byte[] toByteArray() {
-        return super.toByteArray();
-    }
-
     /**
      * Gets the UUID of the device leaving the mesh
      * @return
@@ -0,0 +1,120 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.sofwerx.sqan.manet.common.RelayConnection;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Builds the heartbeats for one sender. A keyframe (a full MEDIUM heartbeat that every version
+ * can read) goes out periodically and whenever this device's links change; in between, a delta
+ * heartbeat carries only the details that differ from the last keyframe and the receiver merges
+ * them into the SqAnDevice it already has. Heartbeats are broadcast, so deltas are only sent
+ * while every known device advertises SqAnDevice.CAPABILITY_HEARTBEAT_DELTA; otherwise every
+ * heartbeat is a keyframe.
+ *
+ * The encoder also paces the heartbeats: each heartbeat sent while the links are stable doubles
+ * the interval (up to the maximum) and any change in the links drops it back to the minimum.
+ */
+public class HeartbeatEncoder {
+    private final static int MAX_DELTAS = 7; //deltas sent between keyframes
+    private final static long MAX_KEYFRAME_AGE = 1000l * 20l; //well inside SqAnDevice.TIME_TO_STALE so relay info on receivers never ages out
+    private final long minInterval;
+    private final long maxInterval;
+    private long interval;
+    private long[] links;
+    private byte[] position;
+    private byte[] node;
+    private byte[] callsign;
+    private int deltas = 0;
+    private long lastKeyframe = Long.MIN_VALUE;
+    private boolean keyframeRequested = true;
+
+    /**
+     * @param minInterval ms between heartbeats right after the links change
+     * @param maxInterval ms between heartbeats once the links have been stable for a while
+     */
+    public HeartbeatEncoder(long minInterval, long maxInterval) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        interval = minInterval;
+    }
+
+    /**
+     * Builds the next heartbeat for this device
+     * @param device
+     * @return a keyframe or a delta heartbeat
+     */
+    public synchronized HeartbeatPacket next(SqAnDevice device) {
+        long now = System.currentTimeMillis();
+        ArrayList<RelayConnection> relays = HeartbeatPacket.getRelayConnections();
+        long[] current = getLinks(relays);
+        boolean changed = !Arrays.equals(current,links);
+        if (changed)
+            interval = minInterval;
+        else
+            interval = Math.min(maxInterval,interval * 2l);
+        links = current;
+        byte[] currentPosition = HeartbeatPacket.getPositionBytes(device);
+        byte[] currentNode = HeartbeatPacket.getNodeBytes(device);
+        byte[] currentCallsign = HeartbeatPacket.getCallsignBytes(device);
+        if (keyframeRequested || changed || (deltas >= MAX_DELTAS) || (now > lastKeyframe + MAX_KEYFRAME_AGE)
+                || !SqAnDevice.isCapabilityShared(SqAnDevice.CAPABILITY_HEARTBEAT_DELTA)) {
+            position = currentPosition;
+            node = currentNode;
+            callsign = currentCallsign;
+            deltas = 0;
+            lastKeyframe = now;
+            keyframeRequested = false;
+            return new HeartbeatPacket(device,HeartbeatPacket.buildFullBody(currentPosition,currentNode,relays,currentCallsign),false);
+        }
+        deltas++;
+        return new HeartbeatPacket(device,HeartbeatPacket.buildDeltaBody(
+                Arrays.equals(currentPosition,position)?null:currentPosition,
+                Arrays.equals(currentNode,node)?null:currentNode,
+                Arrays.equals(currentCallsign,callsign)?null:currentCallsign),true);
+    }
+
+    /**
+     * Makes the next heartbeat a keyframe (i.e. when a new device joins)
+     */
+    public synchronized void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Have this device's links changed since the last heartbeat was built
+     * @return
+     */
+    public synchronized boolean isTopologyChanged() {
+        return !Arrays.equals(getLinks(HeartbeatPacket.getRelayConnections()),links);
+    }
+
+    /**
+     * Gets how long to wait (in ms) after the last heartbeat before sending the next one
+     * @return
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Reduces the relays to what matters for the topology (the device, its hop count and which
+     * transports reach it directly), sorted so the result can be compared
+     * @param relays
+     * @return
+     */
+    private static long[] getLinks(ArrayList<RelayConnection> relays) {
+        if (relays == null)
+            return new long[0];
+        long[] result = new long[relays.size()];
+        for (int i=0;i<result.length;i++) {
+            RelayConnection relay = relays.get(i);
+            result[i] = ((long)relay.getSqAnID() << 32) | ((long)(relay.getHops() & 0x3FFFFFFF) << 2)
+                    | (relay.isDirectBt()?2l:0l) | (relay.isDirectWiFi()?1l:0l);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -8,11 +8,13 @@ import org.sofwerx.sqan.manet.common.RelayConnection;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
 import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
 
 import java.io.UnsupportedEncodingException;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
 import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
@@ -21,6 +23,12 @@ import javax.crypto.Mac;
 public class HeartbeatPacket extends AbstractPacket {
     private SqAnDevice device;
     private DetailLevel detailLevel;
+    private byte[] body; //snapshot of the body built the first time this packet is written
+    private boolean delta = false;
+    private final static byte SECTION_POSITION = 0b00000001;
+    private final static byte SECTION_NODE =     0b00000010;
+    private final static byte SECTION_CALLSIGN = 0b00000100;
+    private final static int NODE_SIZE = MacAddress.MAC_BYTE_SIZE + 1 + 16;
 
     //FIXME include a list of the devices this device is connected to (and maybe some measure of strength/stability)
 
@@ -39,10 +47,31 @@ public class HeartbeatPacket extends AbstractPacket {
         this.detailLevel = detailLevel;
     }
 
+    /**
+     * Creates a heartbeat with a body already built by the HeartbeatEncoder
+     * @param device
+     * @param body
+     * @param delta true == the body only has the details that changed since the last keyframe
+     */
+    HeartbeatPacket(SqAnDevice device, byte[] body, boolean delta) {
+        this(device.getUUID());
+        this.device = device;
+        this.body = body;
+        this.delta = delta;
+        packetHeader.setType(getType());
+    }
+
     public HeartbeatPacket(PacketHeader packetHeader) {
         super(packetHeader);
     }
 
+    HeartbeatPacket(PacketHeader packetHeader, boolean delta) {
+        super(packetHeader);
+        this.delta = delta;
+        if (packetHeader != null)
+            packetHeader.setType(getType());
+    }
+
     public SqAnDevice getDevice() {
         return device;
     }
@@ -64,65 +93,101 @@ public class HeartbeatPacket extends AbstractPacket {
     }
 
     @Override
-    public void parse(byte[] bytes) {
-        if ((bytes == null) || (packetHeader == null))
+    protected void readBody(ByteBuffer buf) {
+        if (packetHeader == null)
             device = null;
         else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
             try {
                 if (packetHeader.getOriginUUID() > 0) {
                     device = SqAnDevice.findByUUID(packetHeader.getOriginUUID());
                     if (device == null)
                         device = new SqAnDevice(packetHeader.getOriginUUID());
+                    if (delta) {
+                        readDelta(buf);
+                        return;
+                    }
                     if (buf.remaining() < SpaceTime.SIZE_IN_BYTES)
                         return;
-                    byte[] spaceTimeBytes = new byte[SpaceTime.SIZE_IN_BYTES];
-                    buf.get(spaceTimeBytes);
-                    SpaceTime spaceTime = new SpaceTime();
-                    spaceTime.parse(spaceTimeBytes);
-                    if (!spaceTime.isValid())
-                        spaceTime = null;
-                    device.setLastLocation(spaceTime);
-                    if (buf.remaining() < MacAddress.MAC_BYTE_SIZE + 1 + 16 + 4)
+                    readPosition(buf);
+                    if (buf.remaining() < NODE_SIZE + 4)
                         return;
-                    byte[] awareMacBytes = new byte[MacAddress.MAC_BYTE_SIZE];
-                    buf.get(awareMacBytes);
-                    device.setAwareMac(new MacAddress(awareMacBytes));
-                    device.parseFlags(buf.get());
-                    byte[] awareIpv6Bytes = new byte[SqAnDevice.NO_IPV6_ADDRESS.length];
-                    buf.get(awareIpv6Bytes);
-                    device.setAwareServerIp(awareIpv6Bytes);
+                    readNode(buf);
                     int relaySize = buf.getInt();
+                    ArrayList<RelayConnection> reported = new ArrayList<>();
                     if (relaySize > 0) {
                         byte[] relayBytes = new byte[RelayConnection.SIZE];
                         for (int i=0;i<relaySize;i++) {
                             buf.get(relayBytes);
-                            device.updateRelayConnection(new RelayConnection(relayBytes));
+                            RelayConnection relay = new RelayConnection(relayBytes);
+                            reported.add(relay);
+                            device.updateRelayConnection(relay);
                         }
                     }
+                    RoutingTable.getInstance().onLinkStateReceived(packetHeader.getOriginUUID(),reported);
                     if (buf.remaining() < 4)
                         return;
-                    int callsignSize = buf.getInt();
-                    if (callsignSize > 0) {
-                        if (callsignSize > 256) { //that's too big to be a proper callsign
-                            Log.e(Config.TAG, "Heartbeat contained a callsign " + callsignSize + "b long; message was dropped as it is likely an error");
-                            return;
-                        }
-                        byte[] callsignBytes = new byte[callsignSize];
-                        buf.get(callsignBytes);
-                        try {
-                            device.setCallsign(new String(callsignBytes, "UTF-8"));
-                        } catch (UnsupportedEncodingException ignore) {
-                        }
-                    }
+                    readCallsign(buf);
                 } else
                     Log.e(Config.TAG,"trying to parse Heartbeat packet, but UUID was "+packetHeader.getOriginUUID()+" (this should never happen)");
-            } catch (BufferOverflowException e) {
+            } catch (BufferOverflowException | BufferUnderflowException e) {
                 Log.e(Config.TAG,"Could not processPacketAndNotifyManet Heartbeat: "+e.getMessage());
             }
         }
     }
 
+    /**
+     * Merges the sections included in a delta heartbeat into the device; anything not included
+     * is unchanged since the sender's last keyframe and is left as is
+     * @param buf
+     */
+    private void readDelta(ByteBuffer buf) {
+        if (buf.remaining() < 1)
+            return;
+        byte sections = buf.get();
+        if ((sections & SECTION_POSITION) != 0)
+            readPosition(buf);
+        if ((sections & SECTION_NODE) != 0)
+            readNode(buf);
+        if ((sections & SECTION_CALLSIGN) != 0)
+            readCallsign(buf);
+    }
+
+    private void readPosition(ByteBuffer buf) {
+        byte[] spaceTimeBytes = new byte[SpaceTime.SIZE_IN_BYTES];
+        buf.get(spaceTimeBytes);
+        SpaceTime spaceTime = new SpaceTime();
+        spaceTime.parse(spaceTimeBytes);
+        if (!spaceTime.isValid())
+            spaceTime = null;
+        device.setLastLocation(spaceTime);
+    }
+
+    private void readNode(ByteBuffer buf) {
+        byte[] awareMacBytes = new byte[MacAddress.MAC_BYTE_SIZE];
+        buf.get(awareMacBytes);
+        device.setAwareMac(new MacAddress(awareMacBytes));
+        device.parseFlags(buf.get());
+        byte[] awareIpv6Bytes = new byte[SqAnDevice.NO_IPV6_ADDRESS.length];
+        buf.get(awareIpv6Bytes);
+        device.setAwareServerIp(awareIpv6Bytes);
+    }
+
+    private void readCallsign(ByteBuffer buf) {
+        int callsignSize = buf.getInt();
+        if (callsignSize > 0) {
+            if (callsignSize > 256) { //that's too big to be a proper callsign
+                Log.e(Config.TAG, "Heartbeat contained a callsign " + callsignSize + "b long; message was dropped as it is likely an error");
+                return;
+            }
+            byte[] callsignBytes = new byte[callsignSize];
+            buf.get(callsignBytes);
+            try {
+                device.setCallsign(new String(callsignBytes, "UTF-8"));
+            } catch (UnsupportedEncodingException ignore) {
+            }
+        }
+    }
+
     /**
      * Heartbeats are never urgent/high bandwidth
      * @return
@@ -130,7 +195,17 @@ public class HeartbeatPacket extends AbstractPacket {
     @Override
     public boolean isHighPerformanceNeeded() { return false; }
 
-    private ArrayList<RelayConnection> getRelayConnections() {
+    /**
+     * Is this a delta heartbeat (only the details that changed since the sender's last keyframe)
+     * @return
+     */
+    public boolean isDelta() { return delta; }
+
+    /**
+     * Gets this device's connections to the other active devices
+     * @return
+     */
+    static ArrayList<RelayConnection> getRelayConnections() {
         ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
         if (devices == null)
             return null;
@@ -145,119 +220,145 @@ public class HeartbeatPacket extends AbstractPacket {
         return relays;
     }
 
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-
-        boolean includePosition;
-        boolean includeRelays;
-        boolean includeCallsign;
-
-        if ((detailLevel == null) || (detailLevel == DetailLevel.BASIC) || (device == null))
-            return superBytes;
+    static byte[] getPositionBytes(SqAnDevice device) {
+        SpaceTime spaceTime = device.getLastLocation();
+        if (spaceTime == null)
+            return SpaceTime.toByteArrayEmptySpaceTime();
+        return spaceTime.toByteArray();
+    }
 
-        switch (detailLevel) {
-            case MEDIUM:
-                includePosition = true;
-                includeRelays = true;
-                includeCallsign = true;
-                break;
+    /**
+     * Gets the WiFi Aware MAC, flags and WiFi Aware server IPv6 address
+     * @param device
+     * @return
+     */
+    static byte[] getNodeBytes(SqAnDevice device) {
+        ByteBuffer out = ByteBuffer.allocate(NODE_SIZE);
+        MacAddress awareMac = device.getAwareMac();
+        if (awareMac == null)
+            awareMac = new MacAddress();
+        out.put(awareMac.toByteArray());
+        out.put(device.getFlags());
+        if (device.isAwareServer())
+            out.put(device.getAwareServerIp().getAddress());
+        else
+            out.put(SqAnDevice.NO_IPV6_ADDRESS);
+        return out.array();
+    }
 
-            default:
-                includePosition = false;
-                includeRelays = false;
-                includeCallsign = false;
+    /**
+     * @return the callsign (or null if the device does not have one)
+     */
+    static byte[] getCallsignBytes(SqAnDevice device) {
+        if (device.getCallsign() == null)
+            return null;
+        try {
+            return device.getCallsign().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
-        //for now at least, Callsign, Relays, and Position must have all the flags before it to be valid
-        if (includeCallsign && (!includeRelays || !includePosition)) {
-            Log.e(Config.TAG,"Invalid heartbeat request - check flags");
-            return null; //invalid
+    /**
+     * Builds a full (MEDIUM) body
+     * @return
+     */
+    static byte[] buildFullBody(byte[] position, byte[] node, ArrayList<RelayConnection> relays, byte[] callsign) {
+        int nums = 0;
+        if (relays != null)
+            nums = relays.size();
+        int size = position.length + node.length + 4 + nums * RelayConnection.SIZE;
+        if (callsign != null)
+            size += 4 + callsign.length;
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(position);
+        out.put(node);
+        out.putInt(nums);
+        if (relays != null) {
+            for (RelayConnection relay:relays) {
+                out.put(relay.toBytes());
+            }
         }
-        if (includeRelays && !includePosition) {
-            Log.e(Config.TAG,"Invalid heartbeat request - check flags");
-            return null; //invalid
+        if (callsign != null) {
+            out.putInt(callsign.length);
+            out.put(callsign);
         }
+        return out.array();
+    }
 
-        byte[] spaceTimeBytes = null;
-        if (includePosition) {
-            SpaceTime spaceTime = device.getLastLocation();
-            if (spaceTime == null)
-                spaceTimeBytes = SpaceTime.toByteArrayEmptySpaceTime();
-            else
-                spaceTimeBytes = spaceTime.toByteArray();
+    /**
+     * Builds a delta body: a byte flagging the sections included followed by those sections
+     * (each null section is left out)
+     * @return
+     */
+    static byte[] buildDeltaBody(byte[] position, byte[] node, byte[] callsign) {
+        byte sections = 0;
+        int size = 1;
+        if (position != null) {
+            sections |= SECTION_POSITION;
+            size += position.length;
         }
-
-        byte[] callsignBytes = null;
-        if (includeCallsign && (device.getCallsign() != null)) {
-            try {
-                callsignBytes = device.getCallsign().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
+        if (node != null) {
+            sections |= SECTION_NODE;
+            size += node.length;
         }
-
-        byte[] relayBytes = null;
-        if (includeRelays) {
-            ByteBuffer relayBuf;
-            ArrayList<RelayConnection> relays = getRelayConnections();
-            int nums = 0;
-            if (relays != null)
-                nums = relays.size();
-            relayBuf = ByteBuffer.allocate(MacAddress.MAC_BYTE_SIZE + 1 + 16 + 4 + nums * RelayConnection.SIZE);
-            MacAddress awareMac = device.getAwareMac();
-            if (awareMac == null)
-                awareMac = new MacAddress();
-            relayBuf.put(awareMac.toByteArray());
-            relayBuf.put(device.getFlags());
-            if (device.isAwareServer())
-                relayBuf.put(device.getAwareServerIp().getAddress());
-            else
-                relayBuf.put(SqAnDevice.NO_IPV6_ADDRESS);
-            relayBuf.putInt(nums);
-            if (relays != null) {
-                for (RelayConnection relay:relays) {
-                    relayBuf.put(relay.toBytes());
-                }
-            }
-            relayBytes = relayBuf.array();
+        if (callsign != null) {
+            sections |= SECTION_CALLSIGN;
+            size += 4 + callsign.length;
         }
-
-        int size;
-        if (superBytes == null)
-            size = 0;
-        else
-            size = superBytes.length;
-        if (includePosition && (spaceTimeBytes != null)) {
-            size += spaceTimeBytes.length;
-            if (includeRelays && (relayBytes != null)) {
-                size += relayBytes.length;
-                if (includeCallsign && (callsignBytes != null))
-                    size += 4 + callsignBytes.length;
-            }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(sections);
+        if (position != null)
+            out.put(position);
+        if (node != null)
+            out.put(node);
+        if (callsign != null) {
+            out.putInt(callsign.length);
+            out.put(callsign);
         }
+        return out.array();
+    }
 
-        ByteBuffer out = ByteBuffer.allocate(size);
+    /**
+     * Builds the body of the heartbeat based on the detail level
+     * @return the body (or null if there is no body)
+     */
+    private byte[] buildBody() {
+        if ((detailLevel != DetailLevel.MEDIUM) || (device == null))
+            return null;
+        return buildFullBody(getPositionBytes(device),getNodeBytes(device),getRelayConnections(),getCallsignBytes(device));
+    }
 
-        if (superBytes != null) {
-            out.put(superBytes);
-        }
-        if (includePosition && (spaceTimeBytes != null)) {
-            out.put(spaceTimeBytes);
-            if (includeRelays && (relayBytes != null)) {
-                out.put(relayBytes);
-                if (includeCallsign && (callsignBytes != null)) {
-                    out.putInt(callsignBytes.length);
-                    out.put(callsignBytes);
-                }
-            }
-        }
+    /**
+     * Gets the body, building it the first time it is needed so that sizing and writing
+     * the packet both see the same snapshot of the device
+     * @return
+     */
+    private synchronized byte[] getBody() {
+        if (body == null)
+            body = buildBody();
+        return body;
+    }
 
-        return out.array();
+    @Override
+    protected int getBodySize() {
+        byte[] bytes = getBody();
+        if (bytes == null)
+            return 0;
+        return bytes.length;
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        byte[] bytes = getBody();
+        if (bytes != null)
+            out.put(bytes);
     }
 
     @Override
     protected byte getType() {
-        return PacketHeader.PACKET_TYPE_HEARTBEAT;
+        return delta?PacketHeader.PACKET_TYPE_HEARTBEAT_DELTA:PacketHeader.PACKET_TYPE_HEARTBEAT;
     }
 
     @Override
@@ -0,0 +1,30 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+/**
+ * The optional features to use when encoding a packet for a particular link (see LinkFeatures).
+ * The features are passed to the encoder rather than set on the packet so that the same packet
+ * can be encoded differently for each transport it goes out over.
+ */
+public class PacketEncoding {
+    public final static PacketEncoding PLAIN = new PacketEncoding(false,false,PayloadCodec.LEVEL_NONE);
+    private final boolean crcEnabled;
+    private final boolean compact;
+    private final int compressionLevel;
+
+    /**
+     * @param crcEnabled true == add the CRC32C header extension
+     * @param compact true == use the compact v2 header
+     * @param compressionLevel how hard to compress the body (PayloadCodec.LEVEL_NONE, LEVEL_FAST
+     *                         or LEVEL_STRONG); compression is flagged in the v2 header so this
+     *                         is ignored unless compact is true
+     */
+    public PacketEncoding(boolean crcEnabled, boolean compact, int compressionLevel) {
+        this.crcEnabled = crcEnabled;
+        this.compact = compact;
+        this.compressionLevel = compact?compressionLevel:PayloadCodec.LEVEL_NONE;
+    }
+
+    public boolean isCrcEnabled() { return crcEnabled; }
+    public boolean isCompact() { return compact; }
+    public int getCompressionLevel() { return compressionLevel; }
+}
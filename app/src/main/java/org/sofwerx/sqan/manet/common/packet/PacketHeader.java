@@ -5,35 +5,100 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Contains the header information needed for all packets
+ * Contains the header information needed for all packets. Headers come in two formats which
+ * share their first two bytes (flags and hop count) so either can be identified from the
+ * FLAG_V2 bit in the hop count byte:
+ *
+ *   v1 (18b): [flags][hops][origin (4b)][destination (4b)][time (8b)]
+ *   v2 (11b - 23b): [flags][hops][v2 fields][origin (4b)][sequence (4b) or time (8b)][destination (4b, omitted for broadcast)]
+ *
+ * Timestamps are unique per origin so they double as the message index. The sequence number is
+ * the low 32 bits of the timestamp, which lets the receiver rebuild the full timestamp from its
+ * own clock and gives a packet the same message ID whichever format it was sent in.
+ *
+ * Either format can be followed by the 4b CRC32C extension. Only v2 headers can flag a
+ * compressed body (see PayloadCodec) or a packet striped across several transports (see
+ * ReorderBuffer).
  */
 public class PacketHeader {
     public final static int BROADCAST_ADDRESS = Integer.MIN_VALUE;
-    protected final static byte PACKET_TYPE_HEARTBEAT =     0b00000000;
+    public    final static byte PACKET_TYPE_HEARTBEAT =     0b00000000;
     public    final static byte PACKET_TYPE_PING =          0b00000001;
     protected final static byte PACKET_TYPE_RAW_BYTES =     0b00000010;
     protected final static byte PACKET_TYPE_CHANNEL_BYTES = 0b00000011;
-    protected final static byte PACKET_TYPE_VPN_BYTES =     0b00000100;
+    public    final static byte PACKET_TYPE_VPN_BYTES =     0b00000100;
     public final static byte PACKET_TYPE_DISCONNECTING =    0b00000101;
+    public final static byte PACKET_TYPE_HEARTBEAT_DELTA =  0b00000110;
     private final static byte FLAG_LOSSY_OK =         (byte)0b00001000;
     final static byte MASK_CHECKSUM =                 (byte)0b11110000;
     private final static byte MASK_TYPE =             (byte)0b00000111;
-    private long time; //timestamps are used as a message index as well //FIXME switch this to an int and then also add a checksum byte
+    final static byte FLAG_CRC =                      (byte)0b10000000;
+    final static byte FLAG_V2 =                       (byte)0b01000000;
+    final static byte MASK_HOP_FLAGS =                (byte)(FLAG_CRC | FLAG_V2);
+    private final static byte MASK_HOP_COUNT =        (byte)0b00111111;
+    private final static byte V2_HAS_DESTINATION =    (byte)0b00000001;
+    private final static byte V2_HAS_TIME =           (byte)0b00000010;
+    private final static byte V2_COMPRESSED =         (byte)0b00000100;
+    private final static byte V2_STRIPED =            (byte)0b00001000;
+    final static int OFFSET_HOP_COUNT = 1;
+    private final static int OFFSET_ORIGIN = 2;
+    private final static int OFFSET_DESTINATION = 6;
+    private final static int OFFSET_TIME = 10;
+    private final static int OFFSET_V2_FIELDS = 2;
+    private final static int OFFSET_V2_ORIGIN = 3;
+    private final static int OFFSET_V2_SEQUENCE = 7;
+    public final static int MIN_SIZE = OFFSET_V2_SEQUENCE + 4;
+    public final static int MAX_ENCODED_SIZE = OFFSET_V2_SEQUENCE + 8 + 4 + PacketIntegrity.CRC_SIZE;
+    private final static AtomicLong lastTime = new AtomicLong(0l);
+    private long time;
+    private boolean compact = false;
+    private boolean timeIncluded = false;
     private byte packetType;
     private byte hopCount = 0;
     private int originUUID;
     private int destination = BROADCAST_ADDRESS;
     protected boolean lossyOk = true;
     private byte checksum = 0;
+    private boolean crcEnabled = false;
+    private int crc = 0;
+    private boolean compressed = false;
+    private boolean striped = false;
 
     private PacketHeader() {}
 
     public PacketHeader(int originUUID) {
         this();
         this.originUUID = originUUID;
-        time = System.currentTimeMillis();
+        time = getUniqueTime();
+    }
+
+    /**
+     * Gets the current time, bumped forward as needed so that no two headers from this device
+     * share a timestamp
+     * @return
+     */
+    private static long getUniqueTime() {
+        return getUniqueTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the given time, bumped forward as needed so that no two headers from this device share
+     * a timestamp. Generated and explicitly set timestamps come from this one counter, so a burst
+     * of more than one header per millisecond runs the timestamps slightly ahead of the clock
+     * until the rate drops again.
+     * @param time
+     * @return
+     */
+    private static long getUniqueTime(long time) {
+        while (true) {
+            long last = lastTime.get();
+            long next = Math.max(time,last+1l);
+            if (lastTime.compareAndSet(last,next))
+                return next;
+        }
     }
 
     void setChecksum(byte checksum) { this.checksum = checksum; }
@@ -49,6 +114,51 @@ public class PacketHeader {
         return calcCheck;
     }
 
+    /**
+     * Was this header received in the compact v2 format
+     * @return
+     */
+    public boolean isCompact() { return compact; }
+
+    /**
+     * Gets the sequence number for this packet. This is not a counter; it is the low 32 bits of
+     * the timestamp, which is unique per origin.
+     * @return
+     */
+    public int getSequence() { return (int)time; }
+
+    /**
+     * Was this header received with the CRC32C extension. The flag travels in the top bit of the
+     * hop count byte and the CRC itself immediately follows the fixed header.
+     * @return
+     */
+    public boolean isCrcEnabled() { return crcEnabled; }
+
+    /**
+     * Was the body that followed this header compressed
+     * @return
+     */
+    public boolean isCompressed() { return compact && compressed; }
+
+    /**
+     * Marks this packet as part of a flow striped across several transports so that the receiver
+     * puts it back in order. Only the compact v2 header carries the mark.
+     * @param striped
+     */
+    public void setStriped(boolean striped) { this.striped = striped; }
+
+    /**
+     * Was this packet marked as part of a flow striped across several transports
+     * @return
+     */
+    public boolean isStriped() { return striped; }
+
+    /**
+     * Gets the CRC32C reported in the header extension (only meaningful if isCrcEnabled())
+     * @return
+     */
+    public int getCrc() { return crc; }
+
     /**
      * Sets if this packet ok to drop when the network gets congested (i.e. is it ok for
      * this packet to be lossy)
@@ -64,11 +174,94 @@ public class PacketHeader {
     public boolean isLossyOk() { return lossyOk; }
 
     /**
-     * Gets the size of the header in bytes
+     * Gets the size of a v1 header in bytes (use getEncodedSize() for the size of a particular
+     * header, which may be v2)
      * @return
      */
     public final static int getSize() { return 1 + 1 + 4 + 4 + 8; }
 
+    /**
+     * Gets the size of the header in bytes when encoded in the v1 format without the CRC extension
+     * @return
+     */
+    public int getEncodedSize() { return getEncodedSize(false,false); }
+
+    /**
+     * Gets the size of the header in bytes including any header extension
+     * @param crcEnabled true == with the CRC32C extension
+     * @param compact true == in the compact v2 format
+     * @return
+     */
+    public int getEncodedSize(boolean crcEnabled, boolean compact) {
+        int size;
+        if (compact) {
+            size = OFFSET_V2_SEQUENCE + (timeIncluded?8:4);
+            if (destination != BROADCAST_ADDRESS)
+                size += 4;
+        } else
+            size = getSize();
+        return size + (crcEnabled?PacketIntegrity.CRC_SIZE:0);
+    }
+
+    /**
+     * Gets the encoded size of the header (including any CRC extension) in the buffer starting
+     * at the buffer's position, without moving the buffer's position
+     * @param data
+     * @return the size or -1 if the buffer does not hold enough of the header to tell
+     */
+    public static int peekEncodedSize(ByteBuffer data) {
+        int start = data.position();
+        int available = data.limit() - start;
+        if (available <= OFFSET_V2_FIELDS)
+            return -1;
+        byte hopAndFlags = data.get(start+OFFSET_HOP_COUNT);
+        int size;
+        if ((hopAndFlags & FLAG_V2) == FLAG_V2) {
+            byte fields = data.get(start+OFFSET_V2_FIELDS);
+            size = OFFSET_V2_SEQUENCE + (((fields & V2_HAS_TIME) == V2_HAS_TIME)?8:4);
+            if ((fields & V2_HAS_DESTINATION) == V2_HAS_DESTINATION)
+                size += 4;
+        } else
+            size = getSize();
+        if ((hopAndFlags & FLAG_CRC) == FLAG_CRC)
+            size += PacketIntegrity.CRC_SIZE;
+        return size;
+    }
+
+    /**
+     * Rebuilds a full timestamp from its low 32 bits using this device's clock
+     * @param sequence
+     * @return
+     */
+    private static long toTime(int sequence) {
+        long now = System.currentTimeMillis();
+        return now + (sequence - (int)now);
+    }
+
+    private static boolean isCompact(ByteBuffer data) {
+        return (data.get(data.position()+OFFSET_HOP_COUNT) & FLAG_V2) == FLAG_V2;
+    }
+
+    /**
+     * Reads if the encoded header in the buffer (starting at the buffer's current position) is
+     * in the compact v2 format without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static boolean peekCompact(ByteBuffer data) {
+        return isCompact(data);
+    }
+
+    /**
+     * Reads if the encoded header in the buffer (starting at the buffer's current position)
+     * carries the CRC32C extension without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static boolean peekCrcEnabled(ByteBuffer data) {
+        return (data.get(data.position()+OFFSET_HOP_COUNT) & FLAG_CRC) == FLAG_CRC;
+    }
+
     /*private final static int MASK_LOSSY_OK = 0b0000000000000001;
     private int getFlags() {
         int result = 0;
@@ -87,8 +280,8 @@ public class PacketHeader {
      * @param data
      */
     public static void setHopCount(int newHopCount,byte[] data) {
-        if ((data != null) && (data.length >= getSize())) {
-            data[1] = (byte)newHopCount;
+        if ((data != null) && (data.length >= MIN_SIZE)) {
+            data[OFFSET_HOP_COUNT] = (byte)((newHopCount & MASK_HOP_COUNT) | (data[OFFSET_HOP_COUNT] & MASK_HOP_FLAGS));
 
             /*data[4] = (byte) (newHopCount >> 24);
             data[5] = (byte) (newHopCount >> 16);
@@ -97,8 +290,117 @@ public class PacketHeader {
         }
     }
 
+    /**
+     * Helper method to overwrite just the hop count in a buffer holding an encoded header
+     * (starting at the buffer's current position) so that a relayed packet does not need to be
+     * decoded and re-encoded. The format and CRC extension flags are kept and, since the hop count is not
+     * covered by the CRC, the CRC does not need to be recalculated. The buffer's position is not
+     * changed.
+     * @param newHopCount
+     * @param data
+     */
+    public static void setHopCount(int newHopCount, ByteBuffer data) {
+        if ((data != null) && (data.remaining() >= MIN_SIZE)) {
+            int offset = data.position()+OFFSET_HOP_COUNT;
+            data.put(offset,(byte)((newHopCount & MASK_HOP_COUNT) | (data.get(offset) & MASK_HOP_FLAGS)));
+        }
+    }
+
+    /**
+     * Reads the packet type from a buffer holding an encoded header (starting at the buffer's
+     * current position) without decoding the rest of the header or moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static byte peekType(ByteBuffer data) {
+        return (byte)(data.get(data.position()) & MASK_TYPE);
+    }
+
+    /**
+     * Reads the lossyOk flag from a buffer holding an encoded header (starting at the buffer's
+     * current position) without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static boolean peekLossyOk(ByteBuffer data) {
+        return (data.get(data.position()) & FLAG_LOSSY_OK) == FLAG_LOSSY_OK;
+    }
+
+    /**
+     * Reads the hop count from a buffer holding an encoded header (starting at the buffer's
+     * current position) without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static int peekHopCount(ByteBuffer data) {
+        return data.get(data.position()+OFFSET_HOP_COUNT) & MASK_HOP_COUNT;
+    }
+
+    /**
+     * Reads the origin from a buffer holding an encoded header (starting at the buffer's
+     * current position) without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static int peekOriginUUID(ByteBuffer data) {
+        if (isCompact(data))
+            return data.getInt(data.position()+OFFSET_V2_ORIGIN);
+        return data.getInt(data.position()+OFFSET_ORIGIN);
+    }
+
+    /**
+     * Reads the sequence number from a buffer holding an encoded header (starting at the
+     * buffer's current position) without moving the buffer's position
+     * @param data
+     * @return the sequence (the low 32 bits of the timestamp, not a counter)
+     */
+    public static int peekSequence(ByteBuffer data) {
+        int start = data.position();
+        if (isCompact(data) && ((data.get(start+OFFSET_V2_FIELDS) & V2_HAS_TIME) != V2_HAS_TIME))
+            return data.getInt(start+OFFSET_V2_SEQUENCE);
+        return (int)data.getLong(start+(isCompact(data)?OFFSET_V2_SEQUENCE:OFFSET_TIME));
+    }
+
+    /**
+     * Reads the message ID (origin and sequence, see AbstractPacket.getMessageId()) from a buffer
+     * holding an encoded header (starting at the buffer's current position) without moving the
+     * buffer's position
+     * @param data
+     * @return
+     */
+    public static long peekMessageId(ByteBuffer data) {
+        return ((long)peekOriginUUID(data) << 32) | (peekSequence(data) & 0xFFFFFFFFl);
+    }
+
+    /**
+     * Reads the destination from a buffer holding an encoded header (starting at the buffer's
+     * current position) without moving the buffer's position
+     * @param data
+     * @return
+     */
+    public static int peekDestination(ByteBuffer data) {
+        int start = data.position();
+        if (isCompact(data)) {
+            byte fields = data.get(start+OFFSET_V2_FIELDS);
+            if ((fields & V2_HAS_DESTINATION) != V2_HAS_DESTINATION)
+                return BROADCAST_ADDRESS;
+            return data.getInt(start+OFFSET_V2_SEQUENCE+(((fields & V2_HAS_TIME) == V2_HAS_TIME)?8:4));
+        }
+        return data.getInt(start+OFFSET_DESTINATION);
+    }
+
     public long getTime() { return time; }
-    public void setTime(long time) { this.time = time; }
+
+    /**
+     * Sets the timestamp; an explicitly set timestamp is always sent in full, even in v2 headers.
+     * Since the timestamp is also the message index, it is bumped forward as needed so that it
+     * is not shared with any other header from this device.
+     * @param time
+     */
+    public void setTime(long time) {
+        this.time = getUniqueTime(time);
+        timeIncluded = true;
+    }
     public int getOriginUUID() { return originUUID; }
     public void setOriginUUID(int uuid) { this.originUUID = uuid; }
     public byte getType() { return packetType; }
@@ -115,7 +417,7 @@ public class PacketHeader {
      * Sets the number of hops this packet has taken
      * @param hopCount (0 == direct from origin)
      */
-    public void setHopCount(int hopCount) { this.hopCount = (byte)hopCount; }
+    public void setHopCount(int hopCount) { this.hopCount = (byte)(hopCount & MASK_HOP_COUNT); }
 
     /**
      * Did this packet come directly from the original source (i.e. no hops)
@@ -149,17 +451,61 @@ public class PacketHeader {
     }*/
 
     public byte[] toByteArray() {
-        ByteBuffer out = ByteBuffer.allocate(getSize());
+        ByteBuffer out = ByteBuffer.allocate(getEncodedSize());
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes this header into the buffer at its current position in the v1 format without the
+     * CRC extension
+     * @param out buffer with at least getEncodedSize() bytes remaining
+     */
+    public void writeTo(ByteBuffer out) { writeTo(out,false,false,false); }
+
+    /**
+     * Writes this header into the buffer at its current position
+     * @param out buffer with at least getEncodedSize(crcEnabled,compact) bytes remaining
+     * @param crcEnabled true == add the CRC32C extension (filled in later by PacketIntegrity.sign())
+     * @param compact true == use the compact v2 format
+     * @param compressed true == flag the body as compressed (only carried by v2 headers)
+     */
+    void writeTo(ByteBuffer out, boolean crcEnabled, boolean compact, boolean compressed) {
         byte flags = (byte)(packetType | (checksum & MASK_CHECKSUM));
         if (lossyOk)
             flags = (byte)(flags | FLAG_LOSSY_OK);
         out.put(flags);
-        out.put(hopCount);
-        //out.putInt(getFlags());
-        out.putInt(originUUID);
-        out.putInt(destination);
-        out.putLong(time);
-        return out.array();
+        byte hopAndFlags = (byte)(hopCount & MASK_HOP_COUNT);
+        if (crcEnabled)
+            hopAndFlags = (byte)(hopAndFlags | FLAG_CRC);
+        if (compact) {
+            out.put((byte)(hopAndFlags | FLAG_V2));
+            byte fields = 0;
+            if (destination != BROADCAST_ADDRESS)
+                fields = (byte)(fields | V2_HAS_DESTINATION);
+            if (timeIncluded)
+                fields = (byte)(fields | V2_HAS_TIME);
+            if (compressed)
+                fields = (byte)(fields | V2_COMPRESSED);
+            if (striped)
+                fields = (byte)(fields | V2_STRIPED);
+            out.put(fields);
+            out.putInt(originUUID);
+            if (timeIncluded)
+                out.putLong(time);
+            else
+                out.putInt((int)time);
+            if (destination != BROADCAST_ADDRESS)
+                out.putInt(destination);
+        } else {
+            out.put(hopAndFlags);
+            //out.putInt(getFlags());
+            out.putInt(originUUID);
+            out.putInt(destination);
+            out.putLong(time);
+        }
+        if (crcEnabled)
+            out.putInt(crc); //filled in by PacketIntegrity.sign() once the body has been written
     }
 
     public static PacketHeader newFromBytes(byte[] bytes) {
@@ -167,21 +513,60 @@ public class PacketHeader {
             Log.e(Config.TAG,"Cannot generate a packet header from a null byte array");
             return null;
         }
-        if (bytes.length != getSize()) {
-            Log.e(Config.TAG,"Cannot generate a packet header from a "+bytes.length+" byte array ("+getSize()+" bytes expected)");
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int expected = peekEncodedSize(in);
+        if (bytes.length != expected) {
+            Log.e(Config.TAG,"Cannot generate a packet header from a "+bytes.length+" byte array ("+expected+" bytes expected)");
+            return null;
+        }
+        return readFrom(in);
+    }
+
+    /**
+     * Reads a header from the buffer's current position and advances the position past the header
+     * @param in
+     * @return the header (or null if the buffer does not hold enough data)
+     */
+    public static PacketHeader readFrom(ByteBuffer in) {
+        if (in == null) {
+            Log.e(Config.TAG,"Cannot generate a packet header from a null buffer");
+            return null;
+        }
+        int size = peekEncodedSize(in);
+        if ((size < 0) || (in.remaining() < size)) {
+            Log.e(Config.TAG,"Cannot generate a packet header from a "+in.remaining()+" byte buffer ("+((size<0)?"more":size)+" bytes expected)");
             return null;
         }
         PacketHeader packetHeader = new PacketHeader();
-        ByteBuffer in = ByteBuffer.wrap(bytes);
         byte typeAndChecksum = in.get();
         packetHeader.packetType = (byte)(typeAndChecksum & MASK_TYPE);
         packetHeader.checksum = (byte)(typeAndChecksum & MASK_CHECKSUM);
         packetHeader.lossyOk = (typeAndChecksum & FLAG_LOSSY_OK) == FLAG_LOSSY_OK;
-        packetHeader.hopCount = in.get();
-        //packetHeader.parseFlags(in.getInt());
-        packetHeader.originUUID = in.getInt();
-        packetHeader.destination = in.getInt();
-        packetHeader.time = in.getLong();
+        byte hopAndFlags = in.get();
+        packetHeader.hopCount = (byte)(hopAndFlags & MASK_HOP_COUNT);
+        packetHeader.crcEnabled = (hopAndFlags & FLAG_CRC) == FLAG_CRC;
+        packetHeader.compact = (hopAndFlags & FLAG_V2) == FLAG_V2;
+        if (packetHeader.compact) {
+            byte fields = in.get();
+            packetHeader.originUUID = in.getInt();
+            packetHeader.timeIncluded = (fields & V2_HAS_TIME) == V2_HAS_TIME;
+            packetHeader.compressed = (fields & V2_COMPRESSED) == V2_COMPRESSED;
+            packetHeader.striped = (fields & V2_STRIPED) == V2_STRIPED;
+            if (packetHeader.timeIncluded)
+                packetHeader.time = in.getLong();
+            else
+                packetHeader.time = toTime(in.getInt());
+            if ((fields & V2_HAS_DESTINATION) == V2_HAS_DESTINATION)
+                packetHeader.destination = in.getInt();
+        } else {
+            //packetHeader.parseFlags(in.getInt());
+            packetHeader.originUUID = in.getInt();
+            packetHeader.destination = in.getInt();
+            packetHeader.time = in.getLong();
+            packetHeader.timeIncluded = true;
+        }
+        if (packetHeader.crcEnabled)
+            packetHeader.crc = in.getInt();
         return packetHeader;
     }
 }
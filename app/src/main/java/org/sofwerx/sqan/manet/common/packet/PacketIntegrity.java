@@ -0,0 +1,147 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.sofwerx.sqan.util.Crc32c;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies (or signs) the optional CRC32C header extension. The CRC covers the whole packet
+ * except the hop count (which relays rewrite) and the CRC field itself, so a relay can forward
+ * a packet without recalculating it.
+ *
+ * Bytes can be fed in whatever chunks they arrive in, so a relay can verify a packet as it
+ * streams in rather than waiting to decode the whole thing.
+ */
+public class PacketIntegrity {
+    public final static int CRC_SIZE = 4;
+    private final static AtomicLong failures = new AtomicLong(0l);
+    private final static ThreadLocal<PacketIntegrity> checkers = new ThreadLocal<PacketIntegrity>() {
+        @Override
+        protected PacketIntegrity initialValue() {
+            return new PacketIntegrity();
+        }
+    };
+    private final Crc32c crc = new Crc32c();
+    private final ByteBuffer header = ByteBuffer.allocate(PacketHeader.MAX_ENCODED_SIZE);
+    private int headerSize = -1;
+    private boolean headerAdded = false;
+    private boolean hasCrc = false;
+    private int expected = 0;
+
+    /**
+     * Gets ready to check a new packet
+     */
+    public void reset() {
+        crc.reset();
+        header.clear();
+        headerSize = -1;
+        headerAdded = false;
+        hasCrc = false;
+        expected = 0;
+    }
+
+    /**
+     * Adds the next bytes of the packet (from the buffer's position to its limit) to the check.
+     * The buffer's position is not changed.
+     * @param chunk
+     */
+    public void update(ByteBuffer chunk) {
+        if (chunk == null)
+            return;
+        int pos = chunk.position();
+        int limit = chunk.limit();
+        while ((pos < limit) && (headerSize < 0)) {
+            //the header is variable length so collect it until its size is known
+            header.put(chunk.get(pos++));
+            header.flip();
+            int size = PacketHeader.peekEncodedSize(header);
+            header.position(header.limit());
+            header.limit(header.capacity());
+            if (size > 0) {
+                headerSize = size;
+                hasCrc = (header.get(PacketHeader.OFFSET_HOP_COUNT) & PacketHeader.FLAG_CRC) == PacketHeader.FLAG_CRC;
+            }
+        }
+        while ((pos < limit) && (header.position() < headerSize))
+            header.put(chunk.get(pos++));
+        if (hasCrc && !headerAdded && (header.position() == headerSize)) {
+            updateHeader(crc,header,0,headerSize);
+            expected = header.getInt(headerSize-CRC_SIZE);
+            headerAdded = true;
+        }
+        if ((pos < limit) && hasCrc) {
+            ByteBuffer rest = chunk.duplicate();
+            rest.position(pos);
+            crc.update(rest);
+        }
+    }
+
+    /**
+     * Adds the header (minus the hop count and the CRC itself) to the CRC
+     */
+    private static void updateHeader(Crc32c calc, ByteBuffer packet, int start, int headerSize) {
+        for (int i=0;i<headerSize-CRC_SIZE;i++) {
+            byte b = packet.get(start+i);
+            calc.update((i == PacketHeader.OFFSET_HOP_COUNT)?(b & PacketHeader.MASK_HOP_FLAGS):b);
+        }
+    }
+
+    /**
+     * Does the packet being checked carry the CRC extension (only known once enough of the
+     * header has been added to know its size)
+     * @return
+     */
+    public boolean hasCrc() { return hasCrc; }
+
+    /**
+     * Is the packet fed in so far intact; should only be called once the whole packet
+     * has been added
+     * @return true == the CRC matches or the packet does not carry a CRC
+     */
+    public boolean isValid() {
+        if (!hasCrc)
+            return true;
+        if (headerAdded && (crc.getInt() == expected))
+            return true;
+        failures.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Checks the packet in the buffer (from its position to its limit) without moving the
+     * buffer's position
+     * @param packet
+     * @return true == the CRC matches or the packet does not carry a CRC
+     */
+    public static boolean verify(ByteBuffer packet) {
+        if ((packet == null) || (packet.remaining() <= PacketHeader.OFFSET_HOP_COUNT) || !PacketHeader.peekCrcEnabled(packet))
+            return true;
+        PacketIntegrity integrity = checkers.get();
+        integrity.reset();
+        integrity.update(packet);
+        return integrity.isValid();
+    }
+
+    /**
+     * Calculates the CRC for the packet in the buffer (from its position to its limit) and
+     * writes it into the header extension. The buffer's position is not changed.
+     * @param packet an encoded packet whose header has the CRC extension enabled
+     */
+    static void sign(ByteBuffer packet) {
+        int start = packet.position();
+        int headerSize = PacketHeader.peekEncodedSize(packet);
+        Crc32c calc = new Crc32c();
+        updateHeader(calc,packet,start,headerSize);
+        ByteBuffer body = packet.duplicate();
+        body.position(start+headerSize);
+        calc.update(body);
+        packet.putInt(start+headerSize-CRC_SIZE,calc.getInt());
+    }
+
+    /**
+     * Gets the number of packets that failed their CRC check
+     * @return
+     */
+    public static long getFailureCount() { return failures.get(); }
+}
@@ -0,0 +1,175 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses packet bodies (raw Deflate) before they go out over links where the bandwidth is
+ * worth the CPU. Bodies that are too small, that look like they are already compressed or
+ * encrypted (high byte entropy), or that belong to a flow whose recent packets did not compress
+ * are sent as is. A flow is the packet type and destination (and channel for channel bytes).
+ */
+public class PayloadCodec {
+    public final static int LEVEL_NONE = 0;
+    public final static int LEVEL_FAST = Deflater.BEST_SPEED;
+    public final static int LEVEL_STRONG = Deflater.BEST_COMPRESSION;
+    public final static int MIN_SIZE = 128; //bytes; smaller bodies are not worth compressing
+    private final static int MAX_INFLATED_SIZE = 1024 * 1024; //refuse to inflate anything claiming to be bigger than this
+    private final static int SAMPLE_SIZE = 512; //bytes looked at when estimating entropy
+    private final static double MAX_ENTROPY = 7.5d; //bits per byte; above this the data is assumed to be incompressible
+    private final static float MAX_RATIO = 0.9f; //compressed size must be at most this fraction of the original to be used
+    private final static int SKIP_PACKETS = 64; //packets in a flow sent uncompressed after compression did not help, before trying again
+    private final static PayloadCodec instance = new PayloadCodec();
+    private final Map<Long, Flow> flows = new ConcurrentHashMap<>();
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() { return new Deflater(LEVEL_FAST,true); }
+    };
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() { return new Inflater(true); }
+    };
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() { return new byte[1024 * 8]; }
+    };
+
+    private static class Flow {
+        private volatile int skip = 0;
+        private volatile long original = 0l;
+        private volatile long compressed = 0l;
+    }
+
+    public static PayloadCodec getInstance() { return instance; }
+
+    /**
+     * Estimates the Shannon entropy of the start of the data
+     * @param data
+     * @return bits per byte (0 to 8)
+     */
+    static double getEntropy(byte[] data) {
+        int length = Math.min(data.length,SAMPLE_SIZE);
+        if (length == 0)
+            return 0d;
+        int[] counts = new int[256];
+        for (int i=0;i<length;i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double entropy = 0d;
+        for (int count:counts) {
+            if (count > 0) {
+                double p = (double)count / (double)length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2d);
+    }
+
+    private Flow getFlow(long key) {
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            flow = new Flow();
+            Flow existing = ((ConcurrentHashMap<Long, Flow>)flows).putIfAbsent(key,flow);
+            if (existing != null)
+                flow = existing;
+        }
+        return flow;
+    }
+
+    /**
+     * Compresses a packet body
+     * @param flowKey identifies the flow this body belongs to
+     * @param body
+     * @param level Deflater compression level
+     * @return the compressed body (or null if the body should be sent as is)
+     */
+    public byte[] compress(long flowKey, byte[] body, int level) {
+        if ((body == null) || (body.length < MIN_SIZE) || (level == LEVEL_NONE))
+            return null;
+        Flow flow = getFlow(flowKey);
+        if (flow.skip > 0) {
+            flow.skip--;
+            return null;
+        }
+        if (getEntropy(body) > MAX_ENTROPY) {
+            flow.skip = SKIP_PACKETS;
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(body);
+        deflater.finish();
+        int limit = (int)(body.length * MAX_RATIO);
+        byte[] out = new byte[limit];
+        int length = 0;
+        while (!deflater.finished() && (length < limit)) {
+            length += deflater.deflate(out,length,limit - length);
+        }
+        boolean fits = deflater.finished();
+        flow.original += body.length;
+        flow.compressed += fits?length:body.length;
+        if (!fits) {
+            flow.skip = SKIP_PACKETS;
+            return null;
+        }
+        return Arrays.copyOf(out,length);
+    }
+
+    /**
+     * Inflates a compressed packet body
+     * @param in buffer holding the compressed body from its position to its limit
+     * @return buffer holding the original body
+     * @throws DataFormatException if the body is corrupt or too large
+     */
+    public ByteBuffer decompress(ByteBuffer in) throws DataFormatException {
+        byte[] compressed = new byte[in.remaining()+1]; //raw inflate can need an extra dummy byte at the end
+        in.get(compressed,0,compressed.length-1);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] buffer = scratch.get();
+        ByteBuffer out = ByteBuffer.allocate(Math.max(MIN_SIZE,compressed.length * 4));
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0) {
+                if (inflater.needsInput() || inflater.needsDictionary())
+                    throw new DataFormatException("Compressed packet body is incomplete");
+                continue;
+            }
+            if (out.remaining() < length) {
+                int size = Math.max(out.capacity() * 2,out.position() + length);
+                if (size > MAX_INFLATED_SIZE)
+                    throw new DataFormatException("Compressed packet body is too large");
+                ByteBuffer bigger = ByteBuffer.allocate(size);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(buffer,0,length);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Gets the fraction of bytes saved by compression so far, across all flows
+     * @return 0 (nothing saved) to 1
+     */
+    public float getSavings() {
+        long original = 0l;
+        long compressed = 0l;
+        for (Flow flow:flows.values()) {
+            original += flow.original;
+            compressed += flow.compressed;
+        }
+        if (original == 0l)
+            return 0f;
+        return 1f - (float)compressed / (float)original;
+    }
+}
@@ -29,24 +29,19 @@ public class PingPacket extends AbstractPacket {
     private final static int INTERNAL_LENGTH = 8;
 
     @Override
-    public void parse(byte[] bytes) {
-        if ((bytes == null) || (bytes.length != INTERNAL_LENGTH))
+    protected void readBody(ByteBuffer in) {
+        if (in.remaining() != INTERNAL_LENGTH)
             midpointLocalTime = -1;
-        else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
-            midpointLocalTime = buf.getLong();
-        }
+        else
+            midpointLocalTime = in.getLong();
     }
 
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
+    @Override
+    protected int getBodySize() { return INTERNAL_LENGTH; }
 
-        if (superBytes == null)
-            return null;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + INTERNAL_LENGTH);
-        out.put(superBytes);
+    @Override
+    protected void writeBody(ByteBuffer out) {
         out.putLong(midpointLocalTime);
-        return out.array();
     }
 
     @Override
@@ -14,23 +14,25 @@ public class RawBytesPacket extends AbstractPacket {
     }
 
     @Override
-    public void parse(byte[] bytes) {
-        data = bytes;
+    protected void readBody(ByteBuffer in) {
+        if (in.hasRemaining()) {
+            data = new byte[in.remaining()];
+            in.get(data);
+        } else
+            data = null;
     }
 
     @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len;
+    protected int getBodySize() {
         if (data == null)
-            len = 0;
-        else
-            len = data.length;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
-        if (len > 0)
+            return 0;
+        return data.length;
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        if (data != null)
             out.put(data);
-        return out.array();
     }
 
     @Override
@@ -43,8 +45,14 @@ public class RawBytesPacket extends AbstractPacket {
     protected byte getChecksum() { return PacketHeader.calcChecksum(data); }
 
     public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    public void setData(byte[] data) {
+        this.data = data;
+        onBodyChanged();
+    }
 
     @Override
     public boolean isAdminPacket() { return false; }
+
+    @Override
+    protected boolean isPayloadCompressible() { return true; }
 }
@@ -3,12 +3,27 @@ package org.sofwerx.sqan.manet.common.packet;
 import org.sofwerx.sqan.manet.common.VpnForwardValue;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
- * VPN intercepted data
+ * VPN intercepted data; may carry several IP packets bound for the same destination, in which
+ * case the body is the BUNDLED marker, the forward value and then each IP packet preceded by its
+ * 2 byte length. The top bit of that length marks an IP packet whose headers have been
+ * compressed (see HeaderCompressor); those are always sent in the bundled form. Older builds do
+ * not understand the bundled form, so it is only sent to devices that advertise
+ * SqAnDevice.CAPABILITY_VPN_BUNDLE (and compressed IP packets only to devices that also advertise
+ * CAPABILITY_VPN_HEADER_COMPRESSION).
  */
 public class VpnPacket extends AbstractPacket {
+    public final static byte BUNDLED = (byte)0b11111111; //never used as a forwarding index
+    public final static int MAX_BUNDLE_SIZE = 1024 * 8; //bytes of IP packets to carry in one VpnPacket
+    private final static int COMPRESSED_FLAG = 0x8000;
+    private final static int MAX_ITEM_SIZE = 0x7FFF;
     private byte[] data;
+    private ArrayList<byte[]> bundled; //IP packets after the first (null if only carrying one)
+    private int bundleSize = 0;
+    private BitSet compressed; //which of the IP packets have compressed headers (null if none)
     private VpnForwardValue forwardValue;
 
     public VpnPacket(PacketHeader packetHeader) {
@@ -24,11 +39,30 @@ public class VpnPacket extends AbstractPacket {
     public boolean isForwarded() { return forwardValue != null; }
 
     @Override
-    public void parse(byte[] bytes) {
-        if (bytes == null)
+    protected void readBody(ByteBuffer in) {
+        if (!in.hasRemaining())
             return;
-        ByteBuffer in = ByteBuffer.wrap(bytes);
-        forwardValue = new VpnForwardValue(in.get());
+        byte marker = in.get();
+        if (marker == BUNDLED) {
+            if (!in.hasRemaining())
+                return;
+            marker = in.get();
+            forwardValue = new VpnForwardValue(marker);
+            if (!forwardValue.isForwarded())
+                forwardValue = null;
+            while (in.remaining() > 2) {
+                int length = in.getShort() & 0xFFFF;
+                boolean isCompressed = (length & COMPRESSED_FLAG) != 0;
+                length &= MAX_ITEM_SIZE;
+                if (length > in.remaining())
+                    break;
+                byte[] ipPacket = new byte[length];
+                in.get(ipPacket);
+                append(ipPacket,isCompressed);
+            }
+            return;
+        }
+        forwardValue = new VpnForwardValue(marker);
         if (!forwardValue.isForwarded())
             forwardValue = null;
         if (in.remaining() > 0) {
@@ -37,23 +71,112 @@ public class VpnPacket extends AbstractPacket {
         }
     }
 
+    private boolean isBundled() {
+        return (bundled != null) || (compressed != null);
+    }
+
     @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len;
+    protected int getBodySize() {
         if (data == null)
-            len = 1;
-        else
-            len = data.length + 1;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
+            return 1;
+        if (isBundled())
+            return 2 + 2 + data.length + bundleSize + ((bundled == null)?0:2 * bundled.size());
+        return data.length + 1;
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        if (isBundled())
+            out.put(BUNDLED);
         if ((forwardValue == null) || !forwardValue.isForwarded())
             out.put(VpnForwardValue.NOT_FORWARDED);
         else
             out.put(forwardValue.getForwardIndex());
-        if (len > 0)
+        if (isBundled()) {
+            out.putShort((short)(data.length | (isCompressed(0)?COMPRESSED_FLAG:0)));
+            out.put(data);
+            if (bundled != null) {
+                for (int i=0;i<bundled.size();i++) {
+                    byte[] ipPacket = bundled.get(i);
+                    out.putShort((short)(ipPacket.length | (isCompressed(i+1)?COMPRESSED_FLAG:0)));
+                    out.put(ipPacket);
+                }
+            }
+        } else if (data != null)
             out.put(data);
-        return out.array();
+    }
+
+    /**
+     * Adds another IP packet for the same destination to this VpnPacket
+     * @param ipPacket
+     * @return true == added; false == there is not enough room left in this VpnPacket
+     */
+    public boolean append(byte[] ipPacket) {
+        return append(ipPacket,false);
+    }
+
+    /**
+     * Adds another IP packet for the same destination to this VpnPacket
+     * @param ipPacket
+     * @param isCompressed true == the IP packet's headers have been compressed by the HeaderCompressor
+     * @return true == added; false == there is not enough room left in this VpnPacket
+     */
+    public boolean append(byte[] ipPacket, boolean isCompressed) {
+        if (ipPacket == null)
+            return true;
+        if (isCompressed && (ipPacket.length > MAX_ITEM_SIZE))
+            return false;
+        int index = 0;
+        if (data == null)
+            data = ipPacket;
+        else {
+            if ((ipPacket.length > MAX_ITEM_SIZE) || (data.length + bundleSize + ipPacket.length > MAX_BUNDLE_SIZE))
+                return false;
+            if (bundled == null)
+                bundled = new ArrayList<>();
+            bundled.add(ipPacket);
+            bundleSize += ipPacket.length;
+            index = bundled.size();
+        }
+        if (isCompressed) {
+            if (compressed == null)
+                compressed = new BitSet();
+            compressed.set(index);
+        }
+        onBodyChanged();
+        return true;
+    }
+
+    /**
+     * Are the headers of this IP packet (as numbered in getIpPackets()) compressed
+     * @param index
+     * @return
+     */
+    public boolean isCompressed(int index) {
+        return (compressed != null) && compressed.get(index);
+    }
+
+    /**
+     * Gets every IP packet carried by this VpnPacket
+     * @return
+     */
+    public ArrayList<byte[]> getIpPackets() {
+        ArrayList<byte[]> packets = new ArrayList<>((bundled == null)?1:bundled.size()+1);
+        if (data != null)
+            packets.add(data);
+        if (bundled != null)
+            packets.addAll(bundled);
+        return packets;
+    }
+
+    /**
+     * Gets the total size of the IP packets carried by this VpnPacket
+     * @return
+     */
+    public int getDataSize() {
+        if (data == null)
+            return 0;
+        return data.length + bundleSize;
     }
 
     @Override
@@ -68,10 +191,22 @@ public class VpnPacket extends AbstractPacket {
     }
 
     public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    public void setData(byte[] data) {
+        this.data = data;
+        bundled = null;
+        bundleSize = 0;
+        compressed = null;
+        onBodyChanged();
+    }
 
     @Override
     public boolean isAdminPacket() { return false; }
 
-    public void setForwardValue(VpnForwardValue forwardValue) { this.forwardValue = forwardValue; }
+    public void setForwardValue(VpnForwardValue forwardValue) {
+        this.forwardValue = forwardValue;
+        onBodyChanged();
+    }
+
+    @Override
+    protected boolean isPayloadCompressible() { return true; }
 }
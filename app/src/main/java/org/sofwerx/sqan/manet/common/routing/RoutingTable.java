@@ -0,0 +1,379 @@
+package org.sofwerx.sqan.manet.common.routing;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.RelayConnection;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.util.CommsLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Link-state routing for the mesh. Each device's heartbeat lists the devices it is directly
+ * connected to (and over which transport); together with this device's own direct links those
+ * make up a graph of the mesh. Each link is weighted by its transport (as a stand-in for
+ * bandwidth) and, for this device's own links, by the measured latency and recent packet drops.
+ * The shortest path to every device is then used to pick the neighbor a unicast packet should
+ * be handed to so that relays forward it along one path rather than flooding it to everyone.
+ *
+ * The routes are only recalculated when a heartbeat actually changes the graph (or this device's
+ * own links change) and are published as a snapshot so looking up a route never blocks.
+ */
+public class RoutingTable {
+    public final static int NO_ROUTE = Integer.MIN_VALUE;
+    private final static long MAX_ROUTE_AGE = 1000l * 5l; //recalculate at least this often so latency and staleness changes are picked up
+    private final static long DROP_WINDOW = 1000l * 60l; //how far back to look for dropped packets when weighting a link
+    private final static int COST_WIFI_HIGH_PERFORMANCE = 10;
+    private final static int COST_WIFI = 20;
+    private final static int COST_BT = 40;
+    private final static int COST_OTHER = 80; //SDR or an unknown transport
+    private final static int COST_STALE = 200;
+    private final static int COST_PER_DROP = 10;
+    private final static long LATENCY_PER_COST = 5l; //ms of one-way latency worth one point of cost
+    private final static RoutingTable instance = new RoutingTable();
+
+    private final Object lock = new Object();
+    private final HashMap<Integer, LinkState> advertised = new HashMap<>(); //links reported by other devices, by origin
+    private volatile Map<Integer, Route> routes = Collections.emptyMap();
+    private volatile boolean dirty = true;
+    private volatile long lastCalculated = 0l;
+    private int[] localSignature = new int[0];
+
+    /**
+     * The best known way to reach a device
+     */
+    public static class Route {
+        private final int destination;
+        private final int nextHop;
+        private final int hops;
+        private final int cost;
+
+        private Route(int destination, int nextHop, int hops, int cost) {
+            this.destination = destination;
+            this.nextHop = nextHop;
+            this.hops = hops;
+            this.cost = cost;
+        }
+
+        public int getDestination() { return destination; }
+
+        /**
+         * Gets the directly connected device that packets for the destination should be sent to
+         * @return
+         */
+        public int getNextHop() { return nextHop; }
+
+        /**
+         * Gets the number of relays between this device and the destination (0 == direct)
+         * @return
+         */
+        public int getHops() { return hops; }
+
+        public int getCost() { return cost; }
+
+        @Override
+        public String toString() {
+            return "SqAN ID "+destination+" via "+nextHop+" ("+hops+" hop"+((hops==1)?"":"s")+", cost "+cost+")";
+        }
+    }
+
+    /**
+     * The direct links advertised by a single device
+     */
+    private static class LinkState {
+        private final int[] neighbors;
+        private final int[] costs;
+        private final long received;
+
+        private LinkState(int[] neighbors, int[] costs, long received) {
+            this.neighbors = neighbors;
+            this.costs = costs;
+            this.received = received;
+        }
+
+        private boolean isSame(int[] otherNeighbors, int[] otherCosts) {
+            if (neighbors.length != otherNeighbors.length)
+                return false;
+            for (int i=0;i<neighbors.length;i++) {
+                if ((neighbors[i] != otherNeighbors[i]) || (costs[i] != otherCosts[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    public static RoutingTable getInstance() { return instance; }
+
+    /**
+     * Updates the graph with the direct links a device reported in its heartbeat
+     * @param origin the device that sent the heartbeat
+     * @param relays the connections listed in the heartbeat
+     */
+    public void onLinkStateReceived(int origin, ArrayList<RelayConnection> relays) {
+        if (origin <= 0)
+            return;
+        int count = 0;
+        if (relays != null) {
+            for (RelayConnection relay:relays) {
+                if ((relay.getHops() == 0) && (relay.getSqAnID() > 0) && (relay.getSqAnID() != origin))
+                    count++;
+            }
+        }
+        int[] neighbors = new int[count];
+        int[] costs = new int[count];
+        if (count > 0) {
+            int i = 0;
+            for (RelayConnection relay:relays) {
+                if ((relay.getHops() == 0) && (relay.getSqAnID() > 0) && (relay.getSqAnID() != origin)) {
+                    neighbors[i] = relay.getSqAnID();
+                    costs[i] = getTransportCost(relay.isDirectWiFi(),false,relay.isDirectBt());
+                    i++;
+                }
+            }
+            sort(neighbors,costs);
+        }
+        synchronized (lock) {
+            LinkState old = advertised.put(origin,new LinkState(neighbors,costs,System.currentTimeMillis()));
+            if ((old == null) || !old.isSame(neighbors,costs))
+                dirty = true;
+        }
+    }
+
+    /**
+     * Forces the routes to be recalculated the next time they are needed; used when this
+     * device's own direct links change
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Removes everything learned about the mesh
+     */
+    public void clear() {
+        synchronized (lock) {
+            advertised.clear();
+            routes = Collections.emptyMap();
+            localSignature = new int[0];
+            dirty = true;
+        }
+    }
+
+    /**
+     * Gets the best route to a device
+     * @param destination
+     * @return the route (or null if the device is not reachable or is this device)
+     */
+    public Route getRoute(int destination) {
+        if ((destination == PacketHeader.BROADCAST_ADDRESS) || (destination <= 0))
+            return null;
+        if (dirty || (System.currentTimeMillis() > lastCalculated + MAX_ROUTE_AGE))
+            calculate();
+        return routes.get(destination);
+    }
+
+    /**
+     * Gets the directly connected device that packets for the destination should be sent to
+     * @param destination
+     * @return the UUID of the next hop (or NO_ROUTE if there is no known route)
+     */
+    public int getNextHop(int destination) {
+        Route route = getRoute(destination);
+        if (route == null)
+            return NO_ROUTE;
+        return route.nextHop;
+    }
+
+    /**
+     * Gets the number of relays needed to reach a device
+     * @param destination
+     * @return number of relays (0 == direct) or Integer.MAX_VALUE if the device is not reachable
+     */
+    public int getHops(int destination) {
+        Route route = getRoute(destination);
+        if (route == null)
+            return Integer.MAX_VALUE;
+        return route.hops;
+    }
+
+    /**
+     * Should a unicast packet be passed on to this neighbor; when no route is known the packet
+     * is passed to every neighbor as before
+     * @param destination the packet's destination
+     * @param neighbor the directly connected device being considered
+     * @return
+     */
+    public boolean isOnPath(int destination, int neighbor) {
+        if (destination == PacketHeader.BROADCAST_ADDRESS)
+            return true;
+        int nextHop = getNextHop(destination);
+        return (nextHop == NO_ROUTE) || (nextHop == neighbor);
+    }
+
+    private static int getTransportCost(boolean wifi, boolean wifiHighPerformance, boolean bt) {
+        if (wifiHighPerformance)
+            return COST_WIFI_HIGH_PERFORMANCE;
+        if (wifi)
+            return COST_WIFI;
+        if (bt)
+            return COST_BT;
+        return COST_OTHER;
+    }
+
+    /**
+     * Gets the cost of this device's direct link to a neighbor
+     */
+    private static int getLocalCost(SqAnDevice device, long now) {
+        int cost = getTransportCost(device.isDirectWiFi(),device.isDirectWiFi() && device.isDirectWiFiHighPerformance(),device.isDirectBt());
+        long latency = device.getAverageLatency();
+        if (latency > 0l)
+            cost += (int)Math.min(COST_STALE,latency/2l/LATENCY_PER_COST); //latency history is round trip
+        cost += COST_PER_DROP * Math.min(10,device.getPacketsDroppedSince(now - DROP_WINDOW));
+        if (now > device.getLastConnect() + SqAnDevice.TIME_TO_STALE/2l)
+            cost += COST_STALE;
+        return cost;
+    }
+
+    /**
+     * Recalculates the shortest path to every known device
+     */
+    private void calculate() {
+        SqAnDevice thisDevice = Config.getThisDevice();
+        if (thisDevice == null)
+            return;
+        final int self = thisDevice.getUUID();
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (!dirty && (now <= lastCalculated + MAX_ROUTE_AGE))
+                return; //another thread already did this
+
+            //build the graph; a link counts if either end reports it
+            HashMap<Integer, HashMap<Integer, Integer>> graph = new HashMap<>();
+            ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
+            ArrayList<Integer> local = new ArrayList<>();
+            if (devices != null) {
+                for (SqAnDevice device:devices) {
+                    if ((device.getUUID() > 0) && (device.getUUID() != self) && device.isActive() && (device.getHopsAway() == 0)) {
+                        int cost = getLocalCost(device,now);
+                        addLink(graph,self,device.getUUID(),cost);
+                        local.add(device.getUUID());
+                        local.add(cost);
+                    }
+                }
+            }
+            int[] signature = new int[local.size()];
+            for (int i=0;i<signature.length;i++) {
+                signature[i] = local.get(i);
+            }
+            boolean changed = dirty || !Arrays.equals(signature,localSignature);
+            localSignature = signature;
+
+            ArrayList<Integer> expired = null;
+            for (Map.Entry<Integer, LinkState> entry:advertised.entrySet()) {
+                LinkState state = entry.getValue();
+                if (now > state.received + SqAnDevice.TIME_TO_STALE) {
+                    if (expired == null)
+                        expired = new ArrayList<>();
+                    expired.add(entry.getKey());
+                    continue;
+                }
+                for (int i=0;i<state.neighbors.length;i++) {
+                    if (state.neighbors[i] != self) //this device's own links are already covered by the local measurements
+                        addLink(graph,entry.getKey(),state.neighbors[i],state.costs[i]);
+                }
+            }
+            if (expired != null) {
+                for (Integer origin:expired) {
+                    advertised.remove(origin);
+                }
+                changed = true;
+            }
+            dirty = false;
+            lastCalculated = now;
+            if (!changed)
+                return;
+
+            //Dijkstra from this device, carrying along the first hop used to reach each device
+            HashMap<Integer, Route> next = new HashMap<>();
+            HashMap<Integer, Integer> best = new HashMap<>();
+            PriorityQueue<int[]> queue = new PriorityQueue<>(16,(a,b) -> Integer.compare(a[1],b[1])); //{device, cost, first hop, hops}
+            best.put(self,0);
+            queue.add(new int[] {self,0,NO_ROUTE,-1});
+            while (!queue.isEmpty()) {
+                int[] item = queue.poll();
+                int node = item[0];
+                if (item[1] > best.get(node))
+                    continue; //already found a cheaper way here
+                if (node != self) {
+                    if (next.containsKey(node))
+                        continue;
+                    next.put(node,new Route(node,item[2],item[3],item[1]));
+                }
+                HashMap<Integer, Integer> links = graph.get(node);
+                if (links == null)
+                    continue;
+                for (Map.Entry<Integer, Integer> link:links.entrySet()) {
+                    int neighbor = link.getKey();
+                    int cost = item[1] + link.getValue();
+                    Integer known = best.get(neighbor);
+                    if ((known == null) || (cost < known)) {
+                        best.put(neighbor,cost);
+                        queue.add(new int[] {neighbor,cost,(node == self)?neighbor:item[2],item[3]+1});
+                    }
+                }
+            }
+            if (next.size() != routes.size())
+                CommsLog.log(CommsLog.Entry.Category.STATUS,"Routing table updated; "+next.size()+" device"+((next.size()==1)?"":"s")+" reachable");
+            routes = next;
+        }
+    }
+
+    private static void addLink(HashMap<Integer, HashMap<Integer, Integer>> graph, int a, int b, int cost) {
+        addDirectedLink(graph,a,b,cost);
+        addDirectedLink(graph,b,a,cost);
+    }
+
+    private static void addDirectedLink(HashMap<Integer, HashMap<Integer, Integer>> graph, int from, int to, int cost) {
+        HashMap<Integer, Integer> links = graph.get(from);
+        if (links == null) {
+            links = new HashMap<>();
+            graph.put(from,links);
+        }
+        Integer current = links.get(to);
+        if ((current == null) || (cost < current))
+            links.put(to,cost);
+    }
+
+    /**
+     * Sorts the neighbors (and their costs along with them) so link states can be compared
+     */
+    private static void sort(int[] neighbors, int[] costs) {
+        for (int i=1;i<neighbors.length;i++) {
+            int n = neighbors[i];
+            int c = costs[i];
+            int j = i - 1;
+            while ((j >= 0) && (neighbors[j] > n)) {
+                neighbors[j+1] = neighbors[j];
+                costs[j+1] = costs[j];
+                j--;
+            }
+            neighbors[j+1] = n;
+            costs[j+1] = c;
+        }
+    }
+
+    /**
+     * Gets a snapshot of the current routes
+     * @return
+     */
+    public ArrayList<Route> getRoutes() {
+        if (dirty || (System.currentTimeMillis() > lastCalculated + MAX_ROUTE_AGE))
+            calculate();
+        return new ArrayList<>(routes.values());
+    }
+}
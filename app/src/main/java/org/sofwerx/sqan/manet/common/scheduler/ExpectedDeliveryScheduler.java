@@ -0,0 +1,242 @@
+package org.sofwerx.sqan.manet.common.scheduler;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.AbstractManet;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends each unicast packet over the transport expected to deliver it soonest, based on the
+ * current LinkQuality estimates: the time to drain what is already queued, the time to send the
+ * packet itself and half the round trip to the next hop, all stretched by the transport's loss
+ * rate. Packets that cannot be lost can optionally be sent over the runner up transport as well
+ * when it is nearly as good (duplicates are dropped by the receiver).
+ *
+ * Broadcasts still go over every available transport since each may reach different devices,
+ * but lossy broadcasts skip transports that are badly backed up. SDR is only a fallback for
+ * broadcasts; it is used when WiFi or Bluetooth is not healthy.
+ *
+ * When multipath is enabled, large data packets to a neighbor that can be reached over more than
+ * one healthy transport are striped across them in proportion to each transport's effective
+ * throughput. Striped packets are marked as such so the receiver's ReorderBuffer puts them back
+ * in order.
+ */
+public class ExpectedDeliveryScheduler implements TransportScheduler {
+    private final static float CONGESTION_PENALTY = 1000f; //ms added when a transport reports that it is congested
+    private final static float MAX_LOSSY_QUEUE_DELAY = 2000f; //ms; lossy broadcasts skip transports backed up more than this
+    private final static float REDUNDANT_RATIO = 1.5f; //runner up must be expected within this multiple of the best to also be used
+    private final static int MIN_STRIPE_SIZE = 512; //bytes; smaller packets are not worth striping
+    private final static float MAX_STRIPE_LOSS = 0.5f; //transports losing more than this are left out of the stripe
+    private final static long STRIPE_REBASE = 1000000l; //bytes; assigned counts are pulled back down past this
+    private final Map<Integer, Stripe> stripes = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes assigned to each transport for one destination
+     */
+    private static class Stripe {
+        private final EnumMap<TransportPreference, Long> assigned = new EnumMap<>(TransportPreference.class);
+
+        private long get(TransportPreference transport) {
+            Long bytes = assigned.get(transport);
+            if (bytes == null)
+                return 0l;
+            return bytes;
+        }
+    }
+
+    @Override
+    public ArrayList<AbstractManet> schedule(AbstractPacket packet, ArrayList<AbstractManet> available) {
+        ArrayList<AbstractManet> selected = new ArrayList<>(available.size());
+        if ((packet == null) || available.isEmpty())
+            return selected;
+        final int size = packet.getSize(); //uncompressed estimate so scheduling never encodes the body
+        final boolean wifiOnly = Config.isLargeDataWiFiOnly() && packet.isHighPerformanceNeeded();
+
+        SqAnDevice neighbor = null;
+        if (packet.getSqAnDestination() != PacketHeader.BROADCAST_ADDRESS) {
+            int nextHop = RoutingTable.getInstance().getNextHop(packet.getSqAnDestination());
+            neighbor = SqAnDevice.findByUUID((nextHop == RoutingTable.NO_ROUTE)?packet.getSqAnDestination():nextHop);
+        }
+
+        if (neighbor == null) { //broadcast or an unknown device
+            final boolean sdrAllowed = !isAvailable(available,TransportPreference.WIFI) || !isAvailable(available,TransportPreference.BLUETOOTH);
+            AbstractManet best = null;
+            float bestTime = Float.MAX_VALUE;
+            for (AbstractManet manet:available) {
+                if (wifiOnly && (manet.getTransport() == TransportPreference.BLUETOOTH))
+                    continue;
+                if (!sdrAllowed && (manet.getTransport() == TransportPreference.SDR))
+                    continue;
+                float time = getExpectedTime(manet,-1,size);
+                if (time < bestTime) {
+                    bestTime = time;
+                    best = manet;
+                }
+                if (!packet.isLossy() || (getQueueDelay(manet) < MAX_LOSSY_QUEUE_DELAY))
+                    selected.add(manet);
+            }
+            if (selected.isEmpty() && (best != null))
+                selected.add(best);
+            return selected;
+        }
+
+        boolean anyDirect = neighbor.isDirectWiFi() || neighbor.isDirectBt() || neighbor.isDirectSDR();
+        if (Config.isMultipathEnabled() && anyDirect && !packet.isAdminPacket() && (size >= MIN_STRIPE_SIZE)
+                && neighbor.hasCapability(SqAnDevice.CAPABILITY_COMPACT)) { //only the v2 header can mark the packet as striped
+            AbstractManet striped = stripe(neighbor,available,size);
+            if (striped != null) {
+                packet.setStriped(true);
+                selected.add(striped);
+                return selected;
+            }
+        }
+
+        AbstractManet best = null;
+        AbstractManet runnerUp = null;
+        float bestTime = Float.MAX_VALUE;
+        float runnerUpTime = Float.MAX_VALUE;
+        for (AbstractManet manet:available) {
+            TransportPreference transport = manet.getTransport();
+            if (wifiOnly && (transport == TransportPreference.BLUETOOTH))
+                continue;
+            if (anyDirect && !isReachable(neighbor,transport))
+                continue;
+            float time = getExpectedTime(manet,neighbor.getUUID(),size);
+            if (time < bestTime) {
+                runnerUp = best;
+                runnerUpTime = bestTime;
+                best = manet;
+                bestTime = time;
+            } else if (time < runnerUpTime) {
+                runnerUp = manet;
+                runnerUpTime = time;
+            }
+        }
+        if (best == null) { //the neighbor cannot be reached over any of the allowed transports, so use them all
+            for (AbstractManet manet:available) {
+                if (!wifiOnly || (manet.getTransport() != TransportPreference.BLUETOOTH))
+                    selected.add(manet);
+            }
+            return selected;
+        }
+        selected.add(best);
+        if ((runnerUp != null) && !packet.isLossy() && Config.isRedundantSendEnabled() && (runnerUpTime <= bestTime * REDUNDANT_RATIO))
+            selected.add(runnerUp);
+        return selected;
+    }
+
+    /**
+     * Picks the transport for the next packet of a striped flow to this neighbor; each packet goes
+     * to the transport that will have the least backlog, relative to its effective throughput,
+     * once the packet is added
+     * @param neighbor
+     * @param available
+     * @param size
+     * @return the MANET to use (or null if fewer than two healthy transports reach the neighbor)
+     */
+    private AbstractManet stripe(SqAnDevice neighbor, ArrayList<AbstractManet> available, int size) {
+        LinkQuality quality = LinkQuality.getInstance();
+        int healthy = 0;
+        for (AbstractManet manet:available) {
+            if (isStripeable(neighbor,manet))
+                healthy++;
+        }
+        if (healthy < 2)
+            return null;
+        Stripe stripe = stripes.get(neighbor.getUUID());
+        if (stripe == null) {
+            stripe = new Stripe();
+            Stripe existing = ((ConcurrentHashMap<Integer, Stripe>)stripes).putIfAbsent(neighbor.getUUID(),stripe);
+            if (existing != null)
+                stripe = existing;
+        }
+        synchronized (stripe) {
+            AbstractManet best = null;
+            float bestScore = Float.MAX_VALUE;
+            for (AbstractManet manet:available) {
+                if (!isStripeable(neighbor,manet))
+                    continue;
+                TransportPreference transport = manet.getTransport();
+                float rate = quality.getCapacity(transport) * (1f - quality.getLoss(transport));
+                float score = (float)(stripe.get(transport) + size) / rate;
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = manet;
+                }
+            }
+            if (best == null)
+                return null;
+            long total = stripe.get(best.getTransport()) + size;
+            stripe.assigned.put(best.getTransport(),total);
+            if (total > STRIPE_REBASE) { //keep the counts small; only their differences matter
+                long min = Long.MAX_VALUE;
+                for (Long bytes:stripe.assigned.values())
+                    min = Math.min(min,bytes);
+                for (Map.Entry<TransportPreference, Long> entry:stripe.assigned.entrySet())
+                    entry.setValue(entry.getValue() - min);
+            }
+            return best;
+        }
+    }
+
+    private static boolean isAvailable(ArrayList<AbstractManet> available, TransportPreference transport) {
+        for (AbstractManet manet:available) {
+            if (manet.getTransport() == transport)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isStripeable(SqAnDevice neighbor, AbstractManet manet) {
+        TransportPreference transport = manet.getTransport();
+        return isReachable(neighbor,transport) && !manet.isCongested()
+                && (LinkQuality.getInstance().getLoss(transport) < MAX_STRIPE_LOSS);
+    }
+
+    private static boolean isReachable(SqAnDevice neighbor, TransportPreference transport) {
+        switch (transport) {
+            case WIFI:
+                return neighbor.isDirectWiFi();
+            case BLUETOOTH:
+                return neighbor.isDirectBt();
+            case SDR:
+                return neighbor.isDirectSDR();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Gets how long (in ms) it should take what is already queued on this MANET to be sent
+     */
+    private static float getQueueDelay(AbstractManet manet) {
+        LinkQuality quality = LinkQuality.getInstance();
+        float delay = (float)manet.getQueuedBytes() * 1000f / quality.getCapacity(manet.getTransport());
+        if (manet.isCongested())
+            delay += CONGESTION_PENALTY;
+        return delay;
+    }
+
+    /**
+     * Gets how long (in ms) a packet is expected to take to be delivered over this MANET
+     * @param manet
+     * @param uuid the neighbor the packet is going to (or -1 if unknown)
+     * @param size packet size in bytes
+     * @return
+     */
+    private static float getExpectedTime(AbstractManet manet, int uuid, int size) {
+        LinkQuality quality = LinkQuality.getInstance();
+        TransportPreference transport = manet.getTransport();
+        float time = getQueueDelay(manet) + (float)size * 1000f / quality.getCapacity(transport);
+        time += quality.getRoundTrip(uuid,transport) / 2f;
+        return time / (1f - quality.getLoss(transport));
+    }
+}
@@ -0,0 +1,214 @@
+package org.sofwerx.sqan.manet.common.scheduler;
+
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a running estimate of how well each transport (WiFi, Bluetooth, SDR) is performing:
+ * throughput, loss and queue depth per transport, and round trip time per neighbor and transport.
+ * The estimates start from nominal values for each transport and are moved toward what is
+ * actually measured as traffic flows.
+ */
+public class LinkQuality {
+    private final static float ALPHA = 0.2f; //weight given to each new sample
+    private final static long MIN_SAMPLE_INTERVAL = 1000l;
+    private final static float MIN_CAPACITY = 500f; //bytes/sec; never assume a transport is slower than this
+    private final static float MAX_LOSS = 0.9f;
+    private final static LinkQuality instance = new LinkQuality();
+    private final EnumMap<TransportPreference, TransportStats> transports = new EnumMap<>(TransportPreference.class);
+    private final Map<Long, Float> roundTrips = new ConcurrentHashMap<>();
+
+    private static class TransportStats {
+        private final float nominalRoundTrip;
+        private volatile float capacity; //bytes/sec
+        private volatile float loss = 0f; //0 to 1
+        private volatile long queuedBytes = 0l;
+        private final AtomicLong sent = new AtomicLong(0l);
+        private final AtomicLong delivered = new AtomicLong(0l);
+        private final AtomicLong dropped = new AtomicLong(0l);
+        private long sampleStart = System.currentTimeMillis();
+        private long sampleSent = 0l;
+        private long sampleQueued = 0l;
+        private long sampleDelivered = 0l;
+        private long sampleDropped = 0l;
+
+        private TransportStats(float nominalCapacity, float nominalRoundTrip) {
+            this.capacity = nominalCapacity;
+            this.nominalRoundTrip = nominalRoundTrip;
+        }
+    }
+
+    private LinkQuality() {
+        transports.put(TransportPreference.WIFI,new TransportStats(2000000f,20f));
+        transports.put(TransportPreference.BLUETOOTH,new TransportStats(100000f,60f));
+        transports.put(TransportPreference.SDR,new TransportStats(4000f,250f));
+    }
+
+    public static LinkQuality getInstance() { return instance; }
+
+    private TransportStats get(TransportPreference transport) {
+        if (transport == null)
+            return null;
+        return transports.get(transport);
+    }
+
+    private static long toKey(int uuid, TransportPreference transport) {
+        return ((long)uuid << 8) | transport.ordinal();
+    }
+
+    /**
+     * Records bytes handed to a transport to send
+     * @param transport
+     * @param bytes
+     */
+    public void onSent(TransportPreference transport, int bytes) {
+        TransportStats stats = get(transport);
+        if (stats != null)
+            stats.sent.addAndGet(bytes);
+    }
+
+    /**
+     * Records a packet successfully received over a transport
+     * @param transport
+     */
+    public void onReceived(TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats != null)
+            stats.delivered.incrementAndGet();
+    }
+
+    /**
+     * Records a packet that arrived over a transport but could not be used
+     * @param transport
+     */
+    public void onDropped(TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats != null)
+            stats.dropped.incrementAndGet();
+    }
+
+    /**
+     * Records a round trip time measured to a neighbor over a transport
+     * @param uuid
+     * @param transport
+     * @param roundTrip round trip time in ms
+     */
+    public void onRoundTrip(int uuid, TransportPreference transport, long roundTrip) {
+        TransportStats stats = get(transport);
+        if ((stats == null) || (roundTrip < 0l))
+            return;
+        long key = toKey(uuid,transport);
+        Float current = roundTrips.get(key);
+        if (current == null)
+            roundTrips.put(key,(float)roundTrip);
+        else
+            roundTrips.put(key,current + ALPHA * ((float)roundTrip - current));
+    }
+
+    /**
+     * Updates the throughput and loss estimates for a transport; should be called periodically
+     * @param transport
+     * @param queuedBytes bytes currently waiting to be sent over this transport
+     */
+    public void sample(TransportPreference transport, long queuedBytes) {
+        TransportStats stats = get(transport);
+        if (stats == null)
+            return;
+        stats.queuedBytes = queuedBytes;
+        synchronized (stats) {
+            long now = System.currentTimeMillis();
+            long elapsed = now - stats.sampleStart;
+            if (elapsed < MIN_SAMPLE_INTERVAL)
+                return;
+            long sent = stats.sent.get();
+            long drained = (sent - stats.sampleSent) - (queuedBytes - stats.sampleQueued);
+            float rate = (float)drained * 1000f / (float)elapsed;
+            if ((stats.sampleQueued > 0l) && (queuedBytes > 0l)) //the queue never emptied so this is what the link can actually do
+                stats.capacity = Math.max(MIN_CAPACITY,stats.capacity + ALPHA * (rate - stats.capacity));
+            else if (rate > stats.capacity) //the link has shown it can do at least this much
+                stats.capacity = rate;
+
+            long delivered = stats.delivered.get();
+            long dropped = stats.dropped.get();
+            long total = (delivered - stats.sampleDelivered) + (dropped - stats.sampleDropped);
+            if (total > 0l) {
+                float loss = (float)(dropped - stats.sampleDropped) / (float)total;
+                stats.loss = Math.min(MAX_LOSS,stats.loss + ALPHA * (loss - stats.loss));
+            }
+
+            stats.sampleStart = now;
+            stats.sampleSent = sent;
+            stats.sampleQueued = queuedBytes;
+            stats.sampleDelivered = delivered;
+            stats.sampleDropped = dropped;
+        }
+    }
+
+    /**
+     * Gets the estimated throughput of a transport
+     * @param transport
+     * @return bytes/sec
+     */
+    public float getCapacity(TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats == null)
+            return MIN_CAPACITY;
+        return stats.capacity;
+    }
+
+    /**
+     * Gets the estimated fraction of packets lost over a transport
+     * @param transport
+     * @return 0 to MAX_LOSS
+     */
+    public float getLoss(TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats == null)
+            return 0f;
+        return stats.loss;
+    }
+
+    /**
+     * Gets the number of bytes waiting to be sent over a transport as of the last sample
+     * @param transport
+     * @return
+     */
+    public long getQueuedBytes(TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats == null)
+            return 0l;
+        return stats.queuedBytes;
+    }
+
+    /**
+     * Gets the estimated round trip time to a neighbor over a transport
+     * @param uuid
+     * @param transport
+     * @return round trip time in ms (the transport's nominal value if nothing has been measured)
+     */
+    public float getRoundTrip(int uuid, TransportPreference transport) {
+        TransportStats stats = get(transport);
+        if (stats == null)
+            return Float.MAX_VALUE;
+        Float measured = roundTrips.get(toKey(uuid,transport));
+        if (measured == null)
+            return stats.nominalRoundTrip;
+        return measured;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<TransportPreference, TransportStats> entry:transports.entrySet()) {
+            if (sb.length() > 0)
+                sb.append("; ");
+            TransportStats stats = entry.getValue();
+            sb.append(entry.getKey().name()+" "+Math.round(stats.capacity/1000f)+"kB/s, "+Math.round(stats.loss*100f)+"% loss, "+stats.queuedBytes+"b queued");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,224 @@
+package org.sofwerx.sqan.manet.common.scheduler;
+
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts data packets from the same origin back in order when they arrive over more than one
+ * transport. Only packets the sender marked as striped across transports (see
+ * AbstractPacket.setStriped()) are held; everything else is passed straight on.
+ *
+ * Packets are ordered by their per-origin timestamp (see PacketHeader). Each transport delivers
+ * a given origin's packets in order, so a held packet can be passed on once every transport
+ * that has recently carried traffic from that origin has delivered something at least as new;
+ * nothing older can still be on its way. The window is bounded both in time and in the number
+ * of packets held so a lost packet only delays the ones behind it briefly.
+ */
+public class ReorderBuffer {
+    private final static long MAX_HOLD_TIME = 250l; //ms a packet can be held waiting for an earlier one
+    private final static int MAX_HELD = 256; //packets held per origin before the oldest is released regardless
+    private final static long PATH_IDLE_TIME = 1000l; //a transport that has not carried anything from the origin for this long is not waited on
+    private final static ReorderBuffer instance = new ReorderBuffer();
+    private final Map<Integer, Origin> origins = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timer;
+
+    /**
+     * Receives the packets once they are in order; packets that were held until their hold time
+     * ran out are passed on from the buffer's timer thread
+     */
+    public interface Receiver {
+        void onInOrder(AbstractPacket packet);
+    }
+
+    private static class Path {
+        private long newest = Long.MIN_VALUE;
+        private long lastHeard = Long.MIN_VALUE;
+    }
+
+    private static class Held implements Comparable<Held> {
+        private final AbstractPacket packet;
+        private final Receiver receiver;
+        private final long time;
+        private final long arrived;
+        private final long order; //breaks ties between packets with the same timestamp
+
+        private Held(AbstractPacket packet, Receiver receiver, long arrived, long order) {
+            this.packet = packet;
+            this.receiver = receiver;
+            this.time = packet.getTime();
+            this.arrived = arrived;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Held other) {
+            int result = Long.compare(time,other.time);
+            if (result == 0)
+                result = Long.compare(order,other.order);
+            return result;
+        }
+    }
+
+    private class Origin {
+        private final EnumMap<TransportPreference, Path> paths = new EnumMap<>(TransportPreference.class);
+        private final TreeSet<Held> held = new TreeSet<>();
+        private long heldCount = 0l;
+        private long lastReleased = Long.MIN_VALUE;
+        private ScheduledFuture<?> flush;
+
+        private int getActivePathCount(long now) {
+            int count = 0;
+            for (Path path:paths.values()) {
+                if (now < path.lastHeard + PATH_IDLE_TIME)
+                    count++;
+            }
+            return count;
+        }
+
+        /**
+         * Has every active path delivered something at least as new as this time
+         */
+        private boolean isCaughtUp(long time, long now) {
+            for (Path path:paths.values()) {
+                if ((now < path.lastHeard + PATH_IDLE_TIME) && (path.newest < time))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Records that a transport has delivered a packet with this timestamp
+         */
+        private void onArrived(TransportPreference transport, long time, long now) {
+            Path path = paths.get(transport);
+            if (path == null) {
+                path = new Path();
+                paths.put(transport,path);
+            }
+            path.newest = Math.max(path.newest,time);
+            path.lastHeard = now;
+        }
+
+        private void release(long now) {
+            while (!held.isEmpty()) {
+                Held item = held.first();
+                if ((held.size() > MAX_HELD) || (now >= item.arrived + MAX_HOLD_TIME) || isCaughtUp(item.time,now)) {
+                    held.pollFirst();
+                    lastReleased = Math.max(lastReleased,item.time);
+                    item.receiver.onInOrder(item.packet);
+                } else
+                    break;
+            }
+            if (!held.isEmpty() && (flush == null)) {
+                long delay = Math.max(1l,held.first().arrived + MAX_HOLD_TIME - now);
+                final Origin origin = this;
+                flush = getTimer().schedule(() -> {
+                    synchronized (origin) {
+                        flush = null;
+                        release(System.currentTimeMillis());
+                    }
+                },delay,TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Drops everything held and cancels any pending flush
+         */
+        private void clear() {
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+            held.clear();
+        }
+    }
+
+    public static ReorderBuffer getInstance() { return instance; }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (timer == null)
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable,"ReorderBuffer");
+                thread.setDaemon(true); //never keep the process alive just to flush held packets
+                return thread;
+            });
+        return timer;
+    }
+
+    private Origin getOrigin(int uuid) {
+        Origin origin = origins.get(uuid);
+        if (origin == null) {
+            origin = new Origin();
+            Origin existing = ((ConcurrentHashMap<Integer, Origin>)origins).putIfAbsent(uuid,origin);
+            if (existing != null)
+                origin = existing;
+        }
+        return origin;
+    }
+
+    /**
+     * Passes the packet to the receiver once every earlier packet from the same origin has
+     * been passed on (or given up on). Call this only for data packets that have passed the
+     * duplicate filter, since each one also records how far along its transport is.
+     * @param packet
+     * @param transport the transport the packet arrived over
+     * @param receiver
+     */
+    public void deliver(AbstractPacket packet, TransportPreference transport, Receiver receiver) {
+        if ((packet == null) || (receiver == null))
+            return;
+        if (!packet.isStriped() || (transport == null)) { //not part of a stripe so there is nothing to put back in order
+            receiver.onInOrder(packet);
+            return;
+        }
+        Origin origin = getOrigin(packet.getOrigin());
+        long now = System.currentTimeMillis();
+        synchronized (origin) {
+            long time = packet.getTime();
+            origin.onArrived(transport,time,now);
+            if ((origin.held.isEmpty() && (origin.getActivePathCount(now) < 2)) || (time <= origin.lastReleased)) {
+                //only one way in (nothing to reorder) or too late to put back in order
+                origin.lastReleased = Math.max(origin.lastReleased,time);
+                receiver.onInOrder(packet);
+            } else
+                origin.held.add(new Held(packet,receiver,now,origin.heldCount++));
+            if (!origin.held.isEmpty())
+                origin.release(now);
+        }
+    }
+
+    /**
+     * Drops everything held and forgets the state for every origin
+     */
+    public void clear() {
+        for (Origin origin:origins.values()) {
+            synchronized (origin) {
+                origin.clear();
+            }
+        }
+        origins.clear();
+    }
+
+    /**
+     * Clears the buffer and stops its timer thread (i.e. when the MANETs are shut down); the
+     * timer is started again if the buffer is used afterwards
+     */
+    public void shutdown() {
+        clear();
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+    }
+}
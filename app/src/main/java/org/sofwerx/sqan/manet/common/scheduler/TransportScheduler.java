@@ -0,0 +1,19 @@
+package org.sofwerx.sqan.manet.common.scheduler;
+
+import org.sofwerx.sqan.manet.common.AbstractManet;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+
+import java.util.ArrayList;
+
+/**
+ * Decides which of the available MANETs a packet should be sent over
+ */
+public interface TransportScheduler {
+    /**
+     * Picks the MANETs to send a packet over
+     * @param packet the packet to send
+     * @param available the MANETs that are currently connected
+     * @return the MANETs to send the packet over (empty if it should not be sent)
+     */
+    ArrayList<AbstractManet> schedule(AbstractPacket packet, ArrayList<AbstractManet> available);
+}
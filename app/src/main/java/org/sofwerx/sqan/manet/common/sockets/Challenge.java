@@ -1,23 +1,53 @@
 package org.sofwerx.sqan.manet.common.sockets;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 /**
  * Placeholder
+ *
+ * The challenge and response also start the framing negotiation. The server offers the marked
+ * framing (see FrameDecoder) by sending FRAMING_OFFER as its challenge and a client that
+ * understands it answers FRAMING_ACCEPT. Older builds send and answer with random bytes, so a
+ * single byte can match by chance and is only a hint; nothing switches on it. Both sides keep
+ * the legacy framing and confirm with multi-byte messages sent as legacy frames:
+ *
+ *   1. a server that got FRAMING_ACCEPT sends FRAMING_HELLO
+ *   2. a client that answered FRAMING_ACCEPT and then gets FRAMING_HELLO sends FRAMING_SWITCH
+ *      and sends marked frames from then on
+ *   3. a server that sent FRAMING_HELLO and then gets FRAMING_SWITCH reads marked frames from
+ *      then on, answers with its own FRAMING_SWITCH and sends marked frames from then on
+ *   4. a client that gets FRAMING_SWITCH after sending its own reads marked frames from then on
+ *
+ * The messages are shorter than any packet header so an older build never sends one by chance.
+ * An older client that gets FRAMING_HELLO (after a chance match) drops it as too short to be a
+ * packet. The client never sends anything but packets until it has heard FRAMING_HELLO, so an
+ * older server never gets one.
  */
 public class Challenge {
     public static final int CHALLENGE_LENGTH = 1;
+    private final static byte FRAMING_OFFER = (byte)0b10100101;
+    private final static byte FRAMING_ACCEPT = (byte)0b01011010;
+    private final static byte[] FRAMING_HELLO = "SqANfrmH".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] FRAMING_SWITCH = "SqANfrmS".getBytes(StandardCharsets.US_ASCII);
 
     /**
      * Placeholder
      * @param password
-     * @param array
+     * @param array the challenge from the server
      * @return
      */
     public static byte[] getResponse(byte[] password, byte[] array) {
         byte[] expected = new byte[CHALLENGE_LENGTH];
+        if (isFramingOffered(array)) {
+            expected[0] = FRAMING_ACCEPT;
+            return expected;
+        }
         Random random = new Random();
-        random.nextBytes(expected);
+        do {
+            random.nextBytes(expected);
+        } while (expected[0] == FRAMING_ACCEPT);
         return expected;
     }
 
@@ -27,8 +57,69 @@ public class Challenge {
      */
     public static byte[] generateChallenge() {
         byte[] challenge = new byte[CHALLENGE_LENGTH];
-        Random random = new Random();
-        random.nextBytes(challenge);
+        challenge[0] = FRAMING_OFFER;
         return challenge;
     }
+
+    /**
+     * Does the server's challenge offer the marked framing
+     * @param challenge
+     * @return
+     */
+    public static boolean isFramingOffered(byte[] challenge) {
+        return (challenge != null) && (challenge.length == CHALLENGE_LENGTH) && (challenge[0] == FRAMING_OFFER);
+    }
+
+    /**
+     * Did the client's response accept the marked framing
+     * @param response
+     * @return
+     */
+    public static boolean isFramingAccepted(byte[] response) {
+        return (response != null) && (response.length == CHALLENGE_LENGTH) && (response[0] == FRAMING_ACCEPT);
+    }
+
+    /**
+     * Gets the FRAMING_HELLO message as a legacy frame ready to write
+     * @return
+     */
+    public static ByteBuffer newFramingHello() { return newFramingFrame(FRAMING_HELLO); }
+
+    /**
+     * Gets the FRAMING_SWITCH message as a legacy frame ready to write
+     * @return
+     */
+    public static ByteBuffer newFramingSwitch() { return newFramingFrame(FRAMING_SWITCH); }
+
+    private static ByteBuffer newFramingFrame(byte[] message) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.LEGACY_PREFIX_SIZE + message.length);
+        frame.putInt(message.length);
+        frame.put(message);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Is this frame the FRAMING_HELLO message
+     * @param frame the frame as returned by FrameDecoder (prefix included)
+     * @return
+     */
+    public static boolean isFramingHello(ByteBuffer frame) { return isFramingMessage(frame,FRAMING_HELLO); }
+
+    /**
+     * Is this frame the FRAMING_SWITCH message
+     * @param frame the frame as returned by FrameDecoder (prefix included)
+     * @return
+     */
+    public static boolean isFramingSwitch(ByteBuffer frame) { return isFramingMessage(frame,FRAMING_SWITCH); }
+
+    private static boolean isFramingMessage(ByteBuffer frame, byte[] message) {
+        if ((frame == null) || (frame.limit() != FrameDecoder.PREFIX_SIZE + message.length))
+            return false;
+        for (int i=0;i<message.length;i++) {
+            if (frame.get(FrameDecoder.PREFIX_SIZE + i) != message[i])
+                return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,236 @@
+package org.sofwerx.sqan.manet.common.sockets;
+
+import org.sofwerx.sqan.manet.common.packet.PacketIntegrity;
+import org.sofwerx.sqan.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Framing for packets sent over TCP. Each frame starts with a sync marker, a CRC-8 of the
+ * packet length and the length itself, followed by the packet:
+ *
+ *   [MARKER_A][MARKER_B][CRC-8 of length][length (4b)][packet]
+ *
+ * If the stream gets corrupted, the decoder drops bytes until it finds the next marker with a
+ * valid length rather than giving up on the connection, so corruption costs a frame instead of
+ * a reconnect.
+ *
+ * Older builds only send the length ([length (4b)][packet]), so the marked framing is only used
+ * once both sides have agreed to it (see Challenge). A legacy frame is the
+ * last LEGACY_PREFIX_SIZE bytes of the prefix plus the packet, so the same buffer can be sent
+ * either way, and legacy frames are read into a buffer with a full prefix so they can be relayed
+ * to either kind of client.
+ *
+ * Packets that carry the CRC32C header extension are checked as their bytes arrive and frames
+ * that fail the check are dropped here rather than being relayed.
+ */
+public class FrameDecoder {
+    public final static byte MARKER_A = (byte)0b10100101;
+    public final static byte MARKER_B = (byte)0b01011010;
+    public final static int PREFIX_SIZE = 7;
+    public final static int LEGACY_PREFIX_SIZE = 4;
+    public final static int LEGACY_OFFSET = PREFIX_SIZE - LEGACY_PREFIX_SIZE;
+    private final static int OFFSET_CRC = 2;
+    private final static int OFFSET_LENGTH = 3;
+    private final int maxFrameSize;
+    private final ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+    private ByteBuffer frame;
+    private final PacketIntegrity integrity = new PacketIntegrity();
+    private int checkedTo = 0;
+    private boolean synced = true;
+    private boolean legacy = false;
+    private boolean endOfStream = false;
+    private long skippedBytes = 0l;
+    private long resyncCount = 0l;
+    private long corruptFrames = 0l;
+
+    /**
+     * @param maxFrameSize largest packet (not counting the prefix) that will be accepted as valid
+     */
+    public FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Writes the frame prefix for a packet of the given size
+     * @param out
+     * @param packetSize
+     */
+    public static void writePrefix(ByteBuffer out, int packetSize) {
+        out.put(MARKER_A);
+        out.put(MARKER_B);
+        out.put(crc8(packetSize));
+        out.putInt(packetSize);
+    }
+
+    /**
+     * Sets if the other side sends legacy frames (the length without the marker or CRC-8)
+     * @param legacy
+     */
+    public void setLegacy(boolean legacy) {
+        this.legacy = legacy;
+        prefix.clear();
+    }
+
+    /**
+     * Does the other side send legacy frames
+     * @return
+     */
+    public boolean isLegacy() { return legacy; }
+
+    /**
+     * CRC-8 (poly 0x07) of the length field so that a marker turning up inside a payload
+     * is not mistaken for the start of a frame
+     * @param value
+     * @return
+     */
+    private static byte crc8(int value) {
+        int crc = 0;
+        for (int shift=24;shift>=0;shift-=8) {
+            crc ^= (value >>> shift) & 0xFF;
+            for (int bit=0;bit<8;bit++) {
+                if ((crc & 0x80) != 0)
+                    crc = ((crc << 1) ^ 0x07) & 0xFF;
+                else
+                    crc = (crc << 1) & 0xFF;
+            }
+        }
+        return (byte)crc;
+    }
+
+    /**
+     * Reads as much of the next frame as is available
+     * @param channel
+     * @return a complete frame (prefix included, from position 0 to limit) from the BufferPool
+     *         which the caller should release (or null if the frame is not complete yet)
+     * @throws IOException
+     */
+    public ByteBuffer read(ReadableByteChannel channel) throws IOException {
+        while (true) {
+            while (frame == null) {
+                if (legacy)
+                    prefix.limit(LEGACY_PREFIX_SIZE);
+                if (!fill(prefix, channel))
+                    return null;
+                int length = legacy?readLegacyLength():findPrefix();
+                if (length < 0) {
+                    if (legacy)
+                        return null; //a legacy stream has no marker to resync on
+                    continue; //dropped bytes up to the next possible marker; keep looking
+                }
+                frame = BufferPool.getInstance().acquire(PREFIX_SIZE + length);
+                writePrefix(frame,length);
+                prefix.clear();
+                integrity.reset();
+                checkedTo = PREFIX_SIZE;
+            }
+            boolean full = fill(frame, channel);
+            check();
+            if (!full)
+                return null;
+            ByteBuffer complete = frame;
+            frame = null;
+            complete.flip();
+            if (!integrity.isValid()) {
+                corruptFrames++;
+                BufferPool.getInstance().release(complete);
+                continue;
+            }
+            if (!synced) {
+                synced = true;
+                resyncCount++;
+            }
+            return complete;
+        }
+    }
+
+    /**
+     * Adds the bytes read into the frame since the last check to the integrity check
+     */
+    private void check() {
+        if (frame.position() > checkedTo) {
+            ByteBuffer fresh = frame.duplicate();
+            fresh.flip();
+            fresh.position(checkedTo);
+            integrity.update(fresh);
+            checkedTo = frame.position();
+        }
+    }
+
+    /**
+     * @param buffer
+     * @param channel
+     * @return true == the buffer is full
+     * @throws IOException
+     */
+    private boolean fill(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining() && ((read = channel.read(buffer)) > 0)) {}
+        if (read < 0)
+            endOfStream = true;
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Checks the full prefix buffer; if it is not a valid prefix, drops bytes up to the
+     * next possible marker
+     * @return the packet length (or -1 if the prefix is not valid)
+     */
+    private int findPrefix() {
+        if ((prefix.get(0) == MARKER_A) && (prefix.get(1) == MARKER_B)) {
+            int length = prefix.getInt(OFFSET_LENGTH);
+            if ((length > 0) && (length <= maxFrameSize) && (prefix.get(OFFSET_CRC) == crc8(length)))
+                return length;
+        }
+        int skip = 1;
+        while ((skip < PREFIX_SIZE) && (prefix.get(skip) != MARKER_A)) {
+            skip++;
+        }
+        prefix.flip();
+        prefix.position(skip);
+        prefix.compact();
+        skippedBytes += skip;
+        synced = false;
+        return -1;
+    }
+
+    /**
+     * Checks the length read from a legacy stream. Legacy frames have nothing to resync on, so
+     * an invalid length ends the stream.
+     * @return the packet length (or -1 if the length is not valid)
+     */
+    private int readLegacyLength() {
+        int length = prefix.getInt(0);
+        if ((length > 0) && (length <= maxFrameSize))
+            return length;
+        skippedBytes += LEGACY_PREFIX_SIZE;
+        endOfStream = true;
+        return -1;
+    }
+
+    /**
+     * @return true == the channel reported the end of the stream (or a legacy stream held a
+     *         length that was not valid, so nothing more can be read from it)
+     */
+    public boolean isEndOfStream() { return endOfStream; }
+
+    /**
+     * Gets the number of bytes that were thrown away while looking for the next frame
+     * @return
+     */
+    public long getSkippedBytes() { return skippedBytes; }
+
+    /**
+     * Gets the number of frames that were delivered after the decoder had to resynchronize
+     * @return
+     */
+    public long getResyncCount() { return resyncCount; }
+
+    /**
+     * Gets the number of complete frames that were dropped because they failed their CRC check
+     * @return
+     */
+    public long getCorruptFrameCount() { return corruptFrames; }
+}
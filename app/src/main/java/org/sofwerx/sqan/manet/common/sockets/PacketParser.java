@@ -6,10 +6,13 @@ import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.manet.common.AbstractManet;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.util.CommsLog;
 
+import java.nio.ByteBuffer;
+
 public class PacketParser {
     private final AbstractManet manet;
 
@@ -64,12 +67,39 @@ public class PacketParser {
             Log.e(Config.TAG, "PacketParser.processPacketAndNotifyManet(null) ignored");
             return null;
         }
-        AbstractPacket packet = AbstractPacket.newFromBytes(bytes);
+        return processPacketAndNotifyManet(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes the packet straight from the buffer (from its position to its limit) and then
+     * processes it. The buffer is not referenced after this returns so it can be reused.
+     * @param in
+     * @return
+     */
+    public SqAnDevice processPacketAndNotifyManet(ByteBuffer in) {
+        return processPacketAndNotifyManet(in,false);
+    }
+
+    /**
+     * Decodes the packet straight from the buffer (from its position to its limit) and then
+     * processes it
+     * @param in
+     * @param verified true == the packet's CRC has already been checked as the frame was read
+     * @return
+     */
+    public SqAnDevice processPacketAndNotifyManet(ByteBuffer in, boolean verified) {
+        if (in == null) {
+            Log.e(Config.TAG, "PacketParser.processPacketAndNotifyManet(null) ignored");
+            return null;
+        }
+        int size = in.remaining();
+        AbstractPacket packet = AbstractPacket.readFrom(in,verified);
         if (packet != null) {
             SqAnDevice device = SqAnDevice.findByUUID(packet.getOrigin());
             if (device != null)
-                device.addToDataTally(bytes.length);
-        }
+                device.addToDataTally(size);
+        } else if (manet != null)
+            PacketMetrics.getInstance().onDropped(manet.getTransport(),PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.UNDECODABLE);
         return processPacketAndNotifyManet(packet);
     }
 
@@ -109,11 +109,12 @@ public class Client extends Thread {
         if (!isAlive())
             return false;
         if ((handler != null) && (packet != null)) {
+            final long queued = System.nanoTime();
             handler.post(() -> {
                 if ((uplink != null) && uplink.isConnected()) {
                     if (datalink != null) {
                         try {
-                            datalink.queue(packet, uplink,listener);
+                            datalink.queue(packet, uplink,listener,queued);
                         } catch (Exception e) {
                             Log.e(TAG, e.getMessage());
                             buildSocket(); //reset the connection
@@ -5,10 +5,15 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
+import org.sofwerx.sqan.manet.common.sockets.FrameDecoder;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+import org.sofwerx.sqan.util.BufferPool;
+import org.sofwerx.sqan.util.CommsLog;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -29,6 +34,14 @@ public class SocketTransceiver {
     private static final int MAX_QUEUE_SLOTS = 10;
     //private SocketChannel socket;
     private final PacketParser parser;
+    private final FrameDecoder decoder = new FrameDecoder(MAX_PACKET_SIZE);
+    private long resyncCount = 0l;
+    private long corruptCount = 0l;
+    private final Object writeLock = new Object();
+    private boolean legacyFraming = true; //frames are written without the marker until the framing negotiation completes (see Challenge)
+    private volatile boolean framingAccepted = false; //answered the server's offer of the marked framing
+    private volatile boolean framingSwitchSent = false;
+    private final TransportPreference transport;
     private enum ClientState {
         READING_BODY, READING_CHALLENGE
     }
@@ -37,6 +50,10 @@ public class SocketTransceiver {
         this.state = ClientState.READING_CHALLENGE;
         this.config = config;
         this.parser = parser;
+        if ((parser != null) && (parser.getManet() != null))
+            transport = parser.getManet().getTransport();
+        else
+            transport = TransportPreference.WIFI;
         this.inputBuffer = ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH);
     }
 
@@ -67,16 +84,41 @@ public class SocketTransceiver {
     }
 
     public int queue(AbstractPacket packet, WritableByteChannel channel, ManetListener listener) throws IOException {
+        return queue(packet,channel,listener,0l);
+    }
+
+    /**
+     * Writes the packet to the channel
+     * @param packet
+     * @param channel
+     * @param listener
+     * @param queued System.nanoTime() when the packet was handed over to be sent (or 0 if not known)
+     * @return
+     * @throws IOException
+     */
+    public int queue(AbstractPacket packet, WritableByteChannel channel, ManetListener listener, long queued) throws IOException {
         if (isReadyToWrite()) {
-            byte[] data = parser.toBytes(packet);
-            if (data != null) {
-                Log.d(Config.TAG,"queuing "+data.length+"b message");
-                ByteBuffer out = ByteBuffer.allocate(4 + data.length);
-                out.putInt(data.length);
-                out.put(data);
-                out.flip();
-                ManetOps.addBytesToTransmittedTally(data.length);
-                immediateOutput(out, channel);
+            if (packet != null) {
+                int size = packet.getSize();
+                Log.d(Config.TAG,"queuing "+size+"b message");
+                ByteBuffer out = BufferPool.getInstance().acquire(FrameDecoder.PREFIX_SIZE + size);
+                try {
+                    FrameDecoder.writePrefix(out,size);
+                    packet.writeTo(out);
+                    out.flip();
+                    ManetOps.addBytesToTransmittedTally(size);
+                    synchronized (writeLock) {
+                        if (legacyFraming)
+                            out.position(FrameDecoder.LEGACY_OFFSET);
+                        immediateOutput(out, channel);
+                    }
+                    PacketMetrics.getInstance().onSent(transport,PacketMetrics.UNKNOWN_NEIGHBOR,size,queued);
+                } catch (IOException e) {
+                    PacketMetrics.getInstance().onDropped(transport,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.WRITE_ERROR);
+                    throw e;
+                } finally {
+                    BufferPool.getInstance().release(out);
+                }
                 if (listener != null)
                     listener.onTx(packet);
             }
@@ -94,34 +136,80 @@ public class SocketTransceiver {
                 keepGoing = readChallenge(firstTime, channel, output);
                 Log.d(Config.TAG,"SocketTransceiver.readChallenge complete, keepGoing "+keepGoing);
             } else
-                keepGoing = parseMessage(channel);
+                keepGoing = parseMessage(channel, output);
             firstTime = false;
         }
     }
 
-    private boolean parseMessage(ReadableByteChannel channel) throws IOException {
-        if ((channel == null) || !channel.isOpen()) //channel is now closed
+    /**
+     * Handles a framing negotiation message from the server
+     * @param frame
+     * @param output
+     * @return true == the frame was a negotiation message and has been handled
+     * @throws IOException
+     */
+    private boolean readFramingMessage(ByteBuffer frame, WritableByteChannel output) throws IOException {
+        if (!decoder.isLegacy())
             return false;
-        ByteBuffer preambleBuffer = ByteBuffer.allocate(4);
-        while (preambleBuffer.hasRemaining() && (channel.read(preambleBuffer) > 0)) {}
+        if (framingAccepted && !framingSwitchSent && Challenge.isFramingHello(frame)) {
+            synchronized (writeLock) {
+                immediateOutput(Challenge.newFramingSwitch(),output);
+                framingSwitchSent = true;
+                legacyFraming = false;
+            }
+            Log.i(Config.TAG,"Server confirmed marked framing; now writing marked frames");
+            return true;
+        }
+        if (framingSwitchSent && Challenge.isFramingSwitch(frame)) {
+            decoder.setLegacy(false);
+            Log.i(Config.TAG,"Server now writing marked frames");
+            return true;
+        }
+        return false;
+    }
 
-        if (preambleBuffer.position() == 0)
+    private boolean parseMessage(ReadableByteChannel channel, WritableByteChannel output) throws IOException {
+        if ((channel == null) || !channel.isOpen()) //channel is now closed
+            return false;
+        ByteBuffer data = decoder.read(channel);
+        if (data == null) {
+            if (decoder.isEndOfStream())
+                throw new IOException("SocketTransceiver reached the end of the stream");
             return false; //nothing to read
-        preambleBuffer.rewind();
-        int size = preambleBuffer.getInt();
-        if (size < 0)
-            throw new IOException("SocketTransceiver unable to processPacketAndNotifyManet a message with a negative size");
-        else if (size > MAX_PACKET_SIZE)
-            throw new IOException("SocketTransceiver unable to processPacketAndNotifyManet a "+size+"b message, this must be an error");
-        else
-            Log.d(Config.TAG,"SocketTransceiver received "+size+"b message");
-        ByteBuffer data = ByteBuffer.allocate(size);
-        while (data.hasRemaining() && (channel.read(data) > 0)) {}
-        byte[] payload = data.array();
-        parser.processPacketAndNotifyManet(payload);
+        }
+        if (decoder.getResyncCount() != resyncCount) {
+            resyncCount = decoder.getResyncCount();
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM,"SocketTransceiver resynchronized after corrupted data ("+decoder.getSkippedBytes()+"b skipped so far, "+resyncCount+" recovered)");
+        }
+        if (decoder.getCorruptFrameCount() != corruptCount) {
+            PacketMetrics.getInstance().onDropped(transport,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.CORRUPT,decoder.getCorruptFrameCount()-corruptCount);
+            corruptCount = decoder.getCorruptFrameCount();
+        }
+        try {
+            if (readFramingMessage(data,output))
+                return false;
+            data.position(FrameDecoder.PREFIX_SIZE);
+            Log.d(Config.TAG,"SocketTransceiver received "+data.remaining()+"b message");
+            PacketMetrics.getInstance().onReceived(transport,PacketMetrics.UNKNOWN_NEIGHBOR,data.remaining());
+            parser.processPacketAndNotifyManet(data,true); //the FrameDecoder already checked the CRC
+        } finally {
+            BufferPool.getInstance().release(data);
+        }
         return false;
     }
 
+    /**
+     * Gets the number of frames recovered after resynchronizing a corrupted stream
+     * @return
+     */
+    public long getResyncCount() { return decoder.getResyncCount(); }
+
+    /**
+     * Gets the number of frames dropped for failing their CRC check
+     * @return
+     */
+    public long getCorruptFrameCount() { return decoder.getCorruptFrameCount(); }
+
     private boolean readChallenge(boolean firstTime, ReadableByteChannel channel, WritableByteChannel output) throws IOException, NoSuchAlgorithmException {
         Log.d(Config.TAG,"SocketTransceiver reading challenge");
         boolean success = false;
@@ -135,10 +223,16 @@ public class SocketTransceiver {
             return false;
 
         inputBuffer.flip();
+        byte[] challenge = new byte[Challenge.CHALLENGE_LENGTH];
+        inputBuffer.get(challenge);
+        decoder.setLegacy(true);
+        framingAccepted = Challenge.isFramingOffered(challenge); //only a hint; nothing switches until the server says hello (see Challenge)
+        if (!framingAccepted)
+            Log.i(Config.TAG,"Server does not support marked framing; using legacy framing");
 
         if (config != null) {
             try {
-                byte[] responseArray = Challenge.getResponse(null,null);
+                byte[] responseArray = Challenge.getResponse(null,challenge);
                 ByteBuffer response = ByteBuffer.allocate(responseArray.length);
                 response.put(responseArray);
                 response.flip();
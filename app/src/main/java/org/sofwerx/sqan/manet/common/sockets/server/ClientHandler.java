@@ -4,113 +4,92 @@ import android.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.util.AddressUtil;
+import org.sofwerx.sqan.util.BufferPool;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
+import org.sofwerx.sqan.manet.common.sockets.FrameDecoder;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.StringUtil;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientHandler {
     private final static String TAG = Config.TAG+".ClntHndlr";
     private final static int MAX_ALLOWABLE_PACKET_BYTES = 1024*1024*20;
-    private final static long BLACKLIST_DURATION = 1000l * 60l * 5l;
-    public static final Map<InetAddress, Long> BLACKLIST_MAP = new HashMap<>();
-    private static final Map<Integer, ClientHandler> HANDLER_MAP = new ConcurrentHashMap<>();
-    private static final AtomicInteger ID = new AtomicInteger(0);
-    private static final long RESPONSE_TIMEOUT = 1000L * 5L;
     private static final int SINGLE_READ_MAX_PACKETS = 10;
-    public static final Map<Integer, Long> START_TIME_MAP = new HashMap<>();
-    private static ServerStatusListener listener;
+    private static final int MAX_QUEUED_FRAMES = 512; //per client
+    private static final long MAX_QUEUED_BYTES = 1024l*1024l*4l; //per client
+    private static final int MAX_GATHERED_FRAMES = 32; //most frames handed to a single write call
+    private static final int MAX_GATHERED_BYTES = 1024*64; //stop gathering more frames once this many bytes are pending
+    private static final AtomicLong WRITE_CALLS = new AtomicLong(0l);
+    private static final AtomicLong FRAMES_WRITTEN = new AtomicLong(0l);
+    private final ConnectionRegistry registry;
+    private final ServerStatusListener listener;
     private SqAnDevice clientDevice = null;
-    private static final Object writeThreadLock = new Object();
-
-    public static void clear() {
-        BLACKLIST_MAP.clear();
-        HANDLER_MAP.clear();
-        START_TIME_MAP.clear();
-        ID.set(0);
-    }
+    private final Object writeLock = new Object();
+    private final AtomicBoolean writeInterest = new AtomicBoolean(true); //starts true as the challenge has to be written first
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private SelectorWorker worker;
 
     private enum ReadState {
         INACTIVE, READING_PACKET, READING_PREAMBLE, READING_RESPONSE, WRITING_CHALLENGE
     }
 
-    public static int getActiveConnectionCount() {
-        Set<Map.Entry<Integer, ClientHandler>> entries = HANDLER_MAP.entrySet();
-        if (entries == null)
-            return 0;
-        return entries.size();
-    }
-
-    public static void removeUnresponsiveConnections() {
-        long now = System.currentTimeMillis();
-        Iterator<Map.Entry<Integer, Long>> i = START_TIME_MAP.entrySet().iterator();
-        while (i.hasNext()) {
-            Map.Entry<Integer, Long> entry = i.next();
-            if (now - entry.getValue() > RESPONSE_TIMEOUT) {
-                ClientHandler h = HANDLER_MAP.get(entry.getKey());
-                if (h == null)
-                    Log.w(TAG, "No such handler to kill: " + entry.getKey());
-                else {
-                    String warning = "Killing client #" + entry.getKey() + " (no response)";
-                    Log.w(TAG, warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    h.closeClient();
-                }
-                i.remove();
-            }
-        }
-    }
-
     private ByteBuffer challengeBuffer;
     private final SocketChannel client;
-    private final Integer id = ID.incrementAndGet();
+    private final Integer id;
     private final byte[] password = null;
-    private ByteBuffer sizeBuffer = ByteBuffer.allocate(4); //just used to get the size
+    private final FrameDecoder decoder = new FrameDecoder(MAX_ALLOWABLE_PACKET_BYTES);
+    private long resyncCount = 0l;
+    private long corruptCount = 0l;
+    private boolean legacyFraming = true; //frames are written without the marker until the framing negotiation completes (see Challenge)
+    private boolean framingHelloSent = false;
+    private ByteBuffer controlFrame; //framing negotiation message waiting to be written between frames
+    private boolean switchAfterControl = false; //start writing marked frames once the controlFrame is written
     private ByteBuffer readBuffer, writeBuffer;
+    private final OutboundFrame[] gathered = new OutboundFrame[MAX_GATHERED_FRAMES];
+    private final ByteBuffer[] gatheredData = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int gatheredCount = 0;
     private ReadState readState = ReadState.INACTIVE;
     private final PacketParser parser;
+    private final TransportPreference transport;
 
-    private final BlockingQueue<ByteBuffer> writeQueue = new LinkedBlockingQueue<>();
+    private final WriteQueue writeQueue = new WriteQueue(MAX_QUEUED_FRAMES,MAX_QUEUED_BYTES);
 
-    public ClientHandler(SocketChannel client, PacketParser parser, ServerStatusListener listener) throws IOException, BlacklistException {
+    public ClientHandler(SocketChannel client, PacketParser parser, ConnectionRegistry registry) throws IOException, BlacklistException {
         this.parser = parser;
+        if ((parser != null) && (parser.getManet() != null))
+            transport = parser.getManet().getTransport();
+        else
+            transport = TransportPreference.WIFI;
         this.client = client;
-        ClientHandler.listener = listener;
+        this.registry = registry;
+        listener = registry.getListener();
         InetSocketAddress address = (InetSocketAddress) client.getRemoteAddress();
         CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Connection established with client "+address.getAddress());
-        Long blacklistTime = BLACKLIST_MAP.get(address.getAddress());
-        if (blacklistTime != null) {
-            if (System.currentTimeMillis() - blacklistTime < BLACKLIST_DURATION)
-                throw new BlacklistException();
-            BLACKLIST_MAP.remove(address.getAddress());
-        }
+        if (registry.isBlacklisted(address.getAddress()))
+            throw new BlacklistException();
 
+        id = registry.nextId();
         readState = ReadState.WRITING_CHALLENGE;
 
-        HANDLER_MAP.put(id, this);
-        START_TIME_MAP.put(id, System.currentTimeMillis());
+        registry.add(this);
         CommsLog.log(CommsLog.Entry.Category.CONNECTION,"ClientHandler #"+id+" created");
     }
 
     public void closeClient() {
+        if (closed.getAndSet(true))
+            return;
         Log.d(TAG,"Closing client #"+id);
         try {
             if (client != null) {
@@ -121,20 +100,164 @@ public class ClientHandler {
             }
         } catch (IOException ignore) {
         }
-        HANDLER_MAP.remove(id);
+        registry.remove(this);
+        releaseWriteQueue();
+        if (worker != null)
+            worker.onClientClosed();
+    }
+
+    /**
+     * Assigns the worker selector that handles this client's reads and writes
+     * @param worker
+     */
+    void setWorker(SelectorWorker worker) { this.worker = worker; }
+
+    SocketChannel getChannel() { return client; }
+
+    /**
+     * Called by the worker after servicing this client to see if write-ready events are
+     * still needed
+     * @return true == nothing left to write so write interest can be dropped
+     */
+    boolean clearWriteInterest() {
+        if (hasBacklog())
+            return false;
+        writeInterest.set(false);
+        if (hasBacklog() && writeInterest.compareAndSet(false,true))
+            return false; //something was queued in the meantime
+        return true;
+    }
+
+    /**
+     * Releases any frames still waiting to be written to this client
+     */
+    private void releaseWriteQueue() {
+        synchronized (writeLock) {
+            removeGathered(gatheredCount);
+            writeQueue.clear();
+        }
+    }
+
+    /**
+     * Gets the number of frames that have been dropped for this client because its write
+     * queue was full
+     * @return
+     */
+    public long getDroppedFrameCount() { return writeQueue.getDropCount(); }
+
+    /**
+     * Gets the number of bytes waiting to be sent to this client
+     * @return
+     */
+    public long getQueuedBytes() { return writeQueue.getByteCount(); }
+
+    /**
+     * Gets the number of frames recovered from this client after its stream had to be
+     * resynchronized
+     * @return
+     */
+    public long getResyncCount() { return decoder.getResyncCount(); }
+
+    /**
+     * Gets the number of frames from this client that were dropped for failing their CRC check
+     * @return
+     */
+    public long getCorruptFrameCount() { return decoder.getCorruptFrameCount(); }
+
+    /**
+     * Gets the average number of frames completed per write call across all clients
+     * @return
+     */
+    public static float getFramesPerWrite() {
+        long calls = WRITE_CALLS.get();
+        if (calls == 0l)
+            return 0f;
+        return (float)FRAMES_WRITTEN.get()/(float)calls;
+    }
+
+    /**
+     * Adds a frame to this client's write queue
+     * @param frame
+     * @return true == queued; false == dropped as the queue is full
+     */
+    private boolean enqueue(OutboundFrame frame) {
+        if (writeQueue.offer(frame)) {
+            PacketMetrics.getInstance().setQueueDepth(transport,getNeighbor(),writeQueue.size());
+            //only bother the worker when the backlog goes from empty to not empty
+            if (writeInterest.compareAndSet(false,true) && (worker != null))
+                worker.requestWrite(this);
+            return true;
+        }
+        PacketMetrics.getInstance().onDropped(transport,getNeighbor(),PacketMetrics.DropReason.QUEUE_FULL);
+        Log.w(TAG, "#" + id + ": write queue full, dropped " + frame.getTrafficClass().name() + " frame (" + writeQueue.getDropCount() + " dropped total)");
+        return false;
     }
 
     public Integer getId() {
         return id;
     }
 
+    SqAnDevice getClientDevice() { return clientDevice; }
+
+    /**
+     * Gets the SqAN ID of the device on the other end for metrics
+     * @return
+     */
+    private int getNeighbor() {
+        SqAnDevice device = clientDevice;
+        if (device == null)
+            return PacketMetrics.UNKNOWN_NEIGHBOR;
+        return device.getUUID();
+    }
+
+    /**
+     * Queues a view of a shared frame to this client unless the client is still being challenged
+     * @param frame
+     * @return true == queued
+     */
+    boolean offer(SharedFrame frame) {
+        if ((readState == ReadState.WRITING_CHALLENGE) || (readState == ReadState.READING_RESPONSE)) {
+            Log.e(TAG, "#" + id + ": cannot queue packet to client; state=" + readState);
+            return false;
+        }
+        return enqueue(frame.newView());
+    }
+
+    /**
+     * Queues a framing negotiation message to be written ahead of the next frame
+     * @param frame legacy frame holding the message
+     * @param switchAfter true == write marked frames once this message has been written
+     */
+    private void queueControl(ByteBuffer frame, boolean switchAfter) {
+        synchronized (writeLock) {
+            controlFrame = frame;
+            switchAfterControl = switchAfter;
+        }
+        if (writeInterest.compareAndSet(false,true) && (worker != null))
+            worker.requestWrite(this);
+    }
+
+    /**
+     * Handles a framing negotiation message from the client
+     * @param frame
+     * @return true == the frame was a negotiation message and has been handled
+     */
+    private boolean readFramingMessage(ByteBuffer frame) {
+        if (!framingHelloSent || !decoder.isLegacy() || !Challenge.isFramingSwitch(frame))
+            return false;
+        decoder.setLegacy(false);
+        queueControl(Challenge.newFramingSwitch(),true);
+        Log.i(TAG, "#" + id + ": Client confirmed marked framing");
+        return true;
+    }
+
     public boolean hasBacklog() {
         switch (readState) {
             case INACTIVE:
             case READING_PACKET:
             case READING_PREAMBLE:
             case READING_RESPONSE:
-                return (writeBuffer != null) || (!writeQueue.isEmpty());
+                return (writeBuffer != null) || (controlFrame != null) || (gatheredCount > 0) || (!writeQueue.isEmpty());
             case WRITING_CHALLENGE:
             default:
                 return true;
@@ -145,165 +268,112 @@ public class ClientHandler {
         return !client.isOpen();
     }
 
-    private void queueReadBuffer() {
-        ByteBuffer out = ByteBuffer.allocate(4 + readBuffer.limit());
-        out.putInt(readBuffer.limit());
-        out.put(readBuffer);
-        out.flip();
-        Log.d(TAG, "#" + id + ": adding readBuffer to the outgoing queue");
-        for (ClientHandler h : HANDLER_MAP.values()) {
-            boolean send = !h.id.equals(this.id); // don't queue the incoming packet to myself
-            if (h.readState == ReadState.WRITING_CHALLENGE) {
-                Log.e(TAG, "#" + id + ": cannot queue incoming packet to #"+ h.id + "; state=" + h.readState);
-                send = false;
-            }
-            if (send)
-                h.writeQueue.add(out.duplicate());
-        }
-    }
-
     /**
-     * Add a message to the outgoing queue
-     * @param out buffer to send
-     * @param address address to send to
-     * @return true == at least one recipient was found for this message
+     * Relays the frame in the readBuffer (length prefix included) toward its destination. The
+     * readBuffer is shared read-only by all of the recipients rather than copied, so this
+     * handler gives up ownership of the readBuffer.
+     * @param destination the packet's SqAN destination
      */
-    public static boolean addToWriteQue(ByteBuffer out, int address) {
-        boolean sent = false;
-        if (out != null) {
-            for (ClientHandler h : HANDLER_MAP.values()) {
-                boolean send = true;
-                if (h.clientDevice != null)
-                    send = AddressUtil.isApplicableAddress(h.clientDevice.getUUID(),address);
-                if (h.readState == ReadState.WRITING_CHALLENGE) {
-                    Log.e(TAG, "#" + h.id + ": Server cannot queue packet to client; state=" + h.readState);
-                    send = false;
-                }
-                if (send) {
-                    sent = true;
-                    Log.d(TAG, "#" + h.id + ": " + out.limit()+"b added to writeQueue for client");
-                    h.writeQueue.add(out.duplicate());
-
-                    //TODO
-                    h.readyToWrite();
-                    //TODO
-                    //TODO call read and write here possibly as a way to speed up the data burst from the server
-                } else
-                    Log.d(TAG, "#" + h.id +": Outgoing packet does not apply to client #");
-            }
-        }
-        return sent;
+    private void queueReadBuffer(int destination) {
+        SharedFrame frame = new SharedFrame(readBuffer);
+        readBuffer = null;
+        Log.d(TAG, "#" + id + ": adding readBuffer to the outgoing queue");
+        registry.relay(frame,this,destination);
+        frame.release();
     }
 
-    private boolean readBody(boolean firstTime) {
+    private boolean readBody() {
         try {
-            if (firstTime) {
-                sizeBuffer.clear();
-                while (sizeBuffer.hasRemaining() && (client.read(sizeBuffer) > 0)) {}
-
-                if ((sizeBuffer.position() == 0)) {
-                    if (firstTime) {
-                        String warning = "#" + id + ": Empty header (closing)";
-                        CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                        if (listener != null)
-                            listener.onServerError(warning);
-                        //TODO closeClient(); ignoring client problems
-                    } else
-                        Log.d(TAG, "#" + id + ": Nothing else to read for this client");
-                    return false;
-                }
-
-                sizeBuffer.rewind();
-
-                int totalSize = sizeBuffer.getInt();
-                //Log.d(TAG, "#" + id + ": Total size in readBody(true) is "+totalSize);
-                if ((totalSize < 4) || (totalSize > MAX_ALLOWABLE_PACKET_BYTES)) {
-                    String size;
-                    if (totalSize < 0)
-                        size = "negative";
-                    else
-                        size = StringUtil.toDataSize(totalSize);
-                    String warning = "Packet size is reporting to be "+size+", which is not valid";
-                    CommsLog.log(CommsLog.Entry.Category.PROBLEM,warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    //TODO instead of closing, scan the buffer for the next header marker (and add a header marker like is in the Bluetooth Manet)
+            readBuffer = decoder.read(client);
+            if (readBuffer == null) {
+                if (decoder.isEndOfStream()) {
+                    Log.i(TAG, "#" + id + ": client closed the connection");
                     closeClient();
-                    return false;
                 }
-                readBuffer = ByteBuffer.allocate(totalSize);
-            } else
-                Log.d(TAG, "#" + id + " readyBody(false)");
-
-            if (readBuffer == null) {
-                Log.d(TAG,"readBuffer was unexpectedly null");
+                return false; //nothing else to read for this client yet
+            }
+            if (readFramingMessage(readBuffer)) {
+                BufferPool.getInstance().release(readBuffer);
+                readBuffer = null;
+                readState = ReadState.INACTIVE;
+                return true;
+            }
+            if (decoder.getResyncCount() != resyncCount) {
+                resyncCount = decoder.getResyncCount();
+                String warning = "#" + id + ": Resynchronized with client after corrupted data ("+StringUtil.toDataSize(decoder.getSkippedBytes())+" skipped so far, "+resyncCount+" recovered frame"+((resyncCount==1)?"":"s")+")";
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM,warning);
+                if (listener != null)
+                    listener.onServerError(warning);
+            }
+            if (decoder.getCorruptFrameCount() != corruptCount) {
+                PacketMetrics.getInstance().onDropped(transport,getNeighbor(),PacketMetrics.DropReason.CORRUPT,decoder.getCorruptFrameCount()-corruptCount);
+                corruptCount = decoder.getCorruptFrameCount();
+            }
+            Log.d(TAG, "#" + id + ": PACKET received ("+(readBuffer.limit()-FrameDecoder.PREFIX_SIZE)+"b)");
+            PacketMetrics.getInstance().onReceived(transport,getNeighbor(),readBuffer.limit()-FrameDecoder.PREFIX_SIZE);
+            readBuffer.position(FrameDecoder.PREFIX_SIZE);
+            final int headerSize = PacketHeader.peekEncodedSize(readBuffer);
+            if ((headerSize < 0) || (readBuffer.remaining() < headerSize)) {
+                PacketMetrics.getInstance().onDropped(transport,getNeighbor(),PacketMetrics.DropReason.UNDECODABLE);
+                String warning = "#" + id + ": PacketHeader is null";
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
+                if (listener != null)
+                    listener.onServerError(warning);
+                //TODO closeClient(); //ignoring failed headers
+                BufferPool.getInstance().release(readBuffer);
+                readBuffer = null;
+                readState = ReadState.INACTIVE;
                 return false;
             }
 
-            int pos = readBuffer.position();
-            while (readBuffer.hasRemaining() && (client.read(readBuffer) > 0)) {}
-            if (readBuffer.hasRemaining()) {
-                if (firstTime && (readBuffer.position() == pos)) {
-                    String warning = "#" + id + ": Attempted to read "+readBuffer.capacity()+"b from body but nothing is available (closing)";
-                    CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    //TODO closeClient(); //ignoring client problems
-                    return false;
-                }
-                return true;
-            } else {
-                Log.d(TAG, "#" + id + ": PACKET received ("+readBuffer.position()+"b)");
-                readBuffer.flip();
-
-                byte[] headerBytes = new byte[PacketHeader.getSize()];
-                readBuffer.get(headerBytes);
-                PacketHeader header = PacketHeader.newFromBytes(headerBytes);
-                if (header == null) {
-                    String warning = "#" + id + ": PacketHeader is null";
-                    CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    //TODO closeClient(); //ignoring failed headers
-                    return false;
-                }
-                //Log.d(TAG, "#" + id + ": HEADER packet type: "+header.getType());
-
-                if ((parser != null) && AddressUtil.isApplicableAddress(Config.getThisDevice().getUUID(),header.getDestination())) {
-                    //this packet also applies to the server
-                    readBuffer.position(0);
-                    byte[] data = new byte[readBuffer.remaining()];
-                    readBuffer.get(data);
-                    parser.processPacketAndNotifyManet(data);
-                }
-                if ((clientDevice == null) && header.isDirectFromOrigin()) {
-                    clientDevice = SqAnDevice.findByUUID(header.getOriginUUID()); //assign the device based on the origin
-                    if (clientDevice != null)
-                        Log.d(TAG,"Client Handler #"+id+" resolved to device "+clientDevice.getLabel());
-                }
-                //Add one hop to the count of message routing then write the new header to the readBuffer
-                readBuffer.position(0);
-                header.incrementHopCount();
-                headerBytes = header.toByteArray();
-                readBuffer.put(headerBytes);
-                readBuffer.position(0);
-                if (header.getType() != PacketHeader.PACKET_TYPE_PING) //don't forward pings
-                    queueReadBuffer();
-                if (header.getType() == PacketHeader.PACKET_TYPE_DISCONNECTING) {
-                    Log.i(TAG, "#" + id + ": is terminating link (planned and reported)");
-                    closeClient(); //client requested termination
-                    return false;
+            //only peek at the header fields needed to route the packet rather than decoding it
+            final byte type = PacketHeader.peekType(readBuffer);
+            final int hopCount = PacketHeader.peekHopCount(readBuffer);
+
+            final int destination = PacketHeader.peekDestination(readBuffer);
+            if ((parser != null) && AddressUtil.isApplicableAddress(Config.getThisDevice().getUUID(),destination)) {
+                //this packet also applies to the server
+                parser.processPacketAndNotifyManet(readBuffer.duplicate(),true); //the FrameDecoder already checked the CRC
+            }
+            if ((clientDevice == null) && (hopCount == 0)) {
+                clientDevice = SqAnDevice.findByUUID(PacketHeader.peekOriginUUID(readBuffer)); //assign the device based on the origin
+                if (clientDevice != null) {
+                    Log.d(TAG,"Client Handler #"+id+" resolved to device "+clientDevice.getLabel());
+                    registry.onResolved(this,clientDevice.getUUID());
                 }
+            }
+            //Add one hop to the count of message routing directly in the readBuffer
+            PacketHeader.setHopCount(hopCount+1,readBuffer);
+            //don't forward pings, packets meant only for this device or packets that have already been relayed
+            final boolean relay = (type != PacketHeader.PACKET_TYPE_PING)
+                    && (destination != Config.getThisDevice().getUUID())
+                    && !registry.getRelayFilter().isDuplicate(readBuffer);
+            readBuffer.position(0);
+            if (relay)
+                queueReadBuffer(destination);
+            else {
+                BufferPool.getInstance().release(readBuffer);
                 readBuffer = null;
-                readState = ReadState.INACTIVE;
+            }
+            if (type == PacketHeader.PACKET_TYPE_DISCONNECTING) {
+                Log.i(TAG, "#" + id + ": is terminating link (planned and reported)");
+                closeClient(); //client requested termination
                 return false;
             }
+            readState = ReadState.INACTIVE;
+            return true; //see if the next packet is already here
         } catch (Exception e) {
             String reason = e.getMessage();
             String warning = "#" + id + " DROPPED PACKET: Error reading packet from client #" + id + " (closing). " + ((reason==null)?"No reason provided":"Reason: "+reason);
             Log.w(TAG, warning);
             if (listener != null)
                 listener.onServerError(warning);
+            PacketMetrics.getInstance().onDropped(transport,getNeighbor(),PacketMetrics.DropReason.UNDECODABLE);
+            if (readBuffer != null) {
+                BufferPool.getInstance().release(readBuffer);
+                readBuffer = null;
+            }
+            readState = ReadState.INACTIVE;
             //TODO closeClient(); //ignoring failed packet
             return false;
         }
@@ -317,12 +387,19 @@ public class ClientHandler {
                 return false; // nothing more to read
             }
 
-            START_TIME_MAP.remove(this.id);
+            registry.onHandshakeComplete(this);
             InetSocketAddress address = (InetSocketAddress) client.getRemoteAddress();
             byte[] expected = Challenge.getResponse(password,challengeBuffer.array());
             readBuffer.flip();
             byte[] actual = new byte[Challenge.CHALLENGE_LENGTH];
             readBuffer.get(actual);
+            decoder.setLegacy(true);
+            if (Challenge.isFramingAccepted(actual)) {
+                //a chance match from an older client is possible so only say hello; the client has to confirm before anything switches
+                framingHelloSent = true;
+                queueControl(Challenge.newFramingHello(),false);
+            } else
+                Log.i(TAG, "#" + id + ": Client @" + address.getAddress() + " does not support marked framing; using legacy framing");
             //if (Arrays.equals(expected, actual)) {
                 Log.i(TAG, "#" + id + ": Client @" + address.getAddress()+ " passed challenge");
                 readBuffer = null;
@@ -337,7 +414,7 @@ public class ClientHandler {
             Log.e(TAG, "#" + id + ": Expected: " + bufferToString(expected));
             Log.e(TAG, "#" + id + ": Input: " + bufferToString(readBuffer.array()));
 
-            BLACKLIST_MAP.put(address.getAddress(), System.currentTimeMillis());
+            registry.blacklist(address.getAddress());
             if (listener != null)
                 listener.onServerBlacklistClient(address.getAddress());
             closeClient();
@@ -368,11 +445,11 @@ public class ClientHandler {
                         readBuffer.clear();
                     //MUST be before readBody!
                     readState = ReadState.READING_PACKET;
-                    keepGoing = readBody(true);
+                    keepGoing = readBody();
                     break;
                 case READING_PACKET:
                     Log.d(TAG, "#" + id + ": readyToRead().READING_PACKET");
-                    keepGoing = readBody(false);
+                    keepGoing = readBody();
                     break;
                 case READING_RESPONSE:
                     keepGoing = readResponse();
@@ -391,7 +468,7 @@ public class ClientHandler {
     }
 
     public void readyToWrite() {
-        synchronized (writeThreadLock) {
+        synchronized (writeLock) {
             if (readState == ReadState.WRITING_CHALLENGE) {
                 try {
                     writeChallenge();
@@ -409,32 +486,41 @@ public class ClientHandler {
             }
             //Log.d(TAG, "#" + id + ": ClientHandler ready to write");
             while (true) { // write as many packets as possible
-                if (writeBuffer == null) {
-                    writeBuffer = writeQueue.poll();
-                    if (writeBuffer == null) {
-                        //Log.d(TAG, "#" + id + ": ClientHandler writeBuffer null");
+                if ((controlFrame != null) && (gatheredCount == 0)) {
+                    if (!writeControl())
                         break;
-                    } else {
-                        //Log.d(TAG, "#" + id + ": ClientHandler writeQueue size " + writeQueue.size());
-                    }
+                    continue;
                 }
+                if (controlFrame == null)
+                    gatherFrames();
+                if (gatheredCount == 0)
+                    break;
                 try {
-                    writeBuffer.rewind();
-                    //Log.d(TAG, "#" + id + "ClientHandler WRITING buffer of size " + writeBuffer.limit() + "b, pos " + writeBuffer.position());
-                    while (writeBuffer.hasRemaining() && (client.write(writeBuffer) > 0)) {}
-
-                    if (writeBuffer.hasRemaining()) {
-                        break; // nothing more to do
+                    //hand all of the gathered frames to a single write call
+                    client.write(gatheredData,0,gatheredCount);
+                    int completed = 0;
+                    while ((completed < gatheredCount) && !gatheredData[completed].hasRemaining()) {
+                        completed++;
+                    }
+                    WRITE_CALLS.incrementAndGet();
+                    FRAMES_WRITTEN.addAndGet(completed);
+                    int neighbor = getNeighbor();
+                    for (int i=0;i<completed;i++) {
+                        PacketMetrics.getInstance().onSent(transport,neighbor,gatheredData[i].limit()-FrameDecoder.PREFIX_SIZE,gathered[i].getQueuedNanos());
                     }
-                    writeBuffer = null;
-                    // and loop around to grab the next buffer
+                    removeGathered(completed);
+                    PacketMetrics.getInstance().setQueueDepth(transport,neighbor,writeQueue.size()+gatheredCount);
+                    if (gatheredCount > 0)
+                        break; // nothing more to do until the socket can take more
+                    // and loop around to gather the next frames
                     //} catch (Throwable t) {
                 } catch (Exception e) {
                     String warning = "#" + id + ": Error writing packet from client #" + id + ": " + e.getMessage();
                     //TODO Log.e(TAG, warning, t);
                     Log.e(TAG, warning);
                     CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                    writeBuffer = null; //TODO was closing the client but going to try to keep it open and work through the error
+                    PacketMetrics.getInstance().onDropped(transport,getNeighbor(),PacketMetrics.DropReason.WRITE_ERROR);
+                    removeGathered(1); //TODO was closing the client but going to try to keep it open and work through the error
                     if (listener != null)
                         listener.onServerError(warning);
                     //TODO closeClient();
@@ -444,14 +530,68 @@ public class ClientHandler {
         }
     }
 
-    public void trimQueue(int connectionCount) {
-        int limit = 100 * connectionCount;
-        if (writeQueue.size() > limit) {
-            Log.w(TAG, "#" + id + ": Pruning " + (writeQueue.size() - limit)+ " queued messages");
-            while (writeQueue.size() > limit) {
-                writeQueue.poll(); // remove the oldest
-            }
+    /**
+     * Tops up the gathered frames from the write queue
+     */
+    private void gatherFrames() {
+        int pending = 0;
+        for (int i=0;i<gatheredCount;i++) {
+            pending += gatheredData[i].remaining();
+        }
+        while ((gatheredCount < MAX_GATHERED_FRAMES) && ((gatheredCount == 0) || (pending < MAX_GATHERED_BYTES))) {
+            OutboundFrame frame = writeQueue.poll();
+            if (frame == null)
+                break;
+            if (legacyFraming)
+                frame.getData().position(frame.getData().position()+FrameDecoder.LEGACY_OFFSET);
+            gathered[gatheredCount] = frame;
+            gatheredData[gatheredCount] = frame.getData();
+            pending += frame.getData().remaining();
+            gatheredCount++;
+        }
+    }
+
+    /**
+     * Writes the pending framing negotiation message (only called between frames)
+     * @return true == the whole message has been written
+     */
+    private boolean writeControl() {
+        try {
+            while (controlFrame.hasRemaining() && (client.write(controlFrame) > 0)) {}
+        } catch (IOException e) {
+            Log.e(TAG, "#" + id + ": Unable to write framing message: " + e.getMessage());
+            controlFrame = null;
+            return false;
+        }
+        if (controlFrame.hasRemaining())
+            return false;
+        controlFrame = null;
+        if (switchAfterControl) {
+            legacyFraming = false;
+            switchAfterControl = false;
+            Log.i(TAG, "#" + id + ": Now writing marked frames");
+        }
+        return true;
+    }
+
+    /**
+     * Releases the first count gathered frames and shifts the rest to the front
+     * @param count
+     */
+    private void removeGathered(int count) {
+        if (count <= 0)
+            return;
+        for (int i=0;i<count;i++) {
+            gathered[i].release();
+        }
+        int remaining = gatheredCount - count;
+        System.arraycopy(gathered,count,gathered,0,remaining);
+        System.arraycopy(gatheredData,count,gatheredData,0,remaining);
+        for (int i=remaining;i<gatheredCount;i++) {
+            gathered[i] = null;
+            gatheredData[i] = null;
         }
+        gatheredCount = remaining;
     }
 
     private void writeChallenge() throws IOException {
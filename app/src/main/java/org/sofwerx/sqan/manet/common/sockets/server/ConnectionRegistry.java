@@ -0,0 +1,335 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import android.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.DuplicateFilter;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the clients connected to a single Server. Clients are indexed by their SqAN UUID once
+ * it is known so that unicast traffic goes straight to the right client rather than being
+ * checked against every connection. Clients that have not answered the challenge yet are held
+ * in a timer wheel so that expiring them only looks at the ones that are actually due.
+ */
+public class ConnectionRegistry {
+    private final static String TAG = Config.TAG+".ConnReg";
+    private final static long BLACKLIST_DURATION = 1000l * 60l * 5l;
+    private final static long RESPONSE_TIMEOUT = 1000l * 5l;
+    private final static long TICK = 1000l; //resolution of the handshake timer wheel
+    private final Map<Integer, ClientHandler> handlers = new ConcurrentHashMap<>();
+    private final Map<Integer, ClientHandler> byUuid = new ConcurrentHashMap<>();
+    private final Set<ClientHandler> unresolved = ConcurrentHashMap.newKeySet(); //clients whose device is not known yet
+    private final Map<InetAddress, Long> blacklist = new ConcurrentHashMap<>();
+    private final AtomicInteger id = new AtomicInteger(0);
+    private final HandshakeWheel handshakes = new HandshakeWheel((int)(RESPONSE_TIMEOUT / TICK) + 2);
+    private final ServerStatusListener listener;
+    private final DuplicateFilter relayFilter = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY,DuplicateFilter.DEFAULT_EXPIRY);
+
+    public ConnectionRegistry(ServerStatusListener listener) {
+        this.listener = listener;
+    }
+
+    ServerStatusListener getListener() { return listener; }
+
+    /**
+     * Gets the filter used to avoid relaying the same packet to the clients more than once
+     * @return
+     */
+    DuplicateFilter getRelayFilter() { return relayFilter; }
+
+    /**
+     * Gets the next client ID for this server
+     * @return
+     */
+    int nextId() { return id.incrementAndGet(); }
+
+    /**
+     * Adds a newly accepted client; the client has RESPONSE_TIMEOUT to answer the challenge
+     * @param handler
+     */
+    void add(ClientHandler handler) {
+        handlers.put(handler.getId(), handler);
+        unresolved.add(handler);
+        handshakes.add(handler, System.currentTimeMillis() + RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * Called once the client has answered the challenge
+     * @param handler
+     */
+    void onHandshakeComplete(ClientHandler handler) {
+        handshakes.remove(handler);
+    }
+
+    /**
+     * Called once the SqAN device on the other end of the client is known
+     * @param handler
+     * @param uuid
+     */
+    void onResolved(ClientHandler handler, int uuid) {
+        if (!handlers.containsKey(handler.getId()))
+            return; //already closed
+        ClientHandler old = byUuid.put(uuid, handler);
+        if ((old != null) && (old != handler))
+            Log.d(TAG, "Device " + uuid + " moved from client #" + old.getId() + " to #" + handler.getId());
+        unresolved.remove(handler);
+    }
+
+    /**
+     * Removes a client that has closed
+     * @param handler
+     */
+    void remove(ClientHandler handler) {
+        handlers.remove(handler.getId());
+        unresolved.remove(handler);
+        handshakes.remove(handler);
+        if (handler.getClientDevice() != null)
+            byUuid.remove(handler.getClientDevice().getUUID(), handler);
+    }
+
+    /**
+     * Closes any clients that have not answered the challenge in time
+     */
+    public void removeUnresponsiveConnections() {
+        ArrayList<ClientHandler> expired = handshakes.expire(System.currentTimeMillis());
+        if (expired == null)
+            return;
+        for (ClientHandler h : expired) {
+            String warning = "Killing client #" + h.getId() + " (no response)";
+            Log.w(TAG, warning);
+            if (listener != null)
+                listener.onServerError(warning);
+            h.closeClient();
+        }
+    }
+
+    public int getActiveConnectionCount() { return handlers.size(); }
+
+    Collection<ClientHandler> getHandlers() { return handlers.values(); }
+
+    public boolean isBlacklisted(InetAddress address) {
+        if (address == null)
+            return false;
+        Long blacklistTime = blacklist.get(address);
+        if (blacklistTime == null)
+            return false;
+        if (System.currentTimeMillis() - blacklistTime < BLACKLIST_DURATION)
+            return true;
+        blacklist.remove(address);
+        return false;
+    }
+
+    public void blacklist(InetAddress address) {
+        if (address != null)
+            blacklist.put(address, System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the number of frames that have been dropped for all clients because their write
+     * queues were full
+     * @return
+     */
+    public long getDroppedFrameCount() {
+        long total = 0l;
+        for (ClientHandler h : handlers.values()) {
+            total += h.getDroppedFrameCount();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of frames recovered across all clients after resynchronizing a
+     * corrupted stream
+     * @return
+     */
+    public long getResyncCount() {
+        long total = 0l;
+        for (ClientHandler h : handlers.values()) {
+            total += h.getResyncCount();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of bytes waiting to be sent across all clients
+     * @return
+     */
+    public long getQueuedBytes() {
+        long total = 0l;
+        for (ClientHandler h : handlers.values()) {
+            total += h.getQueuedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of frames dropped across all clients for failing their CRC check
+     * @return
+     */
+    public long getCorruptFrameCount() {
+        long total = 0l;
+        for (ClientHandler h : handlers.values()) {
+            total += h.getCorruptFrameCount();
+        }
+        return total;
+    }
+
+    /**
+     * Add a message to the outgoing queue. The buffer is shared by all of the recipients and is
+     * returned to the BufferPool once they have all sent it, so the caller should not use the
+     * buffer after this.
+     * @param out buffer to send (from position to limit)
+     * @param address address to send to
+     * @return true == at least one recipient was found for this message
+     */
+    public boolean addToWriteQue(ByteBuffer out, int address) {
+        if (out == null)
+            return false;
+        boolean sent = false;
+        SharedFrame frame = new SharedFrame(out);
+        if (address == PacketHeader.BROADCAST_ADDRESS) {
+            for (ClientHandler h : handlers.values()) {
+                sent = h.offer(frame) || sent;
+            }
+        } else {
+            ClientHandler h = byUuid.get(address);
+            if (h != null)
+                sent = h.offer(frame);
+            else {
+                //no direct connection to that device is known, so try the clients that have not identified themselves yet
+                for (ClientHandler unknown : unresolved) {
+                    sent = unknown.offer(frame) || sent;
+                }
+                if (!sent)
+                    Log.d(TAG, "Outgoing packet does not apply to any client");
+            }
+        }
+        frame.release();
+        return sent;
+    }
+
+    /**
+     * Relays a frame received from one client. Unicast frames only go to the client on the
+     * shortest path to the destination (see RoutingTable) and are dropped if that path leads
+     * back to the sender; broadcasts, and unicasts without a known route through one of the
+     * clients, go to every other client.
+     * @param frame
+     * @param from
+     * @param destination the packet's SqAN destination
+     */
+    void relay(SharedFrame frame, ClientHandler from, int destination) {
+        if (destination != PacketHeader.BROADCAST_ADDRESS) {
+            ClientHandler h = byUuid.get(destination);
+            if (h == null) {
+                int nextHop = RoutingTable.getInstance().getNextHop(destination);
+                if (nextHop != RoutingTable.NO_ROUTE)
+                    h = byUuid.get(nextHop);
+            }
+            if (h == from) {
+                //the route leads back the way the frame came, so flooding it would only loop it
+                Log.d(TAG, "Not relaying packet for "+destination+" back towards its sender");
+                return;
+            }
+            if (h != null) {
+                h.offer(frame);
+                return;
+            }
+        }
+        for (ClientHandler h : handlers.values()) {
+            if (h != from) // don't queue the incoming packet back to its sender
+                h.offer(frame);
+        }
+    }
+
+    public void clear() {
+        handlers.clear();
+        byUuid.clear();
+        unresolved.clear();
+        blacklist.clear();
+        handshakes.clear();
+        id.set(0);
+    }
+
+    /**
+     * A hashed timer wheel of pending handshakes. Each slot covers one TICK; expiring only walks
+     * the slots that have come due since the last call. Entries more than one revolution out
+     * just stay in their slot until their deadline comes around.
+     */
+    private static class HandshakeWheel {
+        private final ArrayList<ClientHandler>[] slots;
+        private final Map<ClientHandler, Long> deadlines = new HashMap<>();
+        private long currentTick = -1l;
+
+        @SuppressWarnings("unchecked")
+        private HandshakeWheel(int size) {
+            slots = new ArrayList[size];
+            for (int i=0;i<size;i++) {
+                slots[i] = new ArrayList<>();
+            }
+        }
+
+        private synchronized void add(ClientHandler handler, long deadline) {
+            long tick = deadline / TICK + 1; //round up so nothing expires early
+            deadlines.put(handler, tick);
+            slots[(int)(tick % slots.length)].add(handler);
+        }
+
+        private synchronized void remove(ClientHandler handler) {
+            Long tick = deadlines.remove(handler);
+            if (tick != null)
+                slots[(int)(tick % slots.length)].remove(handler);
+        }
+
+        /**
+         * Advances the wheel to now
+         * @param now
+         * @return the handlers whose deadline has passed (or null if none)
+         */
+        private synchronized ArrayList<ClientHandler> expire(long now) {
+            long nowTick = now / TICK;
+            if (currentTick < 0l) {
+                currentTick = nowTick;
+                return null;
+            }
+            ArrayList<ClientHandler> expired = null;
+            //no need to go around more than once
+            long from = Math.max(currentTick + 1l, nowTick - slots.length + 1);
+            for (long tick=from;tick<=nowTick;tick++) {
+                ArrayList<ClientHandler> slot = slots[(int)(tick % slots.length)];
+                for (int i=slot.size()-1;i>=0;i--) {
+                    ClientHandler h = slot.get(i);
+                    Long deadline = deadlines.get(h);
+                    if ((deadline != null) && (deadline <= nowTick)) {
+                        slot.remove(i);
+                        deadlines.remove(h);
+                        if (expired == null)
+                            expired = new ArrayList<>();
+                        expired.add(h);
+                    }
+                }
+            }
+            if (nowTick > currentTick)
+                currentTick = nowTick;
+            return expired;
+        }
+
+        private synchronized void clear() {
+            for (ArrayList<ClientHandler> slot : slots) {
+                slot.clear();
+            }
+            deadlines.clear();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single client's view of a frame waiting in its write queue
+ */
+class OutboundFrame {
+    private final ByteBuffer data;
+    private final WriteQueue.TrafficClass trafficClass;
+    private final SharedFrame owner;
+    private final long queued;
+
+    /**
+     * @param data
+     * @param trafficClass
+     * @param owner
+     * @param queued System.nanoTime() when the frame was first queued to be sent
+     */
+    OutboundFrame(ByteBuffer data, WriteQueue.TrafficClass trafficClass, SharedFrame owner, long queued) {
+        this.data = data;
+        this.trafficClass = trafficClass;
+        this.owner = owner;
+        this.queued = queued;
+    }
+
+    WriteQueue.TrafficClass getTrafficClass() { return trafficClass; }
+
+    /**
+     * @return System.nanoTime() when the frame was first queued to be sent
+     */
+    long getQueuedNanos() { return queued; }
+
+    /**
+     * Gets the bytes to write (including the length prefix); the position tracks how much of
+     * this frame has been written to this client
+     * @return
+     */
+    ByteBuffer getData() { return data; }
+
+    /**
+     * Called once this frame has been written (or dropped) so the shared buffer can be reused
+     */
+    void release() {
+        if (owner != null)
+            owner.release();
+    }
+}
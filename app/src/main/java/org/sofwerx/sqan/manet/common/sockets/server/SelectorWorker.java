@@ -0,0 +1,174 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import android.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.util.CommsLog;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the Server's worker selectors. Each worker owns the reads, writes and interest ops for
+ * the clients assigned to it. Other threads hand work to a worker through lock-free queues and
+ * then wake up its selector rather than touching its keys directly.
+ */
+class SelectorWorker extends Thread {
+    private final static String TAG = Config.TAG+".SelWorker";
+    private final static long SELECT_TIMEOUT = 1000l * 5l;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<ClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger load = new AtomicInteger(0);
+    private final ServerStatusListener listener;
+    private volatile boolean keepRunning = true;
+
+    SelectorWorker(int index, ServerStatusListener listener) throws IOException {
+        super("IpServerSel"+index);
+        this.listener = listener;
+        selector = Selector.open();
+    }
+
+    /**
+     * Gets the number of clients currently assigned to this worker
+     * @return
+     */
+    int getLoad() { return load.get(); }
+
+    /**
+     * Assigns a newly accepted client to this worker
+     * @param handler
+     */
+    void register(ClientHandler handler) {
+        load.incrementAndGet();
+        handler.setWorker(this);
+        pendingRegistrations.offer(handler);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks this worker to start watching for write-ready on the client; called when the client's
+     * backlog goes from empty to not empty
+     * @param handler
+     */
+    void requestWrite(ClientHandler handler) {
+        pendingWrites.offer(handler);
+        selector.wakeup();
+    }
+
+    void close() {
+        keepRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (keepRunning) {
+                selector.select(SELECT_TIMEOUT);
+                if (!keepRunning)
+                    break;
+                processRegistrations();
+                processWriteRequests();
+                Set<SelectionKey> selected = selector.selectedKeys();
+                Iterator<SelectionKey> i = selected.iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    ClientHandler handler = (ClientHandler)key.attachment();
+                    try {
+                        if (key.isWritable())
+                            handler.readyToWrite();
+                        if (key.isValid() && key.isReadable())
+                            handler.readyToRead();
+                        updateInterest(key, handler);
+                    } catch (CancelledKeyException ignore) {
+                        remove(key);
+                    } catch (BlacklistException ignore) {
+                        remove(key); // already logged; just cancel
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            String warning = getName()+" stopped: "+t.getMessage();
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
+            if (listener != null)
+                listener.onServerError(warning);
+        } finally {
+            for (SelectionKey key:selector.keys()) {
+                ClientHandler handler = (ClientHandler)key.attachment();
+                if (handler != null)
+                    handler.closeClient();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, getName()+" selector.close() error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processRegistrations() {
+        ClientHandler handler;
+        while ((handler = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = handler.getChannel();
+            try {
+                //start with write interest as the challenge has to be sent first
+                channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
+            } catch (Throwable t) {
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Error registering client #"+handler.getId()+" with "+getName());
+                handler.closeClient();
+            }
+        }
+    }
+
+    private void processWriteRequests() {
+        ClientHandler handler;
+        while ((handler = pendingWrites.poll()) != null) {
+            SelectionKey key = handler.getChannel().keyFor(selector);
+            if ((key == null) || !key.isValid())
+                continue;
+            try {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException ignore) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops write interest only once the handler has nothing left to send (and picks it back up if
+     * something was queued in the meantime); cancels the key if the client has closed
+     * @param key
+     * @param handler
+     */
+    private void updateInterest(SelectionKey key, ClientHandler handler) {
+        if (handler.isClosed()) {
+            remove(key);
+            return;
+        }
+        if (((key.interestOps() & SelectionKey.OP_WRITE) != 0) && handler.clearWriteInterest())
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void remove(SelectionKey key) {
+        key.cancel();
+        ClientHandler handler = (ClientHandler)key.attachment();
+        if (handler != null)
+            handler.closeClient();
+    }
+
+    /**
+     * Called (once) by a client assigned to this worker when it closes
+     */
+    void onClientClosed() {
+        load.decrementAndGet();
+    }
+}
@@ -7,13 +7,16 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
+import org.sofwerx.sqan.manet.common.DuplicateFilter;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.DisconnectingPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.FrameDecoder;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+import org.sofwerx.sqan.util.BufferPool;
 import org.sofwerx.sqan.util.CommsLog;
 
 import java.io.IOException;
@@ -21,7 +24,6 @@ import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -47,11 +49,15 @@ public class Server {
     private final ManetListener manetListener;
     private long lastConnection;
     private long idleTimeout = -1l;
+    private int selectorCount = getDefaultSelectorCount();
+    private SelectorWorker[] workers;
+    private final ConnectionRegistry registry;
 
     public Server(SocketChannelConfig config, PacketParser parser, ServerStatusListener listener) {
         this.config = config;
         this.parser = parser;
         this.listener = listener;
+        registry = new ConnectionRegistry(listener);
         if ((parser != null) && (parser.getManet() != null))
             manetListener = parser.getManet().getListener();
         else
@@ -59,8 +65,66 @@ public class Server {
         //Config.getThisDevice().setRoleWiFi(SqAnDevice.NodeRole.HUB);
     }
 
+    /**
+     * By default, use one worker selector per spare core (leaving one for the acceptor and
+     * the rest of SqAN) up to a max of 4
+     * @return
+     */
+    private static int getDefaultSelectorCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1,Math.min(4,cores - 1));
+    }
+
+    /**
+     * Sets the number of worker selectors used to read from and write to clients. Must be
+     * called before start()
+     * @param selectorCount
+     */
+    public void setSelectorCount(int selectorCount) { this.selectorCount = Math.max(1,selectorCount); }
+
     public int getActiveConnectionCount() {
-        return ClientHandler.getActiveConnectionCount();
+        return registry.getActiveConnectionCount();
+    }
+
+    /**
+     * Gets the number of outgoing frames dropped because a client's write queue was full
+     * @return
+     */
+    public long getDroppedFrameCount() {
+        return registry.getDroppedFrameCount();
+    }
+
+    /**
+     * Gets the number of frames recovered after resynchronizing a corrupted client stream
+     * @return
+     */
+    public long getResyncCount() {
+        return registry.getResyncCount();
+    }
+
+    /**
+     * Gets the filter that keeps the same packet from being relayed to the clients more than once
+     * (for its hit rate)
+     * @return
+     */
+    public DuplicateFilter getRelayFilter() {
+        return registry.getRelayFilter();
+    }
+
+    /**
+     * Gets the number of bytes waiting to be sent to the clients
+     * @return
+     */
+    public long getQueuedBytes() {
+        return registry.getQueuedBytes();
+    }
+
+    /**
+     * Gets the number of client frames dropped for failing their CRC check
+     * @return
+     */
+    public long getCorruptFrameCount() {
+        return registry.getCorruptFrameCount();
     }
 
     private int acceptClients(int acceptCount) throws IOException {
@@ -73,9 +137,10 @@ public class Server {
                 client.configureBlocking(false);
                 client.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
                 try {
-                    ClientHandler handler = new ClientHandler(client,parser,listener);
-                    client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
-                    CommsLog.log(CommsLog.Entry.Category.CONNECTION, this.getClass().getSimpleName()+" accepted client #" + handler.getId());
+                    ClientHandler handler = new ClientHandler(client,parser,registry);
+                    SelectorWorker worker = getLeastLoadedWorker();
+                    worker.register(handler);
+                    CommsLog.log(CommsLog.Entry.Category.CONNECTION, this.getClass().getSimpleName()+" accepted client #" + handler.getId()+" on "+worker.getName());
                 } catch (Throwable t) {
                     String msg = "Error defining/registering new client";
                     CommsLog.log(CommsLog.Entry.Category.PROBLEM, msg);
@@ -85,6 +150,15 @@ public class Server {
         return acceptCount;
     }
 
+    private SelectorWorker getLeastLoadedWorker() {
+        SelectorWorker best = workers[0];
+        for (int i=1;i<workers.length;i++) {
+            if (workers[i].getLoad() < best.getLoad())
+                best = workers[i];
+        }
+        return best;
+    }
+
     /**
      * Create the server socket. Save it in an instance attribute.
      *
@@ -116,6 +190,11 @@ public class Server {
         this.selector = Selector.open();
         // NOTE: the key for the server MUST have a null attachment
         server.register(selector, SelectionKey.OP_ACCEPT);
+        workers = new SelectorWorker[selectorCount];
+        for (int i=0;i<selectorCount;i++) {
+            workers[i] = new SelectorWorker(i,listener);
+            workers[i].start();
+        }
         CommsLog.log(CommsLog.Entry.Category.STATUS, "Server started port: " + address.getPort());
         lastConnection = System.currentTimeMillis();
     }
@@ -124,12 +203,15 @@ public class Server {
         return keepRunning && (serverThread != null) && serverThread.isAlive();
     }
 
+    /**
+     * The acceptor loop; reading and writing for each client is handled by the worker selectors
+     * @throws IOException
+     */
     private void readAndProcess() throws IOException {
         long secondTime = 0l;
         int acceptCount = 0;
         while (keepRunning) {
-            boolean isReading = false;
-            int selectionCount = selector.select(1000l * 5l);
+            selector.select(1000l * 5l);
             Set<SelectionKey> selected = selector.selectedKeys();
             Iterator<SelectionKey> i = selected.iterator();
             while (i.hasNext()) {
@@ -141,31 +223,13 @@ public class Server {
                         acceptCount = 0;
                     }
                     acceptCount = acceptClients(acceptCount);
-                } else {
-                    try {
-                        if (s.isWritable()) {
-                            ClientHandler handler = (ClientHandler)s.attachment();
-                            handler.readyToWrite();
-                        }
-                    } catch (CancelledKeyException ignore) {
-                    }
-                    try {
-                        if (s.isReadable()) {
-                            isReading = true;
-                            ClientHandler handler = (ClientHandler)s.attachment();
-                            handler.readyToRead();
-                        }
-                    } catch (CancelledKeyException ignore) {
-                    } catch (BlacklistException ignore) {
-                        s.cancel(); // already logged; just cancel
-                    }
                 }
                 i.remove();
             }
 
-            ClientHandler.removeUnresponsiveConnections();
+            registry.removeUnresponsiveConnections();
             if (idleTimeout > 0l) {
-                int clientCount = ClientHandler.getActiveConnectionCount();
+                int clientCount = registry.getActiveConnectionCount();
                 if (clientCount > 0) {
                     Log.d(TAG,"Server has "+clientCount+" active connection"+((clientCount==1)?"":"s"));
                     lastConnection = System.currentTimeMillis();
@@ -180,26 +244,15 @@ public class Server {
                     }
                 }
             }
+        }
+    }
 
-            // Make sure the operations are set correctly
-            int connectionCount = selector.keys().size();
-            for (SelectionKey key : selector.keys()) {
-                ClientHandler handler = (ClientHandler) key.attachment();
-                if (handler == null)
-                    continue; // the server key
-                if (handler.isClosed())
-                    key.cancel();
-                else if (isReading || handler.hasBacklog()) {
-                    if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) // Make sure the write-ready key is on
-                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    handler.trimQueue(connectionCount);
-                } else if (selectionCount > 0) {
-                    // Make sure we don't get spurious write-ready selections,
-                    // but don't turn off op-write if we simply timed out
-                    if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
-                        key.interestOps(SelectionKey.OP_READ);
-                }
+    private void closeWorkers() {
+        if (workers != null) {
+            for (SelectorWorker worker:workers) {
+                worker.close();
             }
+            workers = null;
         }
     }
 
@@ -239,19 +292,20 @@ public class Server {
         }
         boolean sent = false;
         if (packet != null) {
-            byte[] bytes = packet.toByteArray();
+            int size = packet.getSize();
             if (address == PacketHeader.BROADCAST_ADDRESS)
-                Log.d(TAG,"Server broadcasting "+bytes.length+"b packet");
+                Log.d(TAG,"Server broadcasting "+size+"b packet");
             else
-                Log.d(TAG,"Server bursting "+bytes.length+"b packet to "+address);
-            ByteBuffer out = ByteBuffer.allocate(4 + bytes.length);
-            out.putInt(bytes.length);
-            out.put(bytes);
-            sent = ClientHandler.addToWriteQue(out,address);
+                Log.d(TAG,"Server bursting "+size+"b packet to "+address);
+            ByteBuffer out = BufferPool.getInstance().acquire(FrameDecoder.PREFIX_SIZE + size); //returned to the pool once all the clients have sent it
+            FrameDecoder.writePrefix(out,size);
+            packet.writeTo(out);
+            out.flip();
+            sent = registry.addToWriteQue(out,address);
             if (sent) {
                 if (manetListener != null)
                     manetListener.onTx(packet);
-                ManetOps.addBytesToTransmittedTally(bytes.length);
+                ManetOps.addBytesToTransmittedTally(size);
             }
         }
         return sent;
@@ -268,6 +322,7 @@ public class Server {
                 Log.d(TAG, "Server shutting down...");
                 handler.removeCallbacksAndMessages(null);
                 handler = null;
+                closeWorkers();
                 if (selector != null) {
                     try {
                         selector.close();
@@ -290,6 +345,7 @@ public class Server {
         } else {
             keepRunning = false;
             Log.d(TAG, "Handler is null but Server shutting down anyway...");
+            closeWorkers();
             if (selector != null) {
                 try {
                     selector.close();
@@ -309,7 +365,7 @@ public class Server {
             if (serverThread != null)
                 serverThread.quit();
         }
-        ClientHandler.clear();
+        registry.clear();
         if (listener != null)
             listener.onServerClosed();
     }
@@ -0,0 +1,45 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.sofwerx.sqan.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A length-prefixed frame that is queued for one or more clients. Each client gets its own
+ * read-only view of the same buffer so that relaying a packet to many clients does not copy it;
+ * the buffer goes back to the BufferPool once the creator and every view have released it.
+ */
+class SharedFrame {
+    private final ByteBuffer buffer;
+    private final WriteQueue.TrafficClass trafficClass;
+    private final AtomicInteger refCount = new AtomicInteger(1); //the creator holds the first reference
+    private final long created = System.nanoTime();
+
+    /**
+     * @param buffer the complete frame from position to limit; the frame takes ownership of this buffer
+     */
+    SharedFrame(ByteBuffer buffer) {
+        this.buffer = buffer;
+        trafficClass = WriteQueue.TrafficClass.of(buffer);
+    }
+
+    /**
+     * Creates a new view of this frame (with the full marked prefix) for a client's write queue;
+     * the client skips the marker and CRC-8 when it comes to write the view if it is still
+     * using the legacy framing then
+     * @return
+     */
+    OutboundFrame newView() {
+        refCount.incrementAndGet();
+        return new OutboundFrame(buffer.asReadOnlyBuffer(),trafficClass,this,created);
+    }
+
+    /**
+     * Releases one reference to this frame
+     */
+    void release() {
+        if (refCount.decrementAndGet() == 0)
+            BufferPool.getInstance().release(buffer);
+    }
+}
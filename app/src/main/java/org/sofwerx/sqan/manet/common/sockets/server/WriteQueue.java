@@ -0,0 +1,228 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.FrameDecoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded write queue for a single client. Frames are split into lanes by traffic class and
+ * served with deficit round robin so that heartbeats, pings and small interactive VPN packets do
+ * not wait behind bulk data. When the queue is full, frames that are marked lossyOk are dropped
+ * first; the drops are counted per traffic class.
+ */
+class WriteQueue {
+    private final static int QUANTUM = 1500; //bytes added to a lane's deficit per round, multiplied by the lane weight
+    private final static int MAX_INTERACTIVE_SIZE = FrameDecoder.PREFIX_SIZE + 256 + 64; //VPN frames this small are treated as interactive (ACKs, keystrokes, DNS)
+
+    /**
+     * Traffic classes in order of priority (highest first)
+     */
+    enum TrafficClass {
+        ADMIN(8),       //heartbeats, pings, disconnects
+        INTERACTIVE(4), //small VPN packets
+        BULK(2),        //everything that is not ok to drop
+        LOSSY(1);       //everything that is ok to drop
+
+        private final int weight;
+        TrafficClass(int weight) { this.weight = weight; }
+
+        /**
+         * Determines the traffic class from a length-prefixed frame without decoding the packet
+         * @param frame frame starting at the buffer's position
+         * @return
+         */
+        static TrafficClass of(ByteBuffer frame) {
+            if ((frame == null) || (frame.remaining() < FrameDecoder.PREFIX_SIZE + PacketHeader.MIN_SIZE))
+                return BULK;
+            ByteBuffer header = frame.duplicate();
+            header.position(frame.position() + FrameDecoder.PREFIX_SIZE);
+            byte type = PacketHeader.peekType(header);
+            switch (type) {
+                case PacketHeader.PACKET_TYPE_HEARTBEAT:
+                case PacketHeader.PACKET_TYPE_HEARTBEAT_DELTA:
+                case PacketHeader.PACKET_TYPE_PING:
+                case PacketHeader.PACKET_TYPE_DISCONNECTING:
+                    return ADMIN;
+
+                case PacketHeader.PACKET_TYPE_VPN_BYTES:
+                    if (frame.remaining() <= MAX_INTERACTIVE_SIZE)
+                        return INTERACTIVE;
+                    break;
+            }
+            if (PacketHeader.peekLossyOk(header))
+                return LOSSY;
+            return BULK;
+        }
+    }
+
+    private static class Lane {
+        private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+        private final int quantum;
+        private int deficit = 0;
+        private boolean visited = false;
+        private long drops = 0l;
+
+        private Lane(TrafficClass trafficClass) {
+            quantum = QUANTUM * trafficClass.weight;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final int maxFrames;
+    private final long maxBytes;
+    private int frameCount = 0;
+    private long byteCount = 0l;
+    private int current = 0;
+
+    /**
+     * @param maxFrames the most frames that can be waiting across all lanes
+     * @param maxBytes the most bytes that can be waiting across all lanes (a single frame
+     *                 is always accepted into an empty queue regardless of its size)
+     */
+    WriteQueue(int maxFrames, long maxBytes) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        TrafficClass[] classes = TrafficClass.values();
+        lanes = new Lane[classes.length];
+        for (int i=0;i<classes.length;i++) {
+            lanes[i] = new Lane(classes[i]);
+        }
+    }
+
+    private boolean isFull(int incomingSize) {
+        if (frameCount == 0)
+            return false;
+        return (frameCount >= maxFrames) || (byteCount + incomingSize > maxBytes);
+    }
+
+    /**
+     * Adds a frame to the queue, dropping lower priority (or older lossy) frames if needed to
+     * make room
+     * @param frame
+     * @return true == frame was queued; false == frame was dropped (and has been released)
+     */
+    synchronized boolean offer(OutboundFrame frame) {
+        if (frame == null)
+            return false;
+        TrafficClass trafficClass = frame.getTrafficClass();
+        int size = frame.getData().remaining();
+        while (isFull(size)) {
+            if (!dropOne(trafficClass)) {
+                lanes[trafficClass.ordinal()].drops++;
+                frame.release();
+                return false;
+            }
+        }
+        lanes[trafficClass.ordinal()].frames.addLast(frame);
+        frameCount++;
+        byteCount += size;
+        return true;
+    }
+
+    /**
+     * Drops the oldest frame from the lowest priority lane that can give way to a frame of the
+     * incoming traffic class. Lossy frames always give way (even to newer lossy frames); other
+     * frames only give way to a higher priority class.
+     * @param incoming
+     * @return true == a frame was dropped
+     */
+    private boolean dropOne(TrafficClass incoming) {
+        for (int i=lanes.length-1;i>=0;i--) {
+            Lane lane = lanes[i];
+            if (lane.frames.isEmpty())
+                continue;
+            if ((i == TrafficClass.LOSSY.ordinal()) || (i > incoming.ordinal())) {
+                OutboundFrame victim = lane.frames.pollFirst();
+                frameCount--;
+                byteCount -= victim.getData().remaining();
+                lane.drops++;
+                victim.release();
+                return true;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the next frame to write based on the lane weights
+     * @return the next frame (or null if the queue is empty)
+     */
+    synchronized OutboundFrame poll() {
+        if (frameCount == 0)
+            return null;
+        while (true) {
+            Lane lane = lanes[current];
+            if (lane.frames.isEmpty()) {
+                lane.deficit = 0;
+                lane.visited = false;
+                current = (current + 1) % lanes.length;
+                continue;
+            }
+            if (!lane.visited) {
+                lane.deficit += lane.quantum;
+                lane.visited = true;
+            }
+            OutboundFrame head = lane.frames.peekFirst();
+            int size = head.getData().remaining();
+            if ((size <= lane.deficit) || (lane.frames.size() == frameCount)) {
+                lane.frames.pollFirst();
+                lane.deficit = Math.max(0,lane.deficit - size);
+                frameCount--;
+                byteCount -= size;
+                return head;
+            }
+            lane.visited = false;
+            current = (current + 1) % lanes.length;
+        }
+    }
+
+    synchronized boolean isEmpty() { return frameCount == 0; }
+
+    synchronized int size() { return frameCount; }
+
+    /**
+     * Gets the number of bytes waiting in the queue
+     * @return
+     */
+    synchronized long getByteCount() { return byteCount; }
+
+    /**
+     * Gets the number of frames of this traffic class that were dropped because the queue was full
+     * @param trafficClass
+     * @return
+     */
+    synchronized long getDropCount(TrafficClass trafficClass) {
+        return lanes[trafficClass.ordinal()].drops;
+    }
+
+    /**
+     * Gets the total number of frames dropped because the queue was full
+     * @return
+     */
+    synchronized long getDropCount() {
+        long total = 0l;
+        for (Lane lane:lanes) {
+            total += lane.drops;
+        }
+        return total;
+    }
+
+    /**
+     * Removes and releases every frame in the queue
+     */
+    synchronized void clear() {
+        for (Lane lane:lanes) {
+            OutboundFrame frame;
+            while ((frame = lane.frames.pollFirst()) != null) {
+                frame.release();
+            }
+            lane.deficit = 0;
+            lane.visited = false;
+        }
+        frameCount = 0;
+        byteCount = 0l;
+    }
+}
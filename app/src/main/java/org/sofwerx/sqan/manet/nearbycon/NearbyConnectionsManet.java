@@ -29,6 +29,7 @@ import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.PingPacket;
+import org.sofwerx.sqan.manet.common.scheduler.LinkQuality;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.StringUtil;
 
@@ -471,6 +472,7 @@ public class NearbyConnectionsManet extends AbstractManet {
                                     burst(pingPacket);
                                 } else {
                                     device.addLatencyMeasurement(pingPacket.getLatency());
+                                    LinkQuality.getInstance().onRoundTrip(device.getUUID(),getTransport(),pingPacket.getLatency());
                                     CommsLog.log(CommsLog.Entry.Category.COMMS, "Received ping (round trip latency "+Long.toString(pingPacket.getLatency())+"ms) from " + deviceId);
                                 }
                             } else
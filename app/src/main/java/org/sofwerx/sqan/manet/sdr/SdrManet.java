@@ -9,12 +9,16 @@ import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
 import org.sofwerx.sqan.manet.common.AbstractManet;
+import org.sofwerx.sqan.manet.common.LinkFeatures;
 import org.sofwerx.sqan.manet.common.ManetException;
 import org.sofwerx.sqan.manet.common.ManetType;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
-import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatEncoder;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.PayloadCodec;
+import org.sofwerx.sqan.manet.common.scheduler.LinkQuality;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqandr.SqANDRListener;
 import org.sofwerx.sqandr.SqANDRService;
@@ -39,10 +43,11 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
     private static SdrManet instance;
     private long staleTime = Long.MIN_VALUE;
     private SqANDRService sqANDRService;
-    private long[] DEDUP_LIST = new long[10]; //used to prevent handling duplicate messages but still allow messages out of order (within a small group)
-    private int dedupIndex = 0;
-    private final static long SUPPLEMENTAL_HEARTBEAT_INTERVAL = 1000l;
+    private final static long MIN_SUPPLEMENTAL_HEARTBEAT_INTERVAL = 1000l;
+    private final static long MAX_SUPPLEMENTAL_HEARTBEAT_INTERVAL = 1000l * 8l;
+    private final HeartbeatEncoder heartbeats = new HeartbeatEncoder(MIN_SUPPLEMENTAL_HEARTBEAT_INTERVAL,MAX_SUPPLEMENTAL_HEARTBEAT_INTERVAL);
     private long nextSupplementalHeartbeat = Long.MIN_VALUE;
+    private final LinkFeatures linkFeatures = new LinkFeatures("SDR",true,true,PayloadCodec.LEVEL_STRONG);
 
     public SdrManet(Handler handler, Context context, ManetListener listener) {
         super(handler, context, listener);
@@ -128,7 +133,7 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             }
         }
         Log.d(TAG,"Bursting "+packet.getClass().getSimpleName());
-        burst(packet.toByteArray(), packet.getSqAnDestination(), packet.getOrigin());
+        burst(linkFeatures.encode(packet,PacketHeader.BROADCAST_ADDRESS), packet.getSqAnDestination(), packet.getOrigin()); //every SDR neighbor hears every burst
     }
 
     @Override
@@ -162,6 +167,8 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
 
     @Override
     protected void onDeviceLost(SqAnDevice device, boolean directConnection) {
+        if (device != null)
+            linkFeatures.forget(device.getUUID());
         //TODO
     }
 
@@ -183,13 +190,13 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             SqAnDevice.cullOldDevices();
         }
 
-        if (System.currentTimeMillis() > nextSupplementalHeartbeat) {
-            nextSupplementalHeartbeat = System.currentTimeMillis() + SUPPLEMENTAL_HEARTBEAT_INTERVAL;
+        if ((System.currentTimeMillis() > nextSupplementalHeartbeat) || heartbeats.isTopologyChanged()) {
             try {
-                burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
+                burst(heartbeats.next(Config.getThisDevice()));
             } catch (ManetException e) {
                 e.printStackTrace();
             }
+            nextSupplementalHeartbeat = System.currentTimeMillis() + heartbeats.getInterval();
         }
     }
 
@@ -228,11 +235,6 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             onPacketDropped();
             return;
         }
-        if (hasTimeAlreadyInDedupList(packet.getTime())) {
-            Log.d(TAG,packet.getClass().getSimpleName()+" packet is likely a duplicate; ignoring");
-            return;
-        }
-        addTimeToDedupList(packet.getTime());
         if (packet.getOrigin() == Config.getThisDevice().getUUID()) {
             Log.d(TAG,packet.getClass().getSimpleName()+" is circular; ignoring");
             return;
@@ -251,12 +253,14 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             dev.addToDataTally(data.length);
         }
         setCurrent();
+        linkFeatures.onReceived(packet);
         onReceived(packet);
     }
 
     @Override
     public void onPacketDropped() {
         CommsLog.log(CommsLog.Entry.Category.PROBLEM,"Error parsing data, packet dropped");
+        LinkQuality.getInstance().onDropped(getTransport());
         if (listener != null)
             listener.onPacketDropped();
     }
@@ -292,30 +296,6 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             sqANDRService.setDataConnectionListener(terminal);
     }
 
-    /**
-     * Checks to see if a message time is already in the list of duplicate times
-     * @param time
-     * @return
-     */
-    private boolean hasTimeAlreadyInDedupList(long time) {
-        for (int i=0;i<DEDUP_LIST.length;i++) {
-            if (DEDUP_LIST[i] == time)
-                return true;
-        }
-        return false;
-    }
-
-    /**
-     * Adds a message time to the list of times to check for duplication
-     * @param time
-     */
-    private void addTimeToDedupList(long time) {
-        DEDUP_LIST[dedupIndex] = time;
-        dedupIndex++;
-        if (dedupIndex >= DEDUP_LIST.length)
-            dedupIndex = 0;
-    }
-
     public SerialConnection getSerialConnection() {
         if (sqANDRService == null)
             return null;
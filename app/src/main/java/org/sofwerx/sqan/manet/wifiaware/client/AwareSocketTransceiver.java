@@ -5,10 +5,12 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.NetUtil;
 
 import java.io.IOException;
@@ -66,9 +68,30 @@ public class AwareSocketTransceiver {
     }
 
     public int queue(AbstractPacket packet, OutputStream outputStream, ManetListener listener) throws IOException {
+        return queue(packet,outputStream,listener,0l);
+    }
+
+    /**
+     * Writes the packet to the stream
+     * @param packet
+     * @param outputStream
+     * @param listener
+     * @param queued System.nanoTime() when the packet was handed over to be sent (or 0 if not known)
+     * @return
+     * @throws IOException
+     */
+    public int queue(AbstractPacket packet, OutputStream outputStream, ManetListener listener, long queued) throws IOException {
         if (packet != null) {
             if (isReadyToWrite()) {
-                immediateOutput(packet.toByteArray(), true, outputStream);
+                byte[] data = packet.toByteArray();
+                try {
+                    immediateOutput(data, true, outputStream);
+                } catch (IOException e) {
+                    PacketMetrics.getInstance().onDropped(TransportPreference.WIFI,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.WRITE_ERROR);
+                    throw e;
+                }
+                if (data != null)
+                    PacketMetrics.getInstance().onSent(TransportPreference.WIFI,PacketMetrics.UNKNOWN_NEIGHBOR,data.length,queued);
                 if (listener != null)
                     listener.onTx(packet);
             } else
@@ -107,6 +130,7 @@ public class AwareSocketTransceiver {
             Log.d(Config.TAG,"Received "+size+"b message");
         byte[] payload = new byte[size];
         inputStream.read(payload);
+        PacketMetrics.getInstance().onReceived(TransportPreference.WIFI,PacketMetrics.UNKNOWN_NEIGHBOR,size);
         parser.processPacketAndNotifyManet(payload);
         return false;
     }
@@ -104,12 +104,13 @@ public class ClientConnection extends AbstractConnection {
         if ((clientThread == null) || !clientThread.isAlive())
             return false;
         if ((handler != null) && (packet != null)) {
+            final long queued = System.nanoTime();
             handler.post(() -> {
                 Log.d(TAG,"burst("+packet.getClass().getSimpleName()+") called");
                 if (outputStream != null) {
                     if (datalink != null) {
                         try {
-                            datalink.queue(packet, outputStream, listener);
+                            datalink.queue(packet, outputStream, listener, queued);
                         } catch (Exception e) {
                             Log.e(TAG, e.getMessage());
                         }
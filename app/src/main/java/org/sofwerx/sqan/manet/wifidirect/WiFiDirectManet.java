@@ -231,6 +231,14 @@ public class WiFiDirectManet extends AbstractManet implements WifiP2pManager.Pee
         return false;
     }
 
+    @Override
+    public long getQueuedBytes() {
+        Server server = socketServer;
+        if (server == null)
+            return 0l;
+        return server.getQueuedBytes();
+    }
+
     @Override
     public void setNewNodesAllowed(boolean newNodesAllowed) {
         //TODO
@@ -87,15 +87,15 @@ public class DevicesList extends ConstraintLayout {
                     adapter = null;
                     list.setAdapter(null);
                 } else {
+                    //the device list is a snapshot that is replaced (not changed) as devices come and go, so the adapter keeps its own copy
                     if (adapter == null) {
-                        adapter = new DevicesListArrayAdapter(activity, devices);
+                        adapter = new DevicesListArrayAdapter(activity, new ArrayList<>(devices));
                         list.setAdapter(adapter);
                     } else {
-                        if (device == null)
-                            adapter.notifyDataSetChanged();
-                        else {
-                            adapter.notifyDataSetChanged();
-                        }
+                        adapter.setNotifyOnChange(false);
+                        adapter.clear();
+                        adapter.addAll(devices);
+                        adapter.notifyDataSetChanged();
                     }
                 }
             } else
@@ -0,0 +1,89 @@
+package org.sofwerx.sqan.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable ByteBuffers so that packets can be read from and written to the
+ * wire without allocating new buffers for every packet
+ */
+public class BufferPool {
+    public final static int DEFAULT_BUFFER_SIZE = 1024 * 4; //big enough for a full MTU VPN packet plus header
+    public final static int DEFAULT_MAX_POOLED = 64;
+    private final static BufferPool instance = new BufferPool(DEFAULT_BUFFER_SIZE,DEFAULT_MAX_POOLED);
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * Creates a new buffer pool
+     * @param bufferSize size (in bytes) of each pooled buffer; requests larger than this are allocated but not pooled
+     * @param maxPooled maximum number of buffers to hold on to when they are released
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize,maxPooled,false);
+    }
+
+    /**
+     * Creates a new buffer pool
+     * @param bufferSize size (in bytes) of each pooled buffer; requests larger than this are allocated but not pooled
+     * @param maxPooled maximum number of buffers to hold on to when they are released
+     * @param direct true == pooled buffers are direct (for reading straight from a channel without an extra copy)
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Gets the pool shared by all of the transports
+     * @return
+     */
+    public static BufferPool getInstance() { return instance; }
+
+    /**
+     * Gets a buffer with its position at 0 and its limit at the requested size. The buffer
+     * should be returned with release() once it is no longer needed.
+     * @param size number of bytes needed
+     * @return
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize)
+            return ByteBuffer.allocate(size);
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            buffer = direct?ByteBuffer.allocateDirect(bufferSize):ByteBuffer.allocate(bufferSize);
+        else
+            pooled.decrementAndGet();
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that did not come from this pool (or are not
+     * the pooled size) are ignored and left for the garbage collector. The buffer should not
+     * be used by the caller after this.
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if ((buffer == null) || buffer.isReadOnly() || (buffer.capacity() != bufferSize))
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    /**
+     * Gets the number of buffers currently waiting in the pool
+     * @return
+     */
+    public int getPooledCount() { return pooled.get(); }
+}
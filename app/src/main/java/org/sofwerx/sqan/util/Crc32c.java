@@ -0,0 +1,124 @@
+package org.sofwerx.sqan.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum. Uses the platform java.util.zip.CRC32C (which is hardware
+ * accelerated on most devices) when it is available (Android O and later, Java 9 and later) and
+ * falls back to a table-driven implementation otherwise. Both produce the same value so a
+ * packet checked on one device can be verified on any other.
+ */
+public class Crc32c implements Checksum {
+    private final static int POLY = 0x82F63B78; //reversed Castagnoli polynomial
+    private final static int[] TABLE = new int[256];
+    private final static Class<?> PLATFORM_CRC32C;
+    static {
+        for (int i=0;i<256;i++) {
+            int crc = i;
+            for (int bit=0;bit<8;bit++) {
+                if ((crc & 1) != 0)
+                    crc = (crc >>> 1) ^ POLY;
+                else
+                    crc = crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        Class<?> platform = null;
+        try {
+            platform = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException ignore) {
+        }
+        PLATFORM_CRC32C = platform;
+    }
+
+    private final Checksum platform;
+    private int crc = 0xFFFFFFFF;
+    private final byte[] scratch = new byte[256];
+
+    public Crc32c() {
+        platform = newPlatformChecksum();
+    }
+
+    private static Checksum newPlatformChecksum() {
+        if (PLATFORM_CRC32C == null)
+            return null;
+        try {
+            return (Checksum)PLATFORM_CRC32C.newInstance();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Is the platform (hardware accelerated) implementation in use
+     * @return
+     */
+    public static boolean isPlatformAvailable() { return PLATFORM_CRC32C != null; }
+
+    @Override
+    public void update(int b) {
+        if (platform == null)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        else
+            platform.update(b);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (platform == null) {
+            int c = crc;
+            for (int i=off;i<off+len;i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        } else
+            platform.update(b,off,len);
+    }
+
+    public void update(byte[] b) {
+        if (b != null)
+            update(b,0,b.length);
+    }
+
+    /**
+     * Updates the checksum with the bytes between the buffer's position and limit. The buffer's
+     * position is not changed.
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (buffer.hasArray()) {
+            update(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+            return;
+        }
+        ByteBuffer in = buffer.duplicate();
+        while (in.hasRemaining()) {
+            int len = Math.min(scratch.length,in.remaining());
+            in.get(scratch,0,len);
+            update(scratch,0,len);
+        }
+    }
+
+    /**
+     * Gets the checksum as an int
+     * @return
+     */
+    public int getInt() {
+        if (platform == null)
+            return ~crc;
+        return (int)platform.getValue();
+    }
+
+    @Override
+    public long getValue() { return getInt() & 0xFFFFFFFFl; }
+
+    @Override
+    public void reset() {
+        if (platform == null)
+            crc = 0xFFFFFFFF;
+        else
+            platform.reset();
+    }
+}
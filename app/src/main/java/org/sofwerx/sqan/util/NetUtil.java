@@ -365,8 +365,9 @@ public class NetUtil {
                 continue;
             sum += (data[i] << 8 & 0xFF00) + (data[i + 1] & 0xFF);
         }
-        int carry = sum >> 16 & 0xFF;
-        int finalSum = (sum & 0xFFFF) + carry;
+        while ((sum >> 16) != 0) //fold the carries back in until the sum fits in 16 bits
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        int finalSum = sum;
         checkSum = shortToByteArray((short) ~((short) finalSum & 0xFFFF));
         data[IVP4_HEADER_OFFSET_CHECKSUM] = checkSum[0];
         data[IVP4_HEADER_OFFSET_CHECKSUM+1] = checkSum[1];
@@ -0,0 +1,429 @@
+package org.sofwerx.sqan.vpn;
+
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.routing.RoutingTable;
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the IPv4 and TCP/UDP headers of VPN traffic between two SqAN devices (in the spirit
+ * of Van Jacobson/ROHC compression) so that slow links like Bluetooth and SDR are not spending
+ * 28-40 bytes of every packet on headers that barely change.
+ *
+ * Each flow (5-tuple) to a destination gets a context. The first packet of a flow is sent in
+ * full, tagged with the context ID and a generation number, and becomes the reference for that
+ * context. Later packets only carry the fields that cannot be inferred, with the IP ID, TCP
+ * sequence and TCP acknowledgement sent as deltas from the reference. Because every delta is
+ * from the reference rather than from the previous packet, losing or reordering a compressed
+ * packet does not affect the ones after it. A full header is sent again periodically (and
+ * whenever a delta no longer fits), with a new generation number; a receiver that missed the
+ * reference drops packets for that context until the next full header arrives, which is at most
+ * REFRESH_PACKETS packets or REFRESH_TIME later.
+ */
+public class HeaderCompressor {
+    private final static int MAX_CONTEXTS = 64; //flows tracked per device
+    private final static int REFRESH_PACKETS = 16; //send a full header at least every this many packets in a flow
+    private final static long REFRESH_TIME = 2000l; //send a full header at least this often (ms) in a flow
+    private final static long IDLE_TIME = SqAnDevice.TIME_TO_STALE; //contexts for a device are dropped after this long (ms) without traffic
+    private final static int IPV4_HEADER_SIZE = 20;
+    private final static int TCP_HEADER_SIZE = 20;
+    private final static int UDP_HEADER_SIZE = 8;
+    private final static byte PROTOCOL_TCP = 6;
+    private final static byte PROTOCOL_UDP = 17;
+    private final static byte VPN_NET = (byte)0xA9; //169.x.x.x
+    private final static int PREFIX_SIZE = 3; //context ID, generation, flags
+    private final static int FLAG_FULL = 0b00000001; //the rest of the item is the complete IP packet
+    private final static int FLAG_LONG_ID = 0b00000010; //IP ID delta is 2 bytes instead of 1
+    private final static int FLAG_WINDOW = 0b00000100; //TCP window is included
+    private final static int FLAG_URGENT = 0b00001000; //TCP urgent pointer is included
+    private final static HeaderCompressor instance = new HeaderCompressor();
+    private final Map<Integer, Compressor> compressors = new ConcurrentHashMap<>(); //by destination
+    private final Map<Integer, Decompressor> decompressors = new ConcurrentHashMap<>(); //by origin
+    private final AtomicLong misses = new AtomicLong(0l);
+
+    private static class Context {
+        private final int id;
+        private long key;
+        private int generation = (int)(Math.random() * 256d); //random start so a restarted sender does not reuse a receiver's stale generation
+        private byte[] reference;
+        private int sinceRefresh = 0;
+        private long refreshed = 0l;
+        private long lastUsed = 0l;
+
+        private Context(int id) { this.id = id; }
+    }
+
+    /**
+     * Contexts for the flows going to one destination
+     */
+    private static class Compressor {
+        private final HashMap<Long, Context> flows = new HashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private final Context[] contexts = new Context[MAX_CONTEXTS];
+
+        private Context getContext(long key) {
+            Context context = flows.get(key);
+            if (context != null)
+                return context;
+            Context oldest = null;
+            for (int i=0;i<MAX_CONTEXTS;i++) {
+                if (contexts[i] == null) {
+                    oldest = new Context(i);
+                    contexts[i] = oldest;
+                    break;
+                }
+                if ((oldest == null) || (contexts[i].lastUsed < oldest.lastUsed))
+                    oldest = contexts[i];
+            }
+            if (flows.get(oldest.key) == oldest)
+                flows.remove(oldest.key);
+            oldest.key = key;
+            oldest.reference = null;
+            flows.put(key,oldest);
+            return oldest;
+        }
+    }
+
+    /**
+     * Contexts for the flows coming from one origin
+     */
+    private static class Decompressor {
+        private final byte[][] references = new byte[MAX_CONTEXTS][];
+        private final int[] generations = new int[MAX_CONTEXTS];
+        private volatile long lastUsed = System.currentTimeMillis();
+    }
+
+    public static HeaderCompressor getInstance() { return instance; }
+
+    /**
+     * Is header compression worth doing for traffic to this device; it is used when the device is
+     * reached through a neighbor that is not directly connected over WiFi (i.e. over Bluetooth or SDR)
+     * and the device has advertised that it can decompress (older builds cannot read the
+     * compressed flag or the bundled form that compressed packets are sent in)
+     * @param device
+     * @return
+     */
+    public static boolean isWorthwhile(SqAnDevice device) {
+        if ((device == null) || !device.hasCapability(SqAnDevice.CAPABILITY_VPN_HEADER_COMPRESSION)
+                || !device.hasCapability(SqAnDevice.CAPABILITY_VPN_BUNDLE))
+            return false;
+        SqAnDevice neighbor = device;
+        int nextHop = RoutingTable.getInstance().getNextHop(device.getUUID());
+        if ((nextHop != RoutingTable.NO_ROUTE) && (nextHop != device.getUUID())) {
+            neighbor = SqAnDevice.findByUUID(nextHop);
+            if (neighbor == null)
+                return false;
+        }
+        return !neighbor.isDirectWiFi() && (neighbor.isDirectBt() || neighbor.isDirectSDR());
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset+1] & 0xFF);
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >> 8);
+        data[offset+1] = (byte)value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (getShort(data,offset) << 16) | getShort(data,offset+2);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        putShort(data,offset,value >>> 16);
+        putShort(data,offset+2,value);
+    }
+
+    private static int getTcpHeaderSize(byte[] ip) {
+        return ((ip[IPV4_HEADER_SIZE+12] >> 4) & 0x0F) * 4;
+    }
+
+    /**
+     * Can this IP packet's headers be compressed: IPv4 without options or fragmentation, TCP or
+     * UDP, between two addresses on the SqAN VPN
+     */
+    private static boolean isCompressible(byte[] ip) {
+        if ((ip == null) || (ip.length < IPV4_HEADER_SIZE + UDP_HEADER_SIZE) || (ip.length > 0x7FFF))
+            return false;
+        if (ip[0] != 0x45) //IPv4 with a 20 byte header
+            return false;
+        if ((getShort(ip,2) != ip.length) || ((getShort(ip,6) & 0x3FFF) != 0)) //truncated or fragmented
+            return false;
+        if ((ip[12] != VPN_NET) || (ip[16] != VPN_NET))
+            return false;
+        if (ip[9] == PROTOCOL_UDP)
+            return getShort(ip,IPV4_HEADER_SIZE+4) == ip.length - IPV4_HEADER_SIZE;
+        if (ip[9] == PROTOCOL_TCP) {
+            if (ip.length < IPV4_HEADER_SIZE + TCP_HEADER_SIZE)
+                return false;
+            int tcpHeaderSize = getTcpHeaderSize(ip);
+            return (tcpHeaderSize >= TCP_HEADER_SIZE) && (IPV4_HEADER_SIZE + tcpHeaderSize <= ip.length);
+        }
+        return false;
+    }
+
+    private static int getReferenceSize(byte[] ip) {
+        return IPV4_HEADER_SIZE + ((ip[9] == PROTOCOL_TCP)?TCP_HEADER_SIZE:UDP_HEADER_SIZE);
+    }
+
+    private static long getFlowKey(byte[] ip) {
+        long key = ((long)getInt(ip,12) << 32) ^ (getInt(ip,16) & 0xFFFFFFFFl);
+        key = key * 31l + (getInt(ip,IPV4_HEADER_SIZE) & 0xFFFFFFFFl);
+        return key * 31l + ip[9];
+    }
+
+    /**
+     * Do the fields that are expected to stay the same for the life of a flow (TOS, DF, TTL,
+     * protocol, addresses and ports) match the reference
+     */
+    private static boolean isSameFlow(byte[] reference, byte[] ip) {
+        if (reference == null)
+            return false;
+        if ((reference[1] != ip[1]) || (reference[6] != ip[6]) || (reference[7] != ip[7]) || (reference[8] != ip[8]) || (reference[9] != ip[9]))
+            return false;
+        for (int i=12;i<IPV4_HEADER_SIZE+4;i++) {
+            if (reference[i] != ip[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compresses the headers of an IP packet going to a destination
+     * @param destination SqAN UUID of the device the packet is going to
+     * @param ip
+     * @return the compressed form (or null if the packet cannot be compressed and should be sent as is)
+     */
+    public byte[] compress(int destination, byte[] ip) {
+        if (!isCompressible(ip))
+            return null;
+        Compressor compressor = compressors.get(destination);
+        if (compressor == null) {
+            compressor = new Compressor();
+            Compressor existing = ((ConcurrentHashMap<Integer, Compressor>)compressors).putIfAbsent(destination,compressor);
+            if (existing != null)
+                compressor = existing;
+        }
+        final boolean tcp = ip[9] == PROTOCOL_TCP;
+        synchronized (compressor) {
+            Context context = compressor.getContext(getFlowKey(ip));
+            long now = System.currentTimeMillis();
+            context.lastUsed = now;
+            compressor.lastUsed = now;
+            byte[] reference = context.reference;
+            boolean refresh = !isSameFlow(reference,ip) || (context.sinceRefresh >= REFRESH_PACKETS) || (now > context.refreshed + REFRESH_TIME);
+            int seqDelta = 0;
+            int ackDelta = 0;
+            if (!refresh && tcp) {
+                seqDelta = getInt(ip,IPV4_HEADER_SIZE+4) - getInt(reference,IPV4_HEADER_SIZE+4);
+                ackDelta = getInt(ip,IPV4_HEADER_SIZE+8) - getInt(reference,IPV4_HEADER_SIZE+8);
+                refresh = (seqDelta < 0) || (seqDelta > 0xFFFF) || (ackDelta < 0) || (ackDelta > 0xFFFF);
+            }
+
+            if (refresh) {
+                context.generation = (context.generation + 1) & 0xFF;
+                context.reference = Arrays.copyOf(ip,getReferenceSize(ip));
+                context.sinceRefresh = 0;
+                context.refreshed = now;
+                byte[] item = new byte[PREFIX_SIZE + ip.length];
+                item[0] = (byte)context.id;
+                item[1] = (byte)context.generation;
+                item[2] = (byte)FLAG_FULL;
+                System.arraycopy(ip,0,item,PREFIX_SIZE,ip.length);
+                return item;
+            }
+            context.sinceRefresh++;
+
+            int flags = 0;
+            int idDelta = (getShort(ip,4) - getShort(reference,4)) & 0xFFFF;
+            int size = PREFIX_SIZE + 1 + 2;
+            if (idDelta > 0xFF) {
+                flags |= FLAG_LONG_ID;
+                size++;
+            }
+            int headerSize;
+            if (tcp) {
+                headerSize = IPV4_HEADER_SIZE + getTcpHeaderSize(ip);
+                size += 2 + 2 + 2 + (headerSize - IPV4_HEADER_SIZE - TCP_HEADER_SIZE);
+                if (getShort(ip,IPV4_HEADER_SIZE+14) != getShort(reference,IPV4_HEADER_SIZE+14)) {
+                    flags |= FLAG_WINDOW;
+                    size += 2;
+                }
+                if (((ip[IPV4_HEADER_SIZE+13] & 0x20) != 0) || (getShort(ip,IPV4_HEADER_SIZE+18) != 0)) {
+                    flags |= FLAG_URGENT;
+                    size += 2;
+                }
+            } else
+                headerSize = IPV4_HEADER_SIZE + UDP_HEADER_SIZE;
+            size += ip.length - headerSize;
+
+            byte[] item = new byte[size];
+            item[0] = (byte)context.id;
+            item[1] = (byte)context.generation;
+            item[2] = (byte)flags;
+            int pos = PREFIX_SIZE;
+            if ((flags & FLAG_LONG_ID) != 0) {
+                putShort(item,pos,idDelta);
+                pos += 2;
+            } else
+                item[pos++] = (byte)idDelta;
+            if (tcp) {
+                putShort(item,pos,seqDelta);
+                putShort(item,pos+2,ackDelta);
+                item[pos+4] = ip[IPV4_HEADER_SIZE+12]; //data offset and flags
+                item[pos+5] = ip[IPV4_HEADER_SIZE+13];
+                pos += 6;
+                if ((flags & FLAG_WINDOW) != 0) {
+                    System.arraycopy(ip,IPV4_HEADER_SIZE+14,item,pos,2);
+                    pos += 2;
+                }
+                System.arraycopy(ip,IPV4_HEADER_SIZE+16,item,pos,2); //checksum
+                pos += 2;
+                if ((flags & FLAG_URGENT) != 0) {
+                    System.arraycopy(ip,IPV4_HEADER_SIZE+18,item,pos,2);
+                    pos += 2;
+                }
+                int options = headerSize - IPV4_HEADER_SIZE - TCP_HEADER_SIZE;
+                System.arraycopy(ip,IPV4_HEADER_SIZE+TCP_HEADER_SIZE,item,pos,options);
+                pos += options;
+            } else {
+                System.arraycopy(ip,IPV4_HEADER_SIZE+6,item,pos,2); //checksum
+                pos += 2;
+            }
+            System.arraycopy(ip,headerSize,item,pos,ip.length - headerSize);
+            return item;
+        }
+    }
+
+    /**
+     * Rebuilds an IP packet from its compressed form
+     * @param origin SqAN UUID of the device that compressed the packet
+     * @param item
+     * @return the IP packet (or null if the context it depends on is not known, in which case
+     *         the packet should be dropped)
+     */
+    public byte[] decompress(int origin, byte[] item) {
+        if ((item == null) || (item.length < PREFIX_SIZE))
+            return null;
+        int id = item[0] & 0xFF;
+        int generation = item[1] & 0xFF;
+        int flags = item[2];
+        if (id >= MAX_CONTEXTS)
+            return null;
+        Decompressor decompressor = decompressors.get(origin);
+        if (decompressor == null) {
+            decompressor = new Decompressor();
+            Decompressor existing = ((ConcurrentHashMap<Integer, Decompressor>)decompressors).putIfAbsent(origin,decompressor);
+            if (existing != null)
+                decompressor = existing;
+        }
+        decompressor.lastUsed = System.currentTimeMillis();
+        synchronized (decompressor) {
+            if ((flags & FLAG_FULL) != 0) {
+                byte[] ip = Arrays.copyOfRange(item,PREFIX_SIZE,item.length);
+                if (!isCompressible(ip))
+                    return null;
+                decompressor.references[id] = Arrays.copyOf(ip,getReferenceSize(ip));
+                decompressor.generations[id] = generation;
+                return ip;
+            }
+            byte[] reference = decompressor.references[id];
+            if ((reference == null) || (decompressor.generations[id] != generation)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            final boolean tcp = reference[9] == PROTOCOL_TCP;
+            int pos = PREFIX_SIZE;
+            int needed = pos + (((flags & FLAG_LONG_ID) != 0)?2:1) + 2;
+            if (tcp)
+                needed += 6 + (((flags & FLAG_WINDOW) != 0)?2:0) + (((flags & FLAG_URGENT) != 0)?2:0);
+            if (item.length < needed)
+                return null;
+            int idDelta;
+            if ((flags & FLAG_LONG_ID) != 0) {
+                idDelta = getShort(item,pos);
+                pos += 2;
+            } else
+                idDelta = item[pos++] & 0xFF;
+
+            byte[] ip;
+            if (tcp) {
+                int tcpHeaderSize = ((item[pos+4] >> 4) & 0x0F) * 4;
+                int options = tcpHeaderSize - TCP_HEADER_SIZE;
+                if ((options < 0) || (item.length < needed + options))
+                    return null;
+                int payload = item.length - needed - options;
+                ip = new byte[IPV4_HEADER_SIZE + tcpHeaderSize + payload];
+                System.arraycopy(reference,0,ip,0,IPV4_HEADER_SIZE + TCP_HEADER_SIZE);
+                putInt(ip,IPV4_HEADER_SIZE+4,getInt(reference,IPV4_HEADER_SIZE+4) + getShort(item,pos));
+                putInt(ip,IPV4_HEADER_SIZE+8,getInt(reference,IPV4_HEADER_SIZE+8) + getShort(item,pos+2));
+                ip[IPV4_HEADER_SIZE+12] = item[pos+4];
+                ip[IPV4_HEADER_SIZE+13] = item[pos+5];
+                pos += 6;
+                if ((flags & FLAG_WINDOW) != 0) {
+                    System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+14,2);
+                    pos += 2;
+                }
+                System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+16,2);
+                pos += 2;
+                if ((flags & FLAG_URGENT) != 0) {
+                    System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+18,2);
+                    pos += 2;
+                } else
+                    putShort(ip,IPV4_HEADER_SIZE+18,0);
+                System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+TCP_HEADER_SIZE,options);
+                pos += options;
+                System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+tcpHeaderSize,payload);
+            } else {
+                int payload = item.length - needed;
+                ip = new byte[IPV4_HEADER_SIZE + UDP_HEADER_SIZE + payload];
+                System.arraycopy(reference,0,ip,0,IPV4_HEADER_SIZE + UDP_HEADER_SIZE);
+                putShort(ip,IPV4_HEADER_SIZE+4,UDP_HEADER_SIZE + payload);
+                System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+6,2);
+                pos += 2;
+                System.arraycopy(item,pos,ip,IPV4_HEADER_SIZE+UDP_HEADER_SIZE,payload);
+            }
+            putShort(ip,2,ip.length);
+            putShort(ip,4,getShort(reference,4) + idDelta);
+            NetUtil.updateIpv4Checksum(ip);
+            return ip;
+        }
+    }
+
+    /**
+     * Gets the number of compressed packets dropped because their context was not known
+     * @return
+     */
+    public long getMissCount() { return misses.get(); }
+
+    /**
+     * Forgets the contexts for any device that has not sent or received compressed traffic in a
+     * while (i.e. devices that have left the mesh); a device that comes back simply starts with
+     * full headers again
+     */
+    public void evictIdle() {
+        final long idle = System.currentTimeMillis() - IDLE_TIME;
+        for (Map.Entry<Integer, Compressor> entry:compressors.entrySet()) {
+            if (entry.getValue().lastUsed < idle)
+                compressors.remove(entry.getKey(),entry.getValue());
+        }
+        for (Map.Entry<Integer, Decompressor> entry:decompressors.entrySet()) {
+            if (entry.getValue().lastUsed < idle)
+                decompressors.remove(entry.getKey(),entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets all compression contexts
+     */
+    public void clear() {
+        compressors.clear();
+        decompressors.clear();
+    }
+}
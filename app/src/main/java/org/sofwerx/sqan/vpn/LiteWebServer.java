@@ -2,8 +2,11 @@ package org.sofwerx.sqan.vpn;
 
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -15,9 +18,12 @@ import fi.iki.elonen.NanoHTTPD;
 public class LiteWebServer {
     private final static String TAG = "SqAN.WS";
     private WebServer server;
+    private final SqAnVpnService vpnService;
     public final static int PORT = 8080;
+    public final static String METRICS_URI = "/metrics"; //returns the PacketMetrics snapshot (plus the VPN's tun writer stats) as JSON
 
-    public LiteWebServer() {
+    public LiteWebServer(SqAnVpnService vpnService) {
+        this.vpnService = vpnService;
         server = new WebServer();
         try {
             server.start();
@@ -41,6 +47,21 @@ public class LiteWebServer {
         public Response serve(IHTTPSession session) {
             Method method = session.getMethod();
             Log.d(TAG,"Method: "+method.name());
+            if (METRICS_URI.equals(session.getUri())) {
+                try {
+                    JSONObject metrics = PacketMetrics.getInstance().toJson();
+                    if (vpnService != null) {
+                        JSONObject writer = new JSONObject();
+                        writer.put("lag",vpnService.getWriterLag());
+                        writer.put("maxLag",vpnService.getWriterMaxLag());
+                        writer.put("drops",vpnService.getWriterDropCount());
+                        metrics.put("tunWriter",writer);
+                    }
+                    return newFixedLengthResponse(Response.Status.OK,"application/json",metrics.toString());
+                } catch (JSONException e) {
+                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR,NanoHTTPD.MIME_PLAINTEXT,"Unable to build metrics: "+e.getMessage());
+                }
+            }
             SqAnDevice device = Config.getThisDevice();
             if (device == null)
                 return null;
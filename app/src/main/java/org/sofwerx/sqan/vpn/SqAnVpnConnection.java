@@ -3,6 +3,10 @@ package org.sofwerx.sqan.vpn;
 import android.app.PendingIntent;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
@@ -12,13 +16,17 @@ import org.sofwerx.sqan.manet.common.VpnForwardValue;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
 import org.sofwerx.sqan.util.AddressUtil;
+import org.sofwerx.sqan.util.BufferPool;
 import org.sofwerx.sqan.util.NetUtil;
 
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SqAnVpnConnection implements Runnable {
@@ -26,7 +34,9 @@ public class SqAnVpnConnection implements Runnable {
     //private final static int MTU_SIZE = 1500;
     private static final int SIZE_TO_ROUTE_WIFI_ONLY = 256; //byte size to be considered too large and should be sent over broad pipes only
     private static final int MAX_PACKET_SIZE = Short.MAX_VALUE; //Max packet size cannot exceed MTU constraint of Short
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(100);
+    private static final int DEFAULT_MTU_SIZE = 1500;
+    private static final int READ_BATCH = 32; //most IP packets read from the tun interface per wakeup
+    private static final int POLL_TIMEOUT_MS = 1000; //how long to wait for traffic before checking if the connection should still run
     private final VpnService vpnService;
     private SqAnService sqAnService;
     private SqAnDevice thisDevice;
@@ -83,83 +93,49 @@ public class SqAnVpnConnection implements Runnable {
             return;
         }
 
-        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
-
-        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        FileDescriptor fd = pfd.getFileDescriptor();
+        FileChannel in = new FileInputStream(fd).getChannel();
+        int bufferSize = Math.min(MAX_PACKET_SIZE,Math.max(Config.getMtuSize(),DEFAULT_MTU_SIZE));
+        BufferPool pool = new BufferPool(bufferSize,READ_BATCH,true);
+        ArrayList<ByteBuffer> batch = new ArrayList<>(READ_BATCH);
+        LinkedHashMap<Long,VpnPacket> pending = new LinkedHashMap<>();
+        StructPollfd[] pollFds = {new StructPollfd()};
+        pollFds[0].fd = fd;
+        pollFds[0].events = (short)OsConstants.POLLIN;
 
         while (keepGoing.get()) {
-            boolean idle = true;
             try {
-                int length = in.read(packet.array());
-                if (length > 0) {
-                    packet.limit(length);
-                    packet.rewind();
-                    byte[] rawBytes = new byte[length];
-                    packet.get(rawBytes);
-                    VpnPacket outgoing = new VpnPacket(new PacketHeader(thisDevice.getUUID()));
-                    int destinationIp = NetUtil.getDestinationIpFromIpPacket(rawBytes);
-                    SqAnDevice device = SqAnDevice.findByIpv4IP(destinationIp);
-                    if (!Config.isIgnoringPacketsTo0000() || (destinationIp != 0)) {
-                        if (Config.isVpnForwardIps()) {
-                            int sourceIp = NetUtil.getSourceIpFromIpPacket(rawBytes);
-                            if (sourceIp != thisDeviceIp) {
-                                VpnForwardValue forwardValue = thisDevice.getOrAddIpForwardAddress(sourceIp,Config.isVpnAutoAdd());
-                                if (forwardValue == null) {
-                                    Log.d(getTag(),"Packet from "+AddressUtil.intToIpv4String(sourceIp)+" was blocked from forwarding traffic as it is not on the list of forwarding IP addresses.");
-                                    outgoing = null;
-                                } else {
-                                    outgoing.setForwardValue(forwardValue);
-                                    int newSource = AddressUtil.getSqAnVpnIpvForwardingAddress(thisDevice.getUUID(), forwardValue);
-                                    NetUtil.changeIpv4HeaderSrc(rawBytes, newSource);
-                                    Log.d(getTag(), "Forwarding a packet from " + AddressUtil.intToIpv4String(sourceIp) + " (altering to appear from " + AddressUtil.intToIpv4String(newSource) + ")");
-                                    if (device == null)
-                                        swapIpInPayload(rawBytes, sourceIp, newSource);
-                                }
-                            }
-                        }
-
-                        if (outgoing != null) {
-                            NetUtil.PacketType type = NetUtil.getPacketType(rawBytes);
-                            byte dscp = NetUtil.getDscpFromIpPacket(rawBytes); //TODO for future routing decisions
-                            int srcPort = NetUtil.getSourcePort(rawBytes);
-                            int destPort = NetUtil.getDestinationPort(rawBytes);
-                            if (destinationIp != SqAnDevice.BROADCAST_IP) {
-                                if (device == null) {
-                                    Log.d(getTag(), "VpnPacket destined for an IP address (" + AddressUtil.intToIpv4String(destinationIp) + ") that I do not recognize - broadcasting this message to all devices");
-                                } else {
-                                /*if (Config.portForwardingEnabled()) {
-                                    int port = NetUtil.getPort(rawBytes);
-                                    Log.d(getTag(),"Port "+port+" found for forwarding...");
-                                }*/
-                                    Log.d(getTag(), "VpnPacket (DSCP " + NetUtil.getDscpType(dscp).name() + ", " + type.name() + ") being sent to " + device.getLabel()+", src port "+srcPort+", dest port "+destPort);
-                                    outgoing.setDestination(device.getUUID());
-                                }
-                            }
-                            outgoing.setData(rawBytes);
-                            if (Config.isLargeDataWiFiOnly() && (length > SIZE_TO_ROUTE_WIFI_ONLY))
-                                outgoing.setHighPerformanceNeeded(true);
-                            sqAnService.burst(outgoing);
-                        }
+                if (!waitForTraffic(pollFds))
+                    continue;
+                while (batch.size() < READ_BATCH) {
+                    ByteBuffer buffer = pool.acquire(bufferSize);
+                    if (in.read(buffer) <= 0) {
+                        pool.release(buffer);
+                        break;
                     }
-
-                    packet.clear();
-
-                    idle = false;
+                    batch.add(buffer);
                 }
             } catch (IOException e) {
                 String message = e.getMessage();
                 Log.e(getTag(),"IOException: "+message);
                 if ((pfd == null) || ((message != null) && message.contains("EBADF")))
                     keepGoing.set(false);
-            } catch (BufferUnderflowException e) {
-                Log.e(getTag(),"BufferUnderflowException: "+e.getMessage());
             }
-            if (idle) {
+            for (ByteBuffer buffer:batch) {
+                buffer.flip();
+                byte[] rawBytes = new byte[buffer.remaining()];
+                buffer.get(rawBytes);
+                pool.release(buffer);
                 try {
-                    Thread.sleep(IDLE_INTERVAL_MS);
-                } catch (InterruptedException ignore) {
+                    queue(rawBytes,pending);
+                } catch (BufferUnderflowException e) {
+                    Log.e(getTag(),"BufferUnderflowException: "+e.getMessage());
                 }
             }
+            batch.clear();
+            for (VpnPacket outgoing:pending.values())
+                send(outgoing);
+            pending.clear();
         }
         if (pfd != null) {
             try {
@@ -170,6 +146,122 @@ public class SqAnVpnConnection implements Runnable {
         }
     }
 
+    /**
+     * Waits until the tun interface has something to read
+     * @param pollFds
+     * @return true == there is traffic to read; false == timed out (or interrupted)
+     * @throws IOException if the interface is no longer usable
+     */
+    private boolean waitForTraffic(StructPollfd[] pollFds) throws IOException {
+        pollFds[0].revents = 0;
+        try {
+            if (Os.poll(pollFds,POLL_TIMEOUT_MS) < 1)
+                return false;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EINTR)
+                return false;
+            throw new IOException(e.getMessage());
+        }
+        if ((pollFds[0].revents & OsConstants.POLLNVAL) != 0)
+            throw new IOException("EBADF (tun interface closed)");
+        return true;
+    }
+
+    /**
+     * Adds an IP packet read from the tun interface to the VpnPacket going to the same
+     * destination during this read (or starts a new one)
+     * @param rawBytes
+     * @param pending VpnPackets built so far during this read, keyed by destination and forward value
+     */
+    private void queue(byte[] rawBytes, LinkedHashMap<Long,VpnPacket> pending) {
+        int destinationIp = NetUtil.getDestinationIpFromIpPacket(rawBytes);
+        if (Config.isIgnoringPacketsTo0000() && (destinationIp == 0))
+            return;
+        SqAnDevice device = SqAnDevice.findByIpv4IP(destinationIp);
+        VpnForwardValue forwardValue = null;
+        if (Config.isVpnForwardIps()) {
+            int sourceIp = NetUtil.getSourceIpFromIpPacket(rawBytes);
+            if (sourceIp != thisDeviceIp) {
+                forwardValue = thisDevice.getOrAddIpForwardAddress(sourceIp,Config.isVpnAutoAdd());
+                if (forwardValue == null) {
+                    Log.d(getTag(),"Packet from "+AddressUtil.intToIpv4String(sourceIp)+" was blocked from forwarding traffic as it is not on the list of forwarding IP addresses.");
+                    return;
+                }
+                int newSource = AddressUtil.getSqAnVpnIpvForwardingAddress(thisDevice.getUUID(), forwardValue);
+                NetUtil.changeIpv4HeaderSrc(rawBytes, newSource);
+                Log.d(getTag(), "Forwarding a packet from " + AddressUtil.intToIpv4String(sourceIp) + " (altering to appear from " + AddressUtil.intToIpv4String(newSource) + ")");
+                if (device == null)
+                    swapIpInPayload(rawBytes, sourceIp, newSource);
+            }
+        }
+
+        int destination = PacketHeader.BROADCAST_ADDRESS;
+        NetUtil.PacketType type = NetUtil.getPacketType(rawBytes);
+        byte dscp = NetUtil.getDscpFromIpPacket(rawBytes); //TODO for future routing decisions
+        int srcPort = NetUtil.getSourcePort(rawBytes);
+        int destPort = NetUtil.getDestinationPort(rawBytes);
+        if (destinationIp != SqAnDevice.BROADCAST_IP) {
+            if (device == null) {
+                Log.d(getTag(), "VpnPacket destined for an IP address (" + AddressUtil.intToIpv4String(destinationIp) + ") that I do not recognize - broadcasting this message to all devices");
+            } else {
+            /*if (Config.portForwardingEnabled()) {
+                int port = NetUtil.getPort(rawBytes);
+                Log.d(getTag(),"Port "+port+" found for forwarding...");
+            }*/
+                Log.d(getTag(), "VpnPacket (DSCP " + NetUtil.getDscpType(dscp).name() + ", " + type.name() + ") being sent to " + device.getLabel()+", src port "+srcPort+", dest port "+destPort);
+                destination = device.getUUID();
+            }
+        }
+
+        byte[] item = rawBytes;
+        boolean compressed = false;
+        if (Config.isVpnHeaderCompression() && HeaderCompressor.isWorthwhile(device)) {
+            byte[] compressedBytes = HeaderCompressor.getInstance().compress(destination,rawBytes);
+            if (compressedBytes != null) {
+                item = compressedBytes;
+                compressed = true;
+            }
+        }
+
+        long key = ((long)destination << 8) | ((forwardValue == null)?(VpnForwardValue.NOT_FORWARDED & 0xFF):(forwardValue.getForwardIndex() & 0xFF));
+        VpnPacket outgoing = pending.get(key);
+        if ((outgoing != null) && (!isBundleAllowed(device,outgoing,item) || !outgoing.append(item,compressed))) {
+            send(outgoing);
+            outgoing = null;
+        }
+        if (outgoing == null) {
+            outgoing = new VpnPacket(new PacketHeader(thisDevice.getUUID()));
+            if (destination != PacketHeader.BROADCAST_ADDRESS)
+                outgoing.setDestination(destination);
+            outgoing.setForwardValue(forwardValue);
+            outgoing.append(item,compressed);
+            pending.put(key,outgoing);
+        }
+    }
+
+    /**
+     * Can this IP packet be added to a VpnPacket that is already carrying one. Bundles only go
+     * to a device that has advertised it understands them (older builds would misread the
+     * BUNDLED marker as a forwarding index) and a bundle of small IP packets is never allowed to
+     * grow past SIZE_TO_ROUTE_WIFI_ONLY, which would keep it off the narrower transports.
+     * @param device the destination (null if broadcast)
+     * @param outgoing
+     * @param item
+     * @return
+     */
+    private boolean isBundleAllowed(SqAnDevice device, VpnPacket outgoing, byte[] item) {
+        if ((device == null) || !device.hasCapability(SqAnDevice.CAPABILITY_VPN_BUNDLE))
+            return false;
+        int size = outgoing.getDataSize();
+        return (size > SIZE_TO_ROUTE_WIFI_ONLY) || (size + item.length <= SIZE_TO_ROUTE_WIFI_ONLY);
+    }
+
+    private void send(VpnPacket outgoing) {
+        if (Config.isLargeDataWiFiOnly() && (outgoing.getDataSize() > SIZE_TO_ROUTE_WIFI_ONLY))
+            outgoing.setHighPerformanceNeeded(true);
+        sqAnService.burst(outgoing);
+    }
+
     /**
      * Looks for the original IP address in the data from a packet and swaps any
      * occurrence out with the newIp. Used to adjust broadcast messages from connected
@@ -36,7 +36,8 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
     private static final String TAG = SqAnVpnService.class.getSimpleName();
     public static final String ACTION_CONNECT = "org.sofwerx.sqan.vpn.START";
     public static final String ACTION_DISCONNECT = "org.sofwerx.sqan.vpn.STOP";
-    private FileOutputStream out;
+    private volatile FileOutputStream out;
+    private final TunWriter tunWriter = new TunWriter(this::writeToTun);
     private Handler mHandler;
     private int lastMessage = R.string.disconnected;
     private static SqAnDevice thisDevice;
@@ -67,30 +68,57 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
             return;
         if (out != null) {
             Log.d(TAG,data.length+"b VpnPacket data received from SqAN");
-            try {
-                if (Config.isVpnForwardIps() && (thisDevice != null)) {
-                    int dest = NetUtil.getDestinationIpFromIpPacket(data);
-                    byte[] destBytes = NetUtil.intToByteArray(dest);
-                    int srcPort = NetUtil.getSourcePort(data);
-                    int destPort = NetUtil.getDestinationPort(data);
-                    if (dest != thisDeviceIp) {
-                        VpnForwardValue forward = thisDevice.getIpForwardAddress(destBytes[1]);
-                        if (forward != null) {
-                            byte[] actualDest = NetUtil.intToByteArray(forward.getAddress());
-                            Log.d(TAG,"VPN Packet received for "+AddressUtil.intToIpv4String(dest)+"(src port "+srcPort+", dest port "+destPort+") redirecting to "+AddressUtil.intToIpv4String(NetUtil.byteArrayToInt(actualDest)));
-                            NetUtil.changeIpv4HeaderDst(data,actualDest);
-                            SqAnVpnConnection.swapIpInPayload(data,destBytes,actualDest);
-                        }
-                    }
-                }
-                out.write(data);
-            } catch (IOException e) {
-                Log.e(TAG,"Unable to forward VpnPacket from SqAN to the VPN:"+e.getMessage());
-            }
+            if (!tunWriter.offer(data))
+                Log.d(TAG,data.length+"b VpnPacket data dropped as the VPN is backed up");
         } else
             Log.d(TAG,data.length+"b VpnPacket data received from SqAN, but VPN is not yet ready");
     }
 
+    /**
+     * Applies any forwarding changes and writes the packet to the VPN; called from the tun writer thread
+     * @param data
+     * @throws IOException
+     */
+    private void writeToTun(final byte[] data) throws IOException {
+        FileOutputStream out = this.out;
+        if (out == null)
+            return;
+        if (Config.isVpnForwardIps() && (thisDevice != null)) {
+            int dest = NetUtil.getDestinationIpFromIpPacket(data);
+            byte[] destBytes = NetUtil.intToByteArray(dest);
+            int srcPort = NetUtil.getSourcePort(data);
+            int destPort = NetUtil.getDestinationPort(data);
+            if (dest != thisDeviceIp) {
+                VpnForwardValue forward = thisDevice.getIpForwardAddress(destBytes[1]);
+                if (forward != null) {
+                    byte[] actualDest = NetUtil.intToByteArray(forward.getAddress());
+                    Log.d(TAG,"VPN Packet received for "+AddressUtil.intToIpv4String(dest)+"(src port "+srcPort+", dest port "+destPort+") redirecting to "+AddressUtil.intToIpv4String(NetUtil.byteArrayToInt(actualDest)));
+                    NetUtil.changeIpv4HeaderDst(data,actualDest);
+                    SqAnVpnConnection.swapIpInPayload(data,destBytes,actualDest);
+                }
+            }
+        }
+        out.write(data);
+    }
+
+    /**
+     * Gets how long (in ms) the most recent packet from SqAN waited to be written to the VPN
+     * @return
+     */
+    public long getWriterLag() { return tunWriter.getLag(); }
+
+    /**
+     * Gets the longest (in ms) any packet from SqAN has waited to be written to the VPN
+     * @return
+     */
+    public long getWriterMaxLag() { return tunWriter.getMaxLag(); }
+
+    /**
+     * Gets the number of packets from SqAN dropped because the VPN could not keep up
+     * @return
+     */
+    public long getWriterDropCount() { return tunWriter.getDropCount(); }
+
     private final AtomicReference<Thread> mConnectingThread = new AtomicReference<>();
     private final AtomicReference<Connection> mConnection = new AtomicReference<>();
     private AtomicInteger mNextConnectionId = new AtomicInteger(1);
@@ -139,9 +167,10 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
         Config.setVpnEnabled(true);
         updateForegroundNotification(R.string.connecting);
         mHandler.sendEmptyMessage(R.string.connecting);
+        tunWriter.start();
         startConnection(new SqAnVpnConnection(this, mNextConnectionId.getAndIncrement()));
         if (Config.isVpnHostLandingPage())
-            webServer = new LiteWebServer();
+            webServer = new LiteWebServer(this);
         if (SqAnService.getInstance() != null)
             SqAnService.getInstance().setVpnService(this);
     }
@@ -178,6 +207,7 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
     }
 
     private void disconnect() {
+        tunWriter.stop();
         if (out != null) {
             try {
                 out.close();
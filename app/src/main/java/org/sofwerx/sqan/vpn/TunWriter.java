@@ -0,0 +1,191 @@
+package org.sofwerx.sqan.vpn;
+
+import android.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Writes IP packets received over SqAN to the tun interface from its own thread so that the
+ * thread delivering packets from the MANET never waits on the tun. Packets are written in the
+ * order they were offered (so each flow stays in order). The queue is bounded; when it is full
+ * the oldest UDP packet is dropped to make room, and if there are no UDP packets waiting the
+ * incoming packet is dropped instead.
+ */
+class TunWriter implements Runnable {
+    private final static String TAG = Config.TAG+".TunWriter";
+    private final static int MAX_QUEUED = 512; //packets
+    private final static long MAX_QUEUED_BYTES = 1024l * 1024l;
+    private final static int BATCH_SIZE = 32; //most packets taken from the queue at once
+
+    /**
+     * Does the actual writing to the tun interface
+     */
+    interface Sink {
+        void write(byte[] ipPacket) throws IOException;
+    }
+
+    private static class Entry {
+        private final byte[] data;
+        private final boolean lossy;
+        private final long queued;
+
+        private Entry(byte[] data) {
+            this.data = data;
+            lossy = NetUtil.getPacketType(data) == NetUtil.PacketType.UDP;
+            queued = System.currentTimeMillis();
+        }
+    }
+
+    private final Sink sink;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private long queuedBytes = 0l;
+    private int queuedLossy = 0;
+    private long drops = 0l;
+    private volatile long lag = 0l;
+    private volatile long maxLag = 0l;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    TunWriter(Sink sink) {
+        this.sink = sink;
+    }
+
+    synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this,"SqAnTunWriter");
+        thread.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        queue.clear();
+        queuedBytes = 0l;
+        queuedLossy = 0;
+        notifyAll();
+        thread = null;
+    }
+
+    /**
+     * Is the calling thread the writer's current thread (an old thread may still be finishing
+     * up after a stop() and start())
+     */
+    private boolean isCurrent() {
+        return running && (thread == Thread.currentThread());
+    }
+
+    private boolean isFull(int incomingSize) {
+        if (queue.isEmpty())
+            return false;
+        return (queue.size() >= MAX_QUEUED) || (queuedBytes + incomingSize > MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Queues an IP packet to be written to the tun interface; never blocks
+     * @param ipPacket
+     * @return true == queued; false == dropped because the writer is backed up
+     */
+    synchronized boolean offer(byte[] ipPacket) {
+        if ((ipPacket == null) || !running)
+            return false;
+        while (isFull(ipPacket.length)) {
+            if (!dropOldestLossy()) {
+                drops++;
+                return false;
+            }
+        }
+        Entry entry = new Entry(ipPacket);
+        queue.addLast(entry);
+        queuedBytes += ipPacket.length;
+        if (entry.lossy)
+            queuedLossy++;
+        notifyAll();
+        return true;
+    }
+
+    private boolean dropOldestLossy() {
+        if (queuedLossy == 0)
+            return false;
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.lossy) {
+                iterator.remove();
+                queuedBytes -= entry.data.length;
+                queuedLossy--;
+                drops++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean take(ArrayList<Entry> batch) {
+        while (isCurrent() && queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException ignore) {
+            }
+        }
+        if (!isCurrent())
+            return false;
+        while ((batch.size() < BATCH_SIZE) && !queue.isEmpty()) {
+            Entry entry = queue.pollFirst();
+            queuedBytes -= entry.data.length;
+            if (entry.lossy)
+                queuedLossy--;
+            batch.add(entry);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (take(batch)) {
+            for (Entry entry:batch) {
+                long waited = System.currentTimeMillis() - entry.queued;
+                lag = waited;
+                if (waited > maxLag)
+                    maxLag = waited;
+                try {
+                    sink.write(entry.data);
+                } catch (IOException e) {
+                    Log.e(TAG,"Unable to write to the tun interface: "+e.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Gets how long (in ms) the most recently written packet waited in the queue
+     * @return
+     */
+    long getLag() { return lag; }
+
+    /**
+     * Gets the longest (in ms) any packet has waited in the queue
+     * @return
+     */
+    long getMaxLag() { return maxLag; }
+
+    /**
+     * Gets the number of packets dropped because the writer was backed up
+     * @return
+     */
+    synchronized long getDropCount() { return drops; }
+
+    /**
+     * Gets the number of packets waiting to be written
+     * @return
+     */
+    synchronized int size() { return queue.size(); }
+}
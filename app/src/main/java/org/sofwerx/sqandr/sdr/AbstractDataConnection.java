@@ -4,15 +4,19 @@ import android.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqandr.sdr.sar.Segment;
+import org.sofwerx.sqandr.sdr.sar.SegmentMarkerScanner;
 import org.sofwerx.sqandr.sdr.sar.Segmenter;
+import org.sofwerx.sqandr.util.ByteRingBuffer;
 import org.sofwerx.sqandr.util.ContinuityGapSAR;
 import org.sofwerx.sqandr.util.Crypto;
 import org.sofwerx.sqandr.util.SdrUtils;
 import org.sofwerx.sqandr.util.StringUtils;
-import org.sofwerx.sqandr.util.WriteableInputStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -20,6 +24,8 @@ public abstract class AbstractDataConnection {
     private final static String TAG = Config.TAG+".DataCon";
     protected final static boolean USE_GAP_STRATEGY = true; //used to counter a periodic bit inversion believed to be caused by minor clock differences in SDRs. Restructures the output to include a doubling method and some headers that compensate for periodic data gaps
     private final static long TIME_BETWEEN_STALE_SEGMENTATION_CHECKS = 500l;
+    private final static int DATA_BUFFER_SIZE = 1024 * 1024 * 8; //bytes waiting to be read from the SDR
+    private final static int MARKER_SCAN_SIZE = 1024 * 4; //bytes searched for a packet header at a time
     protected DataConnectionListener listener;
     public abstract boolean isActive();
     public abstract void write(byte[] data);
@@ -27,13 +33,14 @@ public abstract class AbstractDataConnection {
     public void setListener(DataConnectionListener listener) { this.listener = listener; }
     private AtomicBoolean keepGoing = new AtomicBoolean(true);
     protected PeripheralStatusListener peripheralStatusListener = null;
-    private WriteableInputStream dataBuffer;
+    private ByteRingBuffer dataBuffer;
+    private final SegmentMarkerScanner markerScanner = new SegmentMarkerScanner(MARKER_SCAN_SIZE);
+    private long lastOverflowCount = 0l;
     private Thread readThread;
     private long nextStaleCheck = Long.MIN_VALUE;
     private ArrayList<Segmenter> segmenters;
     protected long sdrConnectionCongestedUntil = Long.MIN_VALUE;
     protected long lastSqandrHeartbeat = Long.MIN_VALUE;
-    private int lastHeaderBufferIndex = 0; //used to rewind the buffer a bit when a header turns out to produce an invalid packet
     private final static long TIME_CONGESTION_IS_RECENT = 1000l * 5l; //time in ms to consider any congestion marker as recent
 
     protected ContinuityGapSAR gapSar = new ContinuityGapSAR();
@@ -65,14 +72,34 @@ public abstract class AbstractDataConnection {
         } else {
             //Log.w(TAG, "handleRawDatalinkInput received " + raw.length + "b raw input");
         }
-        //Log.d(TAG,"handleRawDatalinkInput is processing "+raw.length+"b");
+        handleRawDatalinkInput(ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * Takes in data read from the SDR
+     * @param raw heap buffer holding the data from its position to its limit; all of it is consumed
+     */
+    protected void handleRawDatalinkInput(final ByteBuffer raw) {
+        if (raw == null)
+            return;
+        //Log.d(TAG,"handleRawDatalinkInput is processing "+raw.remaining()+"b");
         if (dataBuffer == null)
-            dataBuffer = new WriteableInputStream();
+            dataBuffer = new ByteRingBuffer(DATA_BUFFER_SIZE);
         if (USE_GAP_STRATEGY && (gapSar != null))
-            dataBuffer.write(gapSar.parse(raw));
-        else
-            dataBuffer.write(raw);
-        //Log.d(TAG,raw.length+"b added to dataBuffer");
+            gapSar.parse(raw,dataBuffer);
+        else {
+            dataBuffer.put(raw.array(),raw.arrayOffset()+raw.position(),raw.remaining());
+            raw.position(raw.limit());
+        }
+        long overflowCount = dataBuffer.getOverflowCount();
+        if (overflowCount != lastOverflowCount) {
+            Log.w(TAG,"SDR data buffer full, "+(overflowCount-lastOverflowCount)+"b dropped");
+            lastOverflowCount = overflowCount;
+            PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.QUEUE_FULL);
+            if (listener != null)
+                listener.onPacketDropped();
+        }
+        //Log.d(TAG,raw.remaining()+"b added to dataBuffer");
         if (readThread == null) {
             readThread = new Thread() {
                 @Override
@@ -86,7 +113,7 @@ public abstract class AbstractDataConnection {
                                 Log.d(TAG, "...but ignored as DataConnectionListener in AbstractDataConnection is null");
                             else {
                             	//Log.d(TAG,"reassembled = "+ StringUtils.toHex(out));
-                                listener.onReceiveDataLinkData(out);
+                                deliver(out);
                             }
                         }
                         if (System.currentTimeMillis() > nextStaleCheck) {
@@ -96,6 +123,7 @@ public abstract class AbstractDataConnection {
                                     if ((segmenters.get(i) == null) || segmenters.get(i).isStale()) {
                                         Log.d(TAG,"Segmenter #"+i+" (Packet ID "+((int)segmenters.get(i).getPacketId())+") stale, dropping (Segments: "+segmenters.get(i).getParts()+")");
                                         segmenters.remove(i);
+                                        PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.UNDECODABLE);
                                         if (listener != null)
                                             listener.onPacketDropped();
                                     } else {
@@ -103,7 +131,7 @@ public abstract class AbstractDataConnection {
                                             goodData++;
                                             Log.d(TAG,"Packet with "+segmenters.get(i).getSegmentCount()+" segments successfully reassembled");
                                             if (listener != null)
-                                                listener.onReceiveDataLinkData(Crypto.decrypt(segmenters.get(i).reassemble()));
+                                                deliver(Crypto.decrypt(segmenters.get(i).reassemble()));
                                             segmenters.remove(segmenters.get(i));
                                         } else
                                             i++;
@@ -120,6 +148,16 @@ public abstract class AbstractDataConnection {
         }
     }
 
+    /**
+     * Passes a reassembled packet to the listener and records it as received
+     * @param data
+     */
+    private void deliver(byte[] data) {
+        if (data != null)
+            PacketMetrics.getInstance().onReceived(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,data.length);
+        listener.onReceiveDataLinkData(data);
+    }
+
     /**
      * Is the comms path to the SDR unable to keep up with the current outflow of data
      * @return true == congested
@@ -140,11 +178,7 @@ public abstract class AbstractDataConnection {
         keepGoing.set(false);
         if (dataBuffer != null) {
             Log.d(TAG,"Closing data buffer");
-            try {
-                dataBuffer.close();
-            } catch (IOException e) {
-                Log.w(TAG,"Unable to close dataBuffer: "+e.getMessage());
-            }
+            dataBuffer.close();
             dataBuffer = null;
         }
         if (readThread != null) {
@@ -160,34 +194,27 @@ public abstract class AbstractDataConnection {
 
     private PartialHeaderData readPartialHeader() throws IOException {
         //Log.d(TAG,"readPartialHeader()");
-        byte[] header = new byte[3];
-        header[1] = (byte)0;
-        header[2] = (byte)0;
-
+        final byte[] window = markerScanner.getWindow();
         int size;
         int lost = 0;
         while (keepGoing.get()) {
-            header[0] = header[1];
-            header[1] = header[2];
-            header[2] = (byte)dataBuffer.read();
-            if (Segment.isQuickValidCheck(header)) {
-                //Log.d(TAG,"readPartialHeader() validity test passed");
-                size = header[2] & 0xFF; //needed to convert signed byte into unsigned int
-                lastHeaderBufferIndex = dataBuffer.getReadPosition();
+            dataBuffer.await(3);
+            int length = dataBuffer.peek(window,0,window.length);
+            markerScanner.scan(length);
+            int start = markerScanner.findValidHeader();
+            if (start >= 0) {
+                dataBuffer.skip(start+3);
+                reportLost(lost,lost+start);
+                size = window[start+2] & 0xFF; //needed to convert signed byte into unsigned int
+                if (window[start] != Segment.HEADER_MARKER[0])
+                    Log.d(TAG,"readPartialHeader() validity test passed, but inverted");
+                dataBuffer.mark(); //used to rewind the buffer a bit when a header turns out to produce an invalid packet
                 return new PartialHeaderData(size,false);
-            } else if (Segment.isQuickInversionValidCheck(header)) {
-                Log.d(TAG,"readPartialHeader() validity test passed, but inverted");
-                size = header[2] & 0xFF; //needed to convert signed byte into unsigned int and invert
-                lastHeaderBufferIndex = dataBuffer.getReadPosition();
-                return new PartialHeaderData(size,false);
-            } else {
-                lost++;
-                if ((lost % 100) == 0) {
-                    Log.d(TAG, "100b lost with no packet header found");
-                    if (listener != null)
-                        listener.onPacketDropped();
-                }
             }
+            //keep the last 2 bytes as they could be the start of a marker that has not fully arrived yet
+            int skipped = dataBuffer.skip(length - 2);
+            reportLost(lost,lost+skipped);
+            lost += skipped;
         }
         return new PartialHeaderData(-1,false);
 
@@ -242,6 +269,19 @@ public abstract class AbstractDataConnection {
         }*/
     }
 
+    /**
+     * Reports each 100b lost while looking for a packet header
+     * @param before bytes lost before
+     * @param after bytes lost now
+     */
+    private void reportLost(int before, int after) {
+        for (int i=before/100;i<after/100;i++) {
+            Log.d(TAG, "100b lost with no packet header found");
+            if (listener != null)
+                listener.onPacketDropped();
+        }
+    }
+
     private Segmenter findSegmenter(byte packetId) {
         if ((segmenters != null) && !segmenters.isEmpty()) {
             for (Segmenter segmenter:segmenters) {
@@ -270,7 +310,7 @@ public abstract class AbstractDataConnection {
                 goodData++;
                 Log.d(TAG,"Packet with "+segmenter.getSegmentCount()+" segments successfully reassembled");
                 if (listener != null)
-                    listener.onReceiveDataLinkData(Crypto.decrypt(segmenter.reassemble()));
+                    deliver(Crypto.decrypt(segmenter.reassemble()));
                 segmenters.remove(segmenter);
             }
         }
@@ -284,11 +324,11 @@ public abstract class AbstractDataConnection {
         try {
             PartialHeaderData headerData = readPartialHeader();
             if ((headerData.size < 0) || (headerData.size > Segment.MAX_LENGTH_BEFORE_SEGMENTING)) {
-                dataBuffer.rewindReadPosition(lastHeaderBufferIndex);
+                dataBuffer.rewind();
                 throw new IOException("Unable to read packet - invalid size " + headerData.size + "b - this condition should never happen unless the link is shutting down");
             }
             byte[] rest = new byte[headerData.size+2]; //2 added to get the rest of the header
-            dataBuffer.read(rest,true);
+            dataBuffer.readFully(rest,0,rest.length);
             //Log.d(TAG,"Rest of packet read");
             if (headerData.inverted) {
                 Log.d(TAG,"Packet header was inverted, inverting data...");
@@ -297,6 +337,7 @@ public abstract class AbstractDataConnection {
             Segment segment = new Segment();
             segment.parseRemainder(rest);
             if (segment.isValid()) {
+                dataBuffer.unmark();
                 if (segment.isStandAlone()) {
                     goodData++;
                     Log.d(TAG,"Standalone packet recovered ("+headerData.size+"b)");
@@ -305,7 +346,8 @@ public abstract class AbstractDataConnection {
                     handleSegment(segment);
             } else {
                 badData++;
-                dataBuffer.rewindReadPosition(lastHeaderBufferIndex);
+                PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.CORRUPT);
+                dataBuffer.rewind();
                 Log.d(TAG,"readPacketData produced invalid Segment (Seg "+segment.getIndex()+", Packet ID "+segment.getPacketId()+", size "+headerData.size+"b) and was dropped invalid data was: "+StringUtils.toHex(headerData.toBytes())+StringUtils.toHex(rest));
                 checkDataRatio();
             }
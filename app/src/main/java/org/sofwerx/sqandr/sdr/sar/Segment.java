@@ -46,11 +46,21 @@ public class Segment {
      * @return
      */
     public static boolean isQuickValidCheck(byte[] data) {
-        if ((data == null) || (data.length < 3))
+        return isQuickValidCheck(data,0);
+    }
+
+    /**
+     * See if the 3 bytes at offset are probably the start of a valid packet
+     * @param data
+     * @param offset
+     * @return
+     */
+    public static boolean isQuickValidCheck(byte[] data, int offset) {
+        if ((data == null) || (offset < 0) || (data.length < offset + 3))
             return false;
-        return (data[0] == HEADER_MARKER[0])
-                && (data[1] == HEADER_MARKER[1])
-                && (getSize(data) <= ABS_MAX_LENGTH_FOR_SEGMENT);
+        return (data[offset] == HEADER_MARKER[0])
+                && (data[offset+1] == HEADER_MARKER[1])
+                && (getSize(data,offset) <= ABS_MAX_LENGTH_FOR_SEGMENT);
     }
 
     /**
@@ -61,11 +71,21 @@ public class Segment {
      * @return
      */
     public static boolean isQuickInversionValidCheck(byte[] data) {
-        if ((data == null) || (data.length < 3))
+        return isQuickInversionValidCheck(data,0);
+    }
+
+    /**
+     * See if the 3 bytes at offset are probably the start of a valid packet, but with inverted bits
+     * @param data
+     * @param offset
+     * @return
+     */
+    public static boolean isQuickInversionValidCheck(byte[] data, int offset) {
+        if ((data == null) || (offset < 0) || (data.length < offset + 3))
             return false;
-        return (data[0] == INVERSE_HEADER_MARKER[0])
-                && (data[1] == INVERSE_HEADER_MARKER[1])
-                && (getSizeInverse(data) <= MAX_LENGTH_BEFORE_SEGMENTING);
+        return (data[offset] == INVERSE_HEADER_MARKER[0])
+                && (data[offset+1] == INVERSE_HEADER_MARKER[1])
+                && (getSizeInverse(data,offset) <= MAX_LENGTH_BEFORE_SEGMENTING);
     }
 
     public byte getPacketId() { return packetId; }
@@ -73,21 +93,22 @@ public class Segment {
     public int getIndex() { return index; }
     public byte[] getData() { return data; }
 
-    private static int getSize(byte[] data) {
-        if ((data == null) || (data.length < 3))
+    private static int getSize(byte[] data, int offset) {
+        if ((data == null) || (data.length < offset + 3))
             return 0;
-        return data[2] & 0xFF; //needed to make the signed byte back into an unsigned int
+        return data[offset+2] & 0xFF; //needed to make the signed byte back into an unsigned int
     }
 
     /**
      * Used when the data is detected as inverted
      * @param data
+     * @param offset
      * @return
      */
-    private static int getSizeInverse(byte[] data) {
-        if ((data == null) || (data.length < 3))
+    private static int getSizeInverse(byte[] data, int offset) {
+        if ((data == null) || (data.length < offset + 3))
             return 0;
-        return ~data[2] & 0xFF; //needed to make the signed byte back into an unsigned int
+        return ~data[offset+2] & 0xFF; //needed to make the signed byte back into an unsigned int
     }
 
     public boolean isEqual(Segment other) {
@@ -0,0 +1,98 @@
+package org.sofwerx.sqandr.sdr.sar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds every place in a block of received bytes where a segment could start (either
+ * Segment.HEADER_MARKER or Segment.INVERSE_HEADER_MARKER) in one pass. The block is read 8 bytes
+ * at a time as a long and the marker bytes are matched in all 8 lanes at once (SWAR) so that
+ * long runs of noise are passed over without branching on every byte. The candidates still need
+ * to be checked with Segment.isQuickValidCheck() and isQuickInversionValidCheck().
+ *
+ * Each scanner owns its window and results, so it should only be used by one thread.
+ */
+public class SegmentMarkerScanner {
+    private final static long LOW_7_BITS = 0x7F7F7F7F7F7F7F7Fl;
+    private final static long MARKER_0 = broadcast(Segment.HEADER_MARKER[0]);
+    private final static long MARKER_1 = broadcast(Segment.HEADER_MARKER[1]);
+    private final byte[] window;
+    private final ByteBuffer words;
+    private final int[] candidates;
+    private int candidateCount = 0;
+
+    /**
+     * @param size the most bytes scanned at once
+     */
+    public SegmentMarkerScanner(int size) {
+        window = new byte[size];
+        words = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+        candidates = new int[size];
+    }
+
+    /**
+     * Gets the array to copy the bytes to be scanned into
+     * @return
+     */
+    public byte[] getWindow() { return window; }
+
+    /**
+     * Finds the candidate segment starts within the first length bytes of the window. Only
+     * offsets with the size byte also in the window are reported, so the last 2 bytes need to be
+     * scanned again once more data is in.
+     * @param length
+     * @return the number of candidates found
+     */
+    public int scan(int length) {
+        length = Math.min(length,window.length);
+        candidateCount = 0;
+        final int last = length - 3; //last offset with a full marker and size byte in the window
+        int i = 0;
+        while (i + 9 <= length) { //this word and the one starting a byte later both fit
+            long word = words.getLong(i);
+            long next = words.getLong(i+1);
+            long starts = (getZeroBytes(word ^ MARKER_0) & getZeroBytes(next ^ MARKER_1))
+                    | (getZeroBytes(word ^ MARKER_1) & getZeroBytes(next ^ MARKER_0));
+            while (starts != 0l) {
+                int offset = i + (Long.numberOfTrailingZeros(starts) >>> 3);
+                if (offset <= last)
+                    candidates[candidateCount++] = offset;
+                starts &= starts - 1l;
+            }
+            i += 8;
+        }
+        for (;i<=last;i++) {
+            if (((window[i] == Segment.HEADER_MARKER[0]) && (window[i+1] == Segment.HEADER_MARKER[1]))
+                    || ((window[i] == Segment.INVERSE_HEADER_MARKER[0]) && (window[i+1] == Segment.INVERSE_HEADER_MARKER[1])))
+                candidates[candidateCount++] = i;
+        }
+        return candidateCount;
+    }
+
+    /**
+     * Gets the first candidate from the last scan that passes the segment header checks
+     * @return the offset of the segment start in the window (or -1 if none of the candidates are valid)
+     */
+    public int findValidHeader() {
+        for (int i=0;i<candidateCount;i++) {
+            int offset = candidates[i];
+            if (Segment.isQuickValidCheck(window,offset) || Segment.isQuickInversionValidCheck(window,offset))
+                return offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the high bit of every byte in value that is zero and clears everything else
+     * (without letting a borrow carry from one byte into the next)
+     * @param value
+     * @return
+     */
+    private static long getZeroBytes(long value) {
+        return ~(((value & LOW_7_BITS) + LOW_7_BITS) | value | LOW_7_BITS);
+    }
+
+    private static long broadcast(byte value) {
+        return (value & 0xFFl) * 0x0101010101010101l;
+    }
+}
@@ -17,6 +17,8 @@ import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
 import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
+import org.sofwerx.sqan.manet.common.metrics.PacketMetrics;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.rf.SignalConverter;
 import org.sofwerx.sqan.rf.SignalProcessingListener;
 import org.sofwerx.sqan.util.CommsLog;
@@ -36,8 +38,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SerialConnection extends AbstractDataConnection implements SerialInputOutputManager.Listener, SignalProcessingListener {
     private final static String TAG = Config.TAG+".Serial";
@@ -58,7 +66,6 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     private final static int SERIAL_TIMEOUT = 100;
     private final static long DELAY_FOR_LOGIN_WRITE = 500l;
     private final static long DELAY_BEFORE_BLIND_LOGIN = 1000l * 5l;
-    private final static byte ESCAPE_BYTE = 0b01000000;
     private UsbDeviceConnection connection;
     private UsbSerialPort port;
     private SerialInputOutputManager ioManager;
@@ -82,11 +89,7 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     private final static char HEADER_SHUTDOWN_CHAR = 'e'; //e
     private final static byte[] SHUTDOWN_BYTES = {(byte)0b00010000,(byte)0b00010000,(byte)0b00010000,(byte)0b00010000};
     private final static byte[] NO_DATA_HEARTBEAT = {(byte)0b00000001,(byte)0b00000010,(byte)0b00000011,(byte)0b00000100};
-    private final static byte LESS_THAN_32 = 0b00011111;
     private final static byte CHAR_128 = (byte)0b10000000;
-    private final static byte CHAR_127 = (byte)0b01111111;
-    private final static byte CHAR_255 = (byte)0b11111111;
-    private final static byte CHAR_64 = (byte)0b01000000;
     private final static byte HEADER_SHUTDOWN = (byte) HEADER_SHUTDOWN_CHAR; //e
     private final static byte HEADER_BUSYBOX = (byte)'b';
     private final static boolean USE_ESC_BYTES = true;
@@ -100,17 +103,27 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     private final static long SQANDR_HEARTBEAT_STALE_TIME = 1000l * 5l;
 
     private final static long TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION = 200l; //ms to wait if the USB is having problems sending all its data
+    private final static int CONGESTED_TX_BYTES = MAX_BYTES_PER_SEND * 8; //segment bytes waiting to be written before the connection is reported as congested
+    private final static int MAX_QUEUED_TX_BYTES = MAX_BYTES_PER_SEND * 64; //segment bytes waiting to be written before new packets are dropped
+    private final static long TX_POLL_TIMEOUT = 500l; //ms the TX threads wait for work before checking if they should stop
+    private final static long TX_JOIN_TIMEOUT = 250l; //ms to wait for each TX thread to finish when closing
 
     enum LoginStatus { NEED_CHECK_LOGIN_STATUS,CHECKING_LOGGED_IN,WAITING_USERNAME, WAITING_PASSWORD, WAITING_CONFIRMATION, ERROR, LOGGED_IN }
     enum SdrAppStatus { OFF, CHECKING_FOR_UPDATE, INSTALL_NEEDED,INSTALLING, NEED_START, STARTING, RUNNING, ERROR }
 
     private ByteBuffer serialFormatBuf = ByteBuffer.allocate(MAX_BYTES_PER_SEND*4);
+    private ByteBuffer gapFormatBuf = ByteBuffer.allocate(ContinuityGapSAR.getFormattedSize(MAX_BYTES_PER_SEND));
+    private final SerialEscapeCodec unescaper = new SerialEscapeCodec();
+    private ByteBuffer unescapeBuf = ByteBuffer.allocate(MAX_BYTES_PER_SEND*4);
 	private SignalProcessor signalProcessor;
 	private long lastCycleTime = Long.MAX_VALUE;
 
 	private final static long TIME_TO_CHECK_FOR_ECHO = 5l; //if something is received under this time since our last transmission, check to see if its an echo and ignore it
 	private long echoSentTime = Long.MIN_VALUE;
     private byte[] lastSentData;
+    private TxPipeline txPipeline;
+    private boolean closed = false; //once closed, no new TxPipeline is started
+    private final Object portWriteLock = new Object(); //every write to the port goes through this so writes never interleave
 
     private final static long BURST_LAG_WARNING = 1l;
 
@@ -235,6 +248,13 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     };
 
     public void close() {
+        synchronized (this) {
+            closed = true;
+            if (txPipeline != null) {
+                txPipeline.close();
+                txPipeline = null;
+            }
+        }
         if (handlerThread != null) {
             Log.d(TAG,"Closing...");
             handlerThread.quitSafely();
@@ -261,7 +281,9 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                     exitCommand = formattedData.getBytes(StandardCharsets.UTF_8);
                 }
                 try {
-                    port.write(exitCommand, 100);
+                    synchronized (portWriteLock) {
+                        port.write(exitCommand, 100);
+                    }
                 } catch (IOException e) {
                     Log.w(TAG,"Unable to close SDR app before shutting down: "+e.getMessage());
                 }
@@ -284,7 +306,7 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
             }
             connection = null;
         }
-        if (gapSar == null) {
+        if (gapSar != null) {
             gapSar.close();
             gapSar = null;
         }
@@ -295,8 +317,8 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     }
 
     /**
-     * Burst adds any wrapping needed to communicate the data and then conducts
-     * a write
+     * Burst adds any wrapping needed to communicate the data and then queues it
+     * to be written
      * @param data
      */
     public void burstPacket(byte[] data) {
@@ -306,21 +328,12 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         if (sdrAppStatus == SdrAppStatus.RUNNING) {
             ManetOps.addBytesToTransmittedTally(data.length);
             final byte[] cipherData = Crypto.encrypt(data);
+            byte[][] segmentBytes;
             if (Segment.isAbleToWrapInSingleSegment(cipherData)) {
                 Segment segment = new Segment();
                 segment.setData(cipherData);
                 segment.setStandAlone();
-                if (USE_BIN_USB_IN) {
-                    byte[] outgoingBytes = segment.toBytes();
-                    Log.d(TAG,"Outgoing (burst, standalone): *"+StringUtils.toHex(outgoingBytes));
-
-                    //FIXME for testing
-                    //outgoingBytes = StringUtils.toByteArray("00112233445566778899AABBCCDDEEFFFFEEDDCCBBAA9988776655443322110000112233445566778899AABBCCDDEEFFFFEEDDCCBBAA99887766554433221100");
-                    //FIXME for testing
-
-                    write(toSerialLinkBinFormat(outgoingBytes));
-                } else
-                    write(toSerialLinkFormat(segment.toBytes()));
+                segmentBytes = new byte[][] {segment.toBytes()};
             } else {
                 Log.d(TAG, "This packet is larger than the SerialConnection output, segmenting...");
                 ArrayList<Segment> segments = Segmenter.wrapIntoSegments(cipherData);
@@ -329,89 +342,225 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                     return;
                 } else
                     Log.d(TAG,"Segmenting "+cipherData.length+"b packet into "+segments.size()+" segments");
-                byte[] currentSegBytes;
-                ByteBuffer concatted = null;
-                if (CONCAT_SEGMENT_BURSTS) {
-                    concatted = ByteBuffer.allocate(2000);
-                    concatted.clear();
+                segmentBytes = new byte[segments.size()][];
+                for (int i=0;i<segmentBytes.length;i++) {
+                    segmentBytes[i] = segments.get(i).toBytes();
                 }
+            }
+            TxPipeline pipeline = getTxPipeline();
+            if (pipeline == null) {
+                Log.d(TAG,"Dropping "+data.length+"b packet as the SerialConnection has been closed");
+                PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.CLOSED);
+            } else
+                pipeline.offer(segmentBytes,data.length);
+        } else {
+            Log.d(TAG,"Dropping "+data.length+"b packet as SqANDR is not yet running on the SDR");
+            PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.WRITE_ERROR);
+        }
+    }
 
-                for (Segment segment : segments) {
-                    currentSegBytes = segment.toBytes();
-                    if (CONCAT_SEGMENT_BURSTS) {
-                        if (concatted.position() + currentSegBytes.length < MAX_BYTES_PER_SEND)
-                            concatted.put(currentSegBytes);
-                        else {
-                            if (concatted.position() > 0) {
-                                byte[] bytesToSend = new byte[concatted.position()];
-                                concatted.flip();
-                                concatted.get(bytesToSend);
-                                if (USE_BIN_USB_IN) {
-                                    Log.d(TAG,"Outgoing: *"+StringUtils.toHex(currentSegBytes));
-                                    write(toSerialLinkBinFormat(bytesToSend));
-                                } else
-                                    write(toSerialLinkFormat(bytesToSend));
-                                concatted.clear();
-                                concatted.put(currentSegBytes);
-                            } else
-                                Log.w(TAG,"Current segment size ("+currentSegBytes.length+"b) > max bytes per send ("+MAX_BYTES_PER_SEND+"b)");
-                        }
-                    } else {
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG, "Outgoing: " + StringUtils.toHex(currentSegBytes));
-                            write(toSerialLinkBinFormat(currentSegBytes));
-                        } else {
-                            write(toSerialLinkFormat(currentSegBytes));
+    /**
+     * Gets the TX pipeline, starting it if needed
+     * @return null == the connection has been closed
+     */
+    private synchronized TxPipeline getTxPipeline() {
+        if (closed)
+            return null;
+        if (txPipeline == null)
+            txPipeline = new TxPipeline();
+        return txPipeline;
+    }
+
+    private static class PendingSegment {
+        private final byte[] bytes;
+        private final int packetSize; //size of the whole packet before it was wrapped
+        private final long queued; //System.nanoTime() when the packet was queued
+        private final boolean last; //true == the packet has been sent once this segment is written
+        private final AtomicBoolean dropped; //shared by every segment of the packet; true == one of them could not be sent
+
+        private PendingSegment(byte[] bytes, int packetSize, long queued, boolean last, AtomicBoolean dropped) {
+            this.bytes = bytes;
+            this.packetSize = packetSize;
+            this.queued = queued;
+            this.last = last;
+            this.dropped = dropped;
+        }
+    }
+
+    private static class Frame {
+        private final byte[] data; //ready to write to the port (null if nothing in the frame could be sent)
+        private final ArrayList<PendingSegment> completed; //last segments of the packets this frame finishes
+
+        private Frame(byte[] data, ArrayList<PendingSegment> completed) {
+            this.data = data;
+            this.completed = completed;
+        }
+    }
+
+    /**
+     * Carries segments from burstPacket() to the SDR. Segments from every packet wait in one
+     * queue; a packer thread fills each write with as many of them as fit in MAX_BYTES_PER_SEND,
+     * regardless of which packet they came from, and formats it while a writer thread has the
+     * previous write on the wire. The bytes waiting in the queue decide whether the connection is
+     * reported as congested.
+     */
+    private class TxPipeline {
+        private final LinkedBlockingQueue<PendingSegment> segments = new LinkedBlockingQueue<>();
+        private final ArrayBlockingQueue<Frame> frames = new ArrayBlockingQueue<>(1); //the next write, built while the current one is in flight
+        private final AtomicInteger queuedBytes = new AtomicInteger(0);
+        private final AtomicInteger queuedPackets = new AtomicInteger(0);
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final ByteBuffer packBuf = ByteBuffer.allocate(MAX_BYTES_PER_SEND*2);
+        private final Thread packer;
+        private final Thread writer;
+
+        private TxPipeline() {
+            packer = new Thread("SerialTxPack") {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            PendingSegment first = segments.poll(TX_POLL_TIMEOUT,TimeUnit.MILLISECONDS);
+                            if (first != null)
+                                frames.put(pack(first));
                         }
+                    } catch (InterruptedException ignore) {
                     }
                 }
-                if (CONCAT_SEGMENT_BURSTS) {
-                    //send the last part of the segment
-                    if (concatted.position() > 0) {
-                        currentSegBytes = new byte[concatted.position()];
-                        concatted.flip();
-                        concatted.get(currentSegBytes);
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG,"Outgoing: *"+StringUtils.toHex(currentSegBytes));
-                            write(toSerialLinkBinFormat(currentSegBytes));
-                        } else
-                            write(toSerialLinkFormat(currentSegBytes));
-                        concatted.clear();
+            };
+            writer = new Thread("SerialTxWrite") {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            Frame frame = frames.poll(TX_POLL_TIMEOUT,TimeUnit.MILLISECONDS);
+                            if (frame != null)
+                                send(frame);
+                        }
+                    } catch (InterruptedException ignore) {
                     }
                 }
+            };
+            packer.start();
+            writer.start();
+        }
 
-                /*byte[] tempOut;
-                outgoingBuffer.clear();
-                outgoingBuffer.put(Segment.HEADER_MARKER);
-                for (Segment segment : segments) {
-                    currentSegBytes = Crypto.encrypt(segment.toBytes());
-                    if (currentSegBytes.length > outgoingBuffer.remaining()) {
-                        tempOut = new byte[outgoingBuffer.position()];
-                        outgoingBuffer.get(tempOut);
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG,"Outgoing: "+StringUtils.toHex(tempOut));
-                            write(tempOut);
-                        } else {
-                            write(toSerialLinkFormat(tempOut));
-                        }
-                        outgoingBuffer.clear();
-                        outgoingBuffer.put(Segment.HEADER_MARKER);
-                    }
-                    tempOut = new byte[outgoingBuffer.position()];
-                    outgoingBuffer.get(tempOut);
-                    if (USE_BIN_USB_IN) {
-                        Log.d(TAG,"Outgoing: "+StringUtils.toHex(tempOut));
-                        write(tempOut);
-                    } else {
-                        write(toSerialLinkFormat(tempOut));
-                    }
-                }*/
-                //write(KEEP_ALIVE_MESSAGE); //TODO for testing
+        /**
+         * Queues the segments of a packet
+         * @param segmentBytes
+         * @param packetSize
+         */
+        private void offer(byte[][] segmentBytes, int packetSize) {
+            int size = 0;
+            for (byte[] bytes:segmentBytes) {
+                size += bytes.length;
             }
-            //if (signalProcessor != null)
-            //    signalProcessor.turnOnDetailedIq();
-        } else
-            Log.d(TAG,"Dropping "+data.length+"b packet as SqANDR is not yet running on the SDR");
+            if (queuedBytes.get() + size > MAX_QUEUED_TX_BYTES) {
+                Log.d(TAG,"Dropping "+packetSize+"b packet as the SDR write queue is full");
+                PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.QUEUE_FULL);
+                updateCongestion();
+                return;
+            }
+            queuedBytes.addAndGet(size);
+            PacketMetrics.getInstance().setQueueDepth(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,queuedPackets.incrementAndGet());
+            final long queued = System.nanoTime();
+            final AtomicBoolean dropped = new AtomicBoolean(false);
+            for (int i=0;i<segmentBytes.length;i++) {
+                segments.add(new PendingSegment(segmentBytes[i],packetSize,queued,i == segmentBytes.length-1,dropped));
+            }
+            updateCongestion();
+        }
+
+        /**
+         * Fills a write with the next segments and formats it for the serial link
+         * @param first
+         * @return
+         */
+        private Frame pack(PendingSegment first) {
+            ArrayList<PendingSegment> completed = new ArrayList<>();
+            packBuf.clear();
+            add(first,completed);
+            if (CONCAT_SEGMENT_BURSTS) {
+                PendingSegment next;
+                while (((next = segments.peek()) != null) && (packBuf.position() + next.bytes.length < MAX_BYTES_PER_SEND)) {
+                    add(segments.poll(),completed);
+                }
+            }
+            if (packBuf.position() == 0)
+                return new Frame(null,completed);
+            byte[] raw = Arrays.copyOf(packBuf.array(),packBuf.position());
+            if (USE_BIN_USB_IN) {
+                if (isHexLoggable())
+                    Log.d(TAG,"Outgoing: *"+StringUtils.toHex(raw));
+                return new Frame(toSerialLinkBinFormat(raw),completed);
+            } else
+                return new Frame(toSerialLinkFormat(raw),completed);
+        }
+
+        private void add(PendingSegment segment, ArrayList<PendingSegment> completed) {
+            if (segment.bytes.length > packBuf.remaining()) {
+                Log.w(TAG,"Current segment size ("+segment.bytes.length+"b) > max bytes per send ("+MAX_BYTES_PER_SEND+"b); dropping its packet");
+                segment.dropped.set(true);
+            } else
+                packBuf.put(segment.bytes);
+            queuedBytes.addAndGet(-segment.bytes.length);
+            if (segment.last)
+                completed.add(segment);
+        }
+
+        private void send(Frame frame) {
+            boolean written = (frame.data != null) && writeToPort(frame.data);
+            for (PendingSegment segment:frame.completed) {
+                queuedPackets.decrementAndGet();
+                if (segment.dropped.get())
+                    PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.TOO_LARGE);
+                else if (written)
+                    PacketMetrics.getInstance().onSent(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,segment.packetSize,segment.queued);
+                else
+                    PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.WRITE_ERROR);
+            }
+            PacketMetrics.getInstance().setQueueDepth(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,queuedPackets.get());
+            updateCongestion();
+        }
+
+        /**
+         * Reports the connection as congested for as long as the backlog stays above CONGESTED_TX_BYTES
+         */
+        private void updateCongestion() {
+            if (queuedBytes.get() > CONGESTED_TX_BYTES)
+                sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
+        }
+
+        /**
+         * Stops the TX threads, waiting briefly for them so nothing is still being written when
+         * the port is shut down; anything left in the queue is counted as dropped
+         */
+        private void close() {
+            running.set(false);
+            packer.interrupt();
+            writer.interrupt();
+            join(packer);
+            join(writer);
+            segments.clear();
+            frames.clear();
+            queuedBytes.set(0);
+            int discarded = queuedPackets.getAndSet(0);
+            if (discarded > 0)
+                PacketMetrics.getInstance().onDropped(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,PacketMetrics.DropReason.CLOSED,discarded);
+            PacketMetrics.getInstance().setQueueDepth(TransportPreference.SDR,PacketMetrics.UNKNOWN_NEIGHBOR,0);
+        }
+
+        private void join(Thread thread) {
+            if (thread == Thread.currentThread())
+                return;
+            try {
+                thread.join(TX_JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive())
+                Log.w(TAG,thread.getName()+" did not stop within "+TX_JOIN_TIMEOUT+"ms");
+        }
     }
 
     //private final static String PADDING_BYTE = "00000000000000000000";
@@ -439,9 +588,17 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         if (data == null)
             return null;
         byte[] out;
-        if (USE_GAP_STRATEGY && (gapSar != null))
-            data = ContinuityGapSAR.formatForOutput(data);
-        int values = 0;
+        int length = data.length;
+        if (USE_GAP_STRATEGY && (gapSar != null)) {
+            if (gapFormatBuf.capacity() < ContinuityGapSAR.getFormattedSize(data.length))
+                gapFormatBuf = ByteBuffer.allocate(ContinuityGapSAR.getFormattedSize(data.length));
+            gapFormatBuf.clear();
+            length = ContinuityGapSAR.formatForOutput(ByteBuffer.wrap(data),gapFormatBuf);
+            data = gapFormatBuf.array();
+        }
+        int needed = SerialEscapeCodec.getMaxEscapedSize(length) + SignalConverter.SQAN_HEADER.length + 1;
+        if (serialFormatBuf.capacity() < needed)
+            serialFormatBuf = ByteBuffer.allocate(needed);
         serialFormatBuf.clear();
 
         //Look for illegal byte values and then provide an escaped value and marking. Specifically,
@@ -452,30 +609,26 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         //which is ASCII for carriage return) and then altering the stream in response to those values
         if (USE_LEAN_MODE)
             serialFormatBuf.put(SignalConverter.SQAN_HEADER);
-        for (int i=0;i<data.length;i++) {
-            if (((data[i] & LESS_THAN_32) == data[i]) || (data[i] == CHAR_64) || (data[i] == CHAR_127)) {
-                serialFormatBuf.put(CHAR_64);
-                serialFormatBuf.put((byte)(data[i]^CHAR_255));
-                values++;
-            } else
-                serialFormatBuf.put(data[i]);
-            values++;
-        }
+        SerialEscapeCodec.escape(ByteBuffer.wrap(data,0,length),serialFormatBuf);
 
         serialFormatBuf.put((byte)0b00001010); //new line character
-        values++;
 
-        serialFormatBuf.flip();
-        if (values == 0)
-            return null;
-        out = new byte[values];
-        serialFormatBuf.get(out);
+        out = Arrays.copyOf(serialFormatBuf.array(),serialFormatBuf.position());
 
-        Log.d(TAG,"Outgoing(serialFormatBuf): "+StringUtils.toHex(out));
+        if (isHexLoggable())
+            Log.d(TAG,"Outgoing(serialFormatBuf): "+StringUtils.toHex(out));
 
         return out;
     }
 
+    /**
+     * Is logging set verbose enough to be worth turning whole packets into hex
+     * @return
+     */
+    private static boolean isHexLoggable() {
+        return Log.isLoggable(TAG,Log.DEBUG);
+    }
+
         /**
          * Converts from the format sent over the serial connection into the actual byte array
          * @param raw
@@ -491,37 +644,17 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
      * Used to remove special byte escaping done to prevent Pluto from modifying certain bytes
      * when Pluto fails to open stdout in binary mode
      * @param data
-     * @return
+     * @return buffer holding the unescaped data from its position to its limit
      */
-    private static byte[] separateEscapedCharacters(byte[] data) {
-        if (data == null)
-            return null;
-        int escapeBytes = 0;
-        for (int i=0;i<data.length;i++) {
-            if (data[i] == ESCAPE_BYTE)
-                escapeBytes++;
-        }
-
-        if (escapeBytes == 0)
-            return data;
-        byte[] out = new byte[data.length-escapeBytes];
-        int index = 0;
-        boolean escNext = false;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] == ESCAPE_BYTE)
-                escNext = true;
-            else {
-                if (escNext) {
-                    out[index] = (byte)(data[i] ^ CHAR_255);
-                    escNext = false;
-                } else
-                    out[index] = data[i];
-                index++;
-            }
-        }
-        //Log.d(TAG,"Removed "+escapeBytes+" escape bytes in "+StringUtils.toHex(data)+" to "+StringUtils.toHex(out));
-        return out;
+    private ByteBuffer separateEscapedCharacters(byte[] data) {
+        if (unescapeBuf.capacity() < data.length)
+            unescapeBuf = ByteBuffer.allocate(data.length);
+        unescapeBuf.clear();
+        unescaper.unescape(ByteBuffer.wrap(data),unescapeBuf);
+        unescapeBuf.flip();
+        return unescapeBuf;
     }
+
     private byte[] parseSerialLinkFormat(String raw) {
         if ((raw == null) || (raw.length() < 3))
             return null;
@@ -548,35 +681,52 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     public void write(final byte[] data) {
         if (data == null)
             return;
-        echoSentTime = System.currentTimeMillis() + TIME_TO_CHECK_FOR_ECHO;
-        lastSentData = data;
         //if ((port == null) || (ioManager == null)) {
         if (port == null) {
             Log.e(TAG,"Unable to write data - serial port not open");
             return;
         }
-        handler.post(() -> {
-            try {
-                final long start = System.currentTimeMillis();
-                if (port == null)
-                    return;
-                //    ioManager.writeAsync(data);
-                nextKeepAliveMessage = System.currentTimeMillis() + TIME_BETWEEN_KEEP_ALIVE_MESSAGES;
-
-                if (!USE_BIN_USB_IN)
-                    Log.d(TAG,"Outgoing: "+new String(data,StandardCharsets.UTF_8));
-
-                int bytesWritten = port.write(data,SERIAL_TIMEOUT);
-                if (bytesWritten < data.length)
-                    sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
-                long lag = System.currentTimeMillis() - start;
-                if (lag > BURST_LAG_WARNING)
-                    Log.d(TAG,"WARNING: write lag "+lag+"ms");
-            } catch (IOException e) {
-                Log.e(TAG,"Unable to write data: "+e.getMessage());
+        handler.post(() -> writeToPort(data));
+    }
+
+    /**
+     * Writes to the port on the calling thread, waiting for any write already in progress on
+     * another thread (i.e. the TxPipeline writer or a command from the handler) to finish first
+     * @param data
+     * @return true == the data was written
+     */
+    private boolean writeToPort(byte[] data) {
+        synchronized (portWriteLock) {
+            return writeToPortLocked(data);
+        }
+    }
+
+    private boolean writeToPortLocked(byte[] data) {
+        UsbSerialPort current = port;
+        if (current == null)
+            return false;
+        echoSentTime = System.currentTimeMillis() + TIME_TO_CHECK_FOR_ECHO;
+        lastSentData = data;
+        try {
+            final long start = System.currentTimeMillis();
+            //    ioManager.writeAsync(data);
+            nextKeepAliveMessage = System.currentTimeMillis() + TIME_BETWEEN_KEEP_ALIVE_MESSAGES;
+
+            if (!USE_BIN_USB_IN)
+                Log.d(TAG,"Outgoing: "+new String(data,StandardCharsets.UTF_8));
+
+            int bytesWritten = current.write(data,SERIAL_TIMEOUT);
+            if (bytesWritten < data.length)
                 sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
-            }
-        });
+            long lag = System.currentTimeMillis() - start;
+            if (lag > BURST_LAG_WARNING)
+                Log.d(TAG,"WARNING: write lag "+lag+"ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG,"Unable to write data: "+e.getMessage());
+            sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
+            return false;
+        }
     }
 
     private int attempts = 0;
@@ -732,14 +882,14 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                                     }
                                 }
                             }
-                            if (isEcho)
-                                Log.d(TAG, "From SDR (echo): " + StringUtils.toHex(data));
-                            else {
-                                if (data.length > 10) //FIXME for testing
+                            if (isEcho) {
+                                if (isHexLoggable())
+                                    Log.d(TAG, "From SDR (echo): " + StringUtils.toHex(data));
+                            } else {
+                                if ((data.length > 10) && isHexLoggable()) //FIXME for testing
                                     Log.d(TAG, "From SDR: " + StringUtils.toHex(data));
                                 if (USE_ESC_BYTES) {
-                                    byte[] processData = separateEscapedCharacters(data);
-                                    handleRawDatalinkInput(processData);
+                                    handleRawDatalinkInput(separateEscapedCharacters(data));
                                 } else {
                                     handleRawDatalinkInput(data);
                                 }
@@ -1030,6 +1180,7 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         if (sdrAppStatus != SdrAppStatus.RUNNING) {
             Log.d(TAG,"Reporting SDR app is now running");
             sdrAppStatus = SdrAppStatus.RUNNING;
+            unescaper.reset();
             if (listener != null)
                 listener.onOperational();
             if (peripheralStatusListener != null) {
@@ -0,0 +1,136 @@
+package org.sofwerx.sqandr.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Escapes the byte values that Pluto intercepts on stdin (anything below 32, 64 and 127) and
+ * reverses that escaping on the way back. An escaped byte is sent as ESCAPE_BYTE followed by the
+ * byte with all of its bits flipped. Both directions are single passes driven by a 256 entry
+ * table. Escaping is stateless; unescaping remembers a trailing ESCAPE_BYTE so an escape pair
+ * split across two USB reads is still put back together, which means each incoming stream needs
+ * its own instance.
+ */
+public class SerialEscapeCodec {
+    public final static byte ESCAPE_BYTE = 0b01000000;
+    private final static byte FLIP = (byte)0b11111111;
+    private final static boolean[] NEEDS_ESCAPE = new boolean[256];
+    private boolean escapeNext = false;
+
+    static {
+        for (int i=0;i<32;i++) {
+            NEEDS_ESCAPE[i] = true;
+        }
+        NEEDS_ESCAPE[ESCAPE_BYTE] = true;
+        NEEDS_ESCAPE[127] = true;
+    }
+
+    /**
+     * Gets the most bytes that escaping this much data can produce
+     * @param length
+     * @return
+     */
+    public static int getMaxEscapedSize(int length) {
+        return length * 2;
+    }
+
+    /**
+     * Escapes data from in to out, stopping early if out runs out of room
+     * @param in data from its position to its limit; the position is moved past what was escaped
+     * @param out receives the escaped data
+     * @return the number of bytes written to out
+     */
+    public static int escape(ByteBuffer in, ByteBuffer out) {
+        if ((in == null) || (out == null))
+            return 0;
+        if (!in.hasArray() || !out.hasArray()) {
+            final int start = out.position();
+            while (in.hasRemaining() && out.hasRemaining()) {
+                byte value = in.get(in.position());
+                if (NEEDS_ESCAPE[value & 0xFF]) {
+                    if (out.remaining() < 2)
+                        break;
+                    out.put(ESCAPE_BYTE);
+                    out.put((byte)(value ^ FLIP));
+                } else
+                    out.put(value);
+                in.position(in.position()+1);
+            }
+            return out.position() - start;
+        }
+        final byte[] src = in.array();
+        final byte[] dst = out.array();
+        int i = in.arrayOffset() + in.position();
+        final int end = in.arrayOffset() + in.limit();
+        final int start = out.arrayOffset() + out.position();
+        final int dstEnd = out.arrayOffset() + out.limit();
+        int o = start;
+        while ((i < end) && (o < dstEnd)) {
+            byte value = src[i];
+            if (NEEDS_ESCAPE[value & 0xFF]) {
+                if (o + 1 >= dstEnd)
+                    break;
+                dst[o++] = ESCAPE_BYTE;
+                dst[o++] = (byte)(value ^ FLIP);
+            } else
+                dst[o++] = value;
+            i++;
+        }
+        in.position(i - in.arrayOffset());
+        out.position(o - out.arrayOffset());
+        return o - start;
+    }
+
+    /**
+     * Removes the escaping from data read off the serial link. A trailing ESCAPE_BYTE is held
+     * over to the next call.
+     * @param in data from its position to its limit; all of it is consumed unless out fills up
+     * @param out receives the original data; never needs more than in.remaining() bytes
+     * @return the number of bytes written to out
+     */
+    public int unescape(ByteBuffer in, ByteBuffer out) {
+        if ((in == null) || (out == null))
+            return 0;
+        final int start = out.position();
+        if (!in.hasArray() || !out.hasArray()) {
+            while (in.hasRemaining() && out.hasRemaining()) {
+                byte value = in.get();
+                if (value == ESCAPE_BYTE)
+                    escapeNext = true;
+                else if (escapeNext) {
+                    out.put((byte)(value ^ FLIP));
+                    escapeNext = false;
+                } else
+                    out.put(value);
+            }
+            return out.position() - start;
+        }
+        final byte[] src = in.array();
+        final byte[] dst = out.array();
+        int i = in.arrayOffset() + in.position();
+        final int end = in.arrayOffset() + in.limit();
+        int o = out.arrayOffset() + start;
+        final int dstEnd = out.arrayOffset() + out.limit();
+        boolean escape = escapeNext;
+        while ((i < end) && (o < dstEnd)) {
+            byte value = src[i++];
+            if (value == ESCAPE_BYTE)
+                escape = true;
+            else if (escape) {
+                dst[o++] = (byte)(value ^ FLIP);
+                escape = false;
+            } else
+                dst[o++] = value;
+        }
+        escapeNext = escape;
+        in.position(i - in.arrayOffset());
+        out.position(o - out.arrayOffset());
+        return out.position() - start;
+    }
+
+    /**
+     * Forgets any escape byte held over from the last read (i.e. after the link restarts)
+     */
+    public void reset() {
+        escapeNext = false;
+    }
+}
@@ -0,0 +1,268 @@
+package org.sofwerx.sqandr.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer/single-consumer byte ring buffer. One thread puts data in and one
+ * other thread takes it out; neither takes a lock and the bytes are moved with array copies.
+ * Positions only ever grow (they are masked into the array), so the backlog is always just the
+ * difference between the two.
+ *
+ * The consumer can mark its position and later rewind to it (i.e. to re-scan after a header
+ * that turned out to be bad); the marked bytes are held until rewind() or unmark(). When the
+ * buffer is full the producer keeps the unread data and drops the new bytes, counting them in
+ * getOverflowCount(), instead of writing over what the consumer has not read yet.
+ */
+public class ByteRingBuffer {
+    private final static long PARK_NANOS = 1000l * 1000l * 100l; //upper bound on a wait in case a wake up is missed
+    private final static int SPINS_BEFORE_PARKING = 100;
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0l); //next position the producer writes
+    private final AtomicLong released = new AtomicLong(0l); //oldest position the consumer still needs
+    private final AtomicLong overflow = new AtomicLong(0l);
+    private volatile Thread waiter;
+    private volatile boolean closed = false;
+
+    //consumer only
+    private long head = 0l; //next position the consumer reads
+    private long cachedTail = 0l;
+    private long mark = -1l;
+
+    //producer only
+    private long cachedReleased = 0l;
+
+    /**
+     * @param capacity in bytes; rounded up to the next power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity < 2)
+            capacity = 2;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int getCapacity() { return buffer.length; }
+
+    /**
+     * Adds data to the buffer (producer only). Whatever does not fit is dropped.
+     * @param data
+     * @return the number of bytes added
+     */
+    public int put(byte[] data) {
+        if (data == null)
+            return 0;
+        return put(data,0,data.length);
+    }
+
+    /**
+     * Adds data to the buffer (producer only). Whatever does not fit is dropped.
+     * @param data
+     * @param offset
+     * @param length
+     * @return the number of bytes added
+     */
+    public int put(byte[] data, int offset, int length) {
+        if ((data == null) || (length <= 0) || closed)
+            return 0;
+        final long t = tail.get();
+        long free = buffer.length - (t - cachedReleased);
+        if (free < length) {
+            cachedReleased = released.get();
+            free = buffer.length - (t - cachedReleased);
+        }
+        final int count = (int)Math.min(length,free);
+        if (count > 0) {
+            final int index = (int)t & mask;
+            final int first = Math.min(count,buffer.length - index);
+            System.arraycopy(data,offset,buffer,index,first);
+            if (first < count)
+                System.arraycopy(data,offset+first,buffer,0,count-first);
+            tail.set(t + count); //a full store so the waiter check below cannot be reordered ahead of it
+            Thread sleeping = waiter;
+            if (sleeping != null)
+                LockSupport.unpark(sleeping);
+        }
+        if (count < length)
+            overflow.addAndGet(length - count);
+        return count;
+    }
+
+    /**
+     * Gets the number of bytes waiting to be read (consumer only)
+     * @return
+     */
+    public int available() {
+        cachedTail = tail.get();
+        return (int)(cachedTail - head);
+    }
+
+    /**
+     * Reads one byte, waiting for it if needed (consumer only)
+     * @return the byte as an unsigned value
+     * @throws IOException if the buffer is closed or the thread is interrupted while waiting
+     */
+    public int read() throws IOException {
+        if ((head == cachedTail) && ((cachedTail = tail.get()) == head))
+            await(1);
+        byte value = buffer[(int)head & mask];
+        advance(1);
+        return value & 0xFF;
+    }
+
+    /**
+     * Copies out up to length bytes without waiting (consumer only)
+     * @param out
+     * @param offset
+     * @param length
+     * @return the number of bytes copied
+     */
+    public int drain(byte[] out, int offset, int length) {
+        int count = peek(out,offset,length);
+        advance(count);
+        return count;
+    }
+
+    /**
+     * Copies out up to length bytes without consuming them or waiting (consumer only)
+     * @param out
+     * @param offset
+     * @param length
+     * @return the number of bytes copied
+     */
+    public int peek(byte[] out, int offset, int length) {
+        if ((out == null) || (length <= 0))
+            return 0;
+        final int count = Math.min(length,available());
+        if (count > 0) {
+            final int index = (int)head & mask;
+            final int first = Math.min(count,buffer.length - index);
+            System.arraycopy(buffer,index,out,offset,first);
+            if (first < count)
+                System.arraycopy(buffer,0,out,offset+first,count-first);
+        }
+        return count;
+    }
+
+    /**
+     * Fills out, waiting for data as needed (consumer only)
+     * @param out
+     * @param offset
+     * @param length
+     * @throws IOException if the buffer is closed or the thread is interrupted while waiting
+     */
+    public void readFully(byte[] out, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (available() == 0)
+                await(1);
+            int count = drain(out,offset,length);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Skips ahead (consumer only)
+     * @param length the number of bytes to skip; limited to what is available
+     * @return the number of bytes skipped
+     */
+    public int skip(int length) {
+        int count = Math.max(0,Math.min(length,available()));
+        advance(count);
+        return count;
+    }
+
+    /**
+     * Remembers the current read position so the consumer can come back to it with rewind();
+     * the producer will not write over anything from here on until rewind() or unmark()
+     */
+    public void mark() {
+        mark = head;
+        released.lazySet(head);
+    }
+
+    /**
+     * Goes back to the position saved by mark() and clears the mark
+     * @return true == rewound; false == there was no mark
+     */
+    public boolean rewind() {
+        if (mark < 0l)
+            return false;
+        head = mark;
+        unmark();
+        return true;
+    }
+
+    /**
+     * Clears the mark so the producer can reuse the space it was holding
+     */
+    public void unmark() {
+        mark = -1l;
+        released.lazySet(head);
+    }
+
+    /**
+     * Discards everything that has not been read yet (consumer only)
+     */
+    public void clear() {
+        head = tail.get();
+        cachedTail = head;
+        unmark();
+    }
+
+    /**
+     * Gets the number of bytes the producer dropped because the buffer was full
+     * @return
+     */
+    public long getOverflowCount() { return overflow.get(); }
+
+    /**
+     * Wakes the consumer and makes any further waits fail
+     */
+    public void close() {
+        closed = true;
+        Thread sleeping = waiter;
+        if (sleeping != null)
+            LockSupport.unpark(sleeping);
+    }
+
+    public boolean isClosed() { return closed; }
+
+    private void advance(int count) {
+        head += count;
+        if (mark < 0l)
+            released.lazySet(head);
+    }
+
+    /**
+     * Waits until there are at least count bytes to read (consumer only): spins briefly and then
+     * parks until the producer wakes this thread
+     * @param count limited to the capacity
+     * @throws IOException if the buffer is closed or the thread is interrupted while waiting
+     */
+    public void await(int count) throws IOException {
+        count = Math.min(count,buffer.length);
+        int spins = 0;
+        while (available() < count) {
+            if (closed)
+                throw new IOException("ByteRingBuffer is closed");
+            if (spins < SPINS_BEFORE_PARKING) {
+                spins++;
+                Thread.yield();
+                continue;
+            }
+            waiter = Thread.currentThread();
+            if (available() < count) //checked again after publishing the waiter so a put in between is not missed
+                LockSupport.parkNanos(this,PARK_NANOS);
+            waiter = null;
+            if (Thread.interrupted())
+                throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+    }
+}
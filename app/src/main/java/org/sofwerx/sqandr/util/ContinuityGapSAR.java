@@ -9,16 +9,22 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 /**
- * Restructures data so that periodic gaps cause by bit inversions can be detected and addressed
+ * Restructures data so that periodic gaps cause by bit inversions can be detected and addressed.
+ * Formatting is stateless; parsing keeps its partial chunk between calls, so each stream needs
+ * its own instance and parse() should only be called from one thread at a time.
  */
 public class ContinuityGapSAR {
     private final static String TAG = Config.TAG+".Cont";
     private final static int CHUNK_SIZE = 16;
     private final static int REQUIRED_MATCHING_DATA = CHUNK_SIZE / 4;
     private final static int CHUNK_SIZE_WITH_MARKER = CHUNK_SIZE + 1;
-    private static ByteBuffer formatBuf;
-    private ByteBuffer outBuf = ByteBuffer.allocate(1024);
-    private ByteBuffer processBuf = ByteBuffer.allocate(1024);
+    private final ByteBuffer processBuf = ByteBuffer.allocate(1024);
+    private final byte[] chunkA = new byte[CHUNK_SIZE];
+    private final byte[] chunkB = new byte[CHUNK_SIZE];
+    private final byte[] fused = new byte[CHUNK_SIZE];
+    private ByteBuffer outBuf; //where the current parse is writing (or null if writing to outRing)
+    private ByteRingBuffer outRing;
+    private int emitted;
     private final static byte[] MARKER_BYTES = {0b00000001,0b00000010};
     private final static byte PAD = 0b00000000;
     private boolean readSyncEstablished = false;
@@ -135,7 +141,20 @@ public class ContinuityGapSAR {
     }
 
     public void close() {
-        formatBuf = null;
+        processBuf.clear();
+        readSyncEstablished = false;
+    }
+
+    /**
+     * Gets how many bytes formatting this much data will produce
+     * @param length
+     * @return
+     */
+    public static int getFormattedSize(int length) {
+        int chunks = length / CHUNK_SIZE;
+        if (length % CHUNK_SIZE > 0)
+            chunks++;
+        return chunks * CHUNK_SIZE_WITH_MARKER * 2;
     }
 
     /**
@@ -146,37 +165,48 @@ public class ContinuityGapSAR {
     public static byte[] formatForOutput(byte[] data) {
         if (data == null)
             return null;
+        ByteBuffer out = ByteBuffer.allocate(getFormattedSize(data.length));
+        formatForOutput(ByteBuffer.wrap(data),out);
+        return out.array();
+    }
+
+    /**
+     * Intake the data to be transmitted and format it to support later reassembly. Nothing is
+     * shared between calls so this can be used from any thread.
+     * @param in the data from its position to its limit; all of it is consumed
+     * @param out receives the formatted data
+     * @return the number of bytes written to out
+     * @throws BufferOverflowException if out has less than getFormattedSize(in.remaining()) bytes free
+     */
+    public static int formatForOutput(ByteBuffer in, ByteBuffer out) {
+        if ((in == null) || (out == null))
+            return 0;
+        final int size = getFormattedSize(in.remaining());
+        if (out.remaining() < size)
+            throw new BufferOverflowException();
         int makerIndex = 0;
-        if (formatBuf == null)
-            formatBuf = ByteBuffer.allocate(1024);
-        formatBuf.clear();
-        int max = data.length / CHUNK_SIZE;
-        if (data.length % CHUNK_SIZE > 0)
-            max++;
-        try {
-            int chunkStart;
-            for (int chunk = 0; chunk < max; chunk++) {
-                for (int cycle=0;cycle<2;cycle++) {
-                    chunkStart = chunk * CHUNK_SIZE;
-                    formatBuf.put(MARKER_BYTES[makerIndex]);
-                    for (int i = 0; i< CHUNK_SIZE; i++) {
-                        if ((chunkStart+i)<data.length)
-                            formatBuf.put(data[chunkStart+i]);
-                        else
-                            formatBuf.put(PAD);
+        while (in.hasRemaining()) {
+            final int chunkStart = in.position();
+            final int length = Math.min(CHUNK_SIZE,in.remaining());
+            for (int cycle=0;cycle<2;cycle++) {
+                out.put(MARKER_BYTES[makerIndex]);
+                if (in.hasArray())
+                    out.put(in.array(),in.arrayOffset()+chunkStart,length);
+                else {
+                    for (int i=0;i<length;i++) {
+                        out.put(in.get(chunkStart+i));
                     }
                 }
-                makerIndex++;
-                if (makerIndex == MARKER_BYTES.length)
-                    makerIndex = 0;
+                for (int i=length;i<CHUNK_SIZE;i++) {
+                    out.put(PAD);
+                }
             }
-        } catch (BufferOverflowException e) {
-            Log.w(TAG,"Only a portion of the inputted "+data.length+"b formatted as the rest exceeds the max size of the buffer - adjust the buffer size.");
+            in.position(chunkStart+length);
+            makerIndex++;
+            if (makerIndex == MARKER_BYTES.length)
+                makerIndex = 0;
         }
-        byte[] out = new byte[formatBuf.position()];
-        formatBuf.flip();
-        formatBuf.get(out);
-        return out;
+        return size;
     }
 
     /**
@@ -188,12 +218,71 @@ public class ContinuityGapSAR {
     public byte[] parse(byte[] gapData) {
         if (gapData == null)
             return null;
+        ByteBuffer out = ByteBuffer.allocate(gapData.length + CHUNK_SIZE_WITH_MARKER); //never more than the input plus what was carried over
+        parse(ByteBuffer.wrap(gapData),out);
+        if (out.position() > 0) {
+            byte[] result = new byte[out.position()];
+            out.flip();
+            out.get(result);
+            return result;
+        } else
+            return null;
+    }
+
+    /**
+     * Intake data already formatted to address the continuity gap issue and write the
+     * reconstructed data to out. Anything that is not yet a complete chunk is kept for the next call.
+     * @param in formatted data from its position to its limit; all of it is consumed
+     * @param out receives the reconstructed data; needs at least in.remaining() + 17 bytes free
+     * @return the number of bytes written to out
+     */
+    public int parse(ByteBuffer in, ByteBuffer out) {
+        outBuf = out;
+        try {
+            return parse(in);
+        } finally {
+            outBuf = null;
+        }
+    }
+
+    /**
+     * Intake data already formatted to address the continuity gap issue and put the
+     * reconstructed data straight into the ring. Anything that is not yet a complete chunk is
+     * kept for the next call.
+     * @param in formatted data from its position to its limit; all of it is consumed
+     * @param ring receives the reconstructed data (the ring counts anything it has no room for)
+     * @return the number of bytes reconstructed
+     */
+    public int parse(ByteBuffer in, ByteRingBuffer ring) {
+        outRing = ring;
+        try {
+            return parse(in);
+        } finally {
+            outRing = null;
+        }
+    }
+
+    private int parse(ByteBuffer in) {
+        if (in == null)
+            return 0;
+        emitted = 0;
+        final int end = in.limit();
+        while (in.hasRemaining()) {
+            in.limit(in.position() + Math.min(in.remaining(),processBuf.remaining()));
+            processBuf.put(in);
+            in.limit(end);
+            process();
+        }
+        return emitted;
+    }
+
+    /**
+     * Reconstructs what it can from the data in processBuf and then keeps up to a chunk of the
+     * rest for next time
+     */
+    private void process() {
+        processBuf.flip();
         try {
-            byte[] chunkA = new byte[CHUNK_SIZE];
-            byte[] chunkB = new byte[CHUNK_SIZE];
-            outBuf.clear();
-            processBuf.put(gapData);
-            processBuf.flip();
             byte firstMarker;
             byte nextMarker;
             final int limit = processBuf.limit() - CHUNK_SIZE - 1; //the size remaining needed to have a complete chunk of data
@@ -205,9 +294,8 @@ public class ContinuityGapSAR {
                     nextMarker = processBuf.get(index + CHUNK_SIZE);
                     //Log.d(TAG,"First marker (pos = "+(index-1)+"): "+new String(StringUtils.toHex(firstMarker))+" next marker at pos "+(index + CHUNK_SIZE)+" = "+new String(StringUtils.toHex(nextMarker)));
                     if (isMarkerByte(nextMarker)) { //this is a good block of data
-                        processBuf.get(chunkA);
-                        //Log.d(TAG,"Recovered "+StringUtils.toHex(chunkA));
-                        outBuf.put(chunkA); //saving the data to the output
+                        emit(processBuf.array(),processBuf.arrayOffset()+index); //saving the data to the output
+                        processBuf.position(index + CHUNK_SIZE);
                         readSyncEstablished = true;
                         if (nextMarker == firstMarker) { //this is the first of chunk of two chunks for the same data, so we skip over the second chunk
                             index = processBuf.position() + CHUNK_SIZE_WITH_MARKER;
@@ -250,11 +338,10 @@ public class ContinuityGapSAR {
                                 nextMarker = processBuf.get(endMarkerIndex - CHUNK_SIZE - 1);
                                 if (nextMarker == firstMarker) { //chunkB occurs right after the correct marker header and contains the expected number of bytes so is likely valid
                                     //Log.d(TAG, "Recovered " + StringUtils.toHex(chunkB) + " by comparing " + StringUtils.toHex(chunkA) + " and " + StringUtils.toHex(chunkB) + " and just relying on the second chunk");
-                                    outBuf.put(chunkB);
+                                    emit(chunkB,0);
                                 } else {
-                                    byte[] fusedValue = getFusedValue(chunkA, chunkB);
-                                    if (fusedValue != null) {
-                                        outBuf.put(fusedValue);
+                                    if (getFusedValue(chunkA, chunkB, fused)) {
+                                        emit(fused,0);
                                         processBuf.position(endMarkerIndex);
                                     }
                                 }
@@ -266,21 +353,26 @@ public class ContinuityGapSAR {
                 index = processBuf.position();
             }
         } catch (BufferOverflowException | BufferUnderflowException | IndexOutOfBoundsException e) {
-            Log.e(TAG,"The "+gapData.length+"b formatted data could not be processed as it exceeds the max size of the buffer - adjust the buffer size and look to see if the buffer is draining properly. "+e.getClass().getSimpleName()+": "+e.getMessage());
+            Log.e(TAG,"The formatted data could not be processed as it exceeds the max size of the buffer - adjust the buffer size and look to see if the buffer is draining properly. "+e.getClass().getSimpleName()+": "+e.getMessage());
         }
         if ((processBuf.limit() - processBuf.position()) > CHUNK_SIZE_WITH_MARKER) { //only carry over up to the size of one chunk
             //Log.d(TAG,"More data present (pos == "+processBuf.position()+", limit == "+processBuf.limit()+") than just a chunk, updating position");
             processBuf.position(processBuf.limit() - CHUNK_SIZE_WITH_MARKER);
         }
         processBuf.compact();
-        if (outBuf.position() > 0) {
-            byte[] out = new byte[outBuf.position()];
-            outBuf.flip();
-            outBuf.get(out);
-            return out;
-        } else {
-            return null;
-        }
+    }
+
+    /**
+     * Passes a reconstructed chunk on to whichever output the current parse is writing to
+     * @param source
+     * @param offset
+     */
+    private void emit(byte[] source, int offset) {
+        if (outRing != null)
+            outRing.put(source,offset,CHUNK_SIZE);
+        else
+            outBuf.put(source,offset,CHUNK_SIZE);
+        emitted += CHUNK_SIZE;
     }
 
     /**
@@ -288,17 +380,15 @@ public class ContinuityGapSAR {
      * in the middle the transmission  was corrupted.
      * @param a
      * @param b
-     * @return
+     * @param fused receives the reconstructed value
+     * @return true == the value could be reconstructed
      */
-    private byte[] getFusedValue(byte[] a, byte[] b) {
-        if ((a == null) || (b == null) || (a.length != b.length)) {
+    private boolean getFusedValue(byte[] a, byte[] b, byte[] fused) {
+        if ((a == null) || (b == null) || (a.length != b.length) || (fused.length != a.length)) {
             Log.e(TAG,"getFusedValue called on two arrays that are not comparable.. This should never happen. Both must be non-null and the same length.");
-            return null;
-        }
-        byte[] fused = new byte[a.length];
-        for (int i=0;i<a.length;i++) {
-            fused[i] = a[i];
+            return false;
         }
+        System.arraycopy(a,0,fused,0,a.length);
         //Log.d(TAG,"Trying to reconstruct the original value from "+StringUtils.toHex(a)+" and "+StringUtils.toHex(b)+" ...");
         int matchInRow = 0; //streak of matching characters
         int i=b.length-1;
@@ -315,10 +405,10 @@ public class ContinuityGapSAR {
         }
         if (matchInRow < REQUIRED_MATCHING_DATA) { //no commonality found
             //Log.d(TAG,StringUtils.toHex(a)+" and "+StringUtils.toHex(b)+" only had "+matchInRow+" out of "+REQUIRED_MATCHING_DATA+" required common bytes in the middle so the two are not likely originating from the same data");
-            return null;
+            return false;
         }
         //Log.d(TAG, "Recovered " + StringUtils.toHex(fused) + " by merging " + StringUtils.toHex(a) + " and " + StringUtils.toHex(b));
-        return fused;
+        return true;
     }
 
     private boolean isMarkerByte(byte value) {